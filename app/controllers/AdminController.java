@@ -0,0 +1,67 @@
+package controllers;
+
+import com.typesafe.config.Config;
+import models.SlowQueryLog;
+import models.User;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import util.TraceStore;
+
+import javax.inject.Inject;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Controller for pages used to diagnose the running application, open only to the users
+ * listed in admin.usernames as they show the queries other users ran
+ */
+public class AdminController extends Controller {
+    private final TraceStore traceStore;
+    private final SlowQueryLog slowQueryLog;
+    private final Set<String> admins;
+
+    /**
+     * Constructor for AdminController
+     * @param traceStore Store holding the slowest request traces
+     * @param slowQueryLog Log of queries over the slow query threshold
+     * @param config Application configuration containing the admin block
+     */
+    @Inject
+    public AdminController(TraceStore traceStore, SlowQueryLog slowQueryLog, Config config) {
+        this.traceStore = traceStore;
+        this.slowQueryLog = slowQueryLog;
+        this.admins = new HashSet<>(config.getStringList("admin.usernames"));
+    }
+
+    /**
+     * Turn away anyone but a signed in admin
+     * @return a redirect to sign in, forbidden, or nothing if the user is an admin
+     */
+    private Optional<Result> refuse(Http.Request request) {
+        Optional<String> userJson = request.session().get(SignInController.USER_KEY);
+        if(userJson.isEmpty())
+            return Optional.of(redirect("/signin"));
+
+        User user = Json.fromJson(Json.parse(userJson.get()), User.class);
+        return admins.contains(user.getUsername()) ? Optional.empty() : Optional.of(forbidden());
+    }
+
+    /**
+     * Render the slowest request traces
+     * @return The response body
+     */
+    public Result traces(Http.Request request) {
+        return refuse(request).orElseGet(() -> ok(views.html.traces.render(traceStore.getSlowest(), request.session())));
+    }
+
+    /**
+     * Render the most recent slow queries and their captured plans
+     * @return The response body
+     */
+    public Result slowQueries(Http.Request request) {
+        return refuse(request).orElseGet(() -> ok(views.html.slowqueries.render(slowQueryLog.getEntries(), request.session())));
+    }
+}
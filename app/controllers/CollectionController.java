@@ -1,19 +1,30 @@
 package controllers;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.typesafe.config.Config;
 import models.CollectionManager;
+import models.CollectionTransfer;
 import models.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import play.libs.Json;
+import play.mvc.BodyParser;
 import play.mvc.Http;
 import play.mvc.Result;
 import util.Message;
 
 import javax.inject.Inject;
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
+import static play.mvc.Results.badRequest;
+import static play.mvc.Results.forbidden;
 import static play.mvc.Results.ok;
 import static play.mvc.Results.redirect;
 
@@ -23,16 +34,19 @@ import static play.mvc.Results.redirect;
  */
 public class CollectionController {
     private final CollectionManager collectionManager;
+    private final Duration transferTimeout;
     private final Logger logger;
 
     /**
      * Constructor for CollectionController
      * @param collectionManager the CollectionManager used to perform collection related
      *                          database transactions
+     * @param config Application configuration containing the transfer block
      */
     @Inject
-    public CollectionController(CollectionManager collectionManager) {
+    public CollectionController(CollectionManager collectionManager, Config config) {
         this.collectionManager = collectionManager;
+        this.transferTimeout = config.getDuration("transfer.timeout");
         this.logger = LoggerFactory.getLogger(this.getClass());
     }
 
@@ -90,4 +104,70 @@ public class CollectionController {
                 ok(views.html.collections.render(collections, session)));
         }).orElseGet(() -> CompletableFuture.completedFuture(redirect("/")));
     }
+
+    /**
+     * Download all of the user's collections. The file is streamed while it is read from
+     * the database, so its size is not limited by memory.
+     * @param request HTTP request sent to the server
+     * @param format csv or ndjson
+     * @return Response streaming the file
+     */
+    public Result exportCollections(Http.Request request, String format) {
+        CollectionTransfer.Format fileFormat = CollectionTransfer.Format.of(format);
+        if(fileFormat == null)
+            return badRequest("Unknown format "+format);
+
+        return request.session().get(SignInController.USER_KEY).map(userJson -> {
+            JsonNode userNode = Json.parse(userJson);
+            User user = Json.fromJson(userNode, User.class);
+
+            Source<ByteString, NotUsed> file = StreamConverters.asOutputStream(transferTimeout).mapMaterializedValue(out -> {
+                collectionManager.exportCollections(user.getUserID(), fileFormat, out).whenComplete((rows, error) -> close(out));
+                return NotUsed.getInstance();
+            });
+
+            return ok().chunked(file).as(fileFormat.getContentType())
+                    .withHeader("Content-Disposition", "attachment; filename=\"collections."+fileFormat.getExtension()+"\"");
+        }).orElseGet(() -> forbidden());
+    }
+
+    /**
+     * Create collections from an uploaded export. The upload is parsed and loaded while it
+     * arrives.
+     * @param request HTTP request whose body is the file
+     * @param format csv or ndjson
+     * @return Response containing how many collections and movies were imported as JSON
+     */
+    @BodyParser.Of(StreamingBodyParser.class)
+    public CompletionStage<Result> importCollections(Http.Request request, String format) {
+        InputStream in = request.body().as(InputStream.class);
+        CollectionTransfer.Format fileFormat = CollectionTransfer.Format.of(format);
+        if(fileFormat == null) {
+            close(in);
+            return CompletableFuture.completedFuture(badRequest("Unknown format "+format));
+        }
+
+        return request.session().get(SignInController.USER_KEY).map(userJson -> {
+            JsonNode userNode = Json.parse(userJson);
+            User user = Json.fromJson(userNode, User.class);
+
+            return collectionManager.importCollections(user.getUserID(), fileFormat, in).thenApply(summary -> {
+                close(in);
+                if(summary == null)
+                    return badRequest("Unable to import collections");
+                return ok(Json.toJson(summary));
+            });
+        }).orElseGet(() -> {
+            close(in);
+            return CompletableFuture.completedFuture(forbidden());
+        });
+    }
+
+    private void close(AutoCloseable stream) {
+        try {
+            stream.close();
+        } catch (Exception e) {
+            logger.error(e.toString());
+        }
+    }
 }
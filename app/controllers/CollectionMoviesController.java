@@ -1,17 +1,28 @@
 package controllers;
 
 import models.CollectionManager;
+import models.CollectionUpdate;
+import models.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import play.libs.Json;
 import play.mvc.Http;
 import play.mvc.Result;
 
 import javax.inject.Inject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
+import static play.mvc.Results.badRequest;
+import static play.mvc.Results.internalServerError;
 import static play.mvc.Results.ok;
 import static play.mvc.Results.redirect;
+import static play.mvc.Results.unauthorized;
 
 /**
  * This controller handles routes and actions related to a specific user collection
@@ -22,6 +33,11 @@ public class CollectionMoviesController {
     private final Logger logger;
     private final String SUCCESSFUL_ADD = "Movie successfully added to collection!";
 
+    /**
+     * Most movies a single bulk request may add or remove
+     */
+    public final static int MAX_BULK_MOVIES = 1000;
+
     /**
      * Constructor for CollectionMoviesController
      * @param collectionManager CollectionManager used for executing collection related database operations
@@ -58,6 +74,65 @@ public class CollectionMoviesController {
         );
     }
 
+    /**
+     * Add many movies to one of the signed in user's collections, e.g. every search result,
+     * in one statement
+     * @param request The request from the client, with a movieid form field per movie
+     * @param collectionID The collection to insert into
+     * @return The outcome for each movie as JSON, or unauthorized if nobody is signed in
+     */
+    public CompletionStage<Result> addAll(Http.Request request, int collectionID) {
+        return bulk(request, collectionID, collectionManager::insertIntoCollection);
+    }
+
+    /**
+     * Remove many movies from one of the signed in user's collections in one statement
+     * @param request The request from the client, with a movieid form field per movie
+     * @param collectionID The collection to remove from
+     * @return The outcome for each movie as JSON, or unauthorized if nobody is signed in
+     */
+    public CompletionStage<Result> removeAll(Http.Request request, int collectionID) {
+        return bulk(request, collectionID, collectionManager::deleteFromCollection);
+    }
+
+    /**
+     * A bulk update applied to a user's collection
+     */
+    private interface BulkUpdate {
+        CompletionStage<CollectionUpdate> apply(int userID, int collectionID, List<Integer> movieIDs);
+    }
+
+    private CompletionStage<Result> bulk(Http.Request request, int collectionID, BulkUpdate update) {
+        Optional<String> userJson = request.session().get(SignInController.USER_KEY);
+        if(userJson.isEmpty())
+            return CompletableFuture.completedFuture(unauthorized("Sign in to change collections"));
+        User user = Json.fromJson(Json.parse(userJson.get()), User.class);
+
+        Map<String, String[]> params = request.body().asFormUrlEncoded();
+        String[] values = params == null ? null : params.get("movieid");
+        if(values == null || values.length == 0)
+            return CompletableFuture.completedFuture(badRequest("No movieid given"));
+        if(values.length > MAX_BULK_MOVIES)
+            return CompletableFuture.completedFuture(badRequest("At most "+MAX_BULK_MOVIES+" movies per request"));
+
+        List<Integer> movieIDs = new ArrayList<>();
+        for(String value : values) {
+            try {
+                movieIDs.add(Integer.parseInt(value.strip()));
+            } catch (NumberFormatException e) {
+                return CompletableFuture.completedFuture(badRequest("Invalid movieid "+value));
+            }
+        }
+
+        return update.apply(user.getUserID(), collectionID, movieIDs).thenApply(result -> {
+            if(result == null)
+                return internalServerError("Unable to update collection "+collectionID);
+
+            logger.info("Changed "+result.getChanged()+" of "+movieIDs.size()+" movies in collection "+collectionID);
+            return ok(Json.toJson(result));
+        });
+    }
+
     /**
      * Show the collections page for a specific collection
      * @param collectionID The id of teh collection to display
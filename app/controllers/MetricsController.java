@@ -0,0 +1,31 @@
+package controllers;
+
+import play.mvc.Controller;
+import play.mvc.Result;
+import util.Metrics;
+
+import javax.inject.Inject;
+
+/**
+ * Controller exposing application metrics to a Prometheus scraper
+ */
+public class MetricsController extends Controller {
+    private final Metrics metrics;
+
+    /**
+     * Constructor for MetricsController
+     * @param metrics Registry containing query and request metrics
+     */
+    @Inject
+    public MetricsController(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Export every metric in the Prometheus text format
+     * @return The metrics text
+     */
+    public Result metrics() {
+        return ok(metrics.toPrometheus()).as("text/plain; version=0.0.4; charset=utf-8");
+    }
+}
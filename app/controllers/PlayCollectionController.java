@@ -2,7 +2,6 @@ package controllers;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import models.CollectionManager;
-import models.Movie;
 import models.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +25,8 @@ public class PlayCollectionController {
     private final CollectionManager collectionManager;
     private final Logger logger;
 
+    public final static String PLAY_ALL_FAILED = "Unable to play collection.";
+
     /**
      * Constructor for PlayCollectionController
      * @param collectionManager the CollectionManager used to perform collection related
@@ -38,6 +39,30 @@ public class PlayCollectionController {
     }
 
 
+    /**
+     * Play every movie of a collection at once, then show its first movie
+     * @param request A request from the client
+     * @param collectionID The collection to play
+     * @return A redirect to the first page of the collection
+     */
+    public CompletionStage<Result> playAll(Http.Request request, int collectionID) {
+        String location = "/collections/"+collectionID+"/play/1";
+
+        return request.session().get(SignInController.USER_KEY).map(userJson -> {
+            JsonNode userNode = Json.parse(userJson);
+            User user = Json.fromJson(userNode, User.class);
+
+            return collectionManager.playCollection(user.getUserID(), collectionID).thenApply(played ->
+                played == null
+                    ? redirect(location).flashing(MovieController.MOVIE_ERROR, PLAY_ALL_FAILED)
+                    : redirect(location).flashing(MovieController.MOVIE_SUCCESS, "Successfully played "+played+" movies!")
+            );
+        }).orElseGet(() ->
+                CompletableFuture.completedFuture(redirect(location)
+                .flashing(MovieController.MOVIE_ERROR, MovieController.PLAY_FAILED))
+        );
+    }
+
     /**
      * Play a collection
      * @param request A request from the client
@@ -56,9 +81,8 @@ public class PlayCollectionController {
             JsonNode userNode = Json.parse(userJson);
             User user = Json.fromJson(userNode, User.class);
 
-            return collectionManager.getCollectionMovies(collectionID).thenApply(movies -> {
-                boolean inRange = page > 0 && page <= movies.size();
-                Movie mov = inRange ? movies.get(page-1) : null;
+            return collectionManager.getCollectionMovie(collectionID, page).thenApply(mov -> {
+                boolean inRange = mov != null;
                 return ok(views.html.playcollection.render(request, collectionID, page, inRange, mov, message, session));
             });
         }).orElseGet(() -> CompletableFuture.completedFuture(redirect("/")));
@@ -0,0 +1,44 @@
+package controllers;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+import play.libs.F;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Http;
+import play.mvc.Result;
+
+import javax.inject.Inject;
+import java.io.InputStream;
+import java.time.Duration;
+
+/**
+ * Body parser handing the action a stream of the request body as it arrives, so uploads of
+ * any size can be processed without buffering them in memory or on disk. Reads block until
+ * more of the body has arrived, for at most transfer.timeout.
+ */
+public class StreamingBodyParser implements BodyParser<InputStream> {
+    private final Materializer materializer;
+    private final Duration timeout;
+
+    /**
+     * Constructor for StreamingBodyParser
+     * @param materializer Materializer running the body stream
+     * @param config Application configuration containing the transfer block
+     */
+    @Inject
+    public StreamingBodyParser(Materializer materializer, Config config) {
+        this.materializer = materializer;
+        this.timeout = config.getDuration("transfer.timeout");
+    }
+
+    @Override
+    public Accumulator<ByteString, F.Either<Result, InputStream>> apply(Http.RequestHeader request) {
+        return Accumulator.<ByteString>source().map(
+                body -> F.Either.Right(body.runWith(StreamConverters.asInputStream(timeout), materializer)),
+                Runnable::run
+        );
+    }
+}
@@ -0,0 +1,50 @@
+package filters;
+
+import akka.stream.Materializer;
+import play.api.routing.HandlerDef;
+import play.mvc.Filter;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.routing.Router;
+import util.Metrics;
+
+import javax.inject.Inject;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * Filter recording the latency and status of every request, labelled by the route that handled it.
+ */
+public class MetricsFilter extends Filter {
+    private final Metrics metrics;
+
+    /**
+     * Constructor for MetricsFilter
+     * @param mat Materializer used by the filter chain
+     * @param metrics Registry that request timings are recorded in
+     */
+    @Inject
+    public MetricsFilter(Materializer mat, Metrics metrics) {
+        super(mat);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public CompletionStage<Result> apply(Function<Http.RequestHeader, CompletionStage<Result>> next, Http.RequestHeader request) {
+        long start = System.nanoTime();
+        String route = request.attrs().getOptional(Router.Attrs.HANDLER_DEF)
+                .map(MetricsFilter::routeName)
+                .orElse("unmatched");
+
+        return next.apply(request).whenComplete((result, error) ->
+                metrics.recordRequest(route, error != null ? 500 : result.status(), System.nanoTime() - start));
+    }
+
+    /**
+     * Name a route after the controller method handling it, e.g. "MovieController.loadMovie"
+     */
+    static String routeName(HandlerDef handler) {
+        String controller = handler.controller();
+        return controller.substring(controller.lastIndexOf('.') + 1)+"."+handler.method();
+    }
+}
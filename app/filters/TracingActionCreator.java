@@ -0,0 +1,80 @@
+package filters;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import controllers.SignInController;
+import play.http.ActionCreator;
+import play.libs.Json;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.Result;
+import util.Trace;
+import util.TraceStore;
+
+import javax.inject.Inject;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Starts a trace for every controller action, records the time spent in the controller
+ * method itself and adds a Server-Timing header summarizing the trace to the response. An
+ * action waiting on calls renders its page once the last of them returns, so the time from
+ * the end of the latest span to the result is recorded as the render span. An action that
+ * makes no calls after the controller method returns renders within the controller span.
+ */
+public class TracingActionCreator implements ActionCreator {
+    private final TraceStore traceStore;
+
+    /**
+     * Constructor for TracingActionCreator
+     * @param traceStore Store that keeps the slowest traces
+     */
+    @Inject
+    public TracingActionCreator(TraceStore traceStore) {
+        this.traceStore = traceStore;
+    }
+
+    @Override
+    public Action<?> createAction(Http.Request request, Method actionMethod) {
+        String route = actionMethod.getDeclaringClass().getSimpleName()+"."+actionMethod.getName();
+
+        return new Action.Simple() {
+            @Override
+            public CompletionStage<Result> call(Http.Request req) {
+                Trace trace = new Trace(route, userID(req));
+                Trace previous = Trace.set(trace);
+                long start = System.nanoTime();
+                long returned;
+                CompletionStage<Result> stage;
+
+                try {
+                    stage = delegate.call(req);
+                }
+                finally {
+                    returned = System.nanoTime();
+                    trace.add("controller", start, returned);
+                    Trace.set(previous);
+                }
+
+                return stage.thenApply(result -> {
+                    long waited = trace.getLastEnd();
+                    if(waited > returned)
+                        trace.add("render", waited, System.nanoTime());
+                    trace.finish();
+                    traceStore.add(trace);
+                    return result.withHeader("Server-Timing", trace.serverTiming());
+                });
+            }
+        };
+    }
+
+    /**
+     * The signed in user of a request
+     * @return the user ID, or null if nobody is signed in
+     */
+    static Integer userID(Http.RequestHeader request) {
+        return request.session().get(SignInController.USER_KEY).map(userJson -> {
+            JsonNode userID = Json.parse(userJson).get("userID");
+            return userID == null ? null : userID.asInt();
+        }).orElse(null);
+    }
+}
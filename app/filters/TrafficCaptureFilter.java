@@ -0,0 +1,213 @@
+package filters;
+
+import akka.stream.javadsl.Flow;
+import akka.util.ByteString;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.inject.ApplicationLifecycle;
+import play.libs.Json;
+import play.libs.streams.Accumulator;
+import play.mvc.EssentialAction;
+import play.mvc.EssentialFilter;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.routing.Router;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in filter appending every request to a JSON lines log: when it arrived, its route,
+ * path, query string, form body, the signed in user and how long it took. Passwords are
+ * redacted. The log can be replayed against a test instance with the load test's --replay
+ * option. Lines are written by a background thread, and dropped if it falls behind.
+ */
+@Singleton
+public class TrafficCaptureFilter extends EssentialFilter {
+    private static final int MAX_BODY = 16 * 1024;
+    public static final String REDACTED = "REDACTED";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final boolean enabled;
+    private final BlockingQueue<String> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    /**
+     * Constructor for TrafficCaptureFilter
+     * @param config Application configuration containing the traffic.capture block
+     * @param lifecycle Lifecycle used to flush and close the log on shutdown
+     */
+    @Inject
+    public TrafficCaptureFilter(Config config, ApplicationLifecycle lifecycle) {
+        this.enabled = config.getBoolean("traffic.capture.enabled");
+        this.queue = new ArrayBlockingQueue<>(config.getInt("traffic.capture.queueSize"));
+
+        if(!enabled) {
+            this.writer = null;
+            return;
+        }
+
+        Path path = Path.of(config.getString("traffic.capture.path"));
+        this.writer = new Thread(() -> write(path), "traffic-capture");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        logger.info("Capturing traffic to "+path.toAbsolutePath());
+
+        lifecycle.addStopHook(() -> {
+            writer.interrupt();
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    writer.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        });
+    }
+
+    @Override
+    public EssentialAction apply(EssentialAction next) {
+        if(!enabled)
+            return next;
+
+        return EssentialAction.of(request -> {
+            long at = System.currentTimeMillis();
+            long start = System.nanoTime();
+            boolean form = request.contentType().map("application/x-www-form-urlencoded"::equals).orElse(false);
+            StringBuilder body = new StringBuilder();
+
+            Accumulator<ByteString, Result> accumulator = next.apply(request);
+            if(form) {
+                accumulator = accumulator.through(Flow.<ByteString>create().map(bytes -> keep(body, bytes)));
+            }
+
+            return accumulator
+                    .map(result -> {
+                        capture(request, at, start, body, result.status());
+                        return result;
+                    }, Runnable::run)
+                    .recoverWith(error -> {
+                        capture(request, at, start, body, 500);
+                        return CompletableFuture.failedFuture(error);
+                    }, Runnable::run);
+        });
+    }
+
+    /**
+     * Queue a log line for a completed request
+     */
+    /**
+     * Keep the start of a form body as it streams past
+     * @return the bytes, unchanged
+     */
+    private static ByteString keep(StringBuilder body, ByteString bytes) {
+        if(body.length() < MAX_BODY)
+            body.append(bytes.utf8String());
+        return bytes;
+    }
+
+    private void capture(Http.RequestHeader request, long at, long start, StringBuilder body, int status) {
+        ObjectNode entry = Json.newObject()
+                .put("at", at)
+                .put("method", request.method())
+                .put("path", request.path())
+                .put("query", rawQuery(request.uri()))
+                .put("route", request.attrs().getOptional(Router.Attrs.HANDLER_DEF)
+                        .map(MetricsFilter::routeName)
+                        .orElse("unmatched"))
+                .put("form", redact(body.toString()))
+                .put("status", status)
+                .put("millis", (System.nanoTime() - start) / 1e6);
+
+        Integer userID = TracingActionCreator.userID(request);
+        if(userID != null)
+            entry.put("userID", userID);
+        else
+            entry.putNull("userID");
+
+        if(!queue.offer(entry.toString()))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * Append queued lines to the log until interrupted, then write what is left and close it
+     */
+    private void write(Path path) {
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if(parent != null)
+                Files.createDirectories(parent);
+        } catch (IOException e) {
+            logger.error("Could not create the traffic log directory: "+e);
+            return;
+        }
+
+        try(BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            List<String> lines = new ArrayList<>();
+            boolean running = true;
+
+            while(running || !queue.isEmpty()) {
+                try {
+                    String line = queue.poll(1, TimeUnit.SECONDS);
+                    if(line != null)
+                        lines.add(line);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+
+                queue.drainTo(lines);
+                for(String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+                if(!lines.isEmpty())
+                    out.flush();
+                lines.clear();
+
+                long lost = dropped.getAndSet(0);
+                if(lost > 0)
+                    logger.warn("Traffic capture fell behind, dropped "+lost+" requests");
+            }
+        } catch (IOException e) {
+            logger.error("Could not write the traffic log: "+e);
+        }
+    }
+
+    private static String rawQuery(String uri) {
+        int index = uri.indexOf('?');
+        return index < 0 ? "" : uri.substring(index + 1);
+    }
+
+    /**
+     * Replace password values in a form body
+     */
+    private static String redact(String form) {
+        if(form.isEmpty())
+            return form;
+
+        StringBuilder redacted = new StringBuilder();
+        for(String pair : form.split("&")) {
+            if(redacted.length() > 0)
+                redacted.append('&');
+            redacted.append(pair.startsWith("password=") ? "password="+REDACTED : pair);
+        }
+        return redacted.toString();
+    }
+}
@@ -3,14 +3,15 @@ package models;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import util.Message;
+import util.Trace;
 import javax.inject.Inject;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.LinkedHashMap;
-import java.util.concurrent.CompletableFuture;
+import java.util.List;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -19,6 +20,8 @@ import java.util.concurrent.CompletionStage;
  */
 public class AccountManager {
     private final DataSource dataSource;
+    private final MovieManager movieManager;
+    private final RetryQueue retryQueue;
     private final Logger logger;
     private final Message USER_EXISTS = Message.error("User already exists");
     private final Message EMAIL_EXISTS = Message.error("Email already in use");
@@ -29,11 +32,20 @@ public class AccountManager {
     /**
      * Constructor for AccountManager
      * @param dataSource the DataSource used to access the PostgreSQL database
+     * @param movieManager MovieManager used to resolve movie ids into movies
+     * @param retryQueue Queue that follows and unfollows are kept in while the database is unreachable
      */
     @Inject
-    AccountManager(DataSource dataSource) {
+    AccountManager(DataSource dataSource, MovieManager movieManager, RetryQueue retryQueue) {
         this.dataSource = dataSource;
+        this.movieManager = movieManager;
+        this.retryQueue = retryQueue;
         this.logger = LoggerFactory.getLogger(this.getClass());
+
+        retryQueue.register("AccountManager.followUser", args -> follow(args.get(0).asInt(), args.get(1).asInt()));
+        retryQueue.register("AccountManager.unfollowUser", args -> unfollow(args.get(0).asInt(), args.get(1).asInt()));
+        retryQueue.register("AccountManager.copyUser", args -> copyUser(dataSource.getShards().get(args.get(0).asInt()), args.get(1).asInt(),
+                args.get(2).asText(), args.get(3).asText(), args.get(4).asText(), args.get(5).asText()));
     }
 
     /**
@@ -43,21 +55,28 @@ public class AccountManager {
      * @return A completion stage indicating the end of the operation
      */
     public CompletionStage<Void> followUser(int followerID, int followedID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "INSERT INTO Follows VALUES(%d, %d) ON CONFLICT DO NOTHING;";
-                    sql = String.format(sql, followerID, followedID);
+        return retryQueue.write("AccountManager.followUser", () -> follow(followerID, followedID), Boolean.TRUE, followerID, followedID)
+                .thenApply(done -> null);
+    }
 
-                    statement.executeUpdate(sql);
+    /**
+     * Insert a follow
+     * @return true if the statement ran, null if it failed
+     */
+    private Boolean follow(int followerID, int followedID) {
+        return dataSource.forUser(followerID).withConnection("AccountManager.followUser", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "INSERT INTO Follows VALUES(%d, %d) ON CONFLICT DO NOTHING;";
+            sql = String.format(sql, followerID, followedID);
 
-                    logger.info("user:"+followerID+" followed user:"+followedID);
+            statement.executeUpdate(sql);
 
-                    statement.close();
+            logger.info("user:"+followerID+" followed user:"+followedID);
 
-                    return null;
-                })
-        );
+            statement.close();
+
+            return Boolean.TRUE;
+        });
     }
 
     /**
@@ -67,21 +86,28 @@ public class AccountManager {
      * @return A completion stage indicating the end of the operation
      */
     public CompletionStage<Void> unfollowUser(int followerID, int followedID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "DELETE FROM Follows WHERE followeruserid=%d AND followeduserid=%d";
-                    sql = String.format(sql, followerID, followedID);
+        return retryQueue.write("AccountManager.unfollowUser", () -> unfollow(followerID, followedID), Boolean.TRUE, followerID, followedID)
+                .thenApply(done -> null);
+    }
 
-                    statement.executeUpdate(sql);
+    /**
+     * Delete a follow
+     * @return true if the statement ran, null if it failed
+     */
+    private Boolean unfollow(int followerID, int followedID) {
+        return dataSource.forUser(followerID).withConnection("AccountManager.unfollowUser", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "DELETE FROM Follows WHERE followeruserid=%d AND followeduserid=%d";
+            sql = String.format(sql, followerID, followedID);
 
-                    logger.info("user:"+followerID+" unfollowed user:"+followedID);
+            statement.executeUpdate(sql);
 
-                    statement.close();
+            logger.info("user:"+followerID+" unfollowed user:"+followedID);
 
-                    return null;
-                })
-        );
+            statement.close();
+
+            return Boolean.TRUE;
+        });
     }
 
     /**
@@ -90,8 +116,8 @@ public class AccountManager {
      * @return A map of users and whether they are followed by the user or not
      */
     public CompletionStage<LinkedHashMap<User, Boolean>> getAllUsers(int mainUserID, String query) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.forUser(mainUserID).withReadConnection("AccountManager.getAllUsers", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT UserID, Username, Email, COUNT(FollowerUserID) AS Following "+
                                  "FROM Users LEFT JOIN Follows "+
@@ -126,7 +152,9 @@ public class AccountManager {
     }
 
     /**
-     * Attempt to create a new user in the database
+     * Attempt to create a new user in the database. When sharded the user is created on the
+     * first shard and copied to the others, where their follows, watches and collections may
+     * reference it.
      * @param username User's usernmae
      * @param password User's password
      * @param email User's email
@@ -135,8 +163,8 @@ public class AccountManager {
      * @return A message object indicating whether the operation was successful or not
      */
     public CompletionStage<Message> createUser(String username, String password, String email, String firstName, String lastName) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.withConnection("AccountManager.createUser", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT *  FROM Users WHERE Username='%s';";
                     sql = String.format(sql, username);
@@ -167,26 +195,58 @@ public class AccountManager {
                     results.close();
 
                     sql = "INSERT INTO Users (Username, Password, Email, FirstName, LastName) "+
-                          "VALUES('%s', '%s', '%s', '%s', '%s');";
+                          "VALUES('%s', '%s', '%s', '%s', '%s') RETURNING UserID;";
                     sql = String.format(sql, username, password, email, firstName, lastName);
 
-                    statement.executeUpdate(sql);
+                    results = statement.executeQuery(sql);
+                    results.next();
+                    int userID = results.getInt("UserID");
+
+                    results.close();
+                    statement.close();
 
                     logger.info("User "+username+" created successfully!");
 
+                    List<DataSource> shards = dataSource.getShards();
+                    for(int shard = 1; shard < shards.size(); shard++) {
+                        DataSource copy = shards.get(shard);
+                        retryQueue.write("AccountManager.copyUser", () -> copyUser(copy, userID, username, email, firstName, lastName),
+                                Boolean.TRUE, shard, userID, username, email, firstName, lastName);
+                    }
+
                     return USER_SUCCESS;
                 })
         );
     }
 
+    /**
+     * Copy a user to a shard other than the first, without the password, which is only
+     * checked against the first
+     * @return true if the statement ran, null if it failed
+     */
+    private Boolean copyUser(DataSource shard, int userID, String username, String email, String firstName, String lastName) {
+        return shard.withConnection("AccountManager.copyUser", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "INSERT INTO Users (UserID, Username, Password, Email, FirstName, LastName) "+
+                         "VALUES(%d, '%s', '', '%s', '%s', '%s') ON CONFLICT DO NOTHING;";
+            sql = String.format(sql, userID, username, email, firstName, lastName);
+
+            statement.executeUpdate(sql);
+
+            statement.close();
+
+            return Boolean.TRUE;
+        });
+    }
+
     /**
      * Set the user's last access date to this moment
      * @param username User to update
      * @return CompletableStage for asynchronous code
      */
     public CompletionStage<Void> setLastAccess(String username) {
-        return CompletableFuture.supplyAsync(() ->
-            dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+            dataSource.withConnection("AccountManager.setLastAccess", conn -> {
                 Statement statement = conn.createStatement();
                 String sql = "UPDATE Users SET LastAccess=CURRENT_TIMESTAMP WHERE Username='%s';";
                 sql = String.format(sql, username);
@@ -211,8 +271,8 @@ public class AccountManager {
      * @return The corresponding User object if credentials were correct
      */
     public CompletionStage<User> getUser(String username, String password) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.withConnection("AccountManager.getUser", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT *  FROM Users WHERE Username='%s';";
                     sql = String.format(sql, username);
@@ -225,14 +285,7 @@ public class AccountManager {
                         String resultPass = results.getString("Password");
 
                         if (resultPass.equals(password)) {
-                            int userID = results.getInt("UserID");
-                            String email = results.getString("Email");
-                            String first = results.getString("FirstName");
-                            String last = results.getString("LastName");
-                            Timestamp creationDate = results.getTimestamp("CreationDate");
-                            Timestamp lastAccess = results.getTimestamp("LastAccess");
-
-                            user = new User(userID, username, email, first, last, creationDate, lastAccess);
+                            user = readUser(results);
 
                             logger.info("User " + username + " successfully retrieved and validated.");
                         }
@@ -249,24 +302,54 @@ public class AccountManager {
         );
     }
 
+    /**
+     * Map the current row of a result set over the Users table into a user
+     * @param results The result set positioned on a row
+     * @return the user
+     * @throws SQLException if a column is missing
+     */
+    static User readUser(ResultSet results) throws SQLException {
+        int userID = results.getInt("UserID");
+        String username = results.getString("Username");
+        String email = results.getString("Email");
+        String first = results.getString("FirstName");
+        String last = results.getString("LastName");
+        Timestamp creationDate = results.getTimestamp("CreationDate");
+        Timestamp lastAccess = results.getTimestamp("LastAccess");
+
+        return new User(userID, username, email, first, last, creationDate, lastAccess);
+    }
+
+    /**
+     * Count a user's followers, the users they follow and their collections. Followers are
+     * counted on every shard, since follows are kept with the follower.
+     * @param userID The user
+     * @return A completion stage containing the three counts, or null if a count failed
+     */
     public CompletionStage<int[]> getProfile(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-            dataSource.withConnection(conn -> {
+        CompletionStage<List<Integer>> followers = dataSource.scatter("AccountManager.getProfile", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "SELECT COUNT(*)  FROM follows WHERE followeduserid = %d;";
+            sql = String.format(sql, userID);
+            ResultSet results = statement.executeQuery(sql);
+
+            int count = results.next() ? results.getInt("count") : 0;
+
+            results.close();
+            statement.close();
+
+            return count;
+        });
+
+        CompletionStage<int[]> own = Trace.supplyAsync(() ->
+            dataSource.forUser(userID).withConnection("AccountManager.getProfile", conn -> {
                 int[] stats = new int[3];
 
                 Statement statement = conn.createStatement();
-                String sql = "SELECT COUNT(*)  FROM follows WHERE followeduserid = %d;";
+                String sql = "SELECT COUNT(*)  FROM follows WHERE followeruserid = %d;";
                 sql = String.format(sql, userID);
                 ResultSet results = statement.executeQuery(sql);
 
-                if (results.next()) {
-                    stats[0] = results.getInt("count");
-                }
-
-                sql = "SELECT COUNT(*)  FROM follows WHERE followeruserid = %d;";
-                sql = String.format(sql, userID);
-                results = statement.executeQuery(sql);
-
                 if (results.next()) {
                     stats[1] = results.getInt("count");
                 }
@@ -282,49 +365,40 @@ public class AccountManager {
                 return stats;
             })
         );
-    }
-
-    public CompletionStage<ArrayList<Movie>> getTop10(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    ArrayList<Movie> Top10 = new ArrayList<Movie>();
-
-                    Statement statement = conn.createStatement();
-                    String sql = """
-                            SELECT watches.movieid, movies.title, movies.length, movies.releasedate, movies.mpaa, watches.timesplayed
-                            FROM watches
-                            JOIN movies on watches.movieid = movies.movieid
-                            WHERE userid = %d
-                            ORDER BY timesplayed DESC
-                            """;
-                    sql = String.format(sql, userID);
-                    ResultSet results = statement.executeQuery(sql);
-
-                    for (int i = 0; i < 10; i++) {
-                        Movie movie = null;
 
-                        if(results.next()) {
-                            int movieID = results.getInt("MovieID");
-                            String title = results.getString("Title");
-                            int length = results.getInt("Length");
-                            Date releaseDate = results.getDate("ReleaseDate");
-                            String mpaa = results.getString("MPAA");
+        return own.thenCombine(followers, (stats, counts) -> {
+            if(stats == null || counts == null)
+                return null;
 
-                            movie = new Movie(movieID, title, length, releaseDate, mpaa);
-                            Top10.add(movie);
-                        }
-                    }
+            for(int count : counts)
+                stats[0] += count;
+            return stats;
+        });
+    }
 
-                    return Top10;
-                }
-                )
-        );
+    public CompletionStage<ArrayList<Movie>> getTop10(int userID) {
+        return movieManager.findMovies(dataSource.forUser(userID), "AccountManager.getTop10", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = """
+                    SELECT movieid
+                    FROM watches
+                    WHERE userid = %d
+                    ORDER BY timesplayed DESC
+                    LIMIT 10
+                    """;
+            sql = String.format(sql, userID);
+            List<Integer> movieIDs = MovieManager.readMovieIDs(statement.executeQuery(sql), 10);
+
+            statement.close();
+
+            return movieIDs;
+        }).thenApply(movies -> movies == null ? null : new ArrayList<>(movies));
     }
 
     /**
     public CompletionStage<Integer> getFollowing(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.withConnection("AccountManager.getFollowing", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT COUNT(*)  FROM follows WHERE followeruserid = %d;";
                     sql = String.format(sql, userID);
@@ -341,8 +415,8 @@ public class AccountManager {
     }
 
     public CompletionStage<Integer> getCollections(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.withConnection("AccountManager.getCollections", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT COUNT(*) FROM collections WHERE userid = %d";
                     sql = String.format(sql, userID);
@@ -0,0 +1,394 @@
+package models;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only columnar copy of the movie catalog backed by a memory-mapped snapshot file.
+ * Every column is indexed by a dense movie ordinal; MovieIDs are stored sorted so an
+ * ordinal can be found with a binary search. People, studios, genres and MPAA ratings
+ * are dictionary encoded.
+ */
+final class CatalogSnapshot {
+    private static final int MAGIC = 0x4D564354;
+    private static final int VERSION = 1;
+    static final int NO_DATE = Integer.MIN_VALUE;
+    /**
+     * MPAA code of a movie without a rating. Codes are stored in one unsigned byte, so the
+     * dictionary holds at most this many ratings.
+     */
+    static final int NO_MPAA = 0xFF;
+
+    private final long createdAt;
+    private final int count;
+    private final IntBuffer movieIDs;
+    private final IntBuffer lengths;
+    private final IntBuffer releaseDays;
+    private final ByteBuffer mpaaCodes;
+    private final StringColumn mpaaDictionary;
+    private final StringColumn titles;
+    private final StringColumn people;
+    private final StringColumn studios;
+    private final StringColumn genres;
+    private final ListColumn directors;
+    private final ListColumn castMembers;
+    private final ListColumn movieStudios;
+    private final ListColumn movieGenres;
+
+    /**
+     * Map a snapshot file into memory.
+     * @param path Location of the snapshot
+     * @return the mapped snapshot
+     * @throws IOException if the file can't be read or is not a catalog snapshot
+     */
+    static CatalogSnapshot map(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CatalogSnapshot(buffer);
+        }
+    }
+
+    private CatalogSnapshot(ByteBuffer buffer) throws IOException {
+        if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IOException("Not a catalog snapshot");
+
+        createdAt = buffer.getLong();
+        count = buffer.getInt();
+        movieIDs = ints(buffer, count);
+        lengths = ints(buffer, count);
+        releaseDays = ints(buffer, count);
+        mpaaCodes = bytes(buffer, count);
+        mpaaDictionary = new StringColumn(buffer);
+        titles = new StringColumn(buffer);
+        people = new StringColumn(buffer);
+        studios = new StringColumn(buffer);
+        genres = new StringColumn(buffer);
+        directors = new ListColumn(buffer, count);
+        castMembers = new ListColumn(buffer, count);
+        movieStudios = new ListColumn(buffer, count);
+        movieGenres = new ListColumn(buffer, count);
+    }
+
+    /**
+     * Time the snapshot was built, in epoch milliseconds
+     */
+    long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Number of movies in the catalog
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Find the ordinal of a movie
+     * @param movieID The movie's ID
+     * @return the ordinal, or -1 if the movie isn't in the catalog
+     */
+    int ordinal(int movieID) {
+        int low = 0;
+        int high = count-1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = movieIDs.get(mid);
+
+            if(value < movieID)
+                low = mid+1;
+            else if(value > movieID)
+                high = mid-1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Create a Movie view over a catalog row
+     * @param movieID The movie's ID
+     * @param rating Average user rating, which is not part of the catalog
+     * @return the movie, or null if it isn't in the catalog
+     */
+    Movie movie(int movieID, double rating) {
+        int ordinal = ordinal(movieID);
+        return ordinal < 0 ? null : new Movie(this, ordinal, rating);
+    }
+
+    int movieID(int ordinal) {
+        return movieIDs.get(ordinal);
+    }
+
+    String title(int ordinal) {
+        return titles.get(ordinal);
+    }
+
+    int length(int ordinal) {
+        return lengths.get(ordinal);
+    }
+
+    int releaseDay(int ordinal) {
+        return releaseDays.get(ordinal);
+    }
+
+    Date releaseDate(int ordinal) {
+        int day = releaseDays.get(ordinal);
+        return day == NO_DATE ? null : Date.valueOf(LocalDate.ofEpochDay(day));
+    }
+
+    String mpaa(int ordinal) {
+        int code = Byte.toUnsignedInt(mpaaCodes.get(ordinal));
+        return code == NO_MPAA ? null : mpaaDictionary.get(code);
+    }
+
+    String directors(int ordinal) {
+        return directors.join(ordinal, people);
+    }
+
+    String castMembers(int ordinal) {
+        return castMembers.join(ordinal, people);
+    }
+
+    List<String> peopleNames(int ordinal) {
+        List<String> names = directors.names(ordinal, people);
+        names.addAll(castMembers.names(ordinal, people));
+        return names;
+    }
+
+    List<String> studioNames(int ordinal) {
+        return movieStudios.names(ordinal, studios);
+    }
+
+    List<String> genreNames(int ordinal) {
+        return movieGenres.names(ordinal, genres);
+    }
+
+    private static IntBuffer ints(ByteBuffer buffer, int n) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(n*4);
+        buffer.position(buffer.position() + n*4);
+        return slice.asIntBuffer();
+    }
+
+    private static ByteBuffer bytes(ByteBuffer buffer, int n) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(n);
+        buffer.position(buffer.position() + n);
+        return slice;
+    }
+
+    /**
+     * UTF-8 strings stored back to back with an offsets column
+     */
+    private static final class StringColumn {
+        private final IntBuffer offsets;
+        private final ByteBuffer data;
+
+        StringColumn(ByteBuffer buffer) {
+            int n = buffer.getInt();
+            offsets = ints(buffer, n+1);
+            data = bytes(buffer, offsets.get(n));
+        }
+
+        String get(int i) {
+            int start = offsets.get(i);
+            byte[] utf8 = new byte[offsets.get(i+1) - start];
+            data.get(start, utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Per-movie lists of dictionary ids stored back to back with an offsets column
+     */
+    private static final class ListColumn {
+        private final IntBuffer offsets;
+        private final IntBuffer values;
+
+        ListColumn(ByteBuffer buffer, int n) {
+            offsets = ints(buffer, n+1);
+            values = ints(buffer, offsets.get(n));
+        }
+
+        List<String> names(int ordinal, StringColumn dictionary) {
+            List<String> names = new ArrayList<>();
+            for(int i = offsets.get(ordinal); i < offsets.get(ordinal+1); i++)
+                names.add(dictionary.get(values.get(i)));
+            return names;
+        }
+
+        String join(int ordinal, StringColumn dictionary) {
+            return String.join(", ", names(ordinal, dictionary));
+        }
+    }
+
+    /**
+     * Collects catalog rows in any order and writes them out as a snapshot file.
+     */
+    static final class Writer {
+        private final Map<Integer, Row> rows = new HashMap<>();
+        private final Dictionary mpaa = new Dictionary();
+        private final Dictionary people = new Dictionary();
+        private final Dictionary studios = new Dictionary();
+        private final Dictionary genres = new Dictionary();
+
+        private static final class Row {
+            String title;
+            int length;
+            int releaseDay = NO_DATE;
+            int mpaa = NO_MPAA;
+            final List<Integer> directors = new ArrayList<>();
+            final List<Integer> castMembers = new ArrayList<>();
+            final List<Integer> studios = new ArrayList<>();
+            final List<Integer> genres = new ArrayList<>();
+        }
+
+        private static final class Dictionary {
+            private final Map<String, Integer> ids = new HashMap<>();
+            private final List<String> values = new ArrayList<>();
+
+            int id(String value) {
+                return ids.computeIfAbsent(value, v -> {
+                    values.add(v);
+                    return values.size()-1;
+                });
+            }
+        }
+
+        void movie(int movieID, String title, int length, LocalDate releaseDate, String mpaaRating) {
+            Row row = rows.computeIfAbsent(movieID, id -> new Row());
+            row.title = title == null ? "" : title;
+            row.length = length;
+            row.releaseDay = releaseDate == null ? NO_DATE : (int) releaseDate.toEpochDay();
+            row.mpaa = mpaaRating == null ? NO_MPAA : mpaa.id(mpaaRating);
+        }
+
+        void director(int movieID, String name) {
+            Row row = rows.get(movieID);
+            if(row != null)
+                row.directors.add(people.id(name));
+        }
+
+        void castMember(int movieID, String name) {
+            Row row = rows.get(movieID);
+            if(row != null)
+                row.castMembers.add(people.id(name));
+        }
+
+        void studio(int movieID, String name) {
+            Row row = rows.get(movieID);
+            if(row != null)
+                row.studios.add(studios.id(name));
+        }
+
+        void genre(int movieID, String name) {
+            Row row = rows.get(movieID);
+            if(row != null)
+                row.genres.add(genres.id(name));
+        }
+
+        /**
+         * Write the snapshot to a temporary file and atomically move it into place.
+         * @param path Destination of the snapshot
+         * @throws IOException if the file can't be written, or there are more MPAA ratings
+         *         than fit in a code
+         */
+        void write(Path path) throws IOException {
+            if(mpaa.values.size() > NO_MPAA)
+                throw new IOException("Too many distinct MPAA ratings for the snapshot: "+mpaa.values.size()+", at most "+NO_MPAA);
+
+            int[] ids = rows.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            Row[] sorted = new Row[ids.length];
+            for(int i = 0; i < ids.length; i++)
+                sorted[i] = rows.get(ids[i]);
+
+            Path parent = path.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, "catalog", ".tmp");
+
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(ids.length);
+
+                for(int id : ids)
+                    out.writeInt(id);
+                for(Row row : sorted)
+                    out.writeInt(row.length);
+                for(Row row : sorted)
+                    out.writeInt(row.releaseDay);
+                for(Row row : sorted)
+                    out.writeByte(row.mpaa);
+
+                writeStrings(out, mpaa.values);
+                List<String> titles = new ArrayList<>(sorted.length);
+                for(Row row : sorted)
+                    titles.add(row.title);
+                writeStrings(out, titles);
+                writeStrings(out, people.values);
+                writeStrings(out, studios.values);
+                writeStrings(out, genres.values);
+
+                writeLists(out, sorted, row -> row.directors);
+                writeLists(out, sorted, row -> row.castMembers);
+                writeLists(out, sorted, row -> row.studios);
+                writeLists(out, sorted, row -> row.genres);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+            byte[][] encoded = new byte[values.size()][];
+            for(int i = 0; i < encoded.length; i++)
+                encoded[i] = values.get(i).getBytes(StandardCharsets.UTF_8);
+
+            out.writeInt(encoded.length);
+            int offset = 0;
+            out.writeInt(offset);
+            for(byte[] value : encoded) {
+                offset += value.length;
+                out.writeInt(offset);
+            }
+            for(byte[] value : encoded)
+                out.write(value);
+        }
+
+        private interface ListGetter {
+            List<Integer> get(Row row);
+        }
+
+        private static void writeLists(DataOutputStream out, Row[] rows, ListGetter getter) throws IOException {
+            int offset = 0;
+            out.writeInt(offset);
+            for(Row row : rows) {
+                offset += getter.get(row).size();
+                out.writeInt(offset);
+            }
+            for(Row row : rows) {
+                for(int value : getter.get(row))
+                    out.writeInt(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package models;
+
+import util.ExpiringCache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Each user's collection summaries (id, name, total and length), kept up to date by the
+ * collection writes instead of being reloaded, and the ordered movie ids of collections
+ * being played, dropped when the collection changes. Loads that overlap a write are not
+ * cached, so data read before the write cannot replace the updated data.
+ */
+final class CollectionCache {
+    private static final Comparator<MovieCollection> BY_NAME = Comparator.comparing(MovieCollection::getName, String.CASE_INSENSITIVE_ORDER);
+
+    private final ExpiringCache<Integer, List<MovieCollection>> byUser;
+    private final ExpiringCache<Integer, List<Integer>> movieIDs;
+    private final Map<Integer, Integer> owners = new ConcurrentHashMap<>();
+    private long version;
+
+    /**
+     * Constructor for CollectionCache
+     * @param ttl How long a user's summaries are kept
+     * @param maxSize Number of users above which expired entries are swept out
+     * @param playbackTtl How long the movie ids of a collection are kept
+     * @param playbackMaxSize Number of collections above which expired movie ids are swept out
+     */
+    CollectionCache(Duration ttl, int maxSize, Duration playbackTtl, int playbackMaxSize) {
+        this.byUser = new ExpiringCache<>(ttl, maxSize);
+        this.movieIDs = new ExpiringCache<>(playbackTtl, playbackMaxSize);
+    }
+
+    /**
+     * A user's collections ordered by name
+     * @return the collections, or null if they are not cached
+     */
+    List<MovieCollection> get(int userID) {
+        return byUser.get(userID);
+    }
+
+    /**
+     * A user's collections as last cached, even if expired
+     * @return the collections, or null if they were never cached or have been dropped
+     */
+    List<MovieCollection> getStale(int userID) {
+        return byUser.getStale(userID);
+    }
+
+    /**
+     * Current write version, to be passed to put by a load started now
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Cache a user's collections unless a write happened since the load started
+     * @param userID The user
+     * @param collections The user's collections as loaded
+     * @param loadedAt Version returned by version() before the load
+     */
+    synchronized void put(int userID, List<MovieCollection> collections, long loadedAt) {
+        if(loadedAt != version)
+            return;
+
+        for(MovieCollection collection : collections)
+            owners.put(collection.getCollectionID(), userID);
+        byUser.put(userID, Collections.unmodifiableList(new ArrayList<>(collections)));
+    }
+
+    /**
+     * The movie ids of a collection in playing order
+     * @return the ids, or null if they are not cached
+     */
+    List<Integer> getMovieIDs(int collectionID) {
+        return movieIDs.get(collectionID);
+    }
+
+    /**
+     * Cache the movie ids of a collection unless a write happened since the load started
+     * @param collectionID The collection
+     * @param ids The movie ids in playing order
+     * @param loadedAt Version returned by version() before the load
+     */
+    synchronized void putMovieIDs(int collectionID, List<Integer> ids, long loadedAt) {
+        if(loadedAt == version)
+            movieIDs.put(collectionID, Collections.unmodifiableList(new ArrayList<>(ids)));
+    }
+
+    /**
+     * A collection was created
+     */
+    synchronized void created(int userID, int collectionID, String name) {
+        version++;
+        owners.put(collectionID, userID);
+        update(userID, collections -> {
+            collections.add(new MovieCollection(collectionID, name, 0, 0));
+            return collections;
+        });
+    }
+
+    /**
+     * Collections were imported for a user, so their summaries are loaded again
+     */
+    synchronized void imported(int userID) {
+        version++;
+        byUser.invalidate(userID);
+    }
+
+    /**
+     * A collection was deleted
+     */
+    synchronized void deleted(int collectionID) {
+        version++;
+        movieIDs.invalidate(collectionID);
+        Integer userID = owners.remove(collectionID);
+        if(userID != null) {
+            update(userID, collections -> {
+                collections.removeIf(collection -> collection.getCollectionID() == collectionID);
+                return collections;
+            });
+        }
+    }
+
+    /**
+     * A collection was renamed
+     */
+    synchronized void renamed(int collectionID, String name) {
+        version++;
+        replace(collectionID, collection -> new MovieCollection(collectionID, name, collection.getTotal(), collection.getLength()));
+    }
+
+    /**
+     * A collection was changed by another node, so its movie ids and its owner's summaries
+     * are loaded again
+     */
+    synchronized void changed(int collectionID) {
+        version++;
+        movieIDs.invalidate(collectionID);
+        Integer userID = owners.get(collectionID);
+        if(userID != null)
+            byUser.invalidate(userID);
+    }
+
+    /**
+     * Drop everything cached, after changes made by other nodes may have been missed
+     */
+    synchronized void clear() {
+        version++;
+        byUser.invalidateAll();
+        movieIDs.invalidateAll();
+        owners.clear();
+    }
+
+    /**
+     * A movie was added to a collection
+     * @param length The movie's length
+     */
+    synchronized void movieAdded(int collectionID, int length) {
+        moviesAdded(collectionID, 1, length);
+    }
+
+    /**
+     * Movies were added to a collection
+     * @param count Number of movies added
+     * @param length The movies' total length
+     */
+    synchronized void moviesAdded(int collectionID, int count, int length) {
+        version++;
+        movieIDs.invalidate(collectionID);
+        replace(collectionID, collection ->
+                new MovieCollection(collectionID, collection.getName(), collection.getTotal() + count, collection.getLength() + length));
+    }
+
+    /**
+     * A movie was removed from a collection
+     * @param length The movie's length
+     */
+    synchronized void movieRemoved(int collectionID, int length) {
+        moviesRemoved(collectionID, 1, length);
+    }
+
+    /**
+     * Movies were removed from a collection
+     * @param count Number of movies removed
+     * @param length The movies' total length
+     */
+    synchronized void moviesRemoved(int collectionID, int count, int length) {
+        version++;
+        movieIDs.invalidate(collectionID);
+        replace(collectionID, collection ->
+                new MovieCollection(collectionID, collection.getName(), collection.getTotal() - count, collection.getLength() - length));
+    }
+
+    private void replace(int collectionID, UnaryOperator<MovieCollection> change) {
+        Integer userID = owners.get(collectionID);
+        if(userID == null)
+            return;
+
+        update(userID, collections -> {
+            collections.replaceAll(collection -> collection.getCollectionID() == collectionID ? change.apply(collection) : collection);
+            return collections;
+        });
+    }
+
+    /**
+     * Apply a change to a copy of a user's cached collections, if cached, and keep them sorted.
+     * Expired collections are dropped rather than changed, so a stale copy served while the
+     * database is unreachable never misses a write.
+     */
+    private void update(int userID, UnaryOperator<List<MovieCollection>> change) {
+        List<MovieCollection> cached = byUser.get(userID);
+        if(cached == null) {
+            byUser.invalidate(userID);
+            return;
+        }
+
+        List<MovieCollection> updated = change.apply(new ArrayList<>(cached));
+        updated.sort(BY_NAME);
+        byUser.put(userID, Collections.unmodifiableList(updated));
+    }
+}
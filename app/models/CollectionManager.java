@@ -1,13 +1,32 @@
 package models;
 
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import util.BatchLoader;
+import util.Trace;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
@@ -16,17 +35,45 @@ import java.util.concurrent.CompletionStage;
  * @author Yaqim Auguste (yaa6681@rit.edu)
  */
 public class CollectionManager {
+    private static final int COPY_BUFFER = 64 * 1024;
+
     private final DataSource dataSource;
+    private final MovieManager movieManager;
+    private final BatchLoader<Integer, List<MovieCollection>> collectionsLoader;
+    private final CollectionCache collectionCache;
+    private final int fetchSize;
+    private final RetryQueue retryQueue;
+    private final InvalidationBus invalidations;
     private final Logger logger;
 
     /**
      * Constructor for CollectionManager
      * @param dataSource DataSource used to perform database operations with
+     * @param movieManager MovieManager used to resolve movie ids into movies
+     * @param config Application configuration containing the batching, cache.collections, cache.playback and transfer blocks
+     * @param retryQueue Queue that collection changes are kept in while the database is unreachable
+     * @param invalidations Bus that collection changes are shared with the other nodes through
      */
     @Inject
-    CollectionManager(DataSource dataSource) {
+    CollectionManager(DataSource dataSource, MovieManager movieManager, Config config, RetryQueue retryQueue, InvalidationBus invalidations) {
         this.dataSource = dataSource;
+        this.movieManager = movieManager;
+        this.collectionsLoader = new BatchLoader<>(this::loadCollections, config.getDuration("batching.window"), config.getInt("batching.maxBatch"));
+        this.collectionCache = new CollectionCache(config.getDuration("cache.collections.ttl"), config.getInt("cache.collections.maxSize"),
+                                                   config.getDuration("cache.playback.ttl"), config.getInt("cache.playback.maxSize"));
+        this.fetchSize = config.getInt("transfer.fetchSize");
+        this.retryQueue = retryQueue;
+        this.invalidations = invalidations;
         this.logger = LoggerFactory.getLogger(this.getClass());
+
+        retryQueue.register("CollectionManager.deleteFromCollection", args -> removeMovie(args.get(0).asInt(), args.get(1).asInt()));
+        retryQueue.register("CollectionManager.insertIntoCollection", args -> addMovie(args.get(0).asInt(), args.get(1).asInt()));
+        retryQueue.register("CollectionManager.deleteCollection", args -> removeCollection(args.get(0).asInt()));
+        retryQueue.register("CollectionManager.updateCollectionName", args -> rename(args.get(0).asInt(), args.get(1).asText()));
+        retryQueue.register("CollectionManager.createCollection", args -> create(args.get(0).asInt(), args.get(1).asText()));
+        invalidations.subscribe("collection", collectionCache::changed);
+        invalidations.subscribe("userCollections", collectionCache::imported);
+        invalidations.onRefresh(collectionCache::clear);
     }
 
     /**
@@ -36,20 +83,37 @@ public class CollectionManager {
      * @return A completion stage for asynchronous execution handling
      */
     public CompletionStage<Void> deleteFromCollection(int collectionID, int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "DELETE FROM CollectionMovies WHERE CollectionID=%d AND MovieID=%d;";
-                    sql = String.format(sql, collectionID, movieID);
+        return retryQueue.write("CollectionManager.deleteFromCollection", () -> removeMovie(collectionID, movieID), Boolean.TRUE, collectionID, movieID)
+                .thenApply(done -> null);
+    }
 
-                    logger.info("Deleting movie movieID:"+movieID+"from collectionID:"+collectionID+"...");
+    /**
+     * Remove a movie from a collection and update the cached summary
+     * @return true if the statement ran, null if it failed
+     */
+    private Boolean removeMovie(int collectionID, int movieID) {
+        Optional<Integer> length = dataSource.forCollection(collectionID).withConnection("CollectionManager.deleteFromCollection", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "WITH Removed AS (DELETE FROM CollectionMovies WHERE CollectionID=%d AND MovieID=%d RETURNING MovieID) "+
+                         "SELECT M.Length FROM Removed JOIN Movies AS M ON M.MovieID=Removed.MovieID;";
+            sql = String.format(sql, collectionID, movieID);
 
-                    statement.executeUpdate(sql);
-                    statement.close();
+            logger.info("Deleting movie movieID:"+movieID+"from collectionID:"+collectionID+"...");
 
-                    return null;
-                })
-        );
+            Integer removed = readLength(statement.executeQuery(sql));
+            statement.close();
+
+            return Optional.ofNullable(removed);
+        });
+
+        if(length == null)
+            return null;
+
+        length.ifPresent(removed -> {
+            collectionCache.movieRemoved(collectionID, removed);
+            invalidations.publish("collection", collectionID);
+        });
+        return Boolean.TRUE;
     }
 
     /**
@@ -59,20 +123,151 @@ public class CollectionManager {
      * @return A completion stage for asynchronous execution handling
      */
     public CompletionStage<Void> insertIntoCollection(int collectionID, int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "INSERT INTO CollectionMovies VALUES(%d, %d) ON CONFLICT DO NOTHING;";
-                    sql = String.format(sql, collectionID, movieID);
+        return retryQueue.write("CollectionManager.insertIntoCollection", () -> addMovie(collectionID, movieID), Boolean.TRUE, collectionID, movieID)
+                .thenApply(done -> null);
+    }
 
-                    logger.info("Adding movie movieID:"+movieID+"to collectionID:"+collectionID+"...");
+    /**
+     * Add a movie to a collection and update the cached summary
+     * @return true if the statement ran, null if it failed
+     */
+    private Boolean addMovie(int collectionID, int movieID) {
+        Optional<Integer> length = dataSource.forCollection(collectionID).withConnection("CollectionManager.insertIntoCollection", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "WITH Added AS (INSERT INTO CollectionMovies VALUES(%d, %d) ON CONFLICT DO NOTHING RETURNING MovieID) "+
+                         "SELECT M.Length FROM Added JOIN Movies AS M ON M.MovieID=Added.MovieID;";
+            sql = String.format(sql, collectionID, movieID);
 
-                    statement.executeUpdate(sql);
-                    statement.close();
+            logger.info("Adding movie movieID:"+movieID+"to collectionID:"+collectionID+"...");
 
-                    return null;
-                })
-        );
+            Integer added = readLength(statement.executeQuery(sql));
+            statement.close();
+
+            return Optional.ofNullable(added);
+        });
+
+        if(length == null)
+            return null;
+
+        length.ifPresent(added -> {
+            collectionCache.movieAdded(collectionID, added);
+            invalidations.publish("collection", collectionID);
+        });
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Read the length of the movie an insert or delete touched
+     * @param results Result of the statement, with a Length column
+     * @return the length, or null if no row was touched
+     * @throws SQLException if reading fails
+     */
+    private static Integer readLength(ResultSet results) throws SQLException {
+        Integer length = results.next() ? results.getInt("Length") : null;
+        results.close();
+        return length;
+    }
+
+    /**
+     * Add many movies to one of a user's collections with a single statement
+     * @param userID The user the collection must belong to
+     * @param collectionID The collection to add to
+     * @param movieIDs The movies to add
+     * @return A completion stage containing the outcome for each movie, or null if the statement failed.
+     *         Every movie is NOT_FOUND if the user has no such collection.
+     */
+    public CompletionStage<CollectionUpdate> insertIntoCollection(int userID, int collectionID, Collection<Integer> movieIDs) {
+        String sql = "WITH Requested AS (SELECT DISTINCT R.MovieID FROM unnest(?) AS R(MovieID)), "+
+                     "Changed AS (INSERT INTO CollectionMovies (CollectionID, MovieID) "+
+                                 "SELECT C.CollectionID, M.MovieID FROM Requested AS R "+
+                                 "JOIN Movies AS M ON M.MovieID=R.MovieID JOIN Collections AS C ON C.CollectionID=%1$d AND C.UserID=%2$d "+
+                                 "ON CONFLICT DO NOTHING RETURNING MovieID) ";
+        return updateCollection("CollectionManager.bulkInsertIntoCollection", userID, collectionID, movieIDs, sql, CollectionUpdate.Outcome.ADDED);
+    }
+
+    /**
+     * Remove many movies from one of a user's collections with a single statement
+     * @param userID The user the collection must belong to
+     * @param collectionID The collection to remove from
+     * @param movieIDs The movies to remove
+     * @return A completion stage containing the outcome for each movie, or null if the statement failed.
+     *         Every movie is NOT_FOUND if the user has no such collection.
+     */
+    public CompletionStage<CollectionUpdate> deleteFromCollection(int userID, int collectionID, Collection<Integer> movieIDs) {
+        String sql = "WITH Requested AS (SELECT DISTINCT R.MovieID FROM unnest(?) AS R(MovieID)), "+
+                     "Changed AS (DELETE FROM CollectionMovies AS CM USING Collections AS C "+
+                                 "WHERE CM.CollectionID=%1$d AND C.CollectionID=%1$d AND C.UserID=%2$d "+
+                                 "AND CM.MovieID IN (SELECT MovieID FROM Requested) RETURNING CM.MovieID) ";
+        return updateCollection("CollectionManager.bulkDeleteFromCollection", userID, collectionID, movieIDs, sql, CollectionUpdate.Outcome.REMOVED);
+    }
+
+    /**
+     * Run a bulk insert or delete and report what happened to each movie
+     * @param name Query name
+     * @param userID The user the collection must belong to
+     * @param collectionID The collection updated
+     * @param movieIDs The requested movies
+     * @param changes Requested and Changed common table expressions, with a %1$d for the collection
+     *                and a %2$d for the user
+     * @param changed Outcome of the movies in Changed
+     * @return A completion stage containing the outcome for each movie, or null if the statement failed
+     */
+    private CompletionStage<CollectionUpdate> updateCollection(String name, int userID, int collectionID, Collection<Integer> movieIDs,
+                                                               String changes, CollectionUpdate.Outcome changed) {
+        return Trace.supplyAsync(() -> {
+            Map<Integer, CollectionUpdate.Outcome> outcomes = new LinkedHashMap<>();
+            for(int movieID : movieIDs)
+                outcomes.put(movieID, CollectionUpdate.Outcome.NOT_FOUND);
+
+            if(outcomes.isEmpty())
+                return new CollectionUpdate(collectionID, outcomes);
+
+            int[] totals = dataSource.forCollection(collectionID).withConnection(name, conn -> {
+                String sql = changes +
+                             "SELECT R.MovieID, M.Length, D.MovieID IS NOT NULL AS Changed, "+
+                                    "M.MovieID IS NOT NULL AND EXISTS (SELECT 1 FROM Collections WHERE CollectionID=%1$d AND UserID=%2$d) AS Found "+
+                             "FROM Requested AS R LEFT JOIN Movies AS M ON M.MovieID=R.MovieID "+
+                             "LEFT JOIN Changed AS D ON D.MovieID=R.MovieID;";
+                sql = String.format(sql, collectionID, userID);
+
+                logger.info("Updating "+outcomes.size()+" movies of collectionID:"+collectionID+"...");
+
+                PreparedStatement statement = conn.prepareStatement(sql);
+                statement.setArray(1, conn.createArrayOf("integer", outcomes.keySet().toArray()));
+                ResultSet results = statement.executeQuery();
+
+                int count = 0;
+                int length = 0;
+                while(results.next()) {
+                    int movieID = results.getInt("MovieID");
+                    if(results.getBoolean("Changed")) {
+                        outcomes.put(movieID, changed);
+                        count++;
+                        length += results.getInt("Length");
+                    }
+                    else if(results.getBoolean("Found")) {
+                        outcomes.put(movieID, CollectionUpdate.Outcome.UNCHANGED);
+                    }
+                }
+
+                results.close();
+                statement.close();
+
+                return new int[] {count, length};
+            });
+
+            if(totals == null)
+                return null;
+
+            if(totals[0] > 0 && changed == CollectionUpdate.Outcome.ADDED)
+                collectionCache.moviesAdded(collectionID, totals[0], totals[1]);
+            else if(totals[0] > 0)
+                collectionCache.moviesRemoved(collectionID, totals[0], totals[1]);
+            if(totals[0] > 0)
+                invalidations.publish("collection", collectionID);
+
+            return new CollectionUpdate(collectionID, outcomes);
+        });
     }
 
     /**
@@ -81,38 +276,99 @@ public class CollectionManager {
      * @return A list of movies in the collection
      */
     public CompletionStage<List<Movie>> getCollectionMovies(int collectionID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "SELECT M.MovieID, Title, Length, MPAA, ReleaseDate, ROUND(AVG(Rating),1) AS Rating "+
-                                 "FROM Movies AS M JOIN CollectionMovies AS C ON M.MovieID=C.MovieID "+
-                                 "JOIN Watches AS W ON M.MovieID=W.MovieID "+
-                                 "WHERE C.CollectionID=%d "+
-                                 "GROUP BY M.MovieID;";
-                    sql = String.format(sql, collectionID);
-                    List<Movie> movies = new ArrayList<>();
-                    ResultSet results = statement.executeQuery(sql);
+        return movieManager.findMovies(dataSource.forCollection(collectionID), "CollectionManager.getCollectionMovies", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "SELECT MovieID FROM CollectionMovies WHERE CollectionID=%d ORDER BY MovieID;";
+            sql = String.format(sql, collectionID);
+
+            logger.info("Attempting to retrieve movies for CollectionID:"+collectionID+"...");
+
+            List<Integer> movieIDs = MovieManager.readMovieIDs(statement.executeQuery(sql), Integer.MAX_VALUE);
+            statement.close();
+
+            return movieIDs;
+        }).thenApply(movies -> {
+            if(movies != null)
+                logger.info("Successfully retrieved "+movies.size()+" movies for CollectionID: "+collectionID);
+            return movies;
+        });
+    }
 
-                    logger.info("Attempting to retrieve movies for CollectionID:"+collectionID+"...");
+    /**
+     * Get the movie on a page of a collection being played. The collection's movie ids are
+     * loaded once and kept until it changes, so stepping through it only looks up single
+     * movies, and the next page's movie is fetched in the background.
+     * @param collectionID Collection being played
+     * @param page Position in the collection, starting at 1
+     * @return the movie, or null if the page is out of range
+     */
+    public CompletionStage<Movie> getCollectionMovie(int collectionID, int page) {
+        return playlist(collectionID).thenCompose(movieIDs -> {
+            if(movieIDs == null || page < 1 || page > movieIDs.size())
+                return CompletableFuture.completedFuture(null);
 
-                    while(results.next()) {
-                        int movieID = results.getInt("MovieID");
-                        String title = results.getString("Title");
-                        int length = results.getInt("Length");
-                        String mpaa = results.getString("MPAA");
-                        double rating = results.getDouble("Rating");
-                        Date releaseDate = results.getDate("ReleaseDate");
+            CompletionStage<Movie> movie = movieManager.getMovie(movieIDs.get(page - 1));
+            if(page < movieIDs.size())
+                movieManager.getMovie(movieIDs.get(page));
 
-                        Movie movie = new Movie(movieID, title, length, releaseDate, mpaa, rating, null, null);
+            return movie;
+        });
+    }
 
-                        movies.add(movie);
-                    }
+    /**
+     * The movie ids of a collection in playing order
+     * @param collectionID The collection
+     * @return the ids, or null if they could not be loaded
+     */
+    private CompletionStage<List<Integer>> playlist(int collectionID) {
+        List<Integer> cached = collectionCache.getMovieIDs(collectionID);
+        if(cached != null)
+            return CompletableFuture.completedFuture(cached);
 
-                    logger.info("Successfully retrieved "+movies.size()+" movies for CollectionID: "+collectionID);
+        return Trace.supplyAsync(() -> {
+            long version = collectionCache.version();
 
-                    return movies;
-                })
-        );
+            List<Integer> movieIDs = dataSource.forCollection(collectionID).withConnection("CollectionManager.loadPlaylist", conn -> {
+                Statement statement = conn.createStatement();
+                String sql = "SELECT MovieID FROM CollectionMovies WHERE CollectionID=%d ORDER BY MovieID;";
+                sql = String.format(sql, collectionID);
+
+                List<Integer> ids = MovieManager.readMovieIDs(statement.executeQuery(sql), Integer.MAX_VALUE);
+                statement.close();
+
+                return ids;
+            });
+
+            if(movieIDs != null)
+                collectionCache.putMovieIDs(collectionID, movieIDs, version);
+
+            return movieIDs;
+        });
+    }
+
+    /**
+     * Play every movie in a collection. The plays are logged in the watch log together, like
+     * single plays, so they are applied to Watches and the movies' totals in one batch and the
+     * user's recommendations are invalidated once.
+     * @param userID The user playing the collection
+     * @param collectionID The collection played
+     * @return A completion stage containing the number of movies played, or null if the plays could not be recorded
+     */
+    public CompletionStage<Integer> playCollection(int userID, int collectionID) {
+        logger.info("Playing collectionID:"+collectionID+" for userID:"+userID+"...");
+
+        return playlist(collectionID).thenCompose(movieIDs -> {
+            if(movieIDs == null)
+                return CompletableFuture.completedFuture(null);
+
+            return movieManager.playMovies(userID, movieIDs).thenApply(logged -> {
+                if(logged == null)
+                    return null;
+
+                logger.info("Played "+movieIDs.size()+" movies");
+                return movieIDs.size();
+            });
+        });
     }
 
     /**
@@ -121,20 +377,34 @@ public class CollectionManager {
      * @return A completion stage for asynchronous execution handling
      */
     public CompletionStage<Void> deleteCollection(int collectionID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-                    String sql = "DELETE FROM Collections WHERE CollectionID=%d;";
-                    sql = String.format(sql, collectionID);
+        return retryQueue.write("CollectionManager.deleteCollection", () -> removeCollection(collectionID), Boolean.TRUE, collectionID)
+                .thenApply(done -> null);
+    }
 
-                    logger.info("Deleting collection "+collectionID+"...");
+    /**
+     * Delete a collection and drop it from the cache
+     * @return whether a collection was deleted, null if the statement failed
+     */
+    private Boolean removeCollection(int collectionID) {
+        Boolean deleted = dataSource.forCollection(collectionID).withConnection("CollectionManager.deleteCollection", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "DELETE FROM Collections WHERE CollectionID=%d;";
+            sql = String.format(sql, collectionID);
 
-                    statement.executeUpdate(sql);
-                    statement.close();
+            logger.info("Deleting collection "+collectionID+"...");
 
-                    return null;
-                })
-        );
+            int rows = statement.executeUpdate(sql);
+            statement.close();
+
+            return rows > 0;
+        });
+
+        if(Boolean.TRUE.equals(deleted)) {
+            collectionCache.deleted(collectionID);
+            invalidations.publish("collection", collectionID);
+        }
+
+        return deleted;
     }
 
     /**
@@ -143,8 +413,8 @@ public class CollectionManager {
      * @return A completion stage containing the retrieved collection value object
      */
     public CompletionStage<MovieCollection> getSingleCollection(int collectionID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        return Trace.supplyAsync(() ->
+                dataSource.forCollection(collectionID).withConnection("CollectionManager.getSingleCollection", conn -> {
                     Statement statement = conn.createStatement();
                     String sql = "SELECT * FROM Collections WHERE CollectionID=%d";
                     sql = String.format(sql, collectionID);
@@ -176,25 +446,39 @@ public class CollectionManager {
      * @return A completion stage for asynchronous execution handling
      */
     public CompletionStage<Void> updateCollectionName(int collectionID, String name) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    if(name.strip().equals(""))
-                        return null;
+        if(name.strip().equals(""))
+            return CompletableFuture.completedFuture(null);
 
-                    Statement statement = conn.createStatement();
-                    String sql = "UPDATE Collections SET Name='%s' WHERE CollectionID=%d;";
-                    sql = String.format(sql, name, collectionID);
+        return retryQueue.write("CollectionManager.updateCollectionName", () -> rename(collectionID, name), Boolean.TRUE, collectionID, name)
+                .thenApply(done -> null);
+    }
+
+    /**
+     * Rename a collection and update the cached summary
+     * @return whether a collection was renamed, null if the statement failed
+     */
+    private Boolean rename(int collectionID, String name) {
+        Boolean renamed = dataSource.forCollection(collectionID).withConnection("CollectionManager.updateCollectionName", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "UPDATE Collections SET Name='%s' WHERE CollectionID=%d;";
+            sql = String.format(sql, name, collectionID);
 
-                    logger.info("Changing collection "+collectionID+" name to "+name+"...");
+            logger.info("Changing collection "+collectionID+" name to "+name+"...");
 
-                    statement.executeUpdate(sql);
-                    logger.info("Successfully changed colelction name");
+            int rows = statement.executeUpdate(sql);
+            logger.info("Successfully changed colelction name");
 
 
-                    statement.close();
-                    return null;
-                })
-        );
+            statement.close();
+            return rows > 0;
+        });
+
+        if(Boolean.TRUE.equals(renamed)) {
+            collectionCache.renamed(collectionID, name);
+            invalidations.publish("collection", collectionID);
+        }
+
+        return renamed;
     }
 
     /**
@@ -204,63 +488,268 @@ public class CollectionManager {
      * @return A completion stage for asynchronous execution handling
      */
     public CompletionStage<Void> createCollection(int userID, String name) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    if(name.strip().equals(""))
-                        return null;
+        if(name.strip().equals(""))
+            return CompletableFuture.completedFuture(null);
 
-                    Statement statement = conn.createStatement();
-                    String sql = "INSERT INTO Collections (UserID, Name) VALUES(%d, '%s');";
-                    sql = String.format(sql, userID, name);
+        return retryQueue.write("CollectionManager.createCollection", () -> create(userID, name), Boolean.TRUE, userID, name)
+                .thenApply(done -> null);
+    }
 
-                    logger.info("Creating new collection "+name+"...");
+    /**
+     * Insert a collection and add it to the cached summaries
+     * @return the new collection's id, null if the statement failed
+     */
+    private Integer create(int userID, String name) {
+        Integer collectionID = dataSource.forUser(userID).withConnection("CollectionManager.createCollection", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = "INSERT INTO Collections (UserID, Name) VALUES(%d, '%s') RETURNING CollectionID;";
+            sql = String.format(sql, userID, name);
 
-                    statement.executeUpdate(sql);
+            logger.info("Creating new collection "+name+"...");
 
-                    logger.info("Successfully created new collection "+name+"...");
+            ResultSet results = statement.executeQuery(sql);
+            Integer created = results.next() ? results.getInt("CollectionID") : null;
 
-                    statement.close();
-                    return null;
-                })
-        );
+            logger.info("Successfully created new collection "+name+"...");
+
+            results.close();
+            statement.close();
+            return created;
+        });
+
+        if(collectionID != null) {
+            collectionCache.created(userID, collectionID, name);
+            invalidations.publish("userCollections", userID);
+        }
+
+        return collectionID;
     }
 
     /**
-     * Get all the collections owned by a particular user.
-     * @param userID UserID corresponding to the user
-     * @return A List of MovieCollection value objects
+     * Write all of a user's collections and their movies to a stream. Rows are read through
+     * a server side cursor and written as they arrive, so memory use does not grow with the
+     * size of the collections, and a slow reader holds back the query instead of buffering.
+     * @param userID User who owns the collections
+     * @param format Format to write
+     * @param out Stream to write to, left open
+     * @return A completion stage containing the number of rows written, or null if the export failed
      */
-    public CompletionStage<List<MovieCollection>> getCollections(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+    public CompletionStage<Long> exportCollections(int userID, CollectionTransfer.Format format, OutputStream out) {
+        return Trace.supplyAsync(() ->
+                dataSource.forUser(userID).withConnection("CollectionManager.exportCollections", conn -> {
                     Statement statement = conn.createStatement();
-                    String sql = "SELECT C.CollectionID, C.Name, COUNT(M.MovieID) AS Total, COALESCE(SUM(M.Length),0) AS Length "+
-                                 "FROM Collections AS C "+
-                                 "LEFT JOIN CollectionMovies AS S ON C.CollectionID=S.CollectionID "+
-                                 "LEFT JOIN Movies AS M ON M.MovieID=S.MovieID "+
-                                 "WHERE UserID=%d "+
-                                 "GROUP BY C.CollectionID, C.Name "+
-                                 "ORDER BY C.Name;";
+                    statement.setFetchSize(fetchSize);
+                    String sql = "SELECT C.CollectionID, C.Name, S.MovieID FROM Collections AS C "+
+                                 "LEFT JOIN CollectionMovies AS S ON S.CollectionID=C.CollectionID "+
+                                 "WHERE C.UserID=%d ORDER BY C.CollectionID, S.MovieID;";
                     sql = String.format(sql, userID);
-                    List<MovieCollection> collections = new ArrayList<>();
-                    ResultSet results = statement.executeQuery(sql);
 
-                    logger.info("Attempting to retrieve UserID:"+userID+" collections...");
+                    logger.info("Exporting collections of userID:"+userID+" as "+format+"...");
 
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    format.writeHeader(writer);
+
+                    long rows = 0;
+                    ResultSet results = statement.executeQuery(sql);
                     while(results.next()) {
                         int collectionID = results.getInt("CollectionID");
                         String name = results.getString("Name");
-                        int total = results.getInt("Total");
-                        int length = results.getInt("Length");
-                        MovieCollection col = new MovieCollection(collectionID, name, total, length);
-
-                        collections.add(col);
+                        int movieID = results.getInt("MovieID");
+                        format.write(writer, collectionID, name, results.wasNull() ? null : movieID);
+                        rows++;
                     }
+                    writer.flush();
 
-                    logger.info("Successfully retrieved "+collections.size()+" collections for UserID: "+userID);
+                    logger.info("Exported "+rows+" rows for userID:"+userID);
 
-                    return collections;
+                    results.close();
+                    statement.close();
+                    return rows;
                 })
         );
     }
-}
\ No newline at end of file
+
+    /**
+     * Create collections for a user from an exported file. Rows are parsed as they are read
+     * and streamed into a staging table with COPY, then the collections and their movies are
+     * created from it with two statements. Each collection of the file becomes a new
+     * collection; rows naming unknown movies are skipped. Nothing is imported if the file is
+     * malformed.
+     * @param userID User who will own the collections
+     * @param format Format of the file
+     * @param in The file
+     * @return A completion stage containing what was imported, or null if the import failed
+     */
+    public CompletionStage<CollectionTransfer.Summary> importCollections(int userID, CollectionTransfer.Format format, InputStream in) {
+        return Trace.supplyAsync(() -> {
+            CollectionTransfer.Summary summary = dataSource.forUser(userID).withConnection("CollectionManager.importCollections", conn -> {
+                Statement statement = conn.createStatement();
+                statement.executeUpdate("CREATE TEMPORARY TABLE ImportRows (SourceID INT NOT NULL, Name TEXT NOT NULL, MovieID INT) ON COMMIT DROP;");
+
+                logger.info("Importing collections for userID:"+userID+" from "+format+"...");
+
+                CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI().copyIn("COPY ImportRows FROM STDIN WITH (FORMAT csv);");
+                long movieRows = 0;
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    StringBuilder buffer = new StringBuilder();
+                    CollectionTransfer.Row row;
+                    while((row = format.read(reader)) != null) {
+                        buffer.append(row.collectionID).append(",\"").append(row.name.replace("\"", "\"\"")).append("\",");
+                        if(row.movieID != null) {
+                            buffer.append(row.movieID);
+                            movieRows++;
+                        }
+                        buffer.append('\n');
+
+                        if(buffer.length() >= COPY_BUFFER)
+                            writeCopy(copy, buffer);
+                    }
+                    writeCopy(copy, buffer);
+                    copy.endCopy();
+                }
+                finally {
+                    if(copy.isActive())
+                        copy.cancelCopy();
+                }
+
+                statement.executeUpdate("ANALYZE ImportRows;");
+                String sql = "CREATE TEMPORARY TABLE ImportCollections ON COMMIT DROP AS "+
+                             "SELECT SourceID, LEFT(MIN(Name), 128) AS Name, nextval(pg_get_serial_sequence('collections', 'collectionid'))::INT AS CollectionID "+
+                             "FROM ImportRows GROUP BY SourceID;";
+                int collections = statement.executeUpdate(sql);
+
+                sql = "INSERT INTO Collections (CollectionID, UserID, Name) SELECT CollectionID, %d, Name FROM ImportCollections;";
+                statement.executeUpdate(String.format(sql, userID));
+
+                sql = "INSERT INTO CollectionMovies (CollectionID, MovieID) "+
+                      "SELECT DISTINCT I.CollectionID, R.MovieID FROM ImportRows AS R "+
+                      "JOIN ImportCollections AS I ON I.SourceID=R.SourceID JOIN Movies AS M ON M.MovieID=R.MovieID;";
+                int movies = statement.executeUpdate(sql);
+
+                logger.info("Imported "+collections+" collections with "+movies+" movies for userID:"+userID);
+
+                statement.close();
+                return new CollectionTransfer.Summary(collections, movies, movieRows - movies);
+            });
+
+            if(summary != null && summary.getCollections() > 0) {
+                collectionCache.imported(userID);
+                invalidations.publish("userCollections", userID);
+            }
+
+            return summary;
+        });
+    }
+
+    private static void writeCopy(CopyIn copy, StringBuilder buffer) throws SQLException {
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copy.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+    /**
+     * Get all the collections owned by a particular user. They are served from memory once
+     * loaded, since every collection write updates them, and lookups from concurrent
+     * requests that miss are merged into a single query. While the database is unreachable
+     * expired collections are served instead.
+     * @param userID UserID corresponding to the user
+     * @return A List of MovieCollection value objects
+     */
+    public CompletionStage<List<MovieCollection>> getCollections(int userID) {
+        List<MovieCollection> cached = collectionCache.get(userID);
+        if(cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        List<MovieCollection> stale = collectionCache.getStale(userID);
+        if(stale != null && !dataSource.isAvailable())
+            return CompletableFuture.completedFuture(stale);
+
+        return Trace.timed("CollectionManager.getCollections", () -> collectionsLoader.load(userID))
+                .thenApply(collections -> collections == null && dataSource.isFailing() ? stale : collections);
+    }
+
+    /**
+     * Get the collections of several users with one query per shard, run in parallel
+     * @param userIDs The users whose collections to retrieve
+     * @return Each user's collections ordered by name, keyed by UserID
+     */
+    private Map<Integer, List<MovieCollection>> loadCollections(List<Integer> userIDs) {
+        long version = collectionCache.version();
+
+        Map<DataSource, List<Integer>> byShard = new LinkedHashMap<>();
+        for(int userID : userIDs)
+            byShard.computeIfAbsent(dataSource.forUser(userID), shard -> new ArrayList<>()).add(userID);
+
+        List<CompletableFuture<Map<Integer, List<MovieCollection>>>> reads = new ArrayList<>();
+        for(Map.Entry<DataSource, List<Integer>> entry : byShard.entrySet())
+            reads.add(Trace.supplyAsync(() -> loadCollections(entry.getKey(), entry.getValue())));
+
+        Map<Integer, List<MovieCollection>> loaded = new HashMap<>();
+        for(CompletableFuture<Map<Integer, List<MovieCollection>>> read : reads) {
+            Map<Integer, List<MovieCollection>> collections = read.join();
+            if(collections == null)
+                return null;
+            loaded.putAll(collections);
+        }
+
+        for(Map.Entry<Integer, List<MovieCollection>> entry : loaded.entrySet())
+            collectionCache.put(entry.getKey(), entry.getValue(), version);
+
+        return loaded;
+    }
+
+    /**
+     * Get the collections of several users whose data is on one shard
+     * @param shard The users' shard
+     * @param userIDs The users whose collections to retrieve
+     * @return Each user's collections ordered by name, keyed by UserID, or null if the query failed
+     */
+    private Map<Integer, List<MovieCollection>> loadCollections(DataSource shard, List<Integer> userIDs) {
+        return shard.withReadConnection("CollectionManager.loadCollections", userIDs, conn -> {
+            String sql = "SELECT C.UserID, C.CollectionID, C.Name, COUNT(M.MovieID) AS Total, COALESCE(SUM(M.Length),0) AS Length "+
+                         "FROM Collections AS C "+
+                         "LEFT JOIN CollectionMovies AS S ON C.CollectionID=S.CollectionID "+
+                         "LEFT JOIN Movies AS M ON M.MovieID=S.MovieID "+
+                         "WHERE C.UserID = ANY(?) "+
+                         "GROUP BY C.UserID, C.CollectionID, C.Name "+
+                         "ORDER BY C.UserID, C.Name;";
+            PreparedStatement statement = conn.prepareStatement(sql);
+            statement.setArray(1, conn.createArrayOf("integer", userIDs.toArray()));
+            Map<Integer, List<MovieCollection>> collections = new HashMap<>();
+
+            for(int userID : userIDs)
+                collections.put(userID, new ArrayList<>());
+
+            logger.info("Attempting to retrieve collections for "+userIDs.size()+" users...");
+
+            ResultSet results = statement.executeQuery();
+
+            while(results.next())
+                collections.get(results.getInt("UserID")).add(readCollection(results));
+
+            results.close();
+            statement.close();
+
+            logger.info("Successfully retrieved collections for "+userIDs.size()+" users");
+
+            return collections;
+        });
+    }
+
+    /**
+     * Map the current row of a result set with CollectionID, Name, Total and Length columns
+     * into a collection
+     * @param results The result set positioned on a row
+     * @return the collection
+     * @throws SQLException if a column is missing
+     */
+    static MovieCollection readCollection(ResultSet results) throws SQLException {
+        int collectionID = results.getInt("CollectionID");
+        String name = results.getString("Name");
+        int total = results.getInt("Total");
+        int length = results.getInt("Length");
+
+        return new MovieCollection(collectionID, name, total, length);
+    }
+}
@@ -0,0 +1,263 @@
+package models;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File formats collections are exported and imported in. Every row is one movie of a
+ * collection, or a collection without movies, so files of any size can be written and read
+ * a row at a time.
+ */
+public final class CollectionTransfer {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private CollectionTransfer() {
+    }
+
+    /**
+     * A movie of a collection, or a collection without movies when movieID is null
+     */
+    public static final class Row {
+        final int collectionID;
+        final String name;
+        final Integer movieID;
+
+        Row(int collectionID, String name, Integer movieID) {
+            this.collectionID = collectionID;
+            this.name = name;
+            this.movieID = movieID;
+        }
+    }
+
+    /**
+     * Value object for the outcome of an import
+     */
+    public static final class Summary {
+        private final int collections;
+        private final long movies;
+        private final long skipped;
+
+        Summary(int collections, long movies, long skipped) {
+            this.collections = collections;
+            this.movies = movies;
+            this.skipped = skipped;
+        }
+
+        /**
+         * Getter for collections, the number of collections created
+         */
+        public int getCollections() {
+            return collections;
+        }
+
+        /**
+         * Getter for movies, the number of movies added to them
+         */
+        public long getMovies() {
+            return movies;
+        }
+
+        /**
+         * Getter for skipped, the number of rows naming an unknown or repeated movie
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * Supported formats
+     */
+    public enum Format {
+        /** Comma separated values with a collection_id,name,movie_id header */
+        CSV("text/csv; charset=utf-8", "csv") {
+            @Override
+            void writeHeader(Writer writer) throws IOException {
+                writer.write("collection_id,name,movie_id\n");
+            }
+
+            @Override
+            void write(Writer writer, int collectionID, String name, Integer movieID) throws IOException {
+                writer.write(Integer.toString(collectionID));
+                writer.write(',');
+                writer.write(csvField(name));
+                writer.write(',');
+                if(movieID != null)
+                    writer.write(Integer.toString(movieID));
+                writer.write('\n');
+            }
+
+            @Override
+            Row read(BufferedReader reader) throws IOException {
+                List<String> fields;
+                do {
+                    fields = readRecord(reader);
+                    if(fields == null)
+                        return null;
+                } while((fields.size() == 1 && fields.get(0).isEmpty()) || fields.get(0).equals("collection_id"));
+
+                if(fields.size() != 3)
+                    throw new IOException("Expected 3 fields but found "+fields.size());
+                return row(fields.get(0), fields.get(1), fields.get(2).isEmpty() ? null : fields.get(2));
+            }
+        },
+
+        /** One JSON object per line with collectionID, name and movieID fields */
+        NDJSON("application/x-ndjson", "ndjson") {
+            @Override
+            void writeHeader(Writer writer) {
+            }
+
+            @Override
+            void write(Writer writer, int collectionID, String name, Integer movieID) throws IOException {
+                writer.write("{\"collectionID\":");
+                writer.write(Integer.toString(collectionID));
+                writer.write(",\"name\":\"");
+                writer.write(JsonStringEncoder.getInstance().quoteAsString(name));
+                writer.write("\",\"movieID\":");
+                writer.write(movieID == null ? "null" : Integer.toString(movieID));
+                writer.write("}\n");
+            }
+
+            @Override
+            Row read(BufferedReader reader) throws IOException {
+                String line;
+                do {
+                    line = reader.readLine();
+                    if(line == null)
+                        return null;
+                } while(line.isBlank());
+
+                JsonNode node = MAPPER.readTree(line);
+                JsonNode movieID = node.path("movieID");
+                return row(node.path("collectionID").asText(), node.path("name").asText(), movieID.isNull() || movieID.isMissingNode() ? null : movieID.asText());
+            }
+        };
+
+        private final String contentType;
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        /**
+         * Getter for contentType
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Getter for extension, the usual file extension
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * Find a format by name, ignoring case
+         * @return the format, or null if there is none with that name
+         */
+        public static Format of(String name) {
+            for(Format format : values())
+                if(format.name().equalsIgnoreCase(name))
+                    return format;
+            return null;
+        }
+
+        /**
+         * Write what comes before the first row
+         */
+        abstract void writeHeader(Writer writer) throws IOException;
+
+        /**
+         * Write one row
+         */
+        abstract void write(Writer writer, int collectionID, String name, Integer movieID) throws IOException;
+
+        /**
+         * Read the next row
+         * @return the row, or null at the end of the input
+         * @throws IOException if the input cannot be read or is malformed
+         */
+        abstract Row read(BufferedReader reader) throws IOException;
+    }
+
+    private static Row row(String collectionID, String name, String movieID) throws IOException {
+        try {
+            return new Row(Integer.parseInt(collectionID.strip()), name, movieID == null ? null : Integer.parseInt(movieID.strip()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid id in row "+collectionID+","+movieID);
+        }
+    }
+
+    /**
+     * Quote a CSV field if it contains a separator, quote or line break
+     */
+    static String csvField(String value) {
+        if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Read one CSV record, whose quoted fields may span lines
+     * @return the fields, or null at the end of the input
+     */
+    private static List<String> readRecord(BufferedReader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean read = false;
+
+        int c;
+        while((c = reader.read()) != -1) {
+            read = true;
+            if(quoted) {
+                if(c != '"') {
+                    field.append((char) c);
+                    continue;
+                }
+
+                reader.mark(1);
+                if(reader.read() == '"') {
+                    field.append('"');
+                }
+                else {
+                    quoted = false;
+                    reader.reset();
+                }
+            }
+            else if(c == '"') {
+                quoted = true;
+            }
+            else if(c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else if(c == '\n') {
+                break;
+            }
+            else if(c != '\r') {
+                field.append((char) c);
+            }
+        }
+
+        if(!read)
+            return null;
+        if(quoted)
+            throw new IOException("Unterminated quoted field");
+
+        fields.add(field.toString());
+        return fields;
+    }
+}
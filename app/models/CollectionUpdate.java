@@ -0,0 +1,62 @@
+package models;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Value object for the outcome of adding or removing many movies of a collection at once
+ */
+public class CollectionUpdate {
+    /**
+     * What happened to a single movie
+     */
+    public enum Outcome {
+        /** The movie was added to the collection */
+        ADDED,
+        /** The movie was removed from the collection */
+        REMOVED,
+        /** The movie was already in the collection, or already absent from it */
+        UNCHANGED,
+        /** No movie has this id, or the collection does not exist or is not the user's */
+        NOT_FOUND
+    }
+
+    private int collectionID;
+    private Map<Integer, Outcome> outcomes;
+
+    /**
+     * Constructor for CollectionUpdate
+     * @param collectionID The collection updated
+     * @param outcomes Outcome of each requested movie, in request order
+     */
+    public CollectionUpdate(int collectionID, Map<Integer, Outcome> outcomes) {
+        this.collectionID = collectionID;
+        this.outcomes = Collections.unmodifiableMap(new LinkedHashMap<>(outcomes));
+    }
+
+    /**
+     * Getter for collectionID
+     */
+    public int getCollectionID() {
+        return collectionID;
+    }
+
+    /**
+     * Getter for outcomes
+     */
+    public Map<Integer, Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * Number of movies added or removed
+     */
+    public int getChanged() {
+        int changed = 0;
+        for(Outcome outcome : outcomes.values())
+            if(outcome == Outcome.ADDED || outcome == Outcome.REMOVED)
+                changed++;
+        return changed;
+    }
+}
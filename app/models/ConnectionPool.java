@@ -0,0 +1,155 @@
+package models;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of open connections to one database. At most maxSize connections are lent
+ * at once, and a caller waits for one to be given back rather than opening more, so bursts
+ * and hedged reads cannot use up the server's max_connections. The most recently used
+ * idle connection is lent first, and connections idle for longer than idleTimeout are
+ * closed, so a quiet node does not keep connections open that the server or a firewall
+ * may have dropped.
+ */
+class ConnectionPool {
+    /**
+     * SQLSTATE of a call that found no connection free, PostgreSQL's too_many_connections
+     */
+    static final String EXHAUSTED = "53300";
+
+    private final Opener opener;
+    private final Semaphore lendable;
+    private final long idleTimeoutNanos;
+    private final Deque<Idle> idle = new ArrayDeque<>();
+    private final Logger logger;
+    private boolean closed;
+
+    /**
+     * Opens a new connection to the database
+     */
+    interface Opener {
+        Connection open() throws Exception;
+    }
+
+    /**
+     * A connection waiting to be lent again
+     */
+    private static final class Idle {
+        final Connection connection;
+        final long since;
+
+        Idle(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Constructor for ConnectionPool
+     * @param opener Opens a connection when none is idle
+     * @param maxSize Most connections lent at once
+     * @param idleTimeout Longest a connection is kept open unused
+     */
+    ConnectionPool(Opener opener, int maxSize, Duration idleTimeout) {
+        this.opener = opener;
+        this.lendable = new Semaphore(maxSize, true);
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.logger = LoggerFactory.getLogger(this.getClass());
+    }
+
+    /**
+     * Borrow a connection, reusing an idle one or opening a new one
+     * @param timeout Longest to wait for a connection to be given back while all are lent
+     * @return the connection, to be given back with release
+     * @throws SQLException with SQLSTATE EXHAUSTED if none was given back in time
+     * @throws Exception if a new connection cannot be opened
+     */
+    Connection take(Duration timeout) throws Exception {
+        if(!lendable.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS))
+            throw new SQLException("No connection free after waiting "+timeout.toMillis()+" ms", EXHAUSTED);
+
+        try {
+            Connection connection = poll();
+            return connection != null ? connection : opener.open();
+        } catch (Exception e) {
+            lendable.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a borrowed connection
+     * @param connection The connection from take
+     * @param reusable Whether it can be lent again, i.e. it is not in a transaction, has its
+     *                 settings as opened and nothing might still cancel its statements
+     */
+    void release(Connection connection, boolean reusable) {
+        boolean keep;
+        synchronized (this) {
+            keep = reusable && !closed;
+            if(keep)
+                idle.addLast(new Idle(connection, System.nanoTime()));
+        }
+        if(!keep)
+            close(connection);
+        lendable.release();
+    }
+
+    /**
+     * Whether a connection can be borrowed without waiting
+     */
+    boolean hasFree() {
+        return lendable.availablePermits() > 0;
+    }
+
+    /**
+     * Close the idle connections, and the lent ones once they are given back
+     */
+    void close() {
+        List<Idle> closing;
+        synchronized (this) {
+            closed = true;
+            closing = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for(Idle entry : closing)
+            close(entry.connection);
+    }
+
+    /**
+     * Take the most recently used idle connection, closing those idle for too long
+     * @return the connection, or null if none is idle
+     */
+    private Connection poll() {
+        List<Idle> expired = new ArrayList<>();
+        Idle found;
+        synchronized (this) {
+            long now = System.nanoTime();
+            while(!idle.isEmpty() && now - idle.peekFirst().since > idleTimeoutNanos)
+                expired.add(idle.pollFirst());
+            found = idle.pollLast();
+        }
+
+        for(Idle entry : expired)
+            close(entry.connection);
+        return found == null ? null : found.connection;
+    }
+
+    private void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.error(e.toString());
+        }
+    }
+}
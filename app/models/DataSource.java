@@ -1,12 +1,22 @@
 package models;
 
 import com.google.inject.ImplementedBy;
+import util.Trace;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Interface for a data source used to access postgreSQL databases.
  * @author Yaqim Auguste (yaa6681@rit.edu)
  */
-@ImplementedBy(PostgreSQLDataSource.class)
+@ImplementedBy(ShardedDataSource.class)
 public interface DataSource {
     /**
      * Execute some callback with a connection.
@@ -16,6 +26,144 @@ public interface DataSource {
      */
     <T> T withConnection(DataSourceCallable<T> callable);
 
+    /**
+     * Execute some callback with a connection, recording its timings under a query name.
+     * @param name Name the query is reported under, e.g. "MovieManager.getMovies".
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value the calling class expects
+     * @return any value of type T that the calling class expects.
+     */
+    default <T> T withConnection(String name, DataSourceCallable<T> callable) {
+        return withConnection(callable);
+    }
+
+    /**
+     * Execute a callback that only reads. Implementations may run it on a read replica that
+     * has replayed the writes of the signed in user.
+     * @param name Name the query is reported under, e.g. "MovieManager.getMovies".
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value the calling class expects
+     * @return any value of type T that the calling class expects.
+     */
+    default <T> T withReadConnection(String name, DataSourceCallable<T> callable) {
+        return withReadConnection(name, Collections.emptyList(), callable);
+    }
+
+    /**
+     * Execute a callback that only reads data belonging to some users, such as a batch of
+     * lookups made on their behalf, which must see their writes as well as the signed in
+     * user's.
+     * @param name Name the query is reported under, e.g. "CollectionManager.loadCollections".
+     * @param userIDs Users whose writes the read must see.
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value the calling class expects
+     * @return any value of type T that the calling class expects.
+     */
+    default <T> T withReadConnection(String name, Collection<Integer> userIDs, DataSourceCallable<T> callable) {
+        return withConnection(name, callable);
+    }
+
+    /**
+     * Run a callback that only reads, asynchronously. Implementations may give up on it after
+     * a timeout, run it more than once keeping the first answer, or run it on a read replica.
+     * @param name Name the query is reported under, e.g. "MovieManager.getForYou".
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value the calling class expects
+     * @return A completion stage containing the value, or null if the read failed
+     */
+    default <T> CompletionStage<T> read(String name, DataSourceCallable<T> callable) {
+        return Trace.supplyAsync(() -> withReadConnection(name, callable));
+    }
+
+    /**
+     * The databases that Watches, Follows and Collections are split across by user. The first
+     * also holds the tables that are not split, and is the one the other methods use.
+     * @return the shards, just this data source unless sharded
+     */
+    default List<DataSource> getShards() {
+        return List.of(this);
+    }
+
+    /**
+     * Whether user data is split across more than one database, so queries over Watches,
+     * Follows or Collections as a whole must be run on every shard and merged
+     */
+    default boolean isSharded() {
+        return getShards().size() > 1;
+    }
+
+    /**
+     * The shard holding a user's watches, follows and collections
+     * @param userID The user
+     * @return the shard's data source
+     */
+    default DataSource forUser(int userID) {
+        return this;
+    }
+
+    /**
+     * The shard holding a collection and its movies
+     * @param collectionID The collection
+     * @return the shard's data source
+     */
+    default DataSource forCollection(int collectionID) {
+        return this;
+    }
+
+    /**
+     * Run a read on every shard in parallel, for an aggregate the caller merges
+     * @param name Name the query is reported under, e.g. "MovieManager.getRating".
+     * @param callable Callback function that only reads.
+     * @param <T> Any value the calling class expects
+     * @return A completion stage containing each shard's value in shard order, or null if
+     *         the read failed on any shard, since an aggregate missing a shard would be wrong
+     */
+    default <T> CompletionStage<List<T>> scatter(String name, DataSourceCallable<T> callable) {
+        List<CompletableFuture<T>> reads = new ArrayList<>();
+        for(DataSource shard : getShards())
+            reads.add(shard.read(name, callable).toCompletableFuture());
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<T> values = new ArrayList<>(reads.size());
+            for(CompletableFuture<T> read : reads) {
+                T value = read.join();
+                if(value == null)
+                    return null;
+                values.add(value);
+            }
+            return values;
+        });
+    }
+
+    /**
+     * Open a connection that stays open outside of withConnection, for a session that waits
+     * on the database such as a LISTEN. The caller closes it.
+     * @return the connection in autocommit mode without a statement timeout, or null if this
+     *         data source cannot hold a connection open besides its calls
+     * @throws SQLException if the connection cannot be opened
+     */
+    default Connection openSession() throws SQLException {
+        return null;
+    }
+
+    /**
+     * Whether the database is believed reachable. While it is not, calls fail fast and
+     * return null, so callers can serve cached data or queue writes instead.
+     * @return true unless recent calls failed to reach the database
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Whether the most recent call failed because the database could not be reached, so a
+     * null result means the call did not run rather than that it found nothing.
+     * @return true from the first failure to reach the database until a call succeeds
+     */
+    default boolean isFailing() {
+        return false;
+    }
+
     /**
      * Close the connection
      */
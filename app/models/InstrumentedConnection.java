@@ -0,0 +1,201 @@
+package models;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Wraps a connection so that every statement and result set created from it reports the
+ * number of rows read or updated, and remembers the statements executed with their
+ * parameters and timings. Statements get the connection's query timeout and can all be
+ * cancelled from another thread. The connection also notes whether it may have written.
+ */
+final class InstrumentedConnection implements InvocationHandler {
+    private static final int MAX_STATEMENTS = 50;
+    private static final Pattern WRITE = Pattern.compile("\\b(INSERT|UPDATE|DELETE|MERGE|COPY|CREATE|ALTER|DROP|TRUNCATE)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final Object target;
+    private final InstrumentedConnection root;
+    private final String sql;
+    private final int queryTimeout;
+    private final List<Statement> created;
+    private Map<Integer, Object> params;
+    private long rows;
+    private boolean wrote;
+    private List<SlowQueryLog.ExecutedStatement> statements;
+
+    private InstrumentedConnection(Object target, InstrumentedConnection root, String sql, int queryTimeout) {
+        this.target = target;
+        this.root = root == null ? this : root;
+        this.sql = sql;
+        this.queryTimeout = queryTimeout;
+        this.created = root == null ? new CopyOnWriteArrayList<>() : null;
+    }
+
+    /**
+     * Wrap a connection
+     * @param conn The connection to wrap
+     * @return the handler, whose connection is returned by getConnection
+     */
+    static InstrumentedConnection wrap(Connection conn) {
+        return wrap(conn, 0);
+    }
+
+    /**
+     * Wrap a connection, giving its statements a query timeout
+     * @param conn The connection to wrap
+     * @param queryTimeout Seconds a statement may run before the driver cancels it, 0 for no limit
+     * @return the handler, whose connection is returned by getConnection
+     */
+    static InstrumentedConnection wrap(Connection conn, int queryTimeout) {
+        return new InstrumentedConnection(conn, null, null, queryTimeout);
+    }
+
+    /**
+     * Cancel the statements running on the connection. Safe to call from any thread.
+     */
+    void cancel() {
+        for(Statement statement : root.created) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * The wrapped connection
+     */
+    Connection getConnection() {
+        return proxy(Connection.class, this);
+    }
+
+    /**
+     * Rows read from result sets and rows changed by updates so far. A connection is only
+     * used by one thread at a time, so the count is not synchronized.
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * Whether a statement executed on a wrapped connection may have changed data. Statements
+     * are judged by their keywords, so a SELECT ... FOR UPDATE counts as a write.
+     * @param conn A connection returned by getConnection
+     * @return false for a connection that isn't wrapped
+     */
+    static boolean wrote(Connection conn) {
+        if(!Proxy.isProxyClass(conn.getClass()))
+            return false;
+        InvocationHandler handler = Proxy.getInvocationHandler(conn);
+        return handler instanceof InstrumentedConnection && ((InstrumentedConnection) handler).root.wrote;
+    }
+
+    /**
+     * Statements executed so far, at most the first fifty
+     */
+    List<SlowQueryLog.ExecutedStatement> getStatements() {
+        return statements == null ? Collections.emptyList() : statements;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        boolean execute = name.startsWith("execute");
+        long start = execute ? System.nanoTime() : 0;
+
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+
+        if(execute) {
+            String executedSql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+            // Batches of plain statements carry no SQL here
+            if(executedSql == null || WRITE.matcher(executedSql).find())
+                root.wrote = true;
+            executed(executedSql, System.nanoTime() - start);
+        }
+        else if(name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer && sql != null)
+            bind((Integer) args[0], args[1]);
+        else if(name.equals("clearParameters") && params != null)
+            params.clear();
+
+        if(result instanceof ResultSet)
+            return proxy(ResultSet.class, new InstrumentedConnection(result, root, null, 0));
+        if(result instanceof Statement) {
+            Statement statement = (Statement) result;
+            if(root.queryTimeout > 0)
+                statement.setQueryTimeout(root.queryTimeout);
+            root.created.add(statement);
+
+            String statementSql = name.startsWith("prepare") && args[0] instanceof String ? (String) args[0] : null;
+            return proxy(method.getReturnType(), new InstrumentedConnection(result, root, statementSql, 0));
+        }
+
+        switch (name) {
+            case "next":
+                if(Boolean.TRUE.equals(result))
+                    root.rows++;
+                break;
+            case "executeUpdate":
+                root.rows += (Integer) result;
+                break;
+            case "executeLargeUpdate":
+                root.rows += (Long) result;
+                break;
+            case "executeBatch":
+                for(int count : (int[]) result)
+                    root.rows += Math.max(0, count);
+                break;
+        }
+
+        return result;
+    }
+
+    /**
+     * Remember a parameter bound to a prepared statement. Arrays are copied out since they
+     * cannot be read once the connection is closed.
+     */
+    private void bind(int index, Object value) throws Exception {
+        if(params == null)
+            params = new TreeMap<>();
+        params.put(index, value instanceof Array ? ((Array) value).getArray() : value);
+    }
+
+    /**
+     * Remember an executed statement on the root connection
+     */
+    private void executed(String executedSql, long nanos) {
+        if(executedSql == null)
+            return;
+        if(root.statements == null)
+            root.statements = new ArrayList<>();
+        if(root.statements.size() < MAX_STATEMENTS) {
+            List<Object> bound = params == null ? Collections.emptyList() : new ArrayList<>(params.values());
+            root.statements.add(new SlowQueryLog.ExecutedStatement(executedSql, bound, nanos));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InstrumentedConnection handler) {
+        return (T) Proxy.newProxyInstance(InstrumentedConnection.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,307 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Metrics;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Tells the other app nodes which cached entities a node changed, so they drop their copies.
+ * Managers publish an entity type and id once their write has committed. Events are sent
+ * with Postgres NOTIFY from a single publisher connection, several to a notification, each
+ * notification numbered by a per-node sequence. Every node keeps a connection LISTENing on
+ * the channel and applies the events to its caches. A node that sees a gap in another
+ * node's sequence, or had to reconnect, may have missed events, so it drops everything
+ * cached instead.
+ *
+ * Only available without the SSH tunnel, which cannot hold a connection open. Events queued
+ * by a node that crashes before sending them are lost; cache expiry still bounds how long
+ * the other nodes serve the old data.
+ */
+@Singleton
+public class InvalidationBus {
+    /**
+     * Longest payload sent, below Postgres' limit of 8000 bytes
+     */
+    private static final int MAX_PAYLOAD = 7900;
+
+    private final DataSource dataSource;
+    private final String channel;
+    private final long reconnectMillis;
+    private final int maxUnsent;
+    private final String nodeID = UUID.randomUUID().toString();
+    private final Map<String, List<IntConsumer>> handlers = new ConcurrentHashMap<>();
+    private final List<Runnable> refreshers = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> received = new ConcurrentHashMap<>();
+    private final List<String> events = new ArrayList<>();
+    private final Deque<String> unsent = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final ScheduledExecutorService publisher;
+    private final Logger logger;
+    private volatile boolean enabled;
+    private long sequence;
+    private Connection publishing;
+    private volatile Connection listening;
+    private volatile boolean closed;
+
+    /**
+     * Constructor for InvalidationBus. Starts listening unless disabled or connected
+     * through the tunnel.
+     * @param config Application configuration containing the invalidation block
+     * @param dataSource DataSource whose database carries the notifications
+     * @param metrics Registry that bus statistics are exported through
+     */
+    @Inject
+    public InvalidationBus(Config config, DataSource dataSource, Metrics metrics) {
+        this.dataSource = dataSource;
+        this.channel = config.getString("invalidation.channel");
+        this.reconnectMillis = config.getDuration("invalidation.reconnectInterval").toMillis();
+        this.maxUnsent = config.getInt("invalidation.maxUnsent");
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.enabled = config.getBoolean("invalidation.enabled") && !config.getBoolean("db_config.tunnel");
+
+        metrics.registerGauge("invalidations_published", "Cache invalidation events sent to other nodes", published::sum);
+        metrics.registerGauge("invalidations_applied", "Cache invalidation events received from other nodes", applied::sum);
+        metrics.registerGauge("invalidation_refreshes", "Times every cache was dropped after events may have been missed", refreshes::sum);
+
+        this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "invalidation-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if(enabled) {
+            Thread listener = new Thread(this::listen, "invalidation-listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
+    }
+
+    /**
+     * Be told when another node changed an entity
+     * @param type Entity type, e.g. "movie"
+     * @param handler Called with the entity's id on the listener thread
+     */
+    public void subscribe(String type, IntConsumer handler) {
+        handlers.computeIfAbsent(type, key -> new CopyOnWriteArrayList<>()).add(handler);
+    }
+
+    /**
+     * Be told when events may have been missed, so everything cached must be dropped
+     * @param refresher Called on the listener thread
+     */
+    public void onRefresh(Runnable refresher) {
+        refreshers.add(refresher);
+    }
+
+    /**
+     * Tell the other nodes an entity changed. Call once the change has committed.
+     * @param type Entity type, e.g. "movie"
+     * @param id The entity's id
+     */
+    public void publish(String type, int id) {
+        if(!enabled)
+            return;
+
+        synchronized (this) {
+            events.add(type+":"+id);
+        }
+        if(flushScheduled.compareAndSet(false, true))
+            publisher.execute(this::flush);
+    }
+
+    /**
+     * Pack the queued events into numbered notifications and send them in order
+     */
+    private void flush() {
+        flushScheduled.set(false);
+
+        synchronized (this) {
+            StringBuilder payload = null;
+            for(String event : events) {
+                if(payload != null && payload.length() + event.length() + 1 > MAX_PAYLOAD) {
+                    unsent.add(payload.toString());
+                    payload = null;
+                }
+                if(payload == null)
+                    payload = new StringBuilder(nodeID).append(' ').append(++sequence);
+                payload.append(' ').append(event);
+            }
+            if(payload != null)
+                unsent.add(payload.toString());
+            published.add(events.size());
+            events.clear();
+
+            // The receivers see the gap in the sequence and drop everything cached
+            while(unsent.size() > maxUnsent) {
+                unsent.removeFirst();
+                logger.error("Dropped cache invalidations that could not be sent");
+            }
+        }
+
+        try {
+            if(publishing == null)
+                publishing = dataSource.openSession();
+            if(publishing == null)
+                return;
+
+            PreparedStatement notify = publishing.prepareStatement("SELECT pg_notify(?, ?);");
+            while(true) {
+                String payload;
+                synchronized (this) {
+                    payload = unsent.peekFirst();
+                }
+                if(payload == null)
+                    break;
+
+                notify.setString(1, channel);
+                notify.setString(2, payload);
+                notify.execute();
+
+                synchronized (this) {
+                    unsent.pollFirst();
+                }
+            }
+            notify.close();
+        } catch (SQLException e) {
+            // A notification that did reach the server is sent again, and ignored by its sequence number
+            logger.error("Unable to send cache invalidations: "+e);
+            close(publishing);
+            publishing = null;
+            publisher.schedule(this::flush, reconnectMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Keep a connection listening on the channel, reconnecting after it is lost
+     */
+    private void listen() {
+        while(!closed) {
+            try {
+                Connection conn = dataSource.openSession();
+                if(conn == null) {
+                    logger.info("The data source cannot hold a connection open, cache invalidations are not shared");
+                    enabled = false;
+                    return;
+                }
+                listening = conn;
+                Statement statement = conn.createStatement();
+                statement.execute("LISTEN "+channel+";");
+                statement.close();
+
+                // Events sent while not listening are gone
+                refresh("listening on "+channel);
+
+                PGConnection notifications = conn.unwrap(PGConnection.class);
+                while(!closed) {
+                    PGNotification[] batch = notifications.getNotifications((int) reconnectMillis);
+                    if(batch == null)
+                        continue;
+                    for(PGNotification notification : batch)
+                        receive(notification.getParameter());
+                }
+            } catch (SQLException e) {
+                if(closed)
+                    return;
+                logger.error("Lost the cache invalidation listener: "+e);
+            } finally {
+                close(listening);
+                listening = null;
+            }
+
+            try {
+                Thread.sleep(reconnectMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply a notification from another node, unless it was already seen
+     * @param payload Node id, sequence number and type:id events separated by spaces
+     */
+    void receive(String payload) {
+        String[] parts = payload.split(" ");
+        if(parts.length < 2 || parts[0].equals(nodeID))
+            return;
+
+        long number = Long.parseLong(parts[1]);
+        Long last = received.get(parts[0]);
+        if(last != null && number <= last)
+            return;
+        received.put(parts[0], number);
+
+        if(last != null && number > last + 1) {
+            refresh("missed "+(number - last - 1)+" invalidations from node "+parts[0]);
+            return;
+        }
+
+        for(int i = 2; i < parts.length; i++) {
+            int separator = parts[i].lastIndexOf(':');
+            List<IntConsumer> subscribed = handlers.get(parts[i].substring(0, separator));
+            if(subscribed == null)
+                continue;
+
+            int id = Integer.parseInt(parts[i].substring(separator + 1));
+            for(IntConsumer handler : subscribed)
+                handler.accept(id);
+            applied.increment();
+        }
+    }
+
+    /**
+     * Drop everything cached
+     */
+    private void refresh(String reason) {
+        logger.info("Dropping cached data, "+reason);
+        refreshes.increment();
+        for(Runnable refresher : refreshers)
+            refresher.run();
+    }
+
+    private void close(Connection conn) {
+        try {
+            if(conn != null)
+                conn.close();
+        } catch (SQLException e) {
+            logger.error(e.toString());
+        }
+    }
+
+    /**
+     * Stop listening and close the connections
+     */
+    public void close() {
+        closed = true;
+        close(listening);
+        publisher.execute(() -> close(publishing));
+        publisher.shutdown();
+    }
+}
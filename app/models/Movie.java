@@ -4,7 +4,8 @@ import java.util.Date;
 import java.util.Objects;
 
 /**
- * Represents one movie
+ * Represents one movie. A movie is either a standalone value object or a lightweight
+ * view over a row of the in-memory MovieCatalog.
  *
  * @author Alex lee (al3774@rit.edu)
  * @author Yaqim Auguste (yaa6681@rit.edu)
@@ -18,6 +19,8 @@ public class Movie {
     private double rating;
     private String directors;
     private String castMembers;
+    private CatalogSnapshot catalog;
+    private int ordinal;
 
     /**
      * Constructor for movie
@@ -66,27 +69,51 @@ public class Movie {
         this(movieID, title, length, releaseDate, mpaa, rating, null, null);
     }
 
+    /**
+     * Constructor for a movie backed by a catalog row
+     * @param catalog The catalog holding the movie's attributes
+     * @param ordinal The movie's row in the catalog
+     * @param rating Average user rating of the movie
+     */
+    Movie(CatalogSnapshot catalog, int ordinal, double rating) {
+        this.movieID = catalog.movieID(ordinal);
+        this.rating = rating;
+        this.catalog = catalog;
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * A copy of this movie with a different average rating
+     * @param rating Average user rating of the movie
+     * @return the copy
+     */
+    Movie withRating(double rating) {
+        if(catalog != null)
+            return new Movie(catalog, ordinal, rating);
+        return new Movie(movieID, title, length, releaseDate, mpaa, rating, directors, castMembers);
+    }
+
     /**
      * Gets the title
      */
-    public String getTitle() { return title; }
+    public String getTitle() { return catalog != null ? catalog.title(ordinal) : title; }
 
     /**
      * Gets the length
      */
-    public int getLength() { return length; }
+    public int getLength() { return catalog != null ? catalog.length(ordinal) : length; }
 
     /**
      * Gets the release date
      */
     public Date getReleaseDate() {
-        return releaseDate;
+        return catalog != null ? catalog.releaseDate(ordinal) : releaseDate;
     }
 
     /**
      * Gets the mpaa rating
      */
-    public String getMpaa() { return mpaa; }
+    public String getMpaa() { return catalog != null ? catalog.mpaa(ordinal) : mpaa; }
 
     /**
      * Gets the movieID
@@ -106,14 +133,14 @@ public class Movie {
      * Gets the directors
      */
     public String getDirectors() {
-        return directors;
+        return catalog != null ? catalog.directors(ordinal) : directors;
     }
 
     /**
      * Gets the cast members
      */
     public String getCastMembers() {
-        return castMembers;
+        return catalog != null ? catalog.castMembers(ordinal) : castMembers;
     }
 
     /**
@@ -122,6 +149,7 @@ public class Movie {
      * @return the formatted string
      */
     public String lengthToString() {
+        int length = getLength();
         String hours = String.valueOf(length / 60);
         String minutes = String.valueOf(length % 60);
 
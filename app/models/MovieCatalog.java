@@ -0,0 +1,156 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-optimized, in-memory copy of the movie catalog (titles, lengths, release dates,
+ * MPAA ratings, people, studios and genres). The catalog is persisted as a memory-mapped
+ * snapshot file so a restarted node can serve it without re-querying the database.
+ */
+@Singleton
+public class MovieCatalog {
+    private final DataSource dataSource;
+    private final Logger logger;
+    private final Path snapshotPath;
+    private final long maxAgeMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile CatalogSnapshot snapshot;
+
+    /**
+     * Constructor for MovieCatalog
+     * @param dataSource DataSource used to load the catalog when no fresh snapshot exists
+     * @param config Application configuration containing the catalog block
+     */
+    @Inject
+    MovieCatalog(DataSource dataSource, Config config) {
+        this.dataSource = dataSource;
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.snapshotPath = Paths.get(config.getString("catalog.snapshot.path"));
+        this.maxAgeMillis = config.getDuration("catalog.snapshot.maxAge").toMillis();
+    }
+
+    /**
+     * Get the current catalog. The first call maps the snapshot file, or builds it from the
+     * database if there is none. Snapshots older than the configured max age are rebuilt in
+     * the background while the old one keeps serving.
+     * @return the current snapshot or null if the catalog could not be loaded
+     */
+    CatalogSnapshot current() {
+        if(snapshot == null) {
+            synchronized (this) {
+                if(snapshot == null)
+                    load();
+            }
+        }
+        else if(System.currentTimeMillis() - snapshot.getCreatedAt() > maxAgeMillis && refreshing.compareAndSet(false, true)) {
+            CompletableFuture.runAsync(() -> {
+                try {
+                    rebuild();
+                }
+                finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Get the current catalog without loading or refreshing it. Safe to call while holding
+     * a connection.
+     * @return the current snapshot or null if it hasn't been loaded yet
+     */
+    CatalogSnapshot peek() {
+        return snapshot;
+    }
+
+    /**
+     * Map the existing snapshot file if there is one, otherwise build it.
+     */
+    private void load() {
+        if(Files.exists(snapshotPath)) {
+            try {
+                snapshot = CatalogSnapshot.map(snapshotPath);
+                logger.info("Mapped catalog snapshot with "+snapshot.size()+" movies.");
+                return;
+            }
+            catch (Exception e) {
+                logger.error("Unable to map catalog snapshot: "+e);
+            }
+        }
+
+        rebuild();
+    }
+
+    /**
+     * Load the whole catalog from the database, write a new snapshot and swap it in.
+     */
+    private void rebuild() {
+        Boolean written = dataSource.withConnection("MovieCatalog.rebuild", conn -> {
+            CatalogSnapshot.Writer writer = new CatalogSnapshot.Writer();
+            Statement statement = conn.createStatement();
+            statement.setFetchSize(10000);
+
+            logger.info("Building catalog snapshot...");
+
+            ResultSet results = statement.executeQuery("SELECT MovieID, Title, Length, ReleaseDate, MPAA FROM Movies;");
+            while(results.next()) {
+                Date releaseDate = results.getDate("ReleaseDate");
+                writer.movie(results.getInt("MovieID"), results.getString("Title"), results.getInt("Length"),
+                             releaseDate == null ? null : releaseDate.toLocalDate(), results.getString("MPAA"));
+            }
+            results.close();
+
+            results = statement.executeQuery("SELECT MovieID, Name FROM Directors AS D JOIN People AS P ON D.PersonID=P.PersonID;");
+            while(results.next())
+                writer.director(results.getInt("MovieID"), results.getString("Name"));
+            results.close();
+
+            results = statement.executeQuery("SELECT MovieID, Name FROM CastMembers AS C JOIN People AS P ON C.PersonID=P.PersonID;");
+            while(results.next())
+                writer.castMember(results.getInt("MovieID"), results.getString("Name"));
+            results.close();
+
+            results = statement.executeQuery("SELECT MovieID, Name FROM StudioMovies AS T JOIN Studios AS S ON S.StudioID=T.StudioID;");
+            while(results.next())
+                writer.studio(results.getInt("MovieID"), results.getString("Name"));
+            results.close();
+
+            results = statement.executeQuery("SELECT MovieID, Genre FROM Genre;");
+            while(results.next())
+                writer.genre(results.getInt("MovieID"), results.getString("Genre"));
+            results.close();
+
+            statement.close();
+
+            writer.write(snapshotPath);
+
+            return true;
+        });
+
+        if(written == null)
+            return;
+
+        try {
+            snapshot = CatalogSnapshot.map(snapshotPath);
+            logger.info("Catalog snapshot built with "+snapshot.size()+" movies.");
+        }
+        catch (Exception e) {
+            logger.error("Unable to map catalog snapshot: "+e);
+        }
+    }
+}
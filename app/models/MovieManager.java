@@ -1,15 +1,33 @@
 package models;
 
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import util.BatchLoader;
+import util.ExpiringCache;
 import util.Message;
+import util.Metrics;
+import util.SingleFlight;
+import util.Trace;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
 
@@ -24,163 +42,598 @@ import javax.inject.Inject;
 public class MovieManager {
     private final DataSource dataSource;
     private final Logger logger;
+    private final MovieCatalog catalog;
+    private final MovieSearchIndex searchIndex;
+    private final ExpiringCache<Integer, Movie> movieCache;
+    private final BatchLoader<Integer, Movie> movieLoader;
+    private final ExpiringCache<String, List<Movie>> listCache;
+    private final SingleFlight<String, List<Movie>> listFlight = new SingleFlight<>();
+    private final ExpiringCache<String, LinkedHashSet<Movie>> searchCache;
+    private final SingleFlight<String, LinkedHashSet<Movie>> searchFlight = new SingleFlight<>();
+    private final ExpiringCache<Integer, List<Movie>> forYouCache;
+    private final SingleFlight<Integer, List<Movie>> forYouFlight = new SingleFlight<>();
+    private final WatchLog watchLog;
     private final String[] categories = {"Title, ReleaseDate", "Title", "ReleaseDate", "S.Name", "C.Name", "D.name", "Genre"};
 
+    /**
+     * Sort category that ranks results by relevance instead of by a column
+     */
+    public static final int RELEVANCE_SORT = 7;
+
+    /**
+     * Watch totals of a movie over some of its watches. Totals from several shards are
+     * added together, and averages computed from the sums, since averaging the averages of
+     * shards of different sizes would be wrong.
+     */
+    static final class WatchTotals {
+        private final int movieID;
+        private long plays;
+        private long watchers;
+        private long ratingSum;
+        private long ratings;
+
+        WatchTotals(int movieID) {
+            this.movieID = movieID;
+        }
+
+        /**
+         * Add the totals of a result set row with Plays, Watchers, RatingSum and Ratings columns
+         */
+        void add(ResultSet results) throws SQLException {
+            plays += results.getLong("Plays");
+            watchers += results.getLong("Watchers");
+            ratingSum += results.getLong("RatingSum");
+            ratings += results.getLong("Ratings");
+        }
+
+        void add(WatchTotals other) {
+            plays += other.plays;
+            watchers += other.watchers;
+            ratingSum += other.ratingSum;
+            ratings += other.ratings;
+        }
+
+        int getMovieID() {
+            return movieID;
+        }
+
+        long getPlays() {
+            return plays;
+        }
+
+        long getWatchers() {
+            return watchers;
+        }
+
+        /**
+         * The average rating, or null if no watch has one, like AVG(Rating)
+         */
+        Double average() {
+            return ratings == 0 ? null : (double) ratingSum / ratings;
+        }
+
+        /**
+         * Compare COALESCE(AVG(Rating), 0) * Watchers of two movies exactly, since scores
+         * computed in floating point can tie or flip where the database's would not
+         */
+        static int compareScores(WatchTotals a, WatchTotals b) {
+            BigInteger left = BigInteger.valueOf(a.ratingSum).multiply(BigInteger.valueOf(a.watchers)).multiply(BigInteger.valueOf(Math.max(b.ratings, 1)));
+            BigInteger right = BigInteger.valueOf(b.ratingSum).multiply(BigInteger.valueOf(b.watchers)).multiply(BigInteger.valueOf(Math.max(a.ratings, 1)));
+            return left.compareTo(right);
+        }
+
+        /**
+         * The average rating rounded like ROUND(AVG(Rating),1), or 0 without ratings
+         */
+        double rating() {
+            if(ratings == 0)
+                return 0;
+            return BigDecimal.valueOf(ratingSum).divide(BigDecimal.valueOf(ratings), 1, RoundingMode.HALF_UP).doubleValue();
+        }
+    }
+
+    /**
+     * Orders totals by average rating, highest first with unrated movies ahead of rated ones
+     * as ORDER BY AVG(Rating) DESC does
+     */
+    private static final Comparator<WatchTotals> BY_AVERAGE = Comparator.comparing(WatchTotals::average,
+            Comparator.nullsFirst(Comparator.<Double>reverseOrder()));
+
     /**
      * Constructor for MovieManager
      * @param dataSource sql data source
+     * @param catalog in-memory catalog of movie attributes
+     * @param searchIndex in-memory index used for relevance ranked searches
+     * @param config Application configuration containing the cache block
+     * @param metrics Registry that cache statistics are exported through
+     * @param retryQueue Queue whose plays and ratings from before the watch log are moved into it
+     * @param watchLog Local log that plays and ratings are acknowledged from
+     * @param invalidations Bus that applied plays and ratings are shared with the other nodes through
+     * @param movieStats Per movie watch totals that ratings and popularity are read from
      */
     @Inject
-    public MovieManager(DataSource dataSource) {
+    public MovieManager(DataSource dataSource, MovieCatalog catalog, MovieSearchIndex searchIndex, Config config, Metrics metrics,
+                        RetryQueue retryQueue, WatchLog watchLog, InvalidationBus invalidations, MovieStats movieStats) {
         this.dataSource = dataSource;
+        this.catalog = catalog;
+        this.searchIndex = searchIndex;
+        this.movieCache = new ExpiringCache<>(config.getDuration("cache.movies.ttl"), config.getInt("cache.movies.maxSize"));
+        this.listCache = new ExpiringCache<>(config.getDuration("cache.lists.ttl"), config.getInt("cache.lists.maxSize"));
+        this.searchCache = new ExpiringCache<>(config.getDuration("cache.search.ttl"), config.getInt("cache.search.maxSize"));
+        this.forYouCache = new ExpiringCache<>(config.getDuration("cache.forYou.ttl"), config.getInt("cache.forYou.maxSize"));
+        this.movieLoader = new BatchLoader<>(this::loadMovieBatch, config.getDuration("batching.window"), config.getInt("batching.maxBatch"));
         this.logger = LoggerFactory.getLogger(this.getClass());
+        this.watchLog = watchLog;
+
+        retryQueue.register("MovieManager.playMovie", args -> watchLog.play(args.get(0).asInt(), args.get(1).asInt()).toCompletableFuture().join());
+        retryQueue.register("MovieManager.rateMovie", args -> watchLog.rate(args.get(1).asInt(), args.get(2).asInt(), args.get(0).asInt()).toCompletableFuture().join());
+        watchLog.onApplied(events -> {
+            // Once per user and rated movie of the batch, however many of their events it holds
+            Set<Integer> users = new HashSet<>();
+            Set<Integer> rated = new HashSet<>();
+            for(WatchLog.Event event : events) {
+                if(users.add(event.getUserID())) {
+                    forYouCache.invalidate(event.getUserID());
+                    invalidations.publish("forYou", event.getUserID());
+                }
+                if(event.isRating() && rated.add(event.getMovieID())) {
+                    movieCache.invalidate(event.getMovieID());
+                    invalidations.publish("movie", event.getMovieID());
+                }
+            }
+        });
+        movieStats.onCorrected(movieID -> {
+            movieCache.invalidate(movieID);
+            invalidations.publish("movie", movieID);
+        });
+        invalidations.subscribe("forYou", forYouCache::invalidate);
+        invalidations.subscribe("movie", movieCache::invalidate);
+        invalidations.onRefresh(() -> {
+            movieCache.invalidateAll();
+            listCache.invalidateAll();
+            searchCache.invalidateAll();
+            forYouCache.invalidateAll();
+        });
+
+        metrics.registerGauge("singleflight_calls{name=\"lists\"}", "Calls made through a single-flight group", listFlight::getCalls);
+        metrics.registerGauge("singleflight_calls{name=\"search\"}", "Calls made through a single-flight group", searchFlight::getCalls);
+        metrics.registerGauge("singleflight_coalesced{name=\"lists\"}", "Calls that shared an in-flight result", listFlight::getCoalesced);
+        metrics.registerGauge("singleflight_coalesced{name=\"search\"}", "Calls that shared an in-flight result", searchFlight::getCoalesced);
     }
 
 
     /**
-     * Gets a selected movie from the database based on its ID
+     * Gets a selected movie from the database based on its ID. While the database is
+     * unreachable an expired cached copy is served instead.
      * @param movieID the movie's ID
      * @return an object representation of a movie if found, null if not
      */
     public CompletionStage<Movie> getMovie(int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
+        Movie cached = movieCache.get(movieID);
+        if(cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        Movie stale = movieCache.getStale(movieID);
+        if(stale != null && !dataSource.isAvailable())
+            return CompletableFuture.completedFuture(stale);
+
+        return Trace.timed("MovieManager.getMovie", () -> movieLoader.load(movieID)).thenApply(movie -> {
+            if(movie == null && stale != null && dataSource.isFailing()) {
+                logger.info("Database unreachable, serving movie " + movieID + " from cache");
+                return stale;
+            }
+
+            if(movie == null)
+                logger.info("Unable to find movie " + movieID);
+            else
+                logger.info("Movie " + movieID + " found!");
+
+            return movie;
+        });
+    }
 
-                    String sql = "SELECT M.MovieID AS MovieID, Title, Length, MPAA, ReleaseDate, ROUND(AVG(Rating),1) AS Rating " +
-                                 "FROM Movies AS M JOIN Watches AS W ON M.MovieID=W.MovieID " +
-                                 "WHERE M.MovieID = %d " +
-                                 "GROUP BY M.MovieID;";
-                    sql = String.format(sql, movieID);
+    /**
+     * Resolve a batch of getMovie lookups with a single query
+     * @param movieIDs the ids requested by concurrent callers
+     * @return the found movies keyed by id
+     */
+    private Map<Integer, Movie> loadMovieBatch(List<Integer> movieIDs) {
+        catalog.current();
 
-                    logger.info("Attempting to fetch movie " + movieID + "...");
-                    ResultSet results = statement.executeQuery(sql);
-                    Movie movie = null;
+        List<Movie> movies = dataSource.isSharded()
+                ? loadShardedMovies("MovieManager.loadMovieBatch", movieIDs).toCompletableFuture().join()
+                : dataSource.withReadConnection("MovieManager.loadMovieBatch", conn -> loadMovies(conn, movieIDs));
+        Map<Integer, Movie> found = new HashMap<>();
 
-                    if(results.next()) {
-                        String title = results.getString("Title");
-                        int length = results.getInt("Length");
-                        Date releaseDate = results.getDate("ReleaseDate");
-                        String mpaa = results.getString("MPAA");
-                        double rating = results.getDouble("Rating");
+        if(movies != null) {
+            for(Movie movie : movies)
+                found.put(movie.getMovieID(), movie);
+        }
 
-                        movie = new Movie(movieID, title, length, releaseDate, mpaa, rating);
-                    }
+        return found;
+    }
 
-                    if(movie == null) {
-                        logger.info("Unable to find movie " + movieID);
-                    }
-                    else {
-                        logger.info("Movie " + movieID + " found!");
-                    }
+    /**
+     * Gets several movies at once. Movies that are cached are served from memory and the
+     * rest are fetched with a single query.
+     * @param movieIDs the ids of the movies to fetch
+     * @return the movies that were found, in the order they were requested
+     */
+    public CompletionStage<List<Movie>> getMovies(List<Integer> movieIDs) {
+        if(dataSource.isSharded()) {
+            return Trace.supplyAsync(() -> {
+                catalog.current();
+                return fromCache(movieIDs);
+            }).thenCompose(cached -> cached != null ? CompletableFuture.completedFuture(cached)
+                                                    : loadShardedMovies("MovieManager.getMovies", movieIDs));
+        }
+
+        return Trace.supplyAsync(() -> {
+            catalog.current();
+
+            List<Movie> cached = fromCache(movieIDs);
+            if(cached != null)
+                return cached;
+
+            return dataSource.withReadConnection("MovieManager.getMovies", conn -> loadMovies(conn, movieIDs));
+        });
+    }
 
-                    results.close();
-                    statement.close();
+    /**
+     * Find movie ids with a query and resolve them into movies. On a single database the
+     * movies are loaded on the query's connection. When sharded their ratings are totalled on
+     * every shard, so the query only finds the ids and the movies are fetched once it has
+     * released its connection.
+     * @param source Data source to run the query on
+     * @param name Name the query is reported under
+     * @param findIDs Finds the movie ids on a connection
+     * @return A completion stage containing the movies in the order found, or null if a query failed
+     */
+    CompletionStage<List<Movie>> findMovies(DataSource source, String name, DataSourceCallable<List<Integer>> findIDs) {
+        if(!dataSource.isSharded())
+            return Trace.supplyAsync(() -> source.withConnection(name, conn -> loadMovies(conn, findIDs.call(conn))));
 
-                    return movie;
-                })
-        );
+        return Trace.supplyAsync(() -> source.withConnection(name, findIDs)).thenCompose(movieIDs ->
+                movieIDs == null ? CompletableFuture.completedFuture(null) : getMovies(movieIDs));
     }
 
     /**
-     * Play the movie. Updates the database by incrementing the movie's watch count.
-     *
-     * @param movieID the id of the movie to play
-     * @return CompletableStage for asynchronous code
+     * Get movies entirely from the cache
+     * @param movieIDs the ids of the movies to look up
+     * @return the movies in requested order, or null if any of them isn't cached
      */
-    public CompletionStage<Void> playMovie(int userID, int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-            dataSource.withConnection(conn -> {
-                Statement statement = conn.createStatement();
+    private List<Movie> fromCache(List<Integer> movieIDs) {
+        List<Movie> movies = new ArrayList<>(movieIDs.size());
 
-                // Check if watched exists
-                String checkExistsQuery = "SELECT * FROM watches WHERE userid=%d AND movieid=%d";
-                checkExistsQuery = String.format(checkExistsQuery, userID, movieID);
+        for(int movieID : movieIDs) {
+            Movie movie = movieCache.get(movieID);
+            if(movie == null)
+                return null;
+            movies.add(movie);
+        }
 
-                ResultSet checkExistsResult = statement.executeQuery(checkExistsQuery);
+        return movies;
+    }
 
-                logger.info("Attempting to play movie...");
+    /**
+     * Look up the cached movies among a list of ids
+     * @param movieIDs the ids of the movies to look up
+     * @param missing Filled with the ids that aren't cached
+     * @return the cached movies keyed by id
+     */
+    private Map<Integer, Movie> fromCache(List<Integer> movieIDs, List<Integer> missing) {
+        HashMap<Integer, Movie> found = new HashMap<>();
+
+        for(int movieID : movieIDs) {
+            Movie movie = movieCache.get(movieID);
+            if(movie != null)
+                found.put(movieID, movie);
+            else if(!found.containsKey(movieID))
+                missing.add(movieID);
+        }
+
+        return found;
+    }
 
-                if (checkExistsResult.next()) {
-                    logger.info("Movie found, incrementing times played");
-                    String incrementQuery = "UPDATE watches SET timesplayed = timesplayed + 1, lastwatched=CURRENT_TIMESTAMP " +
-                                            "WHERE userid=%d AND movieid=%d";
-                    incrementQuery = String.format(incrementQuery, userID, movieID);
+    /**
+     * Resolve movie ids into movies on an existing connection to a single database. Cached
+     * movies are served from memory and the rest are fetched with one {@code = ANY(?)} query
+     * and cached.
+     * @param conn Connection to run the query on
+     * @param movieIDs the ids of the movies to fetch
+     * @return the movies that were found, in the order they were requested
+     * @throws SQLException if the query fails
+     */
+    private List<Movie> loadMovies(Connection conn, List<Integer> movieIDs) throws SQLException {
+        List<Integer> missing = new ArrayList<>();
+        Map<Integer, Movie> found = fromCache(movieIDs, missing);
+
+        if(!missing.isEmpty()) {
+            CatalogSnapshot snapshot = catalog.peek();
+            String sql = "SELECT M.MovieID AS MovieID, Title, Length, MPAA, ReleaseDate, ROUND(RatingSum*1.0/NULLIF(Ratings, 0),1) AS Rating " +
+                         "FROM Movies AS M LEFT JOIN MovieStats AS MS ON M.MovieID=MS.MovieID " +
+                         "WHERE M.MovieID = ANY(?);";
+            PreparedStatement statement = conn.prepareStatement(sql);
+            statement.setArray(1, conn.createArrayOf("integer", missing.toArray()));
+
+            logger.info("Fetching " + missing.size() + " movies...");
+            ResultSet results = statement.executeQuery();
+
+            while(results.next()) {
+                Movie movie = readMovie(results, snapshot);
+                movieCache.put(movie.getMovieID(), movie);
+                found.put(movie.getMovieID(), movie);
+            }
+
+            results.close();
+            statement.close();
+        }
+
+        return inOrder(movieIDs, found);
+    }
 
-                    // increment watched
-                    statement.executeUpdate(incrementQuery);
-                }
-                else {
-                    // If entry doesn't already exist
-                    logger.info("Movie not found, creating entry");
-
-                    String createWatchedQuery = "INSERT INTO watches (userid, movieid) " +
-                            "VALUES(%d, %d)";
-                    createWatchedQuery = String.format(createWatchedQuery, userID, movieID);
-                    statement.executeUpdate(createWatchedQuery);
+    /**
+     * Resolve movie ids into movies when sharded. Each shard totals its own watches, so the
+     * ratings of the movies that aren't cached are totalled across all of them first, and the
+     * movies are only read once every shard has answered, rather than holding a connection
+     * while waiting on the others.
+     * @param name Name the queries are reported under
+     * @param movieIDs the ids of the movies to fetch
+     * @return A completion stage containing the movies that were found, in the order they were
+     *         requested, or null if a query failed
+     */
+    private CompletionStage<List<Movie>> loadShardedMovies(String name, List<Integer> movieIDs) {
+        List<Integer> missing = new ArrayList<>();
+        Map<Integer, Movie> found = fromCache(movieIDs, missing);
+        if(missing.isEmpty())
+            return CompletableFuture.completedFuture(inOrder(movieIDs, found));
+
+        return totals(name, TOTALS_BY_MOVIE, missing).thenCompose(totals -> {
+            if(totals == null)
+                return CompletableFuture.completedFuture(null);
+
+            return dataSource.read(name, conn -> {
+                CatalogSnapshot snapshot = catalog.peek();
+                String sql = "SELECT MovieID, Title, Length, MPAA, ReleaseDate FROM Movies WHERE MovieID = ANY(?);";
+                PreparedStatement statement = conn.prepareStatement(sql);
+                statement.setArray(1, conn.createArrayOf("integer", missing.toArray()));
+
+                logger.info("Fetching " + missing.size() + " movies...");
+                ResultSet results = statement.executeQuery();
+
+                while(results.next()) {
+                    WatchTotals movieTotals = totals.get(results.getInt("MovieID"));
+                    Movie movie = readMovie(results, snapshot, movieTotals == null ? 0 : movieTotals.rating());
+                    movieCache.put(movie.getMovieID(), movie);
+                    found.put(movie.getMovieID(), movie);
                 }
 
-                checkExistsResult.close();
+                results.close();
                 statement.close();
 
+                return inOrder(movieIDs, found);
+            });
+        });
+    }
+
+    /**
+     * Put found movies in the order they were requested, leaving out those not found
+     */
+    private static List<Movie> inOrder(List<Integer> movieIDs, Map<Integer, Movie> found) {
+        List<Movie> movies = new ArrayList<>(movieIDs.size());
+        for(int movieID : movieIDs) {
+            Movie movie = found.get(movieID);
+            if(movie != null)
+                movies.add(movie);
+        }
+
+        return movies;
+    }
+
+    /**
+     * Map the current row of a result set with MovieID, Title, Length, ReleaseDate, MPAA and
+     * Rating columns into a movie, using the catalog for its attributes when it has them.
+     * @param results The result set positioned on a row
+     * @param snapshot The catalog, or null if it hasn't been loaded
+     * @return the movie
+     * @throws SQLException if a column is missing
+     */
+    static Movie readMovie(ResultSet results, CatalogSnapshot snapshot) throws SQLException {
+        return readMovie(results, snapshot, results.getDouble("Rating"));
+    }
+
+    /**
+     * Map the current row of a result set with MovieID, Title, Length, ReleaseDate and MPAA
+     * columns into a movie with a rating computed elsewhere
+     * @param results The result set positioned on a row
+     * @param snapshot The catalog, or null if it hasn't been loaded
+     * @param rating The movie's average rating
+     * @return the movie
+     * @throws SQLException if a column is missing
+     */
+    static Movie readMovie(ResultSet results, CatalogSnapshot snapshot, double rating) throws SQLException {
+        int movieID = results.getInt("MovieID");
+        Movie movie = snapshot == null ? null : snapshot.movie(movieID, rating);
+
+        if(movie == null) {
+            String title = results.getString("Title");
+            int length = results.getInt("Length");
+            Date releaseDate = results.getDate("ReleaseDate");
+            String mpaa = results.getString("MPAA");
+
+            movie = new Movie(movieID, title, length, releaseDate, mpaa, rating);
+        }
+
+        return movie;
+    }
+
+    /**
+     * Watch totals of the movies in an array parameter
+     */
+    private static final String TOTALS_BY_MOVIE =
+            "SELECT MovieID, Plays, Watchers, RatingSum, Ratings FROM MovieStats WHERE MovieID = ANY(?);";
+
+    /**
+     * Run a query of per movie watch totals on every shard in parallel and add them up
+     * @param name Name the query is reported under
+     * @param sql Query with MovieID, Plays, Watchers, RatingSum and Ratings columns, and at
+     *            most one parameter, an integer array
+     * @param ids Value of the parameter, or null if the query has none
+     * @return A completion stage containing the totals keyed by MovieID, or null if the query
+     *         failed on any shard
+     */
+    private CompletionStage<Map<Integer, WatchTotals>> totals(String name, String sql, List<Integer> ids) {
+        return dataSource.scatter(name, conn -> {
+            PreparedStatement statement = conn.prepareStatement(sql);
+            if(ids != null)
+                statement.setArray(1, conn.createArrayOf("integer", ids.toArray()));
+
+            Map<Integer, WatchTotals> totals = new HashMap<>();
+            ResultSet results = statement.executeQuery();
+
+            while(results.next())
+                totals.computeIfAbsent(results.getInt("MovieID"), WatchTotals::new).add(results);
+
+            results.close();
+            statement.close();
+
+            return totals;
+        }).thenApply(shards -> {
+            if(shards == null)
                 return null;
-            })
-        );
+
+            Map<Integer, WatchTotals> merged = new HashMap<>();
+            for(Map<Integer, WatchTotals> shard : shards) {
+                for(WatchTotals totals : shard.values())
+                    merged.computeIfAbsent(totals.getMovieID(), WatchTotals::new).add(totals);
+            }
+            return merged;
+        });
     }
 
     /**
-     * Rate a movie. The rating must be between 1 and 5
-     *
-     * @param rating the score
-     * @param userID the user that is rating
-     * @param movieID the movie that is rated
-     * @return CompletableStage for asynchronous code
+     * Look up the movies with the highest merged totals
+     * @param totals Totals from every shard, or null if they could not be gathered
+     * @param order Order of the totals, best first
+     * @param limit Number of movies wanted
+     * @return A completion stage containing the movies, or null if the totals are
      */
-    public CompletionStage<Message> rateMovie(int rating, int userID, int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    // Check for bounding
-                    if(rating < 1 || rating > 5) {
-                        return Message.error("Rating must be between 1 and 5!");
-                    }
+    private CompletionStage<List<Movie>> top(Map<Integer, WatchTotals> totals, Comparator<WatchTotals> order, int limit) {
+        if(totals == null)
+            return CompletableFuture.completedFuture(null);
 
-                    Statement statement = conn.createStatement();
-                    // The message that will be returned
-                    Message message;
+        List<Integer> movieIDs = new ArrayList<>();
+        totals.values().stream().sorted(order).limit(limit).forEach(movie -> movieIDs.add(movie.getMovieID()));
 
-                    // Check if watched exists
-                    String checkExistsQuery = "SELECT * FROM watches WHERE userid=%d AND movieid=%d";
-                    checkExistsQuery = String.format(checkExistsQuery, userID, movieID);
+        return getMovies(movieIDs);
+    }
 
-                    ResultSet checkExistsResult = statement.executeQuery(checkExistsQuery);
+    /**
+     * Read a single column of movie ids from a result set
+     * @param results Result set containing a MovieID column
+     * @param limit Maximum number of ids to read
+     * @return the ids in result order
+     * @throws SQLException if reading fails
+     */
+    static List<Integer> readMovieIDs(ResultSet results, int limit) throws SQLException {
+        List<Integer> movieIDs = new ArrayList<>();
 
-                    logger.info("Attempting to rate movie...");
+        while(movieIDs.size() < limit && results.next())
+            movieIDs.add(results.getInt("MovieID"));
 
-                    if (checkExistsResult.next()) {
-                        // If entry found
-                        logger.info("Movie found, applying rating");
+        results.close();
 
+        return movieIDs;
+    }
 
-                        String rateQuery = "UPDATE watches SET rating = %d " +
-                                "WHERE userid=%d AND movieid=%d";
-                        rateQuery = String.format(rateQuery, rating, userID, movieID);
+    /**
+     * Play the movie. The play is acknowledged once it is in the local watch log, and the
+     * movie's watch count is incremented in the background.
+     *
+     * @param movieID the id of the movie to play
+     * @return CompletableStage for asynchronous code
+     */
+    public CompletionStage<Void> playMovie(int userID, int movieID) {
+        return watchLog.play(userID, movieID).thenApply(logged -> {
+            if(logged == null)
+                logger.error("Unable to log play of movie "+movieID+" by user "+userID);
+            return null;
+        });
+    }
 
-                        statement.executeUpdate(rateQuery);
-                        message = Message.info("Movie rated successfully!");
-                    }
-                    else {
-                        // If entry doesn't already exist, should not be able to rate
-                        logger.info("Movie not found, cannot rate");
+    /**
+     * Play several movies at once. The plays are logged together, so they are acknowledged
+     * with one write to the watch log and applied in one batch.
+     *
+     * @param userID the user playing the movies
+     * @param movieIDs the ids of the movies to play
+     * @return A completion stage containing true once the plays are logged, or null if they could not be
+     */
+    public CompletionStage<Boolean> playMovies(int userID, List<Integer> movieIDs) {
+        if(movieIDs.isEmpty())
+            return CompletableFuture.completedFuture(Boolean.TRUE);
+
+        return watchLog.playAll(userID, movieIDs).thenApply(logged -> {
+            if(logged == null)
+                logger.error("Unable to log plays of "+movieIDs.size()+" movies by user "+userID);
+            return logged;
+        });
+    }
 
-                        message = Message.error("You can't rate a movie you haven't watched!");
-                    }
+    /**
+     * Rate a movie. The rating must be between 1 and 5, and the user must have watched the
+     * movie, either in Watches or in a play still in the watch log. It is acknowledged once
+     * it is in the local watch log, and applied in the background.
+     *
+     * @param rating the score
+     * @param userID the user that is rating
+     * @param movieID the movie that is rated
+     * @return CompletableStage for asynchronous code
+     */
+    public CompletionStage<Message> rateMovie(int rating, int userID, int movieID) {
+        // Check for bounding
+        if(rating < 1 || rating > 5) {
+            return CompletableFuture.completedFuture(Message.error("Rating must be between 1 and 5!"));
+        }
+
+        // Pending plays first: one applied after this check is in Watches by the query below
+        if(watchLog.hasPendingPlay(userID, movieID))
+            return logRating(rating, userID, movieID, true);
+
+        return Trace.supplyAsync(() ->
+                dataSource.forUser(userID).withConnection("MovieManager.rateMovie", conn -> {
+                    PreparedStatement statement = conn.prepareStatement("SELECT 1 FROM Watches WHERE UserID=? AND MovieID=?;");
+                    statement.setInt(1, userID);
+                    statement.setInt(2, movieID);
+                    ResultSet results = statement.executeQuery();
+                    boolean watched = results.next();
 
-                    checkExistsResult.close();
+                    results.close();
                     statement.close();
 
-                    return message;
+                    return watched;
                 })
-        );
+        ).thenCompose(watched -> {
+            if(Boolean.FALSE.equals(watched)) {
+                logger.info("Movie not found, cannot rate");
+                return CompletableFuture.completedFuture(Message.error("You can't rate a movie you haven't watched!"));
+            }
+            // Without the database the rating is kept, and dropped on replay if there is no watch
+            return logRating(rating, userID, movieID, watched != null);
+        });
+    }
+
+    /**
+     * Append a rating to the watch log
+     * @param watched Whether the user is known to have watched the movie
+     */
+    private CompletionStage<Message> logRating(int rating, int userID, int movieID, boolean watched) {
+        return watchLog.rate(userID, movieID, rating).thenApply(logged -> {
+            if(logged == null)
+                return Message.error("Unable to save your rating, please try again.");
+            return watched ? Message.info("Movie rated successfully!")
+                           : Message.info("Your rating will be saved if you have watched the movie.");
+        });
     }
 
 
@@ -190,14 +643,28 @@ public class MovieManager {
      * @return Completion stage containing the rating
      */
     public CompletionStage<Double> getRating(int movieID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
+        if(dataSource.isSharded()) {
+            return totals("MovieManager.getRating", TOTALS_BY_MOVIE, List.of(movieID)).thenApply(totals -> {
+                if(totals == null)
+                    return null;
+
+                WatchTotals movie = totals.get(movieID);
+                Double average = movie == null ? null : movie.average();
+                if(average == null)
+                    logger.error("Movie has no ratings!");
+                // Like the single database query, no ratings divides zero by zero
+                return average == null ? Double.NaN : average;
+            });
+        }
+
+        return Trace.supplyAsync(() ->
+                dataSource.withConnection("MovieManager.getRating", conn -> {
                     Statement statement = conn.createStatement();
                     // message to be returned
                     double result;
 
-                    String getRatingsQuery = "SELECT COUNT(rating) as count, SUM(rating) as sum" +
-                            " FROM watches WHERE movieid=%d";
+                    String getRatingsQuery = "SELECT COALESCE(SUM(ratings), 0) as count, SUM(ratingsum) as sum" +
+                            " FROM moviestats WHERE movieid=%d";
                     getRatingsQuery = String.format(getRatingsQuery, movieID);
 
                     ResultSet getRatingsResult = statement.executeQuery(getRatingsQuery);
@@ -223,46 +690,86 @@ public class MovieManager {
         );
     }
 
+    /**
+     * Serve a value from a cache, loading it on a miss. Concurrent misses for the same key
+     * share one load so an expired entry is only recomputed once. An expired value is served
+     * straight away while it is reloaded in the background, or kept as it is while the
+     * database is unreachable.
+     * @param cache The cache holding loaded values
+     * @param flight Coalesces concurrent loads of the same key
+     * @param key The cache key
+     * @param loader Loads the value on a miss, completing with null if it fails
+     * @param <K> The cache key type
+     * @param <V> The cached value type
+     * @return the cached or freshly loaded value
+     */
+    private <K, V> CompletionStage<V> cached(ExpiringCache<K, V> cache, SingleFlight<K, V> flight, K key,
+                                             Supplier<CompletionStage<V>> loader) {
+        V value = cache.get(key);
+        if(value != null)
+            return CompletableFuture.completedFuture(value);
+
+        V stale = cache.getStale(key);
+        if(stale != null) {
+            if(dataSource.isAvailable())
+                flight.execute(key, () -> loader.get().thenApply(loaded -> {
+                    cache.put(key, loaded);
+                    return loaded;
+                }));
+            return CompletableFuture.completedFuture(stale);
+        }
+
+        return Trace.timed("MovieManager.cacheMiss", () -> flight.execute(key, () -> loader.get().thenApply(loaded -> {
+            cache.put(key, loaded);
+            return loaded;
+        })));
+    }
+
     /**
      * Search database for movies based on a query and search parameters
      * @param query The search term
      * @param searchCategoryID The category to search in (Title, Studio, Release Date, Cast Members, Directors, Genre)
-     * @param sortCategoryID The category to sort by (Default, Title, Release Date, Genre)
+     * @param sortCategoryID The category to sort by (Default, Title, Release Date, Genre, Relevance)
      * @param ascending Whether the results should be ascending or descending
      * @return A LinkedHashSet of movies matching the search parameters
      */
     public CompletionStage<LinkedHashSet<Movie>> searchMovies(String query, int searchCategoryID, int sortCategoryID, boolean ascending) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    String searchCategory = categories[searchCategoryID%(categories.length-1)+1];
-                    String sortCategory = categories[sortCategoryID%categories.length];
-                    String order = ascending ? "ASC" : "DESC";
-                    Statement movieStatement = conn.createStatement();
-                    Statement personStatement = conn.createStatement();
-                    String sql = "SELECT M.MovieID AS MovieID, Title, Length, MPAA, ROUND(AVG(Rating),1) AS Rating "+
-                                 "FROM Movies AS M JOIN Watches AS W ON M.MovieID=W.MovieID "+
-                                 "JOIN CastMembers AS P1 ON M.MovieID = P1.MovieID "+
-                                 "JOIN Directors AS P2 ON M.MovieID = P2.MovieID "+
-                                 "JOIN People AS C ON C.PersonID = P1.PersonID "+
-                                 "JOIN People AS D ON D.PersonID = P2.PersonID "+
-                                 "JOIN Genre AS G ON M.MovieID=G.MovieID "+
-                                 "JOIN StudioMovies AS T ON M.MovieID=T.MovieID "+
-                                 "JOIN Studios AS S ON S.StudioID=T.StudioID "+
-                                 "WHERE LOWER(%s::VARCHAR) LIKE '%%%s%%' "+
-                                 "GROUP BY M.MovieID, %s "+
-                                 "ORDER BY (%s) %s;";
-                    sql = String.format(sql, searchCategory, query.toLowerCase(), sortCategory, sortCategory, order);
-                    LinkedHashSet<Movie> movies = new LinkedHashSet<>();
-                    ResultSet movieResults = movieStatement.executeQuery(sql);
-
-                    logger.info("Retrieving movies...");
-
-                    while(movieResults.next()) {
-                        int movieID = movieResults.getInt("MovieID");
+        String key = query.toLowerCase()+"|"+searchCategoryID+"|"+sortCategoryID+"|"+ascending;
+        return cached(searchCache, searchFlight, key, () -> {
+            if(sortCategoryID == RELEVANCE_SORT)
+                return searchByRelevance(query);
+            return querySearchMovies(query, searchCategoryID, sortCategoryID, ascending);
+        });
+    }
+
+    /**
+     * Run a column sorted search against the database
+     * @param query The search term
+     * @param searchCategoryID The category to search in
+     * @param sortCategoryID The category to sort by
+     * @param ascending Whether the results should be ascending or descending
+     * @return A LinkedHashSet of movies matching the search parameters
+     */
+    private CompletionStage<LinkedHashSet<Movie>> querySearchMovies(String query, int searchCategoryID, int sortCategoryID, boolean ascending) {
+        return Trace.supplyAsync(catalog::current).thenCompose(snapshot ->
+            dataSource.read("MovieManager.querySearchMovies", conn -> {
+                Statement movieStatement = conn.createStatement();
+                Statement personStatement = conn.createStatement();
+                String sql = searchSql(query, searchCategoryID, sortCategoryID, ascending, !dataSource.isSharded());
+                LinkedHashSet<Movie> movies = new LinkedHashSet<>();
+                ResultSet movieResults = movieStatement.executeQuery(sql);
+
+                logger.info("Retrieving movies...");
+
+                while(movieResults.next()) {
+                    int movieID = movieResults.getInt("MovieID");
+                    double rating = movieResults.getDouble("Rating");
+                    Movie movie = snapshot == null ? null : snapshot.movie(movieID, rating);
+
+                    if(movie == null) {
                         String title = movieResults.getString("Title");
                         int length = movieResults.getInt("Length");
                         String mpaa = movieResults.getString("MPAA");
-                        double rating = movieResults.getDouble("Rating");
                         String directors = "";
                         String castMembers = "";
                         sql = "SELECT Name FROM Directors AS D, People AS P WHERE MovieID=%d AND D.PersonID=P.PersonID;";
@@ -288,19 +795,105 @@ public class MovieManager {
                         directors = directors.substring(0, directors.length()-2);
                         castMembers = castMembers.substring(0, castMembers.length()-2);
 
-                        Movie movie = new Movie(movieID, title, length, null, mpaa, rating, directors, castMembers);
-
-                        movies.add(movie);
+                        movie = new Movie(movieID, title, length, null, mpaa, rating, directors, castMembers);
                     }
 
-                    logger.info("Successfully retrieved all movies.");
-                    
-                    personStatement.close();
-                    movieResults.close();
-                    movieStatement.close();
+                    movies.add(movie);
+                }
+
+                logger.info("Successfully retrieved all movies.");
+                
+                personStatement.close();
+                movieResults.close();
+                movieStatement.close();
 
-                    return movies;
-                })
+                return movies;
+            })
+        ).thenCompose(movies -> movies != null && dataSource.isSharded() ? rateWatched(movies) : CompletableFuture.completedFuture(movies));
+    }
+
+    /**
+     * Build the column sorted search query
+     * @param query The search term
+     * @param searchCategoryID The category to search in
+     * @param sortCategoryID The category to sort by
+     * @param ascending Whether the results should be ascending or descending
+     * @return the SQL text
+     */
+    String searchSql(String query, int searchCategoryID, int sortCategoryID, boolean ascending) {
+        return searchSql(query, searchCategoryID, sortCategoryID, ascending, true);
+    }
+
+    /**
+     * Build the column sorted search query
+     * @param watches Whether to join the movies' totals for the ratings, leaving out movies
+     *                nobody has watched, or select a null Rating when watches are on other shards
+     * @return the SQL text
+     */
+    private String searchSql(String query, int searchCategoryID, int sortCategoryID, boolean ascending, boolean watches) {
+        String searchCategory = categories[searchCategoryID%(categories.length-1)+1];
+        String sortCategory = categories[sortCategoryID%categories.length];
+        String order = ascending ? "ASC" : "DESC";
+        String sql = (watches ? "SELECT M.MovieID AS MovieID, Title, Length, MPAA, ROUND(MS.RatingSum*1.0/NULLIF(MS.Ratings, 0),1) AS Rating "+
+                                "FROM Movies AS M JOIN MovieStats AS MS ON M.MovieID=MS.MovieID AND MS.Watchers > 0 "
+                              : "SELECT M.MovieID AS MovieID, Title, Length, MPAA, NULL AS Rating "+
+                                "FROM Movies AS M ")+
+                     "JOIN CastMembers AS P1 ON M.MovieID = P1.MovieID "+
+                     "JOIN Directors AS P2 ON M.MovieID = P2.MovieID "+
+                     "JOIN People AS C ON C.PersonID = P1.PersonID "+
+                     "JOIN People AS D ON D.PersonID = P2.PersonID "+
+                     "JOIN Genre AS G ON M.MovieID=G.MovieID "+
+                     "JOIN StudioMovies AS T ON M.MovieID=T.MovieID "+
+                     "JOIN Studios AS S ON S.StudioID=T.StudioID "+
+                     "WHERE LOWER(%s::VARCHAR) LIKE '%%%s%%' "+
+                     "GROUP BY M.MovieID, %s%s "+
+                     "ORDER BY (%s) %s;";
+        return String.format(sql, searchCategory, query.toLowerCase(), watches ? "MS.MovieID, " : "", sortCategory, sortCategory, order);
+    }
+
+    /**
+     * Give search results their ratings totalled across the shards, keeping only the movies
+     * somebody has watched as the single database search does
+     * @param movies The results in order
+     * @return A completion stage containing the watched results in the same order, or null if
+     *         the ratings could not be totalled on every shard
+     */
+    private CompletionStage<LinkedHashSet<Movie>> rateWatched(LinkedHashSet<Movie> movies) {
+        List<Integer> movieIDs = new ArrayList<>();
+        for(Movie movie : movies)
+            movieIDs.add(movie.getMovieID());
+
+        return totals("MovieManager.querySearchMovies", TOTALS_BY_MOVIE, movieIDs).thenApply(totals -> {
+            if(totals == null) {
+                logger.error("Unable to total the ratings of "+movieIDs.size()+" movies on every shard");
+                return null;
+            }
+
+            LinkedHashSet<Movie> watched = new LinkedHashSet<>();
+            for(Movie movie : movies) {
+                WatchTotals movieTotals = totals.get(movie.getMovieID());
+                if(movieTotals != null && movieTotals.getWatchers() > 0)
+                    watched.add(movie.withRating(movieTotals.rating()));
+            }
+
+            return watched;
+        });
+    }
+
+    /**
+     * Search titles, people, studios and genres at once and order the results by relevance.
+     * Ranking is done in memory by the MovieSearchIndex, only the best matches are fetched.
+     * @param query The search terms
+     * @return A LinkedHashSet of the best matching movies, most relevant first
+     */
+    private CompletionStage<LinkedHashSet<Movie>> searchByRelevance(String query) {
+        return Trace.supplyAsync(() -> {
+            List<Integer> ranked = new ArrayList<>();
+            for(int movieID : searchIndex.search(query))
+                ranked.add(movieID);
+            return ranked;
+        }).thenCompose(this::getMovies).thenApply(movies ->
+                movies == null ? new LinkedHashSet<>() : new LinkedHashSet<>(movies)
         );
     }
 
@@ -309,34 +902,41 @@ public class MovieManager {
      * @return List of most popular movies
      */
     public CompletionStage<List<Movie>> get90DayRolling() {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    String sql = "SELECT Movies.MovieID, Title, ReleaseDate, Length, MPAA "+
-                                 "FROM Movies JOIN Watches ON Movies.MovieID = Watches.MovieID "+
-                                 "WHERE LastWatched >= CURRENT_TIMESTAMP - '90d'::INTERVAL "+
-                                 "GROUP BY Movies.MovieID "+
-                                 "ORDER BY (COALESCE(AVG(Rating), 0)*COUNT(UserID), SUM(TimesPlayed)) DESC "+
-                                 "LIMIT 20;";
-                    List<Movie> movies = new ArrayList<>();
-                    Statement statement = conn.createStatement();
-                    ResultSet results = statement.executeQuery(sql);
-
-                    while(results.next()) {
-                        int movieID = results.getInt("MovieID");
-                        String title = results.getString("Title");
-                        Date releaseDate = results.getDate("ReleaseDate");
-                        int length = results.getInt("Length");
-                        String mpaa = results.getString("MPAA");
-                        Movie movie = new Movie(movieID, title, length, releaseDate, mpaa);
-                        movies.add(movie);
-                    }
-
-                    results.close();
-                    statement.close();
+        return cached(listCache, listFlight, "rolling", this::load90DayRolling);
+    }
 
-                    return movies;
-                })
-        );
+    /**
+     * Query the 20 most popular movies watched in the last 90 days, from the totals of the
+     * watches last played on each of those days
+     * @return List of most popular movies
+     */
+    private CompletionStage<List<Movie>> load90DayRolling() {
+        if(dataSource.isSharded()) {
+            String sql = "SELECT MovieID, SUM(Plays) AS Plays, SUM(Watchers) AS Watchers, SUM(RatingSum) AS RatingSum, SUM(Ratings) AS Ratings "+
+                         "FROM MovieStatsDaily "+
+                         "WHERE LastWatchedOn >= CURRENT_DATE - 90 "+
+                         "GROUP BY MovieID "+
+                         "HAVING SUM(Watchers) > 0;";
+            Comparator<WatchTotals> order = ((Comparator<WatchTotals>) WatchTotals::compareScores)
+                    .thenComparingLong(WatchTotals::getPlays).reversed();
+            return totals("MovieManager.load90DayRolling", sql, null).thenCompose(totals -> top(totals, order, 20));
+        }
+
+        return dataSource.read("MovieManager.load90DayRolling", conn -> {
+            String sql = "SELECT MovieID "+
+                         "FROM MovieStatsDaily "+
+                         "WHERE LastWatchedOn >= CURRENT_DATE - 90 "+
+                         "GROUP BY MovieID "+
+                         "HAVING SUM(Watchers) > 0 "+
+                         "ORDER BY (COALESCE(SUM(RatingSum)*1.0/NULLIF(SUM(Ratings), 0), 0)*SUM(Watchers), SUM(Plays)) DESC "+
+                         "LIMIT 20;";
+            Statement statement = conn.createStatement();
+            List<Integer> movieIDs = readMovieIDs(statement.executeQuery(sql), 20);
+
+            statement.close();
+
+            return loadMovies(conn, movieIDs);
+        });
     }
 
     /**
@@ -344,35 +944,55 @@ public class MovieManager {
      * @return List of most popular movies
      */
     public CompletionStage<List<Movie>> getFriendTopMovies() {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    String sql = "SELECT Movies.MovieID, Title, ReleaseDate, Length, MPAA "+
-                                 "FROM Movies JOIN Watches ON Movies.MovieID = Watches.MovieID "+
-                                 "JOIN Follows ON Watches.UserID = FollowedUserID "+
-                                 "WHERE FollowerUserID=3 "+
-                                 "GROUP BY Movies.movieid "+
-                                 "ORDER BY (COALESCE(AVG(Rating), 0), SUM(TimesPlayed)) DESC "+
-                                 "LIMIT 20;";
-                    List<Movie> movies = new ArrayList<>();
-                    Statement statement = conn.createStatement();
-                    ResultSet results = statement.executeQuery(sql);
-
-                    while(results.next()) {
-                        int movieID = results.getInt("MovieID");
-                        String title = results.getString("Title");
-                        Date releaseDate = results.getDate("ReleaseDate");
-                        int length = results.getInt("Length");
-                        String mpaa = results.getString("MPAA");
-                        Movie movie = new Movie(movieID, title, length, releaseDate, mpaa);
-                        movies.add(movie);
-                    }
+        return cached(listCache, listFlight, "friends", this::loadFriendTopMovies);
+    }
 
-                    results.close();
-                    statement.close();
+    /**
+     * Query the 20 most popular movies among followed users
+     * @return List of most popular movies
+     */
+    private CompletionStage<List<Movie>> loadFriendTopMovies() {
+        if(dataSource.isSharded()) {
+            // Follows are kept with the follower, the followed users' watches may be on any shard
+            return dataSource.forUser(3).read("MovieManager.loadFriendTopMovies", conn -> {
+                Statement statement = conn.createStatement();
+                ResultSet results = statement.executeQuery("SELECT FollowedUserID FROM Follows WHERE FollowerUserID=3;");
+                List<Integer> followed = new ArrayList<>();
 
-                    return movies;
-                })
-        );
+                while(results.next())
+                    followed.add(results.getInt("FollowedUserID"));
+
+                results.close();
+                statement.close();
+
+                return followed;
+            }).thenCompose(followed -> {
+                if(followed == null)
+                    return CompletableFuture.completedFuture(null);
+
+                String sql = "SELECT MovieID, SUM(TimesPlayed) AS Plays, COUNT(*) AS Watchers, SUM(Rating) AS RatingSum, COUNT(Rating) AS Ratings "+
+                             "FROM Watches WHERE UserID = ANY(?) GROUP BY MovieID;";
+                Comparator<WatchTotals> order = Comparator.comparingDouble((WatchTotals movie) ->
+                        movie.average() == null ? 0 : movie.average())
+                        .thenComparingLong(WatchTotals::getPlays).reversed();
+                return totals("MovieManager.loadFriendTopMovies", sql, followed).thenCompose(totals -> top(totals, order, 20));
+            });
+        }
+
+        return dataSource.read("MovieManager.loadFriendTopMovies", conn -> {
+            String sql = "SELECT MovieID "+
+                         "FROM Watches JOIN Follows ON Watches.UserID = FollowedUserID "+
+                         "WHERE FollowerUserID=3 "+
+                         "GROUP BY MovieID "+
+                         "ORDER BY (COALESCE(AVG(Rating), 0), SUM(TimesPlayed)) DESC "+
+                         "LIMIT 20;";
+            Statement statement = conn.createStatement();
+            List<Integer> movieIDs = readMovieIDs(statement.executeQuery(sql), 20);
+
+            statement.close();
+
+            return loadMovies(conn, movieIDs);
+        });
     }
 
     /**
@@ -380,41 +1000,39 @@ public class MovieManager {
      * @return The top 5 list
      */
     public CompletionStage<List<Movie>> getTop5LastMonth() {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-
-                    List<Movie> top5 = new ArrayList<>();
-
-                    logger.info("Getting top 5 movies in the last month");
-                    String getTop5Query = """
-                            SELECT movies.movieid, movies.title, movies.length, movies.releasedate, movies.mpaa,
-                            AVG(watches.rating) as rating
-                            FROM movies
-                            JOIN watches ON movies.movieid = watches.movieid
-                            WHERE movies.releasedate >= CURRENT_DATE - INTERVAL '1 month'
-                            GROUP BY movies.movieid
-                            ORDER BY rating DESC
-                            LIMIT 5;
-                            """;
-                    ResultSet results = statement.executeQuery(getTop5Query);
-
-                    while(results.next()) {
-                        int movieID = results.getInt("movieID");
-                        String title = results.getString("Title");
-                        int length = results.getInt("Length");
-                        Date releaseDate = results.getDate("ReleaseDate");
-                        String mpaa = results.getString("MPAA");
-                        double rating = results.getDouble("rating");
-
-                        Movie movie = new Movie(movieID, title, length, releaseDate, mpaa, rating);
-
-                        top5.add(movie);
-                    }
+        return cached(listCache, listFlight, "monthly", this::loadTop5LastMonth);
+    }
 
-                    return top5;
-                })
-        );
+    /**
+     * Query the top 5 most popular movies released in the last month
+     * @return The top 5 list
+     */
+    private CompletionStage<List<Movie>> loadTop5LastMonth() {
+        if(dataSource.isSharded()) {
+            String sql = "SELECT M.MovieID, Plays, Watchers, RatingSum, Ratings "+
+                         "FROM Movies AS M JOIN MovieStats AS MS ON M.MovieID = MS.MovieID "+
+                         "WHERE M.ReleaseDate >= CURRENT_DATE - INTERVAL '1 month' AND Watchers > 0;";
+            return totals("MovieManager.loadTop5LastMonth", sql, null).thenCompose(totals -> top(totals, BY_AVERAGE, 5));
+        }
+
+        return dataSource.read("MovieManager.loadTop5LastMonth", conn -> {
+            Statement statement = conn.createStatement();
+
+            logger.info("Getting top 5 movies in the last month");
+            String getTop5Query = """
+                    SELECT movies.movieid, moviestats.ratingsum*1.0/NULLIF(moviestats.ratings, 0) as rating
+                    FROM movies
+                    JOIN moviestats ON movies.movieid = moviestats.movieid
+                    WHERE movies.releasedate >= CURRENT_DATE - INTERVAL '1 month' AND moviestats.watchers > 0
+                    ORDER BY rating DESC
+                    LIMIT 5;
+                    """;
+            List<Integer> movieIDs = readMovieIDs(statement.executeQuery(getTop5Query), 5);
+
+            statement.close();
+
+            return loadMovies(conn, movieIDs);
+        });
     }
 
     /**
@@ -424,94 +1042,130 @@ public class MovieManager {
      * @return the recommended movies list
      */
     public CompletionStage<List<Movie>> getForYou(int userID) {
-        return CompletableFuture.supplyAsync(() ->
-                dataSource.withConnection(conn -> {
-                    Statement statement = conn.createStatement();
-
-                    List<Movie> forYou = new ArrayList<>();
-
-                    logger.info("Getting top genre");
-                    String getGenresQuery = """
-                            SELECT genre.genre, COUNT(*) as count
-                            FROM genre
-                            JOIN movies ON genre.movieid = movies.movieid
-                            JOIN watches ON genre.movieid = watches.movieid
-                            WHERE watches.userid = %d
-                            GROUP BY genre.genre
-                            ORDER BY count DESC;
-                            """;
-                    getGenresQuery = String.format(getGenresQuery, userID);
-                    ResultSet genreResult = statement.executeQuery(getGenresQuery);
-
-                    String firstGenre = null;
-                    String secondGenre = null;
-
-                    // Get the results
-                    if(genreResult.next()) {
-                        firstGenre = firstGenre = genreResult.getString("genre");
-                        logger.info("First genre: " + firstGenre);
-                    }
-                    if(genreResult.next()) {
-                        secondGenre = genreResult.getString("genre");
-                        logger.info("Second genre: " + secondGenre);
-                    }
+        return cached(forYouCache, forYouFlight, userID, () -> loadForYou(userID));
+    }
 
-                    String topGenreQuery = """
-                            SELECT movies.movieid, movies.title, movies.length, movies.releasedate,
-                            movies.mpaa, AVG(watches.rating) as rating
-                            FROM movies
-                            JOIN genre ON movies.movieid = genre.movieid
-                            JOIN watches ON movies.movieid = watches.movieid
-                            WHERE genre = '%s'
-                            GROUP BY movies.movieid
-                            ORDER BY rating DESC;
-                            """;
-
-                    /*
-                    Get top 2 genres and select movies based on that
-                     */
-                    if(firstGenre != null) {
-                        String firstGenreQuery = String.format(topGenreQuery, firstGenre);
-                        ResultSet firstGenreResult = statement.executeQuery(firstGenreQuery);
-
-                        // Add 3 movies from the top genre
-                        for(int i = 0; i < 3; i++) {
-                            if(firstGenreResult.next()) {
-                                int movieID = firstGenreResult.getInt("movieID");
-                                String title = firstGenreResult.getString("Title");
-                                int length = firstGenreResult.getInt("Length");
-                                Date releaseDate = firstGenreResult.getDate("ReleaseDate");
-                                String mpaa = firstGenreResult.getString("MPAA");
-
-                                Movie movie = new Movie(movieID, title, length, releaseDate, mpaa);
-
-                                forYou.add(movie);
-                            }
-                        }
-                    }
-                    if(secondGenre != null) {
-                        String secondGenreQuery = String.format(topGenreQuery, secondGenre);
-                        ResultSet secondGenreResult = statement.executeQuery(secondGenreQuery);
-
-                        // Add 2 movies from the 2nd genre
-                        for(int i = 0; i < 2; i++) {
-                            if (secondGenreResult.next()) {
-                                int movieID = secondGenreResult.getInt("movieID");
-                                String title = secondGenreResult.getString("Title");
-                                int length = secondGenreResult.getInt("Length");
-                                Date releaseDate = secondGenreResult.getDate("ReleaseDate");
-                                String mpaa = secondGenreResult.getString("MPAA");
-
-                                Movie movie = new Movie(movieID, title, length, releaseDate, mpaa);
-
-                                forYou.add(movie);
-                            }
-                        }
-                    }
+    /**
+     * Compute a user's recommendations
+     */
+    private CompletionStage<List<Movie>> loadForYou(int userID) {
+        if(dataSource.isSharded())
+            return loadShardedForYou(userID);
+
+        return dataSource.read("MovieManager.getForYou", conn -> {
+            Statement statement = conn.createStatement();
+
+            List<Integer> forYou = new ArrayList<>();
+
+            logger.info("Getting top genre");
+            String getGenresQuery = """
+                    SELECT genre.genre, COUNT(*) as count
+                    FROM genre
+                    JOIN movies ON genre.movieid = movies.movieid
+                    JOIN watches ON genre.movieid = watches.movieid
+                    WHERE watches.userid = %d
+                    GROUP BY genre.genre
+                    ORDER BY count DESC;
+                    """;
+            getGenresQuery = String.format(getGenresQuery, userID);
+            ResultSet genreResult = statement.executeQuery(getGenresQuery);
+
+            String firstGenre = null;
+            String secondGenre = null;
+
+            // Get the results
+            if(genreResult.next()) {
+                firstGenre = genreResult.getString("genre");
+                logger.info("First genre: " + firstGenre);
+            }
+            if(genreResult.next()) {
+                secondGenre = genreResult.getString("genre");
+                logger.info("Second genre: " + secondGenre);
+            }
+
+            genreResult.close();
+
+            String topGenreQuery = """
+                    SELECT movies.movieid, AVG(watches.rating) as rating
+                    FROM movies
+                    JOIN genre ON movies.movieid = genre.movieid
+                    JOIN watches ON movies.movieid = watches.movieid
+                    WHERE genre = '%s'
+                    GROUP BY movies.movieid
+                    ORDER BY rating DESC;
+                    """;
+
+            /*
+            Get top 2 genres and select movies based on that
+             */
+            if(firstGenre != null) {
+                // Add 3 movies from the top genre
+                String firstGenreQuery = String.format(topGenreQuery, firstGenre);
+                forYou.addAll(readMovieIDs(statement.executeQuery(firstGenreQuery), 3));
+            }
+            if(secondGenre != null) {
+                // Add 2 movies from the 2nd genre
+                String secondGenreQuery = String.format(topGenreQuery, secondGenre);
+                forYou.addAll(readMovieIDs(statement.executeQuery(secondGenreQuery), 2));
+            }
+
+            statement.close();
+
+            return loadMovies(conn, forYou);
+        });
+    }
 
+    /**
+     * Compute a user's recommendations when watches are sharded. The user's favourite genres
+     * come from their own shard, and the best rated movies of each genre from every shard.
+     */
+    private CompletionStage<List<Movie>> loadShardedForYou(int userID) {
+        return dataSource.forUser(userID).read("MovieManager.getForYou", conn -> {
+            Statement statement = conn.createStatement();
+            String sql = """
+                    SELECT genre.genre, COUNT(*) as count
+                    FROM genre
+                    JOIN watches ON genre.movieid = watches.movieid
+                    WHERE watches.userid = %d
+                    GROUP BY genre.genre
+                    ORDER BY count DESC
+                    LIMIT 2;
+                    """;
+            sql = String.format(sql, userID);
+            ResultSet results = statement.executeQuery(sql);
+            List<String> genres = new ArrayList<>();
+
+            while(results.next())
+                genres.add(results.getString("genre"));
+
+            results.close();
+            statement.close();
+
+            return genres;
+        }).thenCompose(genres -> {
+            if(genres == null)
+                return CompletableFuture.completedFuture(null);
+
+            String sql = "SELECT W.MovieID, SUM(TimesPlayed) AS Plays, COUNT(*) AS Watchers, SUM(Rating) AS RatingSum, COUNT(Rating) AS Ratings "+
+                         "FROM Genre AS G JOIN Watches AS W ON G.MovieID = W.MovieID "+
+                         "WHERE Genre = '%s' "+
+                         "GROUP BY W.MovieID;";
+            // 3 movies from the top genre and 2 from the second
+            List<CompletableFuture<Map<Integer, WatchTotals>>> picks = new ArrayList<>();
+            for(String genre : genres)
+                picks.add(totals("MovieManager.getForYou", String.format(sql, genre), null).toCompletableFuture());
+
+            return CompletableFuture.allOf(picks.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+                List<Integer> forYou = new ArrayList<>();
+                for(int i = 0; i < picks.size(); i++) {
+                    Map<Integer, WatchTotals> totals = picks.get(i).join();
+                    if(totals == null)
+                        return CompletableFuture.completedFuture(null);
+                    totals.values().stream().sorted(BY_AVERAGE).limit(i == 0 ? 3 : 2).forEach(movie -> forYou.add(movie.getMovieID()));
+                }
 
-                    return forYou;
-                })
-        );
+                return getMovies(forYou);
+            });
+        });
     }
 }
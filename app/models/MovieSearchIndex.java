@@ -0,0 +1,389 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory inverted index over movie titles, people, studios and genres used to rank
+ * search results by relevance (BM25F with per-field boosts).
+ */
+@Singleton
+public class MovieSearchIndex {
+    static final int TITLE = 0;
+    static final int PEOPLE = 1;
+    static final int STUDIO = 2;
+    static final int GENRE = 3;
+    static final int FIELDS = 4;
+
+    private final MovieCatalog catalog;
+    private final Logger logger;
+    private final float[] boosts;
+    private final float k1;
+    private final float b;
+    private final int limit;
+    private volatile Index index;
+    private volatile CatalogSnapshot indexedSnapshot;
+
+    /**
+     * Constructor for MovieSearchIndex
+     * @param catalog The movie catalog to index
+     * @param config Application configuration containing the search.relevance block
+     */
+    @Inject
+    MovieSearchIndex(MovieCatalog catalog, Config config) {
+        Config relevance = config.getConfig("search.relevance");
+        Config boostConfig = relevance.getConfig("boosts");
+
+        this.catalog = catalog;
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.boosts = new float[FIELDS];
+        this.boosts[TITLE] = (float) boostConfig.getDouble("title");
+        this.boosts[PEOPLE] = (float) boostConfig.getDouble("people");
+        this.boosts[STUDIO] = (float) boostConfig.getDouble("studio");
+        this.boosts[GENRE] = (float) boostConfig.getDouble("genre");
+        this.k1 = (float) relevance.getDouble("k1");
+        this.b = (float) relevance.getDouble("b");
+        this.limit = relevance.getInt("limit");
+    }
+
+    /**
+     * Find the most relevant movies for a query.
+     * @param query The search terms
+     * @return MovieIDs of the best matches, most relevant first
+     */
+    public int[] search(String query) {
+        Index current = current();
+        return current == null ? new int[0] : current.search(query, limit);
+    }
+
+    /**
+     * Get the index for the current catalog, rebuilding it whenever the catalog snapshot
+     * has been replaced.
+     * @return the current index or null if the catalog is unavailable
+     */
+    private Index current() {
+        CatalogSnapshot snapshot = catalog.current();
+        Index current = index;
+
+        if(snapshot == null)
+            return current;
+
+        if(current == null || indexedSnapshot != snapshot) {
+            synchronized (this) {
+                if(index == null || indexedSnapshot != snapshot) {
+                    index = build(snapshot);
+                    indexedSnapshot = snapshot;
+                }
+                current = index;
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Index every searchable field of a catalog snapshot.
+     * @param snapshot The catalog to index
+     * @return the built index
+     */
+    private Index build(CatalogSnapshot snapshot) {
+        Builder builder = new Builder();
+
+        for(int ordinal = 0; ordinal < snapshot.size(); ordinal++) {
+            int movieID = snapshot.movieID(ordinal);
+            builder.add(movieID, TITLE, snapshot.title(ordinal));
+            for(String name : snapshot.peopleNames(ordinal))
+                builder.add(movieID, PEOPLE, name);
+            for(String name : snapshot.studioNames(ordinal))
+                builder.add(movieID, STUDIO, name);
+            for(String name : snapshot.genreNames(ordinal))
+                builder.add(movieID, GENRE, name);
+        }
+
+        Index built = builder.build(boosts, k1, b);
+        logger.info("Movie search index built with "+built.size()+" movies.");
+
+        return built;
+    }
+
+    /**
+     * Split text into lowercase alphanumeric terms.
+     * @param text Text to tokenize
+     * @return the terms in order of appearance
+     */
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if(text == null)
+            return terms;
+
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+
+        for(int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+
+            if(word && start < 0) {
+                start = i;
+            }
+            else if(!word && start >= 0) {
+                terms.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    /**
+     * Immutable, array backed inverted index. Postings for term t occupy
+     * [postingStart[t], postingStart[t+1]) of postingDocs, with FIELDS term frequencies
+     * per posting in postingFreqs.
+     */
+    static final class Index {
+        private final Map<String, Integer> terms;
+        private final int[] postingStart;
+        private final int[] postingDocs;
+        private final short[] postingFreqs;
+        private final int[] movieIDs;
+        private final float[] lengthNorms;
+        private final float[] boosts;
+        private final float k1;
+        private final ThreadLocal<float[]> scratch;
+
+        private Index(Map<String, Integer> terms, int[] postingStart, int[] postingDocs, short[] postingFreqs,
+                      int[] movieIDs, int[] fieldLengths, float[] boosts, float k1, float b) {
+            this.terms = terms;
+            this.postingStart = postingStart;
+            this.postingDocs = postingDocs;
+            this.postingFreqs = postingFreqs;
+            this.movieIDs = movieIDs;
+            this.boosts = boosts;
+            this.k1 = k1;
+
+            // Pre-compute the BM25 length normalisation 1 - b + b * len/avgLen for every field
+            float[] average = new float[FIELDS];
+            for(int i = 0; i < fieldLengths.length; i++)
+                average[i % FIELDS] += fieldLengths[i];
+            for(int f = 0; f < FIELDS; f++)
+                average[f] = movieIDs.length == 0 || average[f] == 0 ? 1 : average[f] / movieIDs.length;
+
+            this.lengthNorms = new float[fieldLengths.length];
+            for(int i = 0; i < fieldLengths.length; i++)
+                lengthNorms[i] = 1 - b + b * fieldLengths[i] / average[i % FIELDS];
+
+            this.scratch = ThreadLocal.withInitial(() -> new float[movieIDs.length]);
+        }
+
+        /**
+         * Number of movies in the index
+         */
+        int size() {
+            return movieIDs.length;
+        }
+
+        /**
+         * Score every movie matching at least one query term and select the best k
+         * with a bounded min-heap.
+         * @param query The search terms
+         * @param k Maximum number of results
+         * @return MovieIDs of the best matches, most relevant first
+         */
+        int[] search(String query, int k) {
+            LinkedHashSet<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+            float[] scores = scratch.get();
+            int[] touched = new int[16];
+            int touchedCount = 0;
+            int n = movieIDs.length;
+
+            for(String term : queryTerms) {
+                Integer termID = terms.get(term);
+                if(termID == null)
+                    continue;
+
+                int start = postingStart[termID];
+                int end = postingStart[termID+1];
+                int df = end - start;
+                float idf = (float) Math.log(1 + (n - df + 0.5) / (df + 0.5));
+
+                for(int p = start; p < end; p++) {
+                    int doc = postingDocs[p];
+                    float weight = 0;
+
+                    for(int f = 0; f < FIELDS; f++) {
+                        int tf = postingFreqs[p*FIELDS+f];
+                        if(tf > 0)
+                            weight += boosts[f] * tf / lengthNorms[doc*FIELDS+f];
+                    }
+
+                    if(scores[doc] == 0) {
+                        if(touchedCount == touched.length)
+                            touched = Arrays.copyOf(touched, touchedCount*2);
+                        touched[touchedCount++] = doc;
+                    }
+
+                    scores[doc] += idf * weight * (k1 + 1) / (k1 + weight);
+                }
+            }
+
+            int[] heapDocs = new int[Math.min(k, touchedCount)];
+            float[] heapScores = new float[heapDocs.length];
+            int heapSize = 0;
+
+            for(int i = 0; i < touchedCount; i++) {
+                int doc = touched[i];
+                float score = scores[doc];
+                scores[doc] = 0;
+
+                if(heapSize < heapDocs.length) {
+                    heapDocs[heapSize] = doc;
+                    heapScores[heapSize] = score;
+                    siftUp(heapDocs, heapScores, heapSize++);
+                }
+                else if(heapSize > 0 && worse(heapScores[0], heapDocs[0], score, doc)) {
+                    heapDocs[0] = doc;
+                    heapScores[0] = score;
+                    siftDown(heapDocs, heapScores, heapSize);
+                }
+            }
+
+            // Drain the min-heap from the back so the best match ends up first
+            int[] results = new int[heapSize];
+            for(int i = heapSize-1; i >= 0; i--) {
+                results[i] = movieIDs[heapDocs[0]];
+                heapDocs[0] = heapDocs[i];
+                heapScores[0] = heapScores[i];
+                siftDown(heapDocs, heapScores, i);
+            }
+
+            return results;
+        }
+
+        /**
+         * Whether (score, doc) ranks below (otherScore, otherDoc). Ties go to the lower ordinal.
+         */
+        private static boolean worse(float score, int doc, float otherScore, int otherDoc) {
+            return score < otherScore || (score == otherScore && doc > otherDoc);
+        }
+
+        private static void siftUp(int[] docs, float[] scores, int i) {
+            while(i > 0) {
+                int parent = (i-1) >>> 1;
+                if(!worse(scores[i], docs[i], scores[parent], docs[parent]))
+                    break;
+                swap(docs, scores, i, parent);
+                i = parent;
+            }
+        }
+
+        private static void siftDown(int[] docs, float[] scores, int size) {
+            int i = 0;
+            while(true) {
+                int left = 2*i+1;
+                int smallest = i;
+                if(left < size && worse(scores[left], docs[left], scores[smallest], docs[smallest]))
+                    smallest = left;
+                if(left+1 < size && worse(scores[left+1], docs[left+1], scores[smallest], docs[smallest]))
+                    smallest = left+1;
+                if(smallest == i)
+                    return;
+                swap(docs, scores, i, smallest);
+                i = smallest;
+            }
+        }
+
+        private static void swap(int[] docs, float[] scores, int i, int j) {
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+            float score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
+    }
+
+    /**
+     * Accumulates field text per movie and compacts it into an Index.
+     */
+    static final class Builder {
+        private final Map<Integer, Integer> ordinals = new HashMap<>();
+        private final List<Integer> movieIDs = new ArrayList<>();
+        private final List<int[]> fieldLengths = new ArrayList<>();
+        private final Map<String, Map<Integer, short[]>> postings = new HashMap<>();
+
+        /**
+         * Add text to one field of a movie. May be called repeatedly for the same movie and field.
+         * @param movieID The movie the text belongs to
+         * @param field One of TITLE, PEOPLE, STUDIO or GENRE
+         * @param text The text to index
+         */
+        void add(int movieID, int field, String text) {
+            Integer ordinal = ordinals.get(movieID);
+            if(ordinal == null) {
+                ordinal = movieIDs.size();
+                ordinals.put(movieID, ordinal);
+                movieIDs.add(movieID);
+                fieldLengths.add(new int[FIELDS]);
+            }
+
+            for(String term : tokenize(text)) {
+                short[] freqs = postings.computeIfAbsent(term, t -> new HashMap<>())
+                                        .computeIfAbsent(ordinal, o -> new short[FIELDS]);
+                if(freqs[field] < Short.MAX_VALUE)
+                    freqs[field]++;
+                fieldLengths.get(ordinal)[field]++;
+            }
+        }
+
+        /**
+         * Compact the accumulated postings into flat arrays.
+         * @param boosts Per-field weight
+         * @param k1 BM25 term frequency saturation
+         * @param b BM25 length normalisation
+         * @return the built index
+         */
+        Index build(float[] boosts, float k1, float b) {
+            int total = 0;
+            for(Map<Integer, short[]> docs : postings.values())
+                total += docs.size();
+
+            Map<String, Integer> terms = new HashMap<>(postings.size()*2);
+            int[] postingStart = new int[postings.size()+1];
+            int[] postingDocs = new int[total];
+            short[] postingFreqs = new short[total*FIELDS];
+            int offset = 0;
+
+            for(Map.Entry<String, Map<Integer, short[]>> entry : postings.entrySet()) {
+                int termID = terms.size();
+                terms.put(entry.getKey(), termID);
+                postingStart[termID] = offset;
+
+                for(Map.Entry<Integer, short[]> doc : entry.getValue().entrySet()) {
+                    postingDocs[offset] = doc.getKey();
+                    System.arraycopy(doc.getValue(), 0, postingFreqs, offset*FIELDS, FIELDS);
+                    offset++;
+                }
+            }
+            postingStart[terms.size()] = offset;
+
+            int[] ids = new int[movieIDs.size()];
+            int[] lengths = new int[movieIDs.size()*FIELDS];
+            for(int i = 0; i < ids.length; i++) {
+                ids[i] = movieIDs.get(i);
+                System.arraycopy(fieldLengths.get(i), 0, lengths, i*FIELDS, FIELDS);
+            }
+
+            return new Index(terms, postingStart, postingDocs, postingFreqs, ids, lengths, boosts.clone(), k1, b);
+        }
+    }
+}
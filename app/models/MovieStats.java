@@ -0,0 +1,377 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Metrics;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Keeps the MovieStats table, each movie's watch totals over Watches: watchers, plays, sum
+ * and count of ratings and last watched time, and MovieStatsDaily, the same totals split by
+ * the day each watch was last played, so lists over a recent window add up their days.
+ * Every write to Watches changes the movie's totals in the same transaction, so reads of
+ * ratings and popularity never aggregate Watches. A background task compares the totals with
+ * Watches every reconcile interval, a chunk of movies per transaction, and corrects any that
+ * drifted, e.g. after rows were deleted or two nodes played the same movie for a user at
+ * once. When watches are sharded each shard keeps the totals of its own watches.
+ */
+@Singleton
+public class MovieStats {
+    /**
+     * Adds the rows being inserted to the totals already kept
+     */
+    private static final String ADD_CHANGES =
+            "ON CONFLICT (MovieID) DO UPDATE SET Watchers = MovieStats.Watchers + EXCLUDED.Watchers, "+
+            "Plays = MovieStats.Plays + EXCLUDED.Plays, RatingSum = MovieStats.RatingSum + EXCLUDED.RatingSum, "+
+            "Ratings = MovieStats.Ratings + EXCLUDED.Ratings, LastWatched = GREATEST(MovieStats.LastWatched, EXCLUDED.LastWatched)";
+
+    private final DataSource dataSource;
+    private final int chunkSize;
+    private final List<IntConsumer> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder corrections = new LongAdder();
+    private final LongAdder dailyCorrections = new LongAdder();
+    private final ScheduledExecutorService reconciler;
+    private final Logger logger;
+
+    /**
+     * A user's watch of a movie as a batch finds or leaves it
+     */
+    static final class Watch {
+        final Integer rating;
+        final int timesPlayed;
+        final long lastWatched;
+
+        Watch(Integer rating, int timesPlayed, long lastWatched) {
+            this.rating = rating;
+            this.timesPlayed = timesPlayed;
+            this.lastWatched = lastWatched;
+        }
+
+        /**
+         * Day the watch was last played on, as LastWatched is cast to a date
+         */
+        LocalDate day() {
+            return new Timestamp(lastWatched).toLocalDateTime().toLocalDate();
+        }
+    }
+
+    /**
+     * How a batch of plays and ratings changes the totals of one movie
+     */
+    static final class Change {
+        final int movieID;
+        int watchers;
+        int plays;
+        long ratingSum;
+        int ratings;
+        long lastWatched;
+        final Map<LocalDate, long[]> days = new TreeMap<>();
+
+        Change(int movieID) {
+            this.movieID = movieID;
+        }
+
+        /**
+         * A play of the movie, which moves the user's watch to the day it was played on
+         * @param watch The user's watch before the play, or null if it is their first
+         * @param time When it was played
+         * @return the watch after the play
+         */
+        Watch played(Watch watch, long time) {
+            if(watch == null)
+                watchers++;
+            else
+                day(watch, -1);
+            plays++;
+            lastWatched = Math.max(lastWatched, time);
+
+            Watch played = watch == null ? new Watch(null, 1, time)
+                                         : new Watch(watch.rating, watch.timesPlayed + 1, Math.max(watch.lastWatched, time));
+            day(played, 1);
+            return played;
+        }
+
+        /**
+         * A rating of a movie the user has played
+         * @param watch The user's watch
+         * @param rating The new rating
+         * @return the watch with the rating
+         */
+        Watch rated(Watch watch, int rating) {
+            ratingSum += rating - (watch.rating == null ? 0 : watch.rating);
+            if(watch.rating == null)
+                ratings++;
+
+            day(watch, -1);
+            Watch rated = new Watch(rating, watch.timesPlayed, watch.lastWatched);
+            day(rated, 1);
+            return rated;
+        }
+
+        /**
+         * Add a watch to, or with a sign of -1 take it from, the totals of its day
+         */
+        private void day(Watch watch, int sign) {
+            long[] totals = days.computeIfAbsent(watch.day(), day -> new long[4]);
+            totals[0] += sign;
+            totals[1] += sign * (long) watch.timesPlayed;
+            totals[2] += sign * (long) (watch.rating == null ? 0 : watch.rating);
+            totals[3] += watch.rating == null ? 0 : sign;
+        }
+    }
+
+    /**
+     * Constructor for MovieStats. Reconciles every shard each interval.
+     * @param config Application configuration containing the movieStats block
+     * @param dataSource DataSource whose shards each keep their own totals
+     * @param metrics Registry that the number of corrected totals is exported through
+     */
+    @Inject
+    public MovieStats(Config config, DataSource dataSource, Metrics metrics) {
+        this.dataSource = dataSource;
+        this.chunkSize = config.getInt("movieStats.chunkSize");
+        this.logger = LoggerFactory.getLogger(this.getClass());
+
+        metrics.registerGauge("movie_stats_corrections", "Movie totals found to differ from Watches and corrected", corrections::sum);
+        metrics.registerGauge("movie_stats_daily_corrections", "Per day movie totals found to differ from Watches and corrected", dailyCorrections::sum);
+
+        long intervalMillis = config.getDuration("movieStats.reconcileInterval").toMillis();
+        this.reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "movie-stats-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(this::reconcile, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Be told when the totals of a movie were corrected
+     * @param listener Called with the movie's id on the reconciler thread
+     */
+    public void onCorrected(IntConsumer listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Add the changes made by a batch of plays and ratings, in the transaction that wrote
+     * them to Watches. Rows are locked in MovieID order, as the reconciler locks them, so
+     * concurrent batches and reconciles cannot deadlock, and a movie's per day totals only
+     * after its totals.
+     * @param conn Connection on the shard the watches were written to
+     * @param changes Change of each movie's totals
+     * @throws SQLException if the totals cannot be updated
+     */
+    static void add(Connection conn, Collection<Change> changes) throws SQLException {
+        if(changes.isEmpty())
+            return;
+
+        List<Integer> movieIDs = new ArrayList<>();
+        List<Integer> watchers = new ArrayList<>();
+        List<Integer> plays = new ArrayList<>();
+        List<Long> ratingSums = new ArrayList<>();
+        List<Integer> ratings = new ArrayList<>();
+        List<Timestamp> lastWatched = new ArrayList<>();
+        for(Change change : changes) {
+            movieIDs.add(change.movieID);
+            watchers.add(change.watchers);
+            plays.add(change.plays);
+            ratingSums.add(change.ratingSum);
+            ratings.add(change.ratings);
+            lastWatched.add(change.lastWatched == 0 ? null : new Timestamp(change.lastWatched));
+        }
+
+        PreparedStatement statement = conn.prepareStatement(
+                "INSERT INTO MovieStats (MovieID, Watchers, Plays, RatingSum, Ratings, LastWatched) "+
+                "SELECT * FROM unnest(?, ?, ?, ?, ?, ?) ORDER BY 1 "+ADD_CHANGES+";");
+        statement.setArray(1, conn.createArrayOf("integer", movieIDs.toArray()));
+        statement.setArray(2, conn.createArrayOf("integer", watchers.toArray()));
+        statement.setArray(3, conn.createArrayOf("integer", plays.toArray()));
+        statement.setArray(4, conn.createArrayOf("bigint", ratingSums.toArray()));
+        statement.setArray(5, conn.createArrayOf("integer", ratings.toArray()));
+        statement.setArray(6, conn.createArrayOf("timestamp", lastWatched.toArray()));
+        statement.executeUpdate();
+        statement.close();
+
+        List<Integer> dayMovieIDs = new ArrayList<>();
+        List<Date> days = new ArrayList<>();
+        List<Long> dayWatchers = new ArrayList<>();
+        List<Long> dayPlays = new ArrayList<>();
+        List<Long> dayRatingSums = new ArrayList<>();
+        List<Long> dayRatings = new ArrayList<>();
+        for(Change change : changes) {
+            for(Map.Entry<LocalDate, long[]> day : change.days.entrySet()) {
+                long[] totals = day.getValue();
+                if(totals[0] == 0 && totals[1] == 0 && totals[2] == 0 && totals[3] == 0)
+                    continue;
+                dayMovieIDs.add(change.movieID);
+                days.add(Date.valueOf(day.getKey()));
+                dayWatchers.add(totals[0]);
+                dayPlays.add(totals[1]);
+                dayRatingSums.add(totals[2]);
+                dayRatings.add(totals[3]);
+            }
+        }
+        if(dayMovieIDs.isEmpty())
+            return;
+
+        statement = conn.prepareStatement(
+                "INSERT INTO MovieStatsDaily (MovieID, LastWatchedOn, Watchers, Plays, RatingSum, Ratings) "+
+                "SELECT * FROM unnest(?, ?, ?, ?, ?, ?) ORDER BY 1, 2 "+
+                "ON CONFLICT (MovieID, LastWatchedOn) DO UPDATE SET Watchers = MovieStatsDaily.Watchers + EXCLUDED.Watchers, "+
+                "Plays = MovieStatsDaily.Plays + EXCLUDED.Plays, RatingSum = MovieStatsDaily.RatingSum + EXCLUDED.RatingSum, "+
+                "Ratings = MovieStatsDaily.Ratings + EXCLUDED.Ratings;");
+        statement.setArray(1, conn.createArrayOf("integer", dayMovieIDs.toArray()));
+        statement.setArray(2, conn.createArrayOf("date", days.toArray()));
+        statement.setArray(3, conn.createArrayOf("bigint", dayWatchers.toArray()));
+        statement.setArray(4, conn.createArrayOf("bigint", dayPlays.toArray()));
+        statement.setArray(5, conn.createArrayOf("bigint", dayRatingSums.toArray()));
+        statement.setArray(6, conn.createArrayOf("bigint", dayRatings.toArray()));
+        statement.executeUpdate();
+        statement.close();
+    }
+
+    /**
+     * Compare the totals of every shard with Watches
+     */
+    private void reconcile() {
+        for(DataSource shard : dataSource.getShards())
+            reconcile(shard);
+    }
+
+    /**
+     * Compare the totals of a shard with Watches a chunk of movies at a time, stopping at the
+     * first chunk that fails
+     */
+    private void reconcile(DataSource shard) {
+        long[] range = shard.withConnection("MovieStats.reconcile", conn -> {
+            Statement statement = conn.createStatement();
+            ResultSet results = statement.executeQuery("SELECT MIN(MovieID) AS First, MAX(MovieID) AS Last FROM Movies;");
+            results.next();
+            long[] result = {results.getLong("First"), results.getLong("Last")};
+
+            results.close();
+            statement.close();
+
+            return result;
+        });
+        if(range == null)
+            return;
+
+        long started = System.nanoTime();
+        int corrected = 0;
+        for(long from = range[0]; from <= range[1]; from += chunkSize) {
+            long first = from;
+            long last = Math.min(from + chunkSize - 1, range[1]);
+            List<Integer> chunk = shard.withConnection("MovieStats.reconcile", conn -> reconcile(conn, first, last));
+            if(chunk == null) {
+                logger.error("Unable to reconcile movie totals from MovieID "+first);
+                return;
+            }
+
+            corrected += chunk.size();
+            for(int movieID : chunk)
+                for(IntConsumer listener : listeners)
+                    listener.accept(movieID);
+        }
+
+        corrections.add(corrected);
+        logger.info("Reconciled movie totals in "+(System.nanoTime() - started) / 1_000_000+" ms, "+corrected+" corrected");
+    }
+
+    /**
+     * Recompute the totals of a range of movies from Watches and correct those that differ.
+     * The totals are locked first, so a batch of watches that is still being written adds
+     * its changes after the recomputed totals instead of being overwritten by them.
+     * @return the ids of the movies whose totals were corrected
+     */
+    private List<Integer> reconcile(Connection conn, long first, long last) throws SQLException {
+        PreparedStatement missing = conn.prepareStatement(
+                "INSERT INTO MovieStats (MovieID) SELECT MovieID FROM Movies WHERE MovieID BETWEEN ? AND ? ON CONFLICT DO NOTHING;");
+        missing.setLong(1, first);
+        missing.setLong(2, last);
+        missing.executeUpdate();
+        missing.close();
+
+        PreparedStatement lock = conn.prepareStatement("SELECT MovieID FROM MovieStats WHERE MovieID BETWEEN ? AND ? ORDER BY MovieID FOR UPDATE;");
+        lock.setLong(1, first);
+        lock.setLong(2, last);
+        lock.executeQuery().close();
+        lock.close();
+
+        PreparedStatement correct = conn.prepareStatement(
+                "UPDATE MovieStats AS MS SET Watchers = A.Watchers, Plays = A.Plays, RatingSum = A.RatingSum, "+
+                "Ratings = A.Ratings, LastWatched = A.LastWatched "+
+                "FROM (SELECT S.MovieID, COUNT(W.UserID) AS Watchers, COALESCE(SUM(W.TimesPlayed), 0) AS Plays, "+
+                "COALESCE(SUM(W.Rating), 0) AS RatingSum, COUNT(W.Rating) AS Ratings, MAX(W.LastWatched) AS LastWatched "+
+                "FROM MovieStats AS S LEFT JOIN Watches AS W ON W.MovieID = S.MovieID "+
+                "WHERE S.MovieID BETWEEN ? AND ? GROUP BY S.MovieID) AS A "+
+                "WHERE MS.MovieID = A.MovieID AND (MS.Watchers, MS.Plays, MS.RatingSum, MS.Ratings, MS.LastWatched) "+
+                "IS DISTINCT FROM (A.Watchers, A.Plays, A.RatingSum, A.Ratings, A.LastWatched) "+
+                "RETURNING MS.MovieID;");
+        correct.setLong(1, first);
+        correct.setLong(2, last);
+        List<Integer> corrected = MovieManager.readMovieIDs(correct.executeQuery(), Integer.MAX_VALUE);
+        correct.close();
+
+        PreparedStatement correctDays = conn.prepareStatement(
+                "INSERT INTO MovieStatsDaily (MovieID, LastWatchedOn, Watchers, Plays, RatingSum, Ratings) "+
+                "SELECT MovieID, CAST(LastWatched AS DATE), COUNT(*), SUM(TimesPlayed), COALESCE(SUM(Rating), 0), COUNT(Rating) "+
+                "FROM Watches WHERE MovieID BETWEEN ? AND ? GROUP BY MovieID, CAST(LastWatched AS DATE) "+
+                "ON CONFLICT (MovieID, LastWatchedOn) DO UPDATE SET Watchers = EXCLUDED.Watchers, Plays = EXCLUDED.Plays, "+
+                "RatingSum = EXCLUDED.RatingSum, Ratings = EXCLUDED.Ratings "+
+                "WHERE (MovieStatsDaily.Watchers, MovieStatsDaily.Plays, MovieStatsDaily.RatingSum, MovieStatsDaily.Ratings) "+
+                "IS DISTINCT FROM (EXCLUDED.Watchers, EXCLUDED.Plays, EXCLUDED.RatingSum, EXCLUDED.Ratings);");
+        correctDays.setLong(1, first);
+        correctDays.setLong(2, last);
+        int correctedDays = correctDays.executeUpdate();
+        correctDays.close();
+
+        // Days no watch is last played on any more, emptied as their watches were played again
+        // or drifted, only the latter being a correction
+        PreparedStatement emptyDays = conn.prepareStatement(
+                "DELETE FROM MovieStatsDaily AS D WHERE MovieID BETWEEN ? AND ? AND NOT EXISTS "+
+                "(SELECT 1 FROM Watches AS W WHERE W.MovieID = D.MovieID AND W.LastWatched >= D.LastWatchedOn AND W.LastWatched < D.LastWatchedOn + 1) "+
+                "RETURNING (Watchers, Plays, RatingSum, Ratings) <> (0, 0, 0, 0) AS Drifted;");
+        emptyDays.setLong(1, first);
+        emptyDays.setLong(2, last);
+        ResultSet results = emptyDays.executeQuery();
+        while(results.next()) {
+            if(results.getBoolean("Drifted"))
+                correctedDays++;
+        }
+        results.close();
+        emptyDays.close();
+        dailyCorrections.add(correctedDays);
+
+        return corrected;
+    }
+
+    /**
+     * Stop reconciling
+     */
+    public void close() {
+        reconciler.shutdownNow();
+    }
+}
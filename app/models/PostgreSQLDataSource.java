@@ -2,32 +2,108 @@ package models;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import util.Cancellation;
+import util.CircuitBreaker;
+import util.Metrics;
+import util.Trace;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigUtil;
 import javax.inject.Inject;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Class for creating connections to a PostgreSQL server
+ * Class for creating connections to a PostgreSQL server. Calls fail fast without trying to
+ * connect while a circuit breaker is open, which happens after several consecutive calls
+ * could not reach the server. Every call runs under the statement timeout configured for
+ * its query name, and the statements of a call started through Trace.supplyAsync are
+ * cancelled if its future is completed first. Connections made directly rather than through
+ * the tunnel are pooled, at most db_pool.maxSize per database.
  * @author Yaqim Auguste (yaa6681@rit.edu)
  */
 public class PostgreSQLDataSource implements DataSource{
+    private static final String EXPLAIN_QUERY = "SlowQueryLog.explain";
+
     private final Config config;
     private final Logger logger;
+    private final Metrics metrics;
+    private final SlowQueryLog slowQueryLog;
+    private final boolean tunnel;
+    private final CircuitBreaker breaker;
+    private final Duration defaultTimeout;
+    private final Map<String, Duration> timeouts = new HashMap<>();
+    private final boolean hedge;
+    private final double hedgePercentile;
+    private final long hedgeMinDelay;
+    private final long hedgeMinSamples;
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final ConnectionPool pool;
     private Session session;
     private Connection conn;
     private static Object lock = new Object();
 
     /**
      * Constructor for PostgreSQLDataSource.
-     * @param config Configuration class containing configurations for SSH tunnel and PostgreSQL database.
+     * @param config Configuration class containing configurations for SSH tunnel, PostgreSQL database and circuit breaker.
+     * @param metrics Registry that query timings are recorded in.
+     * @param slowQueryLog Log that queries over the slow query threshold are recorded in.
      */
     @Inject
-    PostgreSQLDataSource(Config config) {
-        this.config = config.getConfig("db_config");
+    PostgreSQLDataSource(Config config, Metrics metrics, SlowQueryLog slowQueryLog) {
+        this(config, config.getConfig("db_config"), null, metrics, slowQueryLog);
+    }
+
+    /**
+     * Constructor for a PostgreSQLDataSource connecting to one of several databases, such as
+     * a read replica or a shard.
+     * @param config Configuration class containing configurations for queries and the circuit breaker.
+     * @param database Connection settings in the format of the db_config block.
+     * @param label Distinguishes the gauges of this database, e.g. "replica1:5432", or null for the primary.
+     * @param metrics Registry that query timings are recorded in.
+     * @param slowQueryLog Log that queries over the slow query threshold are recorded in.
+     */
+    PostgreSQLDataSource(Config config, Config database, String label, Metrics metrics, SlowQueryLog slowQueryLog) {
+        this.config = database;
+        this.tunnel = this.config.getBoolean("tunnel");
+        this.breaker = new CircuitBreaker(config.getInt("resilience.breaker.failures"), config.getDuration("resilience.breaker.openFor"));
+        this.defaultTimeout = config.getDuration("queries.timeout");
+        Config byName = config.getConfig("queries.timeouts");
+        for(String name : byName.root().keySet())
+            timeouts.put(name, byName.getDuration(ConfigUtil.quoteString(name)));
+        // Through the tunnel calls take turns on one connection, so a second attempt would only queue
+        this.hedge = config.getBoolean("queries.hedge.enabled") && !tunnel;
+        this.hedgePercentile = config.getDouble("queries.hedge.percentile");
+        this.hedgeMinDelay = config.getDuration("queries.hedge.minDelay").toNanos();
+        this.hedgeMinSamples = config.getLong("queries.hedge.minSamples");
         this.logger = LoggerFactory.getLogger(this.getClass());
+        this.metrics = metrics;
+        this.slowQueryLog = slowQueryLog;
+        this.pool = tunnel ? null : new ConnectionPool(() -> openDirect(defaultTimeout), config.getInt("db_pool.maxSize"),
+                                                       config.getDuration("db_pool.idleTimeout"));
+
+        String labels = label == null ? "" : "{database=\""+label+"\"}";
+        metrics.registerGauge("db_circuit_open"+labels, "Whether calls to the database are failing fast",
+                () -> breaker.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+        metrics.registerGauge("db_circuit_rejected"+labels, "Calls failed fast while the circuit breaker was open", breaker::getRejected);
+        metrics.registerGauge("db_hedged_reads"+labels, "Reads started again on a second connection after running past their percentile", hedged::sum);
+        metrics.registerGauge("db_cancelled_calls"+labels, "Calls whose statements were cancelled because their result was no longer wanted", cancelled::sum);
     }
 
     /**
@@ -38,62 +114,411 @@ public class PostgreSQLDataSource implements DataSource{
      */
     @Override
     public <T> T withConnection(DataSourceCallable<T> callable) {
+        return withConnection("unnamed", callable);
+    }
+
+    /**
+     * Connect to the external database and execute some code provided with a connection,
+     * recording how long the connection took to acquire, how long the callback ran and how
+     * many rows it touched.
+     * @param name Name the query is reported under.
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value that the calling class expects.
+     * @return any value of type T that the calling class expects.
+     */
+    @Override
+    public <T> T withConnection(String name, DataSourceCallable<T> callable) {
+        long requested = System.nanoTime();
+
+        if(!tunnel)
+            return execute(name, callable, requested);
+
+        // Don't queue behind the tunnel lock for a call that will be rejected
+        if(!breaker.isAvailable())
+            return reject(name);
+
         synchronized (lock) {
-            String username = config.getString("username");
-            String password = config.getString("password");
-            String host = config.getString("host");
-            int lport = config.getInt("lport");
-            int rport = config.getInt("rport");
-            String databaseName = config.getString("database");
-            String driver = config.getString("driver");
-            T result = null;
+            return execute(name, callable, requested);
+        }
+    }
 
-            try {
-                JSch jsch = new JSch();
-                session = jsch.getSession(username, host, 22);
-                session.setPassword(password);
-                session.setConfig("StrictHostKeyChecking", "no");
-                session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
-                session.connect();
+    /**
+     * Run a read asynchronously, giving up on it once its timeout has passed. In direct mode
+     * a read still running after the given percentile of its past latencies is started again
+     * on a second connection; the first to answer wins and the other is cancelled.
+     * @param name Name the query is reported under.
+     * @param callable Callback function that only reads.
+     * @param <T> Any value that the calling class expects.
+     * @return A completion stage containing the value, or null if the read failed or timed out
+     */
+    @Override
+    public <T> CompletionStage<T> read(String name, DataSourceCallable<T> callable) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Executor executor = Trace.executor();
+        AtomicInteger running = new AtomicInteger(1);
 
-                logger.info("Tunnel Connected...");
+        CompletableFuture<T> first = attempt(name, callable, executor, result, running);
+        result.completeOnTimeout(null, timeout(name).toNanos(), TimeUnit.NANOSECONDS);
+        result.whenComplete((value, error) -> first.cancel(false));
 
-                int assigned_port = session.setPortForwardingL(lport, "localhost", rport);
+        Metrics.QueryStats stats = metrics.query(name);
+        if(hedge && stats.getLatency().getCount() >= hedgeMinSamples) {
+            long delay = Math.max(hedgeMinDelay, stats.getLatency().percentileNanos(hedgePercentile));
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+                // A hedge waiting for a pooled connection would only add to the wait
+                if(result.isDone() || !breaker.isAvailable() || !pool.hasFree())
+                    return;
 
-                logger.info("Port Forwarded...");
+                hedged.increment();
+                running.incrementAndGet();
+                CompletableFuture<T> second = attempt(name, callable, executor, result, running);
+                result.whenComplete((value, error) -> second.cancel(false));
+            });
+        }
 
-                String url = "jdbc:postgresql://localhost:" + assigned_port + "/" + databaseName;
+        return result;
+    }
 
-                Class.forName(driver);
-                conn = DriverManager.getConnection(url, username, password);
+    /**
+     * Start one attempt of a read, completing the result with its value, or with null once
+     * every attempt has failed
+     */
+    private <T> CompletableFuture<T> attempt(String name, DataSourceCallable<T> callable, Executor executor,
+                                             CompletableFuture<T> result, AtomicInteger running) {
+        CompletableFuture<T> attempt = Trace.supplyAsync(() -> withConnection(name, callable), executor);
+        attempt.whenComplete((value, error) -> {
+            if(value != null)
+                result.complete(value);
+            else if(running.decrementAndGet() == 0)
+                result.complete(null);
+        });
+        return attempt;
+    }
 
-                logger.info("Database Connected Successfully!");
+    /**
+     * Longest a call may run under a query name
+     */
+    private Duration timeout(String name) {
+        return timeouts.getOrDefault(name, defaultTimeout);
+    }
 
-                conn.setAutoCommit(false);
-                result = callable.call(conn);
-                conn.commit();
-            } catch (Exception e) {
-                logger.error(e.toString());
-            } finally {
-                close();
+    /**
+     * Open a connection, run the callback in a transaction and record its timings.
+     * @param name Name the query is reported under.
+     * @param callable Callback function that executes code with a connection.
+     * @param requested System.nanoTime() when the connection was requested.
+     * @param <T> Any value that the calling class expects.
+     * @return any value of type T that the calling class expects.
+     */
+    private <T> T execute(String name, DataSourceCallable<T> callable, long requested) {
+        Cancellation cancellation = Cancellation.current();
+        if(cancellation != null && cancellation.isCancelled())
+            return null;
+
+        if(!breaker.allow())
+            return reject(name);
+
+        T result = null;
+        long acquired = 0;
+        long finished = 0;
+        Connection connection = null;
+        InstrumentedConnection instrumented = null;
+        boolean failed = true;
+        boolean connected = false;
+        boolean unreachable = false;
+        Runnable cancel = null;
+        // Enforced by the server even if the client stops waiting, and by the driver if the server stops answering
+        Duration timeout = timeout(name);
+        boolean timed = !tunnel && !timeout.equals(defaultTimeout);
+
+        try {
+            connection = tunnel ? openTunnel(timeout) : pool.take(timeout);
+            connected = true;
+            connection.setAutoCommit(false);
+            // Pooled connections are opened with the default statement timeout
+            if(timed)
+                setStatementTimeout(connection, "SET statement_timeout = "+timeout.toMillis()+";");
+            instrumented = InstrumentedConnection.wrap(connection, (int) Math.max(1, (timeout.toMillis() + 999) / 1000));
+
+            if(cancellation != null) {
+                InstrumentedConnection running = instrumented;
+                cancel = () -> {
+                    cancelled.increment();
+                    running.cancel();
+                };
+                if(!cancellation.onCancel(cancel))
+                    throw new SQLException("Cancelled before it started", "57014");
             }
 
-            return result;
+            acquired = System.nanoTime();
+            result = callable.call(instrumented.getConnection());
+            connection.commit();
+            failed = false;
+        } catch (Exception e) {
+            // Nobody is waiting for a cancelled call, so its failure is expected
+            if(cancellation != null && cancellation.isCancelled())
+                logger.debug(name+" cancelled: "+e);
+            else
+                logger.error(name+": "+e);
+            // Errors from a working connection, e.g. constraint violations or cancellations, don't count
+            unreachable = (!connected && !exhausted(e)) || lostConnection(e);
+        } finally {
+            if(cancel != null)
+                cancellation.remove(cancel);
+            finished = System.nanoTime();
+            if(tunnel)
+                close();
+            else if(connection != null)
+                // A cancel already under way could stop the statements of the connection's next call
+                release(connection, !unreachable && !(cancellation != null && cancellation.isCancelled()), timed);
+        }
+
+        if(unreachable)
+            breaker.failure();
+        else
+            breaker.success();
+
+        if(acquired == 0)
+            acquired = finished;
+        metrics.recordQuery(name, acquired - requested, finished - acquired,
+                instrumented == null ? 0 : instrumented.getRows(), failed);
+        Trace.record("acquire", requested, acquired);
+        Trace.record(name, acquired, finished);
+
+        if(instrumented != null && slowQueryLog.isSlow(finished - acquired) && !name.equals(EXPLAIN_QUERY))
+            logSlowQuery(name, finished - acquired, instrumented);
+
+        return result;
+    }
+
+    /**
+     * Open a connection of its own for a session that stays open. Through the tunnel calls
+     * take turns on one connection, so none can be held open there.
+     * @return the connection, or null when connecting through the tunnel
+     * @throws SQLException if the connection cannot be opened
+     */
+    @Override
+    public Connection openSession() throws SQLException {
+        if(tunnel)
+            return null;
+
+        try {
+            Connection connection = openDirect(Duration.ZERO);
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Whether the database is believed reachable
+     */
+    @Override
+    public boolean isAvailable() {
+        return breaker.isAvailable();
+    }
+
+    /**
+     * Whether the last call could not reach the database
+     */
+    @Override
+    public boolean isFailing() {
+        return breaker.isFailing();
+    }
+
+    /**
+     * Fail a call without connecting while the circuit breaker is open
+     * @param name Name the query is reported under.
+     * @return null, like any failed call
+     */
+    private <T> T reject(String name) {
+        metrics.recordQuery(name, 0, 0, 0, true);
+        return null;
+    }
+
+    /**
+     * Whether an exception means no pooled connection was free, which the server being
+     * busy rather than unreachable causes
+     */
+    private static boolean exhausted(Exception e) {
+        return e instanceof SQLException && ConnectionPool.EXHAUSTED.equals(((SQLException) e).getSQLState());
+    }
+
+    /**
+     * Whether an exception means the connection to the server was lost, as opposed to an
+     * error in the statement
+     */
+    private static boolean lostConnection(Exception e) {
+        String state = e instanceof SQLException ? ((SQLException) e).getSQLState() : null;
+        return state != null && (state.startsWith("08") || state.startsWith("57P"));
+    }
+
+    /**
+     * Open the SSH tunnel and a connection through it. Only one tunnel can be open at a
+     * time, so callers must hold the lock.
+     * @param timeout The connection's statement timeout
+     * @return the connection
+     * @throws Exception if the tunnel or the connection cannot be opened
+     */
+    private Connection openTunnel(Duration timeout) throws Exception {
+        String username = config.getString("username");
+        String password = config.getString("password");
+        String host = config.getString("host");
+        int lport = config.getInt("lport");
+        int rport = config.getInt("rport");
+        String databaseName = config.getString("database");
+        String driver = config.getString("driver");
+
+        JSch jsch = new JSch();
+        session = jsch.getSession(username, host, 22);
+        session.setPassword(password);
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
+        session.connect();
+
+        logger.info("Tunnel Connected...");
+
+        int assigned_port = session.setPortForwardingL(lport, "localhost", rport);
+
+        logger.info("Port Forwarded...");
+
+        String url = "jdbc:postgresql://localhost:" + assigned_port + "/" + databaseName;
+
+        Class.forName(driver);
+        conn = DriverManager.getConnection(url, properties(timeout));
+
+        logger.info("Database Connected Successfully!");
+
+        return conn;
+    }
+
+    /**
+     * Open a connection straight to the database, for servers reachable without a tunnel
+     * such as a local database.
+     * @param timeout The connection's statement timeout
+     * @return the connection
+     * @throws Exception if the connection cannot be opened
+     */
+    private Connection openDirect(Duration timeout) throws Exception {
+        Class.forName(config.getString("driver"));
+        String url = "jdbc:postgresql://" + config.getString("host") + ":" + config.getInt("rport") + "/" + config.getString("database");
+        return DriverManager.getConnection(url, properties(timeout));
+    }
+
+    /**
+     * Connection properties, setting statement_timeout as part of the startup message so it
+     * costs no extra round trip
+     * @param timeout The connection's statement timeout
+     */
+    private Properties properties(Duration timeout) {
+        Properties properties = new Properties();
+        properties.setProperty("user", config.getString("username"));
+        properties.setProperty("password", config.getString("password"));
+        properties.setProperty("options", "-c statement_timeout=" + timeout.toMillis());
+        return properties;
+    }
+
+    /**
+     * Change the statement timeout of a connection for the rest of its session
+     * @param connection The connection
+     * @param sql The SET or RESET statement
+     * @throws SQLException if the statement fails
+     */
+    private static void setStatementTimeout(Connection connection, String sql) throws SQLException {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute(sql);
         }
     }
 
+    /**
+     * Give a connection back to the pool outside of a transaction and with the default
+     * statement timeout, or have it closed if that cannot be restored
+     * @param connection The connection, taken from the pool
+     * @param reusable Whether the connection may be lent again
+     * @param timed Whether its statement timeout was changed for the call
+     */
+    private void release(Connection connection, boolean reusable, boolean timed) {
+        if(reusable) {
+            try {
+                // Ends the transaction of a failed call; does nothing after a commit
+                connection.rollback();
+                if(timed) {
+                    setStatementTimeout(connection, "RESET statement_timeout;");
+                    connection.commit();
+                }
+            } catch (SQLException e) {
+                logger.error(e.toString());
+                reusable = false;
+            }
+        }
+        pool.release(connection, reusable);
+    }
+
+    /**
+     * Record a slow query, and for a sample of them capture the plan of its slowest
+     * statement once the current connection has been released.
+     * @param name The query name
+     * @param nanos Time spent executing the query
+     * @param instrumented The connection the query ran on
+     */
+    private void logSlowQuery(String name, long nanos, InstrumentedConnection instrumented) {
+        SlowQueryLog.Entry entry = slowQueryLog.record(name, nanos, instrumented.getRows(), instrumented.getStatements());
+        SlowQueryLog.ExecutedStatement statement = SlowQueryLog.slowestReadOnly(instrumented.getStatements());
+
+        if(statement != null && slowQueryLog.startExplain())
+            CompletableFuture.runAsync(() -> slowQueryLog.finishExplain(entry, explain(statement)));
+    }
+
+    /**
+     * Run a statement again under EXPLAIN (ANALYZE, BUFFERS) on a separate connection
+     * @param statement The statement and the parameters it was executed with
+     * @return the plan, or null if it could not be captured
+     */
+    private String explain(SlowQueryLog.ExecutedStatement statement) {
+        return withConnection(EXPLAIN_QUERY, conn -> {
+            PreparedStatement explain = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + statement.getSql());
+
+            int index = 1;
+            for(Object param : statement.getParams()) {
+                if(param instanceof Object[]) {
+                    Object[] values = (Object[]) param;
+                    String type = values.length > 0 && values[0] instanceof String ? "text" : "integer";
+                    explain.setArray(index++, conn.createArrayOf(type, values));
+                }
+                else {
+                    explain.setObject(index++, param);
+                }
+            }
+
+            ResultSet rs = explain.executeQuery();
+            StringBuilder plan = new StringBuilder();
+            while(rs.next())
+                plan.append(rs.getString(1)).append('\n');
+            rs.close();
+            explain.close();
+
+            return plan.toString();
+        });
+    }
+
     /**
      * Close the SSH session and PostgresSQL database connection.
      */
     @Override
     public void close() {
+        if(pool != null)
+            pool.close();
+
         try {
             if (conn != null && !conn.isClosed()) {
-                System.out.println("Closing Database Connection");
+                logger.info("Closing Database Connection");
                 conn.close();
             }
             if (session != null && session.isConnected()) {
-                System.out.println("Closing SSH Connection");
+                logger.info("Closing SSH Connection");
                 session.disconnect();
             }
         }
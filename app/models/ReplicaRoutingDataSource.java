@@ -0,0 +1,345 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Metrics;
+import util.Trace;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Data source that sends reads to read replicas and everything else to the primary.
+ *
+ * How far each replica is behind is measured every pollInterval by comparing the WAL
+ * position it has replayed with positions the primary reported earlier: once a replica
+ * has replayed the position the primary was at when a sample was taken, it holds every
+ * write committed before that moment. A read goes to the least busy replica that is at
+ * most maxLag behind and has caught up with the last write of the signed in user, so users
+ * always see their own writes. Otherwise, or if the replica cannot be reached, it goes to
+ * the primary. Plays and ratings reach the database through the watch log rather than a
+ * request, so they are not tracked and become visible on replicas like other users' writes.
+ */
+@Singleton
+public class ReplicaRoutingDataSource implements DataSource {
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLag;
+    private final Map<Integer, Long> lastWrite = new ConcurrentHashMap<>();
+    private final Deque<long[]> samples = new ArrayDeque<>();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+    private final Logger logger;
+
+    /**
+     * A read replica and what is known about its lag
+     */
+    private static final class Replica {
+        final String label;
+        final DataSource source;
+        final AtomicInteger running = new AtomicInteger();
+        // System.nanoTime() of the latest primary sample the replica has replayed
+        volatile long caughtUpAt = Long.MIN_VALUE;
+
+        Replica(String label, DataSource source) {
+            this.label = label;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Constructor for ReplicaRoutingDataSource. Without replicas configured every call goes
+     * to the primary.
+     * @param config Application configuration containing the db_config and replicas blocks
+     * @param metrics Registry that query timings and replica lag are recorded in
+     * @param slowQueryLog Log that queries over the slow query threshold are recorded in
+     */
+    @Inject
+    public ReplicaRoutingDataSource(Config config, Metrics metrics, SlowQueryLog slowQueryLog) {
+        this(config, config.getConfig("db_config"), config.getConfigList("replicas.databases"), null, metrics, slowQueryLog);
+    }
+
+    /**
+     * Constructor for a ReplicaRoutingDataSource in front of one of several primaries, such
+     * as a shard.
+     * @param config Application configuration containing the replicas block
+     * @param database Connection settings of the primary in the format of the db_config block
+     * @param replicaSettings Settings each replica overrides
+     * @param label Distinguishes the gauges of this primary, e.g. "shard1:5432", or null
+     * @param metrics Registry that query timings and replica lag are recorded in
+     * @param slowQueryLog Log that queries over the slow query threshold are recorded in
+     */
+    ReplicaRoutingDataSource(Config config, Config database, List<? extends Config> replicaSettings, String label,
+                             Metrics metrics, SlowQueryLog slowQueryLog) {
+        this.primary = new PostgreSQLDataSource(config, database, label, metrics, slowQueryLog);
+        this.maxLag = config.getDuration("replicas.maxLag").toNanos();
+        this.logger = LoggerFactory.getLogger(this.getClass());
+
+        for(Config replica : replicaSettings) {
+            // Replicas are connected to directly, the tunnel only reaches the primary
+            Config settings = replica.withFallback(database).withValue("tunnel", ConfigValueFactory.fromAnyRef(false));
+            String replicaLabel = settings.getString("host")+":"+settings.getInt("rport");
+            Replica added = new Replica(replicaLabel, new PostgreSQLDataSource(config, settings, replicaLabel, metrics, slowQueryLog));
+            replicas.add(added);
+
+            metrics.registerGauge("db_replica_lag_ms{replica=\""+replicaLabel+"\"}", "How far a read replica is behind the primary, -1 until measured",
+                    () -> added.caughtUpAt == Long.MIN_VALUE ? -1 : (System.nanoTime() - added.caughtUpAt) / 1_000_000);
+        }
+        String labels = label == null ? "" : "database=\""+label+"\",";
+        metrics.registerGauge("db_routed_reads{"+labels+"target=\"replica\"}", "Reads by the database they were sent to", replicaReads::sum);
+        metrics.registerGauge("db_routed_reads{"+labels+"target=\"primary\"}", "Reads by the database they were sent to", primaryReads::sum);
+
+        if(replicas.isEmpty())
+            return;
+
+        long interval = config.getDuration("replicas.pollInterval").toMillis();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (Exception e) {
+                logger.error(e.toString());
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+        logger.info("Routing reads to "+replicas.size()+" replicas");
+    }
+
+    /**
+     * Execute a callback on the primary. If it wrote on behalf of the signed in user, that
+     * user's reads stay on the primary until a replica has replayed the write.
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value that the calling class expects.
+     * @return any value of type T that the calling class expects.
+     */
+    @Override
+    public <T> T withConnection(DataSourceCallable<T> callable) {
+        return withConnection("unnamed", callable);
+    }
+
+    /**
+     * Execute a callback on the primary, remembering when the signed in user last wrote.
+     * @param name Name the query is reported under.
+     * @param callable Callback function that executes code with a connection.
+     * @param <T> Any value that the calling class expects.
+     * @return any value of type T that the calling class expects.
+     */
+    @Override
+    public <T> T withConnection(String name, DataSourceCallable<T> callable) {
+        Integer userID = user();
+        if(userID == null || replicas.isEmpty())
+            return primary.withConnection(name, callable);
+
+        boolean[] wrote = new boolean[1];
+        T result = primary.withConnection(name, conn -> {
+            T value = callable.call(conn);
+            wrote[0] = InstrumentedConnection.wrote(conn);
+            return value;
+        });
+        // Taken after the commit, so a replica that caught up with a later sample has the write
+        if(wrote[0])
+            lastWrite.put(userID, System.nanoTime());
+
+        return result;
+    }
+
+    /**
+     * Execute a read on a replica that has the writes of the given users and the signed in
+     * user, or on the primary if none has.
+     * @param name Name the query is reported under.
+     * @param userIDs Users whose writes the read must see.
+     * @param callable Callback function that only reads.
+     * @param <T> Any value that the calling class expects.
+     * @return any value of type T that the calling class expects.
+     */
+    @Override
+    public <T> T withReadConnection(String name, Collection<Integer> userIDs, DataSourceCallable<T> callable) {
+        Replica replica = choose(userIDs);
+        if(replica != null) {
+            replicaReads.increment();
+            replica.running.incrementAndGet();
+            try {
+                T result = replica.source.withConnection(name, callable);
+                if(result != null || !replica.source.isFailing())
+                    return result;
+            } finally {
+                replica.running.decrementAndGet();
+            }
+            logger.info(name+": replica "+replica.label+" unreachable, reading from the primary");
+        }
+
+        primaryReads.increment();
+        return primary.withConnection(name, callable);
+    }
+
+    /**
+     * Run a read asynchronously on a replica that has the signed in user's writes, or on
+     * the primary if none has.
+     * @param name Name the query is reported under.
+     * @param callable Callback function that only reads.
+     * @param <T> Any value that the calling class expects.
+     * @return A completion stage containing the value, or null if the read failed
+     */
+    @Override
+    public <T> CompletionStage<T> read(String name, DataSourceCallable<T> callable) {
+        Replica replica = choose(List.of());
+        if(replica == null) {
+            primaryReads.increment();
+            return primary.read(name, callable);
+        }
+
+        replicaReads.increment();
+        replica.running.incrementAndGet();
+        Trace trace = Trace.current();
+        return replica.source.read(name, callable).whenComplete((value, error) -> replica.running.decrementAndGet()).thenCompose(result -> {
+            if(result != null || !replica.source.isFailing())
+                return CompletableFuture.completedFuture(result);
+
+            logger.info(name+": replica "+replica.label+" unreachable, reading from the primary");
+            primaryReads.increment();
+            Trace previous = Trace.set(trace);
+            try {
+                return primary.read(name, callable);
+            } finally {
+                Trace.set(previous);
+            }
+        });
+    }
+
+    /**
+     * Open a long-lived connection to the primary
+     */
+    @Override
+    public Connection openSession() throws SQLException {
+        return primary.openSession();
+    }
+
+    /**
+     * Whether the primary is believed reachable
+     */
+    @Override
+    public boolean isAvailable() {
+        return primary.isAvailable();
+    }
+
+    /**
+     * Whether the last call to the primary could not reach it
+     */
+    @Override
+    public boolean isFailing() {
+        return primary.isFailing();
+    }
+
+    /**
+     * Pick the least busy replica that is at most maxLag behind and has replayed the last
+     * writes of the given users and of the signed in user
+     * @param userIDs Users whose writes the read must see
+     * @return the replica, or null to read from the primary
+     */
+    private Replica choose(Collection<Integer> userIDs) {
+        if(replicas.isEmpty())
+            return null;
+
+        long needed = System.nanoTime() - maxLag;
+        Integer signedIn = user();
+        if(signedIn != null)
+            needed = Math.max(needed, lastWrite.getOrDefault(signedIn, Long.MIN_VALUE));
+        for(Integer userID : userIDs)
+            needed = Math.max(needed, lastWrite.getOrDefault(userID, Long.MIN_VALUE));
+
+        Replica chosen = null;
+        for(Replica replica : replicas) {
+            if(replica.caughtUpAt == Long.MIN_VALUE || replica.caughtUpAt - needed < 0 || !replica.source.isAvailable())
+                continue;
+            if(chosen == null || replica.running.get() < chosen.running.get())
+                chosen = replica;
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Sample the primary's WAL position, and advance each replica to the latest sample it
+     * has replayed
+     */
+    void poll() {
+        long sampled = System.nanoTime();
+        Long position = primary.withConnection("ReplicaRoutingDataSource.primaryPosition", conn -> position(conn, "pg_current_wal_insert_lsn()"));
+        if(position != null)
+            samples.addLast(new long[]{sampled, position});
+
+        for(Replica replica : replicas) {
+            Long replayed = replica.source.withConnection("ReplicaRoutingDataSource.replicaPosition", conn -> position(conn, "pg_last_wal_replay_lsn()"));
+            if(replayed == null)
+                continue;
+
+            for(long[] sample : samples) {
+                if(sample[1] <= replayed && (replica.caughtUpAt == Long.MIN_VALUE || sample[0] - replica.caughtUpAt > 0))
+                    replica.caughtUpAt = sample[0];
+            }
+        }
+
+        // A replica further behind than maxLag isn't read from, so older samples and writes don't matter
+        long oldest = System.nanoTime() - maxLag;
+        while(samples.size() > 1 && samples.peekFirst()[0] - oldest < 0)
+            samples.removeFirst();
+        lastWrite.values().removeIf(time -> time - oldest < 0);
+    }
+
+    /**
+     * Read a WAL position as a byte offset
+     * @param conn Connection to the server
+     * @param function The function returning the position, e.g. "pg_current_wal_insert_lsn()"
+     * @return the offset, or null if the server has none, e.g. a primary asked for its replay position
+     */
+    private static Long position(Connection conn, String function) throws SQLException {
+        Statement statement = conn.createStatement();
+        ResultSet results = statement.executeQuery(String.format("SELECT (%s - '0/0'::pg_lsn)::BIGINT", function));
+        Long position = results.next() ? (Long) results.getObject(1) : null;
+        results.close();
+        statement.close();
+
+        return position;
+    }
+
+    /**
+     * The signed in user of the request being handled, or null
+     */
+    private static Integer user() {
+        Trace trace = Trace.current();
+        return trace == null ? null : trace.getUserID();
+    }
+
+    /**
+     * Close the connections to the primary and the replicas
+     */
+    @Override
+    public void close() {
+        primary.close();
+        for(Replica replica : replicas)
+            replica.source.close();
+    }
+}
@@ -0,0 +1,316 @@
+package models;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Trace;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Durable queue of writes made while the database is unreachable. Instead of waiting for a
+ * connection that won't come, such a write is appended to a local file and acknowledged at
+ * once, then applied in order by a background task once the database is back. Writes made
+ * while earlier ones are still queued are queued behind them, even once the database is
+ * back, so an unfollow cannot run before the queued follow it undoes. Each write is
+ * identified by an operation name whose handler, registered by the manager that owns it,
+ * re-runs it from its arguments.
+ */
+@Singleton
+public class RetryQueue {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final DataSource dataSource;
+    private final Path path;
+    private final long intervalMillis;
+    private final int maxAttempts;
+    private final Map<String, Function<JsonNode, Object>> handlers = new ConcurrentHashMap<>();
+    private final Map<Long, Entry> pending = new LinkedHashMap<>();
+    private final Object draining = new Object();
+    private final Logger logger;
+    private long nextID;
+    private FileChannel file;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * A queued write
+     */
+    private static final class Entry {
+        final long id;
+        final String operation;
+        final JsonNode args;
+        final String line;
+        int attempts;
+
+        Entry(long id, String operation, JsonNode args, String line) {
+            this.id = id;
+            this.operation = operation;
+            this.args = args;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Constructor for RetryQueue. Writes left in the file by a previous run are applied once
+     * their handlers are registered.
+     * @param dataSource DataSource whose availability decides when writes are queued and applied
+     * @param config Application configuration containing the resilience.retry block
+     */
+    @Inject
+    public RetryQueue(DataSource dataSource, Config config) {
+        this.dataSource = dataSource;
+        this.path = Path.of(config.getString("resilience.retry.path"));
+        this.intervalMillis = config.getDuration("resilience.retry.interval").toMillis();
+        this.maxAttempts = config.getInt("resilience.retry.maxAttempts");
+        this.logger = LoggerFactory.getLogger(this.getClass());
+
+        load();
+        if(!pending.isEmpty()) {
+            logger.info(pending.size()+" queued writes waiting to be applied");
+            start();
+        }
+    }
+
+    /**
+     * Register how to apply a queued operation
+     * @param operation Operation name, usually the manager method, e.g. "MovieManager.playMovie"
+     * @param handler Runs the write from the arguments it was queued with and returns a
+     *                non-null value if it succeeded
+     */
+    public void register(String operation, Function<JsonNode, Object> handler) {
+        handlers.put(operation, handler);
+    }
+
+    /**
+     * Run a write, or queue it if the database is unreachable, earlier writes are still
+     * queued, or the database could not be reached while it ran
+     * @param operation Operation name of a registered handler
+     * @param write Runs the write and returns a non-null value if it succeeded
+     * @param queued Value to complete with if the write was queued
+     * @param args Arguments for the handler, numbers or strings
+     * @param <T> Result type of the write
+     * @return A completion stage containing the result, queued if the write was queued, or
+     *         null if it failed and could not be queued
+     */
+    public <T> CompletionStage<T> write(String operation, Supplier<T> write, T queued, Object... args) {
+        if(!dataSource.isAvailable())
+            return CompletableFuture.completedFuture(enqueue(operation, args) ? queued : null);
+
+        synchronized (this) {
+            if(!pending.isEmpty()) {
+                boolean enqueued = enqueue(operation, args);
+                scheduler.execute(this::run);
+                return CompletableFuture.completedFuture(enqueued ? queued : null);
+            }
+        }
+
+        return Trace.supplyAsync(() -> {
+            T result = write.get();
+            if(result == null && dataSource.isFailing() && enqueue(operation, args))
+                return queued;
+            return result;
+        });
+    }
+
+    /**
+     * Number of writes waiting to be applied
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Append a write to the file and make sure it reached the disk
+     * @return true if the write was queued
+     */
+    synchronized boolean enqueue(String operation, Object... args) {
+        long id = ++nextID;
+        ObjectNode node = MAPPER.createObjectNode()
+                .put("id", id)
+                .put("op", operation)
+                .put("at", System.currentTimeMillis());
+        ArrayNode values = node.putArray("args");
+        for(Object arg : args)
+            values.addPOJO(arg);
+
+        String line = node.toString();
+        try {
+            if(file == null) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            file.write(ByteBuffer.wrap((line+"\n").getBytes(StandardCharsets.UTF_8)));
+            file.force(false);
+        } catch (IOException e) {
+            logger.error("Unable to queue "+operation+": "+e);
+            return false;
+        }
+
+        pending.put(id, new Entry(id, operation, values, line));
+        logger.info("Queued "+operation+", "+pending.size()+" writes waiting to be applied");
+        start();
+        return true;
+    }
+
+    /**
+     * Apply queued writes in order while the database is reachable. A write that fails while
+     * the database is up is retried on the next run, and dropped after maxAttempts runs.
+     * Runs one at a time, so a write is never applied twice.
+     */
+    void drain() {
+        synchronized (draining) {
+            drainPending();
+        }
+    }
+
+    private void drainPending() {
+        List<Entry> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(pending.values());
+        }
+        if(batch.isEmpty() || !dataSource.isAvailable())
+            return;
+
+        List<Entry> done = new ArrayList<>();
+        for(Entry entry : batch) {
+            Function<JsonNode, Object> handler = handlers.get(entry.operation);
+            if(handler == null)
+                continue;
+
+            Object result = null;
+            try {
+                result = handler.apply(entry.args);
+            } catch (Exception e) {
+                logger.error(e.toString());
+            }
+
+            if(result != null) {
+                done.add(entry);
+            }
+            else if(dataSource.isFailing()) {
+                break;
+            }
+            else if(++entry.attempts >= maxAttempts) {
+                logger.error("Dropping queued write after "+entry.attempts+" attempts: "+entry.line);
+                done.add(entry);
+            }
+            else {
+                break;
+            }
+        }
+
+        if(!done.isEmpty()) {
+            logger.info("Applied "+done.size()+" queued writes");
+            synchronized (this) {
+                for(Entry entry : done)
+                    pending.remove(entry.id);
+                rewrite();
+            }
+        }
+    }
+
+    /**
+     * Replace the file with the writes still pending
+     */
+    private void rewrite() {
+        Path temporary = path.resolveSibling(path.getFileName()+".tmp");
+        try {
+            if(file != null) {
+                file.close();
+                file = null;
+            }
+
+            try(BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for(Entry entry : pending.values()) {
+                    writer.write(entry.line);
+                    writer.write('\n');
+                }
+            }
+            try(FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                written.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Unable to rewrite "+path+": "+e);
+        }
+    }
+
+    /**
+     * Read writes left by a previous run
+     */
+    private void load() {
+        if(!Files.exists(path))
+            return;
+
+        try {
+            for(String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if(line.isBlank())
+                    continue;
+
+                try {
+                    JsonNode node = MAPPER.readTree(line);
+                    long id = node.get("id").asLong();
+                    pending.put(id, new Entry(id, node.get("op").asText(), node.get("args"), line));
+                    nextID = Math.max(nextID, id);
+                } catch (IOException e) {
+                    // A write cut short by a crash was never acknowledged
+                    logger.error("Skipping unreadable queued write: "+line);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read "+path+": "+e);
+        }
+    }
+
+    /**
+     * Start applying queued writes in the background, if not started yet
+     */
+    private synchronized void start() {
+        if(scheduler != null)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "retry-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::run, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply queued writes on the background task
+     */
+    private void run() {
+        try {
+            drain();
+        } catch (Exception e) {
+            logger.error(e.toString());
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Owns the database schema. Numbered scripts on the classpath, in Play's evolutions format
+ * (conf/evolutions/default/1.sql, 2.sql, ...), are applied in order, each recorded in the
+ * SchemaEvolutions table with a hash of what was run. Only the Ups sections are applied;
+ * Downs document how to revert a script by hand. A script that changed after it was applied
+ * stops the evolutions there, as reverting and reapplying it could lose data. Each script is
+ * applied in a transaction of its own holding an advisory lock, so nodes starting together
+ * apply it once. A script building indexes CONCURRENTLY, which writers are not blocked by,
+ * cannot run in a transaction: it is applied one statement at a time, so each must be safe
+ * to run again after a failure, and an index a failed build left invalid is dropped before
+ * it is built again.
+ */
+@Singleton
+public class SchemaEvolutions {
+    /**
+     * Key of the advisory lock held while applying evolutions
+     */
+    private static final long LOCK = 0x65766f6cL;
+
+    /**
+     * How long to wait before trying again for the lock
+     */
+    private static final long LOCK_RETRY_MILLIS = 100;
+
+    private static final Pattern CONCURRENT_INDEX =
+            Pattern.compile("(?i)^CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+CONCURRENTLY\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?(\\w+)");
+
+    private final List<Evolution> evolutions = new ArrayList<>();
+    private final boolean autoApply;
+    private final Logger logger;
+
+    /**
+     * A numbered script
+     */
+    static final class Evolution {
+        final int id;
+        final List<String> ups;
+        final String hash;
+        /**
+         * Names of the indexes the script builds concurrently, if it has to run outside a transaction
+         */
+        final List<String> concurrentIndexes = new ArrayList<>();
+
+        Evolution(int id, List<String> ups, String hash) {
+            this.id = id;
+            this.ups = ups;
+            this.hash = hash;
+
+            for(String sql : ups) {
+                Matcher matcher = CONCURRENT_INDEX.matcher(sql);
+                if(matcher.find())
+                    concurrentIndexes.add(matcher.group(1).toLowerCase());
+            }
+        }
+
+        boolean isConcurrent() {
+            return !concurrentIndexes.isEmpty();
+        }
+    }
+
+    /**
+     * Constructor for SchemaEvolutions
+     * @param config Application configuration containing the evolutions block
+     */
+    @Inject
+    public SchemaEvolutions(Config config) {
+        this(config.getString("evolutions.path"), config.getBoolean("evolutions.autoApply"));
+    }
+
+    /**
+     * Constructor for SchemaEvolutions
+     * @param path Classpath directory of the numbered scripts
+     * @param autoApply Whether apply(DataSource) applies missing scripts
+     */
+    public SchemaEvolutions(String path, boolean autoApply) {
+        this.autoApply = autoApply;
+        this.logger = LoggerFactory.getLogger(this.getClass());
+
+        for(int id = 1; ; id++) {
+            String script;
+            try(InputStream in = SchemaEvolutions.class.getResourceAsStream("/"+path+"/"+id+".sql")) {
+                if(in == null)
+                    break;
+                script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read evolution "+id, e);
+            }
+
+            String ups = ups(script);
+            evolutions.add(new Evolution(id, statements(ups), sha1(ups)));
+        }
+    }
+
+    /**
+     * The Ups section of a script, without its comment lines
+     */
+    private static String ups(String script) {
+        StringBuilder ups = new StringBuilder();
+        boolean inUps = false;
+
+        for(String line : script.split("\n")) {
+            String trimmed = line.trim();
+            if(trimmed.matches("#\\s*---\\s*!Ups.*"))
+                inUps = true;
+            else if(trimmed.matches("#\\s*---\\s*!Downs.*"))
+                inUps = false;
+            else if(inUps && !trimmed.startsWith("#") && !trimmed.startsWith("--"))
+                ups.append(line).append('\n');
+        }
+
+        return ups.toString();
+    }
+
+    /**
+     * Split a section into its statements, each ending with a semicolon at the end of a line
+     */
+    private static List<String> statements(String section) {
+        List<String> statements = new ArrayList<>();
+
+        for(String statement : section.split(";\\s*\n")) {
+            if(!statement.isBlank())
+                statements.add(statement.trim());
+        }
+
+        return statements;
+    }
+
+    private static String sha1(String text) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Every statement of every script in order, for creating a database that is never
+     * evolved further, like an in-memory stand-in
+     */
+    List<String> statements() {
+        List<String> statements = new ArrayList<>();
+        for(Evolution evolution : evolutions)
+            statements.addAll(evolution.ups);
+        return statements;
+    }
+
+    /**
+     * Apply the missing scripts to a database, unless autoApply is off
+     * @param dataSource The database
+     * @return false if a script could not be applied or an applied one has changed
+     */
+    boolean apply(DataSource dataSource) {
+        if(!autoApply)
+            return true;
+
+        Boolean applied = dataSource.withConnection("SchemaEvolutions.apply", this::apply);
+        if(applied == null)
+            logger.error("Unable to apply the schema evolutions");
+        return Boolean.TRUE.equals(applied);
+    }
+
+    /**
+     * Apply the missing scripts, committing each one
+     * @param conn Connection to the database, left not in autocommit mode
+     * @return false if an applied script has changed
+     * @throws SQLException if a script fails
+     */
+    public Boolean apply(Connection conn) throws SQLException {
+        conn.setAutoCommit(false);
+        try(Statement statement = conn.createStatement()) {
+            lock(conn, statement, "pg_try_advisory_xact_lock");
+            statement.execute("CREATE TABLE IF NOT EXISTS SchemaEvolutions (ID INT PRIMARY KEY, Hash VARCHAR(40) NOT NULL, "+
+                              "AppliedAt TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP);");
+        }
+        conn.commit();
+
+        for(Evolution evolution : evolutions) {
+            if(!(evolution.isConcurrent() ? applyConcurrently(conn, evolution) : applyInTransaction(conn, evolution))) {
+                logger.error("Evolution "+evolution.id+" changed since it was applied, later evolutions are not applied");
+                return Boolean.FALSE;
+            }
+        }
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Apply a script in a transaction, unless it was already
+     * @return false if it was applied and has changed since
+     */
+    private boolean applyInTransaction(Connection conn, Evolution evolution) throws SQLException {
+        try(Statement statement = conn.createStatement()) {
+            lock(conn, statement, "pg_try_advisory_xact_lock");
+            String hash = appliedHash(conn, evolution);
+            if(hash != null) {
+                conn.commit();
+                return hash.equals(evolution.hash);
+            }
+
+            logger.info("Applying evolution "+evolution.id);
+            for(String sql : evolution.ups)
+                statement.execute(sql);
+            record(conn, evolution);
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Apply a script one statement at a time outside of a transaction, unless it was already
+     * @return false if it was applied and has changed since
+     */
+    private boolean applyConcurrently(Connection conn, Evolution evolution) throws SQLException {
+        conn.setAutoCommit(true);
+        try(Statement statement = conn.createStatement()) {
+            lock(conn, statement, "pg_try_advisory_lock");
+            try {
+                String hash = appliedHash(conn, evolution);
+                if(hash != null)
+                    return hash.equals(evolution.hash);
+
+                logger.info("Applying evolution "+evolution.id+" concurrently");
+                for(String index : invalidIndexes(conn, evolution))
+                    statement.execute("DROP INDEX CONCURRENTLY IF EXISTS "+index+";");
+                for(String sql : evolution.ups)
+                    statement.execute(sql);
+                record(conn, evolution);
+                return true;
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock("+LOCK+");");
+            }
+        } finally {
+            conn.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * Take the advisory lock, trying again until it is free rather than waiting on it. A
+     * concurrent index build waits for every transaction that started before it to end, so
+     * one waiting on the lock the build holds would never be let through.
+     * @param function pg_try_advisory_xact_lock or pg_try_advisory_lock
+     */
+    private static void lock(Connection conn, Statement statement, String function) throws SQLException {
+        while(true) {
+            try(ResultSet results = statement.executeQuery("SELECT "+function+"("+LOCK+");")) {
+                results.next();
+                if(results.getBoolean(1))
+                    return;
+            }
+            if(!conn.getAutoCommit())
+                conn.rollback();
+
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting to apply the schema evolutions", e);
+            }
+        }
+    }
+
+    /**
+     * The hash a script was applied with, or null if it was not
+     */
+    private static String appliedHash(Connection conn, Evolution evolution) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("SELECT Hash FROM SchemaEvolutions WHERE ID = ?;")) {
+            statement.setInt(1, evolution.id);
+            try(ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString("Hash") : null;
+            }
+        }
+    }
+
+    private static void record(Connection conn, Evolution evolution) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("INSERT INTO SchemaEvolutions (ID, Hash) VALUES (?, ?);")) {
+            statement.setInt(1, evolution.id);
+            statement.setString(2, evolution.hash);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Indexes of a script left invalid by a concurrent build that failed, which would
+     * otherwise stay unused as they already exist
+     */
+    private static List<String> invalidIndexes(Connection conn, Evolution evolution) throws SQLException {
+        List<String> invalid = new ArrayList<>();
+        try(PreparedStatement statement = conn.prepareStatement("SELECT C.relname FROM pg_index AS I JOIN pg_class AS C "+
+                "ON C.oid = I.indexrelid WHERE NOT I.indisvalid AND C.relname = ANY(?);")) {
+            statement.setArray(1, conn.createArrayOf("text", evolution.concurrentIndexes.toArray()));
+            try(ResultSet results = statement.executeQuery()) {
+                while(results.next())
+                    invalid.add(results.getString(1));
+            }
+        }
+        return invalid;
+    }
+}
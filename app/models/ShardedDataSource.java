@@ -0,0 +1,279 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigValueFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Metrics;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Data source that splits Watches, Follows and Collections across several databases by a
+ * hash of the owning user's UserID. Every shard is evolved to the whole schema and holds a
+ * copy of the movie catalog, so a user's data can be joined with movies on the user's shard.
+ * The first shard, configured by db_config, holds the authoritative Users table and serves
+ * every query not routed to a shard; the others keep copies of the users for their foreign
+ * keys.
+ *
+ * Collection ids are drawn from a sequence that only hands out ids of its own shard, so a
+ * collection can be found from its id alone. Each shard is a ReplicaRoutingDataSource, so
+ * it may have read replicas of its own. Moving to a different number of shards requires
+ * moving the rows whose shard changes, which is not done here: the application refuses to
+ * start while any shard holds rows that belong on another.
+ */
+@Singleton
+public class ShardedDataSource implements DataSource {
+    private final List<DataSource> shards = new ArrayList<>();
+    private final DataSource home;
+    private final Logger logger;
+
+    /**
+     * Constructor for ShardedDataSource. Without shards configured everything goes to the
+     * db_config database.
+     * @param config Application configuration containing the db_config, replicas and shards blocks
+     * @param metrics Registry that query timings are recorded in
+     * @param slowQueryLog Log that queries over the slow query threshold are recorded in
+     * @param evolutions Schema scripts applied to every shard before it is used
+     */
+    @Inject
+    public ShardedDataSource(Config config, Metrics metrics, SlowQueryLog slowQueryLog, SchemaEvolutions evolutions) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        List<? extends Config> others = config.getConfigList("shards.databases");
+
+        if(others.isEmpty()) {
+            this.home = new ReplicaRoutingDataSource(config, metrics, slowQueryLog);
+            shards.add(home);
+            applyEvolutions(evolutions, home);
+            return;
+        }
+
+        // Shards are read from in parallel, sometimes while holding a connection, which the single tunnel can't do
+        if(config.getBoolean("db_config.tunnel"))
+            throw new ConfigException.BadValue("shards.databases", "sharding needs a direct connection, set db_config.tunnel = false");
+
+        Config database = config.getConfig("db_config");
+        this.home = new ReplicaRoutingDataSource(config, database, config.getConfigList("replicas.databases"), label(database), metrics, slowQueryLog);
+        shards.add(home);
+        for(Config shard : others) {
+            Config settings = shard.withoutPath("replicas").withFallback(database).withValue("tunnel", ConfigValueFactory.fromAnyRef(false));
+            List<? extends Config> replicas = shard.hasPath("replicas") ? shard.getConfigList("replicas") : Collections.emptyList();
+            shards.add(new ReplicaRoutingDataSource(config, settings, replicas, label(settings), metrics, slowQueryLog));
+        }
+
+        for(DataSource shard : shards)
+            applyEvolutions(evolutions, shard);
+        for(int shard = 0; shard < shards.size(); shard++)
+            checkPlacement(shard);
+        for(int shard = 0; shard < shards.size(); shard++)
+            alignCollectionIDs(shard);
+        logger.info("Splitting user data across "+shards.size()+" shards");
+    }
+
+    /**
+     * Refuse to start on a database whose schema could not be brought up to date, as the
+     * queries would fail against it
+     * @throws IllegalStateException if a script failed or an applied one has changed
+     */
+    private static void applyEvolutions(SchemaEvolutions evolutions, DataSource database) {
+        if(!evolutions.apply(database))
+            throw new IllegalStateException("The schema evolutions could not be applied, see the log for the failing script");
+    }
+
+    private static String label(Config database) {
+        return database.getString("host")+":"+database.getInt("rport");
+    }
+
+    /**
+     * Index of the shard holding a user's data. The id is mixed first so that users
+     * created one after the other are spread evenly whatever the number of shards.
+     * @param userID The user
+     * @param shards Number of shards
+     * @return the shard index
+     */
+    static int shardOf(int userID, int shards) {
+        int hash = userID;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, shards);
+    }
+
+    /**
+     * Refuse to start when a shard holds rows that belong on another one, as they would no
+     * longer be found, e.g. after shards were added to a database that was used on its own
+     * @param shard The shard's index
+     * @throws ConfigException.BadValue if the shard holds watches, follows or collections of
+     *         users or collection ids routed to another shard
+     */
+    private void checkPlacement(int shard) {
+        int count = shards.size();
+        int[] misplaced = shards.get(shard).withConnection("ShardedDataSource.checkPlacement", conn -> {
+            Statement statement = conn.createStatement();
+            ResultSet results = statement.executeQuery(
+                    "SELECT UserID FROM Watches UNION SELECT FollowerUserID FROM Follows UNION SELECT UserID FROM Collections;");
+            int users = 0;
+
+            while(results.next()) {
+                if(shardOf(results.getInt(1), count) != shard)
+                    users++;
+            }
+
+            results.close();
+
+            results = statement.executeQuery(String.format(
+                    "SELECT COUNT(*) FROM Collections WHERE MOD(CollectionID - 1, %d) <> %d;", count, shard));
+            results.next();
+            int collections = results.getInt(1);
+
+            results.close();
+            statement.close();
+
+            return new int[]{users, collections};
+        });
+
+        if(misplaced == null)
+            logger.error("Unable to check that shard "+shard+" only holds its own rows");
+        else if(misplaced[0] > 0 || misplaced[1] > 0)
+            throw new ConfigException.BadValue("shards.databases", String.format(
+                    "shard %d (%s) holds the data of %d users and %d collections that belong on other shards of %d; " +
+                    "existing rows are not moved between shards", shard, shard == 0 ? "db_config" : "shards.databases."+(shard-1),
+                    misplaced[0], misplaced[1], count));
+    }
+
+    /**
+     * Make the Collections sequence of a shard hand out only ids i with (i - 1) mod shards
+     * equal to the shard's index, above every id already used
+     * @param shard The shard's index
+     */
+    private void alignCollectionIDs(int shard) {
+        int count = shards.size();
+        Boolean aligned = shards.get(shard).withConnection("ShardedDataSource.alignCollectionIDs", conn -> {
+            Statement statement = conn.createStatement();
+            ResultSet results = statement.executeQuery(
+                    "SELECT pg_get_serial_sequence('collections', 'collectionid') AS Sequence, S.seqincrement AS Increment "+
+                    "FROM pg_sequence AS S WHERE S.seqrelid = pg_get_serial_sequence('collections', 'collectionid')::regclass;");
+            results.next();
+            String sequence = results.getString("Sequence");
+            long increment = results.getLong("Increment");
+            results.close();
+
+            if(increment != count) {
+                statement.execute("LOCK TABLE Collections IN EXCLUSIVE MODE;");
+                results = statement.executeQuery(String.format("SELECT GREATEST((SELECT last_value FROM %s), (SELECT COALESCE(MAX(CollectionID), 0) FROM Collections)) AS Used;", sequence));
+                results.next();
+                long used = results.getLong("Used");
+                results.close();
+
+                long next = used + 1 + Math.floorMod(shard + 1 - (used + 1), count);
+                statement.execute(String.format("ALTER SEQUENCE %s INCREMENT BY %d;", sequence, count));
+                statement.execute(String.format("SELECT setval('%s', %d, false);", sequence, next));
+                logger.info("Collection ids of shard "+shard+" start at "+next+" in steps of "+count);
+            }
+
+            statement.close();
+            return Boolean.TRUE;
+        });
+
+        if(aligned == null)
+            logger.error("Unable to align the collection ids of shard "+shard+", collections created on it may not be found");
+    }
+
+    /**
+     * The shards, the first of which holds Users and serves unrouted queries
+     */
+    @Override
+    public List<DataSource> getShards() {
+        return shards;
+    }
+
+    /**
+     * The shard holding a user's watches, follows and collections
+     */
+    @Override
+    public DataSource forUser(int userID) {
+        return shards.get(shardOf(userID, shards.size()));
+    }
+
+    /**
+     * The shard holding a collection, whose id was handed out by that shard's sequence
+     */
+    @Override
+    public DataSource forCollection(int collectionID) {
+        return shards.get(Math.floorMod(collectionID - 1, shards.size()));
+    }
+
+    @Override
+    public <T> T withConnection(DataSourceCallable<T> callable) {
+        return home.withConnection(callable);
+    }
+
+    @Override
+    public <T> T withConnection(String name, DataSourceCallable<T> callable) {
+        return home.withConnection(name, callable);
+    }
+
+    @Override
+    public <T> T withReadConnection(String name, Collection<Integer> userIDs, DataSourceCallable<T> callable) {
+        return home.withReadConnection(name, userIDs, callable);
+    }
+
+    @Override
+    public <T> CompletionStage<T> read(String name, DataSourceCallable<T> callable) {
+        return home.read(name, callable);
+    }
+
+    /**
+     * Open a long-lived connection to the first shard
+     */
+    @Override
+    public Connection openSession() throws SQLException {
+        return home.openSession();
+    }
+
+    /**
+     * Whether every shard is believed reachable
+     */
+    @Override
+    public boolean isAvailable() {
+        for(DataSource shard : shards) {
+            if(!shard.isAvailable())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the last call to any shard could not reach it
+     */
+    @Override
+    public boolean isFailing() {
+        for(DataSource shard : shards) {
+            if(shard.isFailing())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close the connections to every shard
+     */
+    @Override
+    public void close() {
+        for(DataSource shard : shards)
+            shard.close();
+    }
+}
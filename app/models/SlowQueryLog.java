@@ -0,0 +1,238 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded log of named queries that ran longer than the configured threshold, together
+ * with the statements they executed and, for a sample of them, the plan of the slowest
+ * statement. Unless redaction is turned off, literals and bound parameters are replaced with
+ * ? before a statement is logged or kept, and string literals are removed from plans, so
+ * passwords and other user data never reach the log or the admin page.
+ */
+@Singleton
+public class SlowQueryLog {
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.$])\\d+(?:\\.\\d+)?\\b");
+
+    private final Logger logger;
+    private final long thresholdNanos;
+    private final double explainRate;
+    private final int keep;
+    private final boolean redact;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final AtomicBoolean explaining = new AtomicBoolean();
+
+    /**
+     * A statement executed on a connection
+     */
+    public static final class ExecutedStatement {
+        private final String sql;
+        private final List<Object> params;
+        private final long nanos;
+
+        ExecutedStatement(String sql, List<Object> params, long nanos) {
+            this.sql = sql;
+            this.params = params;
+            this.nanos = nanos;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * Bound parameters of a prepared statement, arrays are kept as Object[]
+         */
+        public List<Object> getParams() {
+            return params;
+        }
+
+        /**
+         * Bound parameters in a readable form, e.g. "[3, {1,2,3}]"
+         */
+        public String getParamsText() {
+            List<String> text = new ArrayList<>(params.size());
+            for(Object param : params) {
+                if(param instanceof Object[])
+                    text.add(Arrays.toString((Object[]) param).replace('[', '{').replace(']', '}'));
+                else
+                    text.add(String.valueOf(param));
+            }
+            return text.toString();
+        }
+
+        public double getDurationMillis() {
+            return nanos / 1e6;
+        }
+
+        /**
+         * Whether the statement only reads, so running it again under EXPLAIN ANALYZE is harmless
+         */
+        /**
+         * The statement with its literals and parameters replaced with ?
+         */
+        ExecutedStatement redacted() {
+            String redacted = NUMBER_LITERAL.matcher(STRING_LITERAL.matcher(sql).replaceAll("?")).replaceAll("?");
+            return new ExecutedStatement(redacted, Collections.nCopies(params.size(), "?"), nanos);
+        }
+
+        boolean isReadOnly() {
+            String start = sql.stripLeading().toUpperCase();
+            return start.startsWith("SELECT") || (start.startsWith("WITH") && !start.contains("INSERT")
+                    && !start.contains("UPDATE") && !start.contains("DELETE"));
+        }
+
+        @Override
+        public String toString() {
+            return params.isEmpty() ? sql : sql+" "+getParamsText();
+        }
+    }
+
+    /**
+     * One slow execution of a named query
+     */
+    public static final class Entry {
+        private final String name;
+        private final long loggedAt;
+        private final long nanos;
+        private final long rows;
+        private final List<ExecutedStatement> statements;
+        private volatile String plan;
+
+        Entry(String name, long nanos, long rows, List<ExecutedStatement> statements) {
+            this.name = name;
+            this.loggedAt = System.currentTimeMillis();
+            this.nanos = nanos;
+            this.rows = rows;
+            this.statements = statements;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLoggedAt() {
+            return loggedAt;
+        }
+
+        public double getDurationMillis() {
+            return nanos / 1e6;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public List<ExecutedStatement> getStatements() {
+            return statements;
+        }
+
+        /**
+         * Output of EXPLAIN (ANALYZE, BUFFERS) for the slowest statement, or null if it was not sampled
+         */
+        public String getPlan() {
+            return plan;
+        }
+    }
+
+    /**
+     * Constructor for SlowQueryLog
+     * @param config Application configuration containing the slowQueries block
+     */
+    @Inject
+    public SlowQueryLog(Config config) {
+        this.logger = LoggerFactory.getLogger(this.getClass());
+        this.thresholdNanos = config.getDuration("slowQueries.threshold").toNanos();
+        this.explainRate = config.getDouble("slowQueries.explainRate");
+        this.keep = config.getInt("slowQueries.keep");
+        this.redact = config.getBoolean("slowQueries.redact");
+    }
+
+    /**
+     * The slowest statement that can safely be explained
+     * @param statements Statements a query executed, as executed
+     * @return the statement, or null if every statement writes
+     */
+    static ExecutedStatement slowestReadOnly(List<ExecutedStatement> statements) {
+        ExecutedStatement slowest = null;
+        for(ExecutedStatement statement : statements) {
+            if(statement.isReadOnly() && (slowest == null || statement.nanos > slowest.nanos))
+                slowest = statement;
+        }
+        return slowest;
+    }
+
+    /**
+     * Whether a query took long enough to be logged
+     * @param nanos Time spent executing the query
+     */
+    boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+    /**
+     * Log a slow query
+     * @param name The query name
+     * @param nanos Time spent executing the query
+     * @param rows Rows returned or updated
+     * @param statements Statements the query executed
+     * @return the entry, to attach a plan to later
+     */
+    Entry record(String name, long nanos, long rows, List<ExecutedStatement> statements) {
+        if(redact)
+            statements = statements.stream().map(ExecutedStatement::redacted).collect(Collectors.toList());
+        Entry entry = new Entry(name, nanos, rows, statements);
+        logger.warn(String.format("Slow query %s took %.1f ms, %d rows: %s", name, entry.getDurationMillis(), rows, statements));
+
+        synchronized (entries) {
+            entries.addFirst(entry);
+            while(entries.size() > keep)
+                entries.removeLast();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Decide whether to capture the plan of a slow query. At most one plan is captured at a
+     * time so a burst of slow queries does not put more load on the database.
+     * @return true if the caller should explain the query and then call finishExplain
+     */
+    boolean startExplain() {
+        return ThreadLocalRandom.current().nextDouble() < explainRate && explaining.compareAndSet(false, true);
+    }
+
+    /**
+     * Attach a captured plan to an entry
+     * @param entry The slow query
+     * @param plan The plan, or null if it could not be captured
+     */
+    void finishExplain(Entry entry, String plan) {
+        entry.plan = redact && plan != null ? STRING_LITERAL.matcher(plan).replaceAll("?") : plan;
+        explaining.set(false);
+    }
+
+    /**
+     * Slow queries logged, most recent first
+     */
+    public List<Entry> getEntries() {
+        synchronized (entries) {
+            return Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+    }
+}
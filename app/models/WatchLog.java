@@ -0,0 +1,608 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import util.Metrics;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead log of plays and ratings. An event is acknowledged once it is written to
+ * a memory-mapped segment file and forced to disk, so acknowledging it never waits on the
+ * database. Events appended within the commit window share one fsync. A background replayer
+ * applies durable events to Watches in order, with the changes they make to each movie's
+ * totals in MovieStats and MovieStatsDaily, recording how far it got in the same transaction, so an event is
+ * applied exactly once even if the replayer stops between committing and saving its local
+ * checkpoint. When watches are sharded each shard records its own progress, and the log
+ * only moves past a batch once every shard has applied it. Plays not yet applied are
+ * counted in memory, so a rating can be checked against them before it is logged.
+ */
+@Singleton
+public class WatchLog {
+    /**
+     * Size of a record: crc, type, rating, two unused bytes, user, movie and time
+     */
+    static final int RECORD_SIZE = 24;
+    private static final byte PLAY = 1;
+    private static final byte RATE = 2;
+
+    private final DataSource dataSource;
+    private final Path directory;
+    private final long segmentSize;
+    private final long commitWindowNanos;
+    private final int replayBatch;
+    private final String logID;
+    private final List<Consumer<List<Event>>> listeners = new CopyOnWriteArrayList<>();
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final List<Waiter> waiting = new ArrayList<>();
+    private final Map<Long, Integer> pendingPlays = new HashMap<>();
+    private final AtomicBoolean replayScheduled = new AtomicBoolean();
+    private final LongAdder groupCommits = new LongAdder();
+    private final ScheduledExecutorService replayer;
+    private final Logger logger;
+    private long end;
+    private volatile long durable;
+    private volatile long applied;
+
+    /**
+     * A play or rating read back from the log
+     */
+    public static final class Event {
+        final long offset;
+        final byte type;
+        final int userID;
+        final int movieID;
+        final int rating;
+        final long time;
+
+        Event(long offset, byte type, int userID, int movieID, int rating, long time) {
+            this.offset = offset;
+            this.type = type;
+            this.userID = userID;
+            this.movieID = movieID;
+            this.rating = rating;
+            this.time = time;
+        }
+
+        /**
+         * Getter for userID
+         */
+        public int getUserID() {
+            return userID;
+        }
+
+        /**
+         * Getter for movieID
+         */
+        public int getMovieID() {
+            return movieID;
+        }
+
+        /**
+         * Whether the event is a rating rather than a play
+         */
+        public boolean isRating() {
+            return type == RATE;
+        }
+    }
+
+    /**
+     * An append waiting for the log to be forced up to its end
+     */
+    private static final class Waiter {
+        final long end;
+        final CompletableFuture<Boolean> done;
+
+        Waiter(long end, CompletableFuture<Boolean> done) {
+            this.end = end;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Constructor for WatchLog. Recovers the log left by a previous run, dropping a record
+     * torn by a crash, and starts replaying what was not yet applied.
+     * @param config Application configuration containing the watchLog block
+     * @param dataSource DataSource events are applied through
+     * @param metrics Registry that log statistics are exported through
+     * @throws IOException if the log directory cannot be read or created
+     */
+    @Inject
+    public WatchLog(Config config, DataSource dataSource, Metrics metrics) throws IOException {
+        this.dataSource = dataSource;
+        this.directory = Path.of(config.getString("watchLog.path"));
+        this.segmentSize = config.getBytes("watchLog.segmentSize") / RECORD_SIZE * RECORD_SIZE;
+        this.commitWindowNanos = config.getDuration("watchLog.commitWindow").toNanos();
+        this.replayBatch = config.getInt("watchLog.replayBatch");
+        this.logger = LoggerFactory.getLogger(this.getClass());
+
+        Files.createDirectories(directory);
+        this.logID = readID();
+        recover();
+
+        metrics.registerGauge("watchlog_pending_events", "Durable plays and ratings not yet applied to the database",
+                () -> (durable - applied) / RECORD_SIZE);
+        metrics.registerGauge("watchlog_group_commits", "Forces of the watch log to disk", groupCommits::sum);
+
+        Thread flusher = new Thread(this::flush, "watch-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        long retry = config.getDuration("watchLog.retryInterval").toMillis();
+        this.replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watch-log-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayer.scheduleWithFixedDelay(this::replay, 0, retry, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log that a user played a movie
+     * @return A completion stage containing true once the play is on disk, or null if it
+     *         could not be logged
+     */
+    public CompletionStage<Boolean> play(int userID, int movieID) {
+        return append(PLAY, userID, List.of(movieID), 0);
+    }
+
+    /**
+     * Log that a user played several movies at once. The plays are appended together and
+     * acknowledged with a single force, and replayed in the same batch where they fit.
+     * @return A completion stage containing true once the plays are on disk, or null if they
+     *         could not be logged
+     */
+    public CompletionStage<Boolean> playAll(int userID, List<Integer> movieIDs) {
+        return append(PLAY, userID, movieIDs, 0);
+    }
+
+    /**
+     * Log that a user rated a movie. The rating is applied only if the user has played the
+     * movie by the time it is replayed, so callers check that first.
+     * @return A completion stage containing true once the rating is on disk, or null if it
+     *         could not be logged
+     */
+    public CompletionStage<Boolean> rate(int userID, int movieID, int rating) {
+        return append(RATE, userID, List.of(movieID), rating);
+    }
+
+    /**
+     * Whether the log holds a play of a movie by a user that is not applied yet. A play
+     * stops being pending only once the database has it.
+     */
+    public synchronized boolean hasPendingPlay(int userID, int movieID) {
+        return pendingPlays.containsKey(watch(userID, movieID));
+    }
+
+    /**
+     * Be told about every batch of events once it has been applied to the database
+     * @param listener Called on the replayer thread with the batch's events, in log order
+     */
+    public void onApplied(Consumer<List<Event>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Number of events on disk that have not been applied yet
+     */
+    public long getPending() {
+        return (durable - applied) / RECORD_SIZE;
+    }
+
+    /**
+     * Write a record per movie into the current segment and wait for the next group commit
+     */
+    private CompletionStage<Boolean> append(byte type, int userID, List<Integer> movieIDs, int rating) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        synchronized (this) {
+            // Map the segments first, so the records are either all written or none are
+            List<Map.Entry<Long, MappedByteBuffer>> targets = new ArrayList<>(movieIDs.size());
+            try {
+                for(int i = 0; i < movieIDs.size(); i++)
+                    targets.add(segmentFor(end + (long) i * RECORD_SIZE));
+            } catch (IOException e) {
+                logger.error("Unable to append to the watch log: "+e);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            long time = System.currentTimeMillis();
+            for(int i = 0; i < movieIDs.size(); i++) {
+                Map.Entry<Long, MappedByteBuffer> segment = targets.get(i);
+                int position = (int) (end - segment.getKey());
+                MappedByteBuffer buffer = segment.getValue();
+                buffer.put(position + 4, type);
+                buffer.put(position + 5, (byte) rating);
+                buffer.putInt(position + 8, userID);
+                buffer.putInt(position + 12, movieIDs.get(i));
+                buffer.putLong(position + 16, time);
+                buffer.putInt(position, checksum(buffer, position));
+
+                end += RECORD_SIZE;
+                if(type == PLAY)
+                    pendingPlays.merge(watch(userID, movieIDs.get(i)), 1, Integer::sum);
+            }
+            waiting.add(new Waiter(end, done));
+            notifyAll();
+        }
+
+        return done;
+    }
+
+    /**
+     * Force appended records to disk and acknowledge them, one batch at a time. Waiting for
+     * the commit window after the first append lets concurrent appends join its fsync.
+     */
+    private void flush() {
+        while(true) {
+            try {
+                synchronized (this) {
+                    while(waiting.isEmpty())
+                        wait();
+                }
+                if(commitWindowNanos > 0)
+                    LockSupport.parkNanos(commitWindowNanos);
+
+                List<Waiter> batch;
+                List<Map.Entry<Long, MappedByteBuffer>> dirty;
+                long from = durable;
+                long to;
+                synchronized (this) {
+                    batch = new ArrayList<>(waiting);
+                    waiting.clear();
+                    to = end;
+                    dirty = new ArrayList<>(segments.subMap(segments.floorKey(from), true, to, false).entrySet());
+                }
+
+                for(Map.Entry<Long, MappedByteBuffer> segment : dirty) {
+                    int start = (int) (Math.max(from, segment.getKey()) - segment.getKey());
+                    int stop = (int) (Math.min(to, segment.getKey() + segmentSize) - segment.getKey());
+                    segment.getValue().force(start, stop - start);
+                }
+                durable = to;
+                groupCommits.increment();
+
+                for(Waiter waiter : batch)
+                    waiter.done.complete(Boolean.TRUE);
+                scheduleReplay();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.error("Unable to force the watch log: "+e);
+                failWaiting();
+            }
+        }
+    }
+
+    /**
+     * Fail every append waiting for a force that did not happen
+     */
+    private synchronized void failWaiting() {
+        for(Waiter waiter : waiting)
+            waiter.done.complete(null);
+        waiting.clear();
+    }
+
+    private void scheduleReplay() {
+        if(replayScheduled.compareAndSet(false, true))
+            replayer.execute(this::replay);
+    }
+
+    /**
+     * Apply durable events to the database in batches while it is reachable
+     */
+    private void replay() {
+        replayScheduled.set(false);
+
+        try {
+            while(applied < durable && dataSource.isAvailable()) {
+                long from = applied;
+                List<Event> events = read(from, Math.min(durable, from + (long) replayBatch * RECORD_SIZE));
+                long to = from + (long) events.size() * RECORD_SIZE;
+
+                Map<DataSource, List<Event>> byShard = new LinkedHashMap<>();
+                for(Event event : events)
+                    byShard.computeIfAbsent(dataSource.forUser(event.userID), shard -> new ArrayList<>()).add(event);
+
+                // A shard that applied its part skips it when the batch is retried for another
+                boolean done = true;
+                for(Map.Entry<DataSource, List<Event>> shard : byShard.entrySet())
+                    done &= shard.getKey().withConnection("WatchLog.replay", conn -> apply(conn, shard.getValue(), to)) != null;
+                if(!done)
+                    return;
+
+                applied = to;
+                forgetPlays(events);
+                saveCheckpoint(to);
+                for(Consumer<List<Event>> listener : listeners)
+                    listener.accept(events);
+            }
+        } catch (Exception e) {
+            logger.error("Unable to replay the watch log: "+e);
+        }
+    }
+
+    /**
+     * Apply events in log order, skipping any the database already has, and record the
+     * offset applied up to
+     */
+    private Boolean apply(Connection conn, List<Event> events, long to) throws SQLException {
+        PreparedStatement select = conn.prepareStatement("SELECT AppliedOffset FROM WatchLogCheckpoint WHERE LogID=? FOR UPDATE;");
+        select.setString(1, logID);
+        ResultSet results = select.executeQuery();
+        long done = results.next() ? results.getLong("AppliedOffset") : 0;
+        results.close();
+        select.close();
+
+        // Lock the watches the batch writes and note which exist, their plays, day and rating,
+        // to work out how the batch changes each movie's totals
+        List<Integer> userIDs = new ArrayList<>();
+        List<Integer> movieIDs = new ArrayList<>();
+        for(Event event : events) {
+            if(event.offset >= done) {
+                userIDs.add(event.userID);
+                movieIDs.add(event.movieID);
+            }
+        }
+        PreparedStatement lock = conn.prepareStatement(
+                "SELECT UserID, MovieID, TimesPlayed, LastWatched, Rating FROM Watches WHERE (UserID, MovieID) IN (SELECT * FROM unnest(?, ?)) "+
+                "ORDER BY UserID, MovieID FOR UPDATE;");
+        lock.setArray(1, conn.createArrayOf("integer", userIDs.toArray()));
+        lock.setArray(2, conn.createArrayOf("integer", movieIDs.toArray()));
+        Map<Long, MovieStats.Watch> watches = new HashMap<>();
+        results = lock.executeQuery();
+        while(results.next()) {
+            int value = results.getInt("Rating");
+            Integer rating = results.wasNull() ? null : value;
+            watches.put(watch(results.getInt("UserID"), results.getInt("MovieID")),
+                        new MovieStats.Watch(rating, results.getInt("TimesPlayed"), results.getTimestamp("LastWatched").getTime()));
+        }
+        results.close();
+        lock.close();
+
+        Map<Integer, MovieStats.Change> changes = new TreeMap<>();
+        PreparedStatement play = conn.prepareStatement(
+                "INSERT INTO Watches (UserID, MovieID, LastWatched) VALUES (?, ?, ?) "+
+                "ON CONFLICT (UserID, MovieID) DO UPDATE SET TimesPlayed = Watches.TimesPlayed + 1, "+
+                "LastWatched = GREATEST(Watches.LastWatched, EXCLUDED.LastWatched);");
+        PreparedStatement rate = conn.prepareStatement("UPDATE Watches SET Rating=? WHERE UserID=? AND MovieID=?;");
+
+        // Batches run one after the other, so a rating is only batched behind plays that came before it
+        PreparedStatement batched = null;
+        for(Event event : events) {
+            if(event.offset < done)
+                continue;
+
+            PreparedStatement statement = event.type == PLAY ? play : rate;
+            if(batched != null && batched != statement)
+                batched.executeBatch();
+            batched = statement;
+
+            long watch = watch(event.userID, event.movieID);
+            if(event.type == PLAY) {
+                watches.put(watch, changes.computeIfAbsent(event.movieID, MovieStats.Change::new).played(watches.get(watch), event.time));
+                play.setInt(1, event.userID);
+                play.setInt(2, event.movieID);
+                play.setTimestamp(3, new Timestamp(event.time));
+            }
+            else {
+                // The update finds no watch to rate if the user has not played the movie
+                if(watches.containsKey(watch))
+                    watches.put(watch, changes.computeIfAbsent(event.movieID, MovieStats.Change::new).rated(watches.get(watch), event.rating));
+                rate.setInt(1, event.rating);
+                rate.setInt(2, event.userID);
+                rate.setInt(3, event.movieID);
+            }
+            statement.addBatch();
+        }
+        if(batched != null)
+            batched.executeBatch();
+        play.close();
+        rate.close();
+        MovieStats.add(conn, changes.values());
+
+        PreparedStatement checkpoint = conn.prepareStatement(
+                "INSERT INTO WatchLogCheckpoint (LogID, AppliedOffset) VALUES (?, ?) "+
+                "ON CONFLICT (LogID) DO UPDATE SET AppliedOffset = EXCLUDED.AppliedOffset;");
+        checkpoint.setString(1, logID);
+        checkpoint.setLong(2, Math.max(done, to));
+        checkpoint.executeUpdate();
+        checkpoint.close();
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Stop counting the plays of applied events as pending
+     */
+    private synchronized void forgetPlays(List<Event> events) {
+        for(Event event : events) {
+            if(event.type == PLAY)
+                pendingPlays.computeIfPresent(watch(event.userID, event.movieID), (watch, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Key of a user's watch of a movie
+     */
+    private static long watch(int userID, int movieID) {
+        return (long) userID << 32 | Integer.toUnsignedLong(movieID);
+    }
+
+    /**
+     * Read the events between two offsets
+     */
+    private List<Event> read(long from, long to) {
+        List<Event> events = new ArrayList<>((int) ((to - from) / RECORD_SIZE));
+
+        for(long offset = from; offset < to; offset += RECORD_SIZE) {
+            Map.Entry<Long, MappedByteBuffer> segment;
+            synchronized (this) {
+                segment = segments.floorEntry(offset);
+            }
+            int position = (int) (offset - segment.getKey());
+            MappedByteBuffer buffer = segment.getValue();
+            events.add(new Event(offset, buffer.get(position + 4), buffer.getInt(position + 8), buffer.getInt(position + 12),
+                                 buffer.get(position + 5), buffer.getLong(position + 16)));
+        }
+
+        return events;
+    }
+
+    /**
+     * The segment holding an offset, creating and mapping it if needed
+     */
+    private Map.Entry<Long, MappedByteBuffer> segmentFor(long offset) throws IOException {
+        long start = offset - offset % segmentSize;
+        if(!segments.containsKey(start))
+            segments.put(start, map(segmentPath(start)));
+        return segments.floorEntry(offset);
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private Path segmentPath(long start) {
+        return directory.resolve(String.format("%020d.log", start));
+    }
+
+    /**
+     * Find the end of the log from the last checkpoint, and drop segments that were applied
+     */
+    private void recover() throws IOException {
+        Path checkpoint = directory.resolve("checkpoint");
+        applied = Files.exists(checkpoint) ? Long.parseLong(Files.readString(checkpoint).strip()) : 0;
+
+        List<Long> starts = new ArrayList<>();
+        try(var files = Files.list(directory)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if(name.endsWith(".log"))
+                    starts.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        starts.sort(null);
+
+        for(long start : starts) {
+            if(start + segmentSize <= applied)
+                Files.delete(segmentPath(start));
+            else
+                segments.put(start, map(segmentPath(start)));
+        }
+
+        if(!segments.isEmpty())
+            applied = Math.max(applied, segments.firstKey());
+
+        end = applied;
+        while(true) {
+            Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(end);
+            if(segment == null || end >= segment.getKey() + segmentSize)
+                break;
+
+            int position = (int) (end - segment.getKey());
+            MappedByteBuffer buffer = segment.getValue();
+            if(buffer.get(position + 4) == 0 || buffer.getInt(position) != checksum(buffer, position))
+                break;
+            end += RECORD_SIZE;
+        }
+        durable = end;
+        for(Event event : read(applied, end)) {
+            if(event.type == PLAY)
+                pendingPlays.merge(watch(event.userID, event.movieID), 1, Integer::sum);
+        }
+
+        // Clear whatever follows the end, so records left past a torn one are not read back
+        // after new records are appended in front of them
+        for(long start : new ArrayList<>(segments.tailMap(end, false).keySet())) {
+            segments.remove(start);
+            Files.delete(segmentPath(start));
+        }
+        Map.Entry<Long, MappedByteBuffer> last = segments.floorEntry(end);
+        if(last != null) {
+            MappedByteBuffer buffer = last.getValue();
+            int position = (int) (end - last.getKey());
+            for(int i = position; i < segmentSize; i++)
+                buffer.put(i, (byte) 0);
+            buffer.force();
+        }
+
+        if(end > applied)
+            logger.info("Recovered "+(end - applied) / RECORD_SIZE+" plays and ratings to apply");
+    }
+
+    /**
+     * Remember how far the log was applied, and delete segments before that point
+     */
+    private void saveCheckpoint(long offset) throws IOException {
+        Path temporary = directory.resolve("checkpoint.tmp");
+        Files.writeString(temporary, Long.toString(offset));
+        Files.move(temporary, directory.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Long> done = new ArrayList<>();
+        synchronized (this) {
+            for(long start : segments.headMap(offset - offset % segmentSize, false).keySet())
+                done.add(start);
+            for(long start : done)
+                segments.remove(start);
+        }
+        for(long start : done)
+            Files.deleteIfExists(segmentPath(start));
+    }
+
+    /**
+     * Read this log's id, creating one the first time, so a recreated log directory starts a
+     * new checkpoint instead of skipping events under an old one
+     */
+    private String readID() throws IOException {
+        Path path = directory.resolve("id");
+        if(Files.exists(path))
+            return Files.readString(path, StandardCharsets.UTF_8).strip();
+
+        String id = UUID.randomUUID().toString();
+        Files.writeString(path, id, StandardCharsets.UTF_8);
+        return id;
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int position) {
+        CRC32 crc = new CRC32();
+        for(int i = position + 4; i < position + RECORD_SIZE; i++)
+            crc.update(buffer.get(i));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,110 @@
+package util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Collects single-key lookups that arrive within a short window and resolves them with one
+ * batched call, then fans the results back out to each caller.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BatchLoader<K, V> {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batch-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Function<List<K>, Map<K, V>> batchFunction;
+    private final long windowMicros;
+    private final int maxBatch;
+    private Map<K, CompletableFuture<V>> pending = new LinkedHashMap<>();
+
+    /**
+     * Constructor for BatchLoader
+     * @param batchFunction Resolves a batch of keys, keys missing from the result resolve to null
+     * @param window How long to wait for more keys after the first key of a batch arrives
+     * @param maxBatch Number of keys that triggers a batch immediately
+     */
+    public BatchLoader(Function<List<K>, Map<K, V>> batchFunction, Duration window, int maxBatch) {
+        this.batchFunction = batchFunction;
+        this.windowMicros = window.toNanos() / 1000;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Queue a key for the next batch. Callers asking for the same key in the same window
+     * share one result.
+     * @param key The key to resolve
+     * @return A future completed once the batch containing the key has been resolved
+     */
+    public CompletableFuture<V> load(K key) {
+        CompletableFuture<V> future;
+        Map<K, CompletableFuture<V>> full = null;
+
+        synchronized (this) {
+            future = pending.get(key);
+            if(future != null)
+                return future;
+
+            future = new CompletableFuture<>();
+            pending.put(key, future);
+
+            if(pending.size() >= maxBatch) {
+                full = pending;
+                pending = new LinkedHashMap<>();
+            }
+            else if(pending.size() == 1) {
+                Map<K, CompletableFuture<V>> batch = pending;
+                scheduler.schedule(() -> flush(batch), windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        if(full != null)
+            dispatch(full);
+
+        return future;
+    }
+
+    /**
+     * Dispatch a batch once its window has closed, unless it was already dispatched for being full.
+     * @param batch The batch that was open when the window started
+     */
+    private void flush(Map<K, CompletableFuture<V>> batch) {
+        synchronized (this) {
+            if(pending != batch)
+                return;
+            pending = new LinkedHashMap<>();
+        }
+
+        dispatch(batch);
+    }
+
+    /**
+     * Resolve a batch off the scheduler thread and complete every waiting caller.
+     * @param batch Keys and the futures waiting on them
+     */
+    private void dispatch(Map<K, CompletableFuture<V>> batch) {
+        CompletableFuture.runAsync(() -> {
+            try {
+                Map<K, V> results = batchFunction.apply(new ArrayList<>(batch.keySet()));
+
+                for(Map.Entry<K, CompletableFuture<V>> entry : batch.entrySet())
+                    entry.getValue().complete(results == null ? null : results.get(entry.getKey()));
+            }
+            catch (Exception e) {
+                for(CompletableFuture<V> future : batch.values())
+                    future.completeExceptionally(e);
+            }
+        });
+    }
+}
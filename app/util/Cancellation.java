@@ -0,0 +1,98 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Lets work started through Trace.supplyAsync be stopped when its future is completed
+ * before the work finishes, e.g. by completeOnTimeout, orTimeout or cancel. Code running the
+ * work, such as a query on a connection, registers a hook that stops it; the hooks run on
+ * the thread that completed the future.
+ */
+public final class Cancellation {
+    private static final ThreadLocal<Cancellation> current = new ThreadLocal<>();
+
+    private final List<Runnable> hooks = new ArrayList<>();
+    private boolean cancelled;
+    private boolean finished;
+
+    /**
+     * The cancellation of the work running on this thread
+     * @return the cancellation, or null if the work cannot be cancelled
+     */
+    public static Cancellation current() {
+        return current.get();
+    }
+
+    /**
+     * Run work under this cancellation
+     * @param work The work to run
+     * @param <T> Result type
+     * @return the result of the work
+     * @throws CancellationException if the work was cancelled before it started
+     */
+    <T> T run(Supplier<T> work) {
+        synchronized (this) {
+            if(cancelled)
+                throw new CancellationException();
+        }
+
+        Cancellation previous = current.get();
+        current.set(this);
+        try {
+            return work.get();
+        }
+        finally {
+            current.set(previous);
+            synchronized (this) {
+                finished = true;
+                hooks.clear();
+            }
+        }
+    }
+
+    /**
+     * Register a hook that stops the running work
+     * @param hook Called at most once, from another thread
+     * @return whether the work is still wanted; if not the hook was not registered
+     */
+    public synchronized boolean onCancel(Runnable hook) {
+        if(cancelled)
+            return false;
+        hooks.add(hook);
+        return true;
+    }
+
+    /**
+     * Remove a hook once the work it stops is done
+     */
+    public synchronized void remove(Runnable hook) {
+        hooks.remove(hook);
+    }
+
+    /**
+     * Whether the work is no longer wanted
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop the work if it has not finished
+     */
+    void cancel() {
+        List<Runnable> running;
+        synchronized (this) {
+            if(finished || cancelled)
+                return;
+            cancelled = true;
+            running = new ArrayList<>(hooks);
+            hooks.clear();
+        }
+
+        for(Runnable hook : running)
+            hook.run();
+    }
+}
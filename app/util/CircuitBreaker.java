@@ -0,0 +1,117 @@
+package util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops calls to a dependency that keeps failing. After a number of consecutive failures the
+ * breaker opens and calls are rejected immediately; once it has been open for a while a
+ * single trial call is let through, which closes the breaker if it succeeds and opens it
+ * again if it fails.
+ */
+public class CircuitBreaker {
+    /**
+     * States of a breaker
+     */
+    public enum State {
+        /** Calls go through */
+        CLOSED,
+        /** Calls are rejected */
+        OPEN,
+        /** A trial call is in flight, other calls are rejected */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongAdder rejected = new LongAdder();
+    private volatile State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * Constructor for CircuitBreaker
+     * @param failureThreshold Consecutive failures that open the breaker
+     * @param openFor How long the breaker stays open before a trial call
+     */
+    public CircuitBreaker(int failureThreshold, Duration openFor) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openFor.toNanos();
+    }
+
+    /**
+     * Ask to make a call. A caller that is allowed must report the outcome with success or failure.
+     * @return true if the call may be made, false if it should fail fast
+     */
+    public boolean allow() {
+        if(state == State.CLOSED)
+            return true;
+
+        synchronized (this) {
+            if(state == State.CLOSED)
+                return true;
+
+            if(state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+        }
+
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Whether a call made now would be allowed, without starting a trial call
+     */
+    public boolean isAvailable() {
+        State current = state;
+        if(current == State.CLOSED)
+            return true;
+
+        synchronized (this) {
+            return state == State.OPEN && System.nanoTime() - openedAt >= openNanos;
+        }
+    }
+
+    /**
+     * Whether the last reported call failed. Unlike isAvailable this is true from the first
+     * failure, before the breaker opens.
+     */
+    public synchronized boolean isFailing() {
+        return failures > 0;
+    }
+
+    /**
+     * Report an allowed call that succeeded
+     */
+    public synchronized void success() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Report an allowed call that failed
+     */
+    public synchronized void failure() {
+        failures++;
+        if(state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Getter for state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Number of calls rejected so far
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
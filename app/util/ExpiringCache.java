@@ -0,0 +1,106 @@
+package util;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simple thread-safe cache whose entries expire a fixed time after they were written.
+ * Expired entries can still be read as stale values until they are swept out.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int maxSize;
+
+    /**
+     * A cached value and the time it stops being fresh
+     */
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Constructor for ExpiringCache
+     * @param ttl How long an entry stays fresh after it is written
+     * @param maxSize Number of entries above which expired entries are swept out
+     */
+    public ExpiringCache(Duration ttl, int maxSize) {
+        this.ttlMillis = ttl.toMillis();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get a fresh value
+     * @param key The key to look up
+     * @return the cached value, or null if it is missing or expired
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry == null || entry.expiresAt < System.currentTimeMillis() ? null : entry.value;
+    }
+
+    /**
+     * Get a value even if it has expired, e.g. to serve while it cannot be reloaded. Expired
+     * entries are kept until the cache grows past its size limit.
+     * @param key The key to look up
+     * @return the cached value, or null if it is missing
+     */
+    public V getStale(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Cache a value
+     * @param key The key to store under
+     * @param value The value to store, null values are not cached
+     */
+    public void put(K key, V value) {
+        if(value == null)
+            return;
+
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+
+        if(entries.size() > maxSize)
+            sweep();
+    }
+
+    /**
+     * Remove a single entry
+     * @param key The key to remove
+     */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Remove every entry
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Drop expired entries, then arbitrary ones if the cache is still over its size limit.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt < now);
+
+        Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while(entries.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+}
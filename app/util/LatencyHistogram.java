@@ -0,0 +1,121 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets (four sub-buckets per power of two
+ * microseconds), giving a bounded relative error of 25% from 1us up to days.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 42 * SUB_BUCKETS;
+
+    /**
+     * Bucket boundaries, in seconds, used when exporting in Prometheus format
+     */
+    public static final double[] EXPORT_BOUNDS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    /**
+     * Record one observation
+     * @param nanos The observed latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    /**
+     * Number of observations
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Sum of all observations in seconds
+     */
+    public double getSumSeconds() {
+        return sumMicros.sum() / 1e6;
+    }
+
+    /**
+     * Estimate a percentile from the bucket counts
+     * @param quantile The quantile between 0 and 1, e.g. 0.95
+     * @return the upper bound of the bucket containing the quantile, in nanoseconds, or 0 if empty
+     */
+    public long percentileNanos(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if(total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank)
+                return upperBoundMicros(i) * 1000;
+        }
+
+        return upperBoundMicros(BUCKETS-1) * 1000;
+    }
+
+    /**
+     * Cumulative counts at each of the EXPORT_BOUNDS
+     * @return one count per bound, each including every smaller bound
+     */
+    public long[] cumulativeCounts() {
+        long[] cumulative = new long[EXPORT_BOUNDS.length];
+        long running = 0;
+        int bound = 0;
+
+        for(int i = 0; i < BUCKETS && bound < EXPORT_BOUNDS.length; i++) {
+            while(bound < EXPORT_BOUNDS.length && upperBoundMicros(i) > EXPORT_BOUNDS[bound] * 1e6)
+                cumulative[bound++] = running;
+            running += counts.get(i);
+        }
+        while(bound < EXPORT_BOUNDS.length)
+            cumulative[bound++] = running;
+
+        return cumulative;
+    }
+
+    /**
+     * Bucket index of a value: values below 4 get their own bucket, above that each power
+     * of two is split into four equal sub-buckets.
+     */
+    private static int bucket(long micros) {
+        if(micros < SUB_BUCKETS)
+            return (int) micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Exclusive upper bound of a bucket in microseconds
+     */
+    private static long upperBoundMicros(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket + 1;
+
+        int exponent = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + 1 + sub) << (exponent - 2);
+    }
+}
@@ -0,0 +1,189 @@
+package util;
+
+import javax.inject.Singleton;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Application wide registry of query and request metrics, exported in the Prometheus
+ * text format on GET /metrics.
+ */
+@Singleton
+public class Metrics {
+    private static final String[] BOUND_LABELS = new String[LatencyHistogram.EXPORT_BOUNDS.length];
+    static {
+        for(int i = 0; i < BOUND_LABELS.length; i++)
+            BOUND_LABELS[i] = BigDecimal.valueOf(LatencyHistogram.EXPORT_BOUNDS[i]).stripTrailingZeros().toPlainString();
+    }
+
+    private final ConcurrentHashMap<String, QueryStats> queries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Statistics for one named query
+     */
+    public static final class QueryStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram acquire = new LatencyHistogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        /**
+         * Latency of executing the query, excluding connection acquisition
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Statistics for one route
+     */
+    private static final class RouteStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * A value read at export time
+     */
+    private static final class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Get the statistics of a named query
+     * @param name The query name
+     * @return the statistics, created on first use
+     */
+    public QueryStats query(String name) {
+        return queries.computeIfAbsent(name, n -> new QueryStats());
+    }
+
+    /**
+     * Record one execution of a named query
+     * @param name The query name
+     * @param acquireNanos Time spent waiting for a connection
+     * @param executeNanos Time spent running the query callback
+     * @param rows Rows returned or updated
+     * @param failed Whether the query threw an exception
+     */
+    public void recordQuery(String name, long acquireNanos, long executeNanos, long rows, boolean failed) {
+        QueryStats stats = query(name);
+        stats.acquire.record(acquireNanos);
+        stats.latency.record(executeNanos);
+        stats.rows.add(rows);
+        if(failed)
+            stats.errors.increment();
+    }
+
+    /**
+     * Record one handled request
+     * @param route The route that handled it, e.g. "GET /movie/$movieID<[^/]+>"
+     * @param status The response status
+     * @param nanos Time until the response header was ready
+     */
+    public void recordRequest(String route, int status, long nanos) {
+        RouteStats stats = routes.computeIfAbsent(route, r -> new RouteStats());
+        stats.latency.record(nanos);
+        if(status >= 500)
+            stats.errors.increment();
+    }
+
+    /**
+     * Register a value that is read every time metrics are exported
+     * @param name Metric name, may include labels, e.g. "singleflight_calls{name=\"lists\"}"
+     * @param help Description of the metric
+     * @param value Supplies the current value
+     */
+    public void registerGauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Export every metric in the Prometheus text exposition format
+     * @return the metrics text
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(8192);
+
+        Map<String, QueryStats> sortedQueries = new TreeMap<>(queries);
+        header(out, "db_query_duration_seconds", "histogram", "Time spent executing a named query");
+        for(Map.Entry<String, QueryStats> entry : sortedQueries.entrySet())
+            histogram(out, "db_query_duration_seconds", "query", entry.getKey(), entry.getValue().latency);
+
+        header(out, "db_connection_acquire_seconds", "histogram", "Time spent waiting for a connection");
+        for(Map.Entry<String, QueryStats> entry : sortedQueries.entrySet())
+            histogram(out, "db_connection_acquire_seconds", "query", entry.getKey(), entry.getValue().acquire);
+
+        header(out, "db_query_rows_total", "counter", "Rows returned or updated by a named query");
+        for(Map.Entry<String, QueryStats> entry : sortedQueries.entrySet())
+            sample(out, "db_query_rows_total", "query", entry.getKey(), entry.getValue().rows.sum());
+
+        header(out, "db_query_errors_total", "counter", "Named query executions that failed");
+        for(Map.Entry<String, QueryStats> entry : sortedQueries.entrySet())
+            sample(out, "db_query_errors_total", "query", entry.getKey(), entry.getValue().errors.sum());
+
+        Map<String, RouteStats> sortedRoutes = new TreeMap<>(routes);
+        header(out, "http_request_duration_seconds", "histogram", "Time to handle a request per route");
+        for(Map.Entry<String, RouteStats> entry : sortedRoutes.entrySet())
+            histogram(out, "http_request_duration_seconds", "route", entry.getKey(), entry.getValue().latency);
+
+        header(out, "http_request_errors_total", "counter", "Requests per route that returned a server error");
+        for(Map.Entry<String, RouteStats> entry : sortedRoutes.entrySet())
+            sample(out, "http_request_errors_total", "route", entry.getKey(), entry.getValue().errors.sum());
+
+        String lastFamily = null;
+        for(Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            String family = entry.getKey().split("\\{")[0];
+            if(!family.equals(lastFamily)) {
+                header(out, family, "gauge", entry.getValue().help);
+                lastFamily = family;
+            }
+            out.append(entry.getKey()).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, long sample) {
+        out.append(name).append('{').append(label).append("=\"").append(escape(value)).append("\"} ")
+           .append(sample).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String label, String value, LatencyHistogram histogram) {
+        String labelText = label+"=\""+escape(value)+"\"";
+        long[] cumulative = histogram.cumulativeCounts();
+        long count = histogram.getCount();
+
+        for(int i = 0; i < cumulative.length; i++) {
+            out.append(name).append("_bucket{").append(labelText).append(",le=\"")
+               .append(BOUND_LABELS[i]).append("\"} ").append(cumulative[i]).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labelText).append(",le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum{").append(labelText).append("} ")
+           .append(String.format(Locale.ROOT, "%.6f", histogram.getSumSeconds())).append('\n');
+        out.append(name).append("_count{").append(labelText).append("} ").append(count).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,68 @@
+package util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent calls: while a call for a key is in flight, every other
+ * caller asking for the same key shares its result instead of starting another one.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Run a call unless an identical one is already running
+     * @param key Identifies identical calls
+     * @param call Starts the call, only invoked when nothing is in flight for the key
+     * @return the result of the in-flight call
+     */
+    public CompletableFuture<V> execute(K key, Supplier<? extends CompletionStage<V>> call) {
+        calls.increment();
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+        if(existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+
+        try {
+            call.get().whenComplete((value, error) -> {
+                inFlight.remove(key, future);
+
+                if(error != null)
+                    future.completeExceptionally(error);
+                else
+                    future.complete(value);
+            });
+        }
+        catch (Exception e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Total number of calls made through this object
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * Number of calls that shared another caller's result
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
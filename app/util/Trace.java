@@ -0,0 +1,269 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Timeline of the work done for one request. The trace of the request being handled is
+ * kept in a thread local, and follows the request onto the threads that run its
+ * CompletionStage chains as long as async work is started through supplyAsync.
+ */
+public class Trace {
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    private final String route;
+    private final Integer userID;
+    private final long startedAt;
+    private final long start;
+    private final List<Span> spans = Collections.synchronizedList(new ArrayList<>());
+    private volatile long duration = -1;
+
+    /**
+     * A timed piece of work within a trace
+     */
+    public static final class Span {
+        private final String name;
+        private final String thread;
+        private final long offset;
+        private final long duration;
+
+        Span(String name, String thread, long offset, long duration) {
+            this.name = name;
+            this.thread = thread;
+            this.offset = offset;
+            this.duration = duration;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        /**
+         * Milliseconds between the start of the trace and the start of this span
+         */
+        public double getOffsetMillis() {
+            return offset / 1e6;
+        }
+
+        public double getDurationMillis() {
+            return duration / 1e6;
+        }
+    }
+
+    /**
+     * Constructor for Trace
+     * @param route The route being handled, e.g. "ProfileController.loadProfile"
+     * @param userID The signed in user, or null
+     */
+    public Trace(String route, Integer userID) {
+        this.route = route;
+        this.userID = userID;
+        this.startedAt = System.currentTimeMillis();
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * The trace of the request handled by this thread
+     * @return the trace, or null outside of a request
+     */
+    public static Trace current() {
+        return current.get();
+    }
+
+    /**
+     * Make a trace current for this thread
+     * @param trace The trace, or null to clear it
+     * @return the trace that was current before, to be restored afterwards
+     */
+    public static Trace set(Trace trace) {
+        Trace previous = current.get();
+        if(trace == null)
+            current.remove();
+        else
+            current.set(trace);
+        return previous;
+    }
+
+    /**
+     * Record a span on the current trace, if there is one
+     * @param name Name of the span
+     * @param startNanos System.nanoTime() when the work started
+     * @param endNanos System.nanoTime() when the work ended
+     */
+    public static void record(String name, long startNanos, long endNanos) {
+        Trace trace = current.get();
+        if(trace != null)
+            trace.add(name, startNanos, endNanos);
+    }
+
+    /**
+     * Drop-in replacement for CompletableFuture.supplyAsync that runs the supplier, and any
+     * stages completed by it, with the caller's trace. Completing the returned future before
+     * the supplier finishes, e.g. with completeOnTimeout, cancels the supplier's Cancellation.
+     * @param supplier The work to run on the common pool
+     * @param <T> Result type
+     * @return a future completed with the result of the supplier
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return supplyAsync(supplier, executor());
+    }
+
+    /**
+     * Like supplyAsync(supplier), running the supplier on an executor obtained earlier from
+     * executor(), for work started from a thread that no longer has the trace
+     * @param supplier The work to run
+     * @param executor Executor to run it on
+     * @param <T> Result type
+     * @return a future completed with the result of the supplier
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, Executor executor) {
+        Cancellation cancellation = new Cancellation();
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> cancellation.run(supplier), executor);
+        future.whenComplete((value, error) -> cancellation.cancel());
+        return future;
+    }
+
+    /**
+     * Time an asynchronous call as a span of the current trace. Stages depending on the
+     * result run with the trace, even when the call completes on a thread that has none,
+     * such as a batch shared by several requests.
+     * @param name Name of the span, e.g. "MovieManager.getMovie"
+     * @param call Starts the call
+     * @param <T> Result type
+     * @return a stage completed with the result of the call
+     */
+    public static <T> CompletionStage<T> timed(String name, Supplier<? extends CompletionStage<T>> call) {
+        Trace trace = current.get();
+        if(trace == null)
+            return call.get();
+
+        long start = System.nanoTime();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        call.get().whenComplete((value, error) -> {
+            trace.add(name, start, System.nanoTime());
+
+            Trace previous = set(trace);
+            try {
+                if(error != null)
+                    result.completeExceptionally(error);
+                else
+                    result.complete(value);
+            }
+            finally {
+                set(previous);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Executor that runs tasks on the common pool with the trace of the thread that submitted them
+     * @return the executor
+     */
+    public static Executor executor() {
+        Trace trace = current.get();
+        if(trace == null)
+            return ForkJoinPool.commonPool();
+
+        return task -> ForkJoinPool.commonPool().execute(() -> {
+            Trace previous = set(trace);
+            try {
+                task.run();
+            }
+            finally {
+                set(previous);
+            }
+        });
+    }
+
+    /**
+     * Add a span to this trace
+     */
+    public void add(String name, long startNanos, long endNanos) {
+        spans.add(new Span(name, Thread.currentThread().getName(), startNanos - start, endNanos - startNanos));
+    }
+
+    /**
+     * When the latest span added so far ended
+     * @return System.nanoTime() at the end of the span, or at the start of the trace if it has none
+     */
+    public long getLastEnd() {
+        long end = start;
+        synchronized (spans) {
+            for(Span span : spans)
+                end = Math.max(end, start + span.offset + span.duration);
+        }
+        return end;
+    }
+
+    /**
+     * Mark the request as finished
+     */
+    public void finish() {
+        duration = System.nanoTime() - start;
+    }
+
+    public String getRoute() {
+        return route;
+    }
+
+    public Integer getUserID() {
+        return userID;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Duration of the whole request, or the time elapsed so far if it has not finished
+     */
+    public double getDurationMillis() {
+        return (duration < 0 ? System.nanoTime() - start : duration) / 1e6;
+    }
+
+    /**
+     * Spans ordered by start time
+     */
+    public List<Span> getSpans() {
+        List<Span> copy;
+        synchronized (spans) {
+            copy = new ArrayList<>(spans);
+        }
+        copy.sort((a, b) -> Long.compare(a.offset, b.offset));
+        return copy;
+    }
+
+    /**
+     * Summarize the spans as a Server-Timing header value, summing spans that share a name
+     * @return e.g. "controller;dur=0.4, acquire;dur=80.1, AccountManager.getTop10;dur=12.3, total;dur=95.0"
+     */
+    public String serverTiming() {
+        Map<String, Long> totals = new LinkedHashMap<>();
+        for(Span span : getSpans())
+            totals.merge(span.name, span.duration, Long::sum);
+
+        StringBuilder header = new StringBuilder();
+        for(Map.Entry<String, Long> entry : totals.entrySet()) {
+            header.append(entry.getKey()).append(";dur=")
+                  .append(String.format(Locale.ROOT, "%.1f", entry.getValue() / 1e6)).append(", ");
+        }
+        header.append("total;dur=").append(String.format(Locale.ROOT, "%.1f", getDurationMillis()));
+
+        return header.toString();
+    }
+}
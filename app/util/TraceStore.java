@@ -0,0 +1,65 @@
+package util;
+
+import com.typesafe.config.Config;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the slowest finished traces in a fixed number of slots. A new trace takes the slot
+ * of the fastest trace kept so far when it is slower than it.
+ */
+@Singleton
+public class TraceStore {
+    private final Trace[] slots;
+    private int size;
+    private int fastest;
+
+    /**
+     * Constructor for TraceStore
+     * @param config Application configuration containing the tracing block
+     */
+    @Inject
+    public TraceStore(Config config) {
+        this.slots = new Trace[config.getInt("tracing.keep")];
+    }
+
+    /**
+     * Offer a finished trace
+     * @param trace The trace, kept only if it is among the slowest seen
+     */
+    public synchronized void add(Trace trace) {
+        if(slots.length == 0)
+            return;
+
+        if(size < slots.length) {
+            slots[size++] = trace;
+        }
+        else if(trace.getDurationMillis() > slots[fastest].getDurationMillis()) {
+            slots[fastest] = trace;
+        }
+        else {
+            return;
+        }
+
+        fastest = 0;
+        for(int i = 1; i < size; i++) {
+            if(slots[i].getDurationMillis() < slots[fastest].getDurationMillis())
+                fastest = i;
+        }
+    }
+
+    /**
+     * Traces kept, slowest first
+     */
+    public synchronized List<Trace> getSlowest() {
+        List<Trace> traces = new ArrayList<>(size);
+        for(int i = 0; i < size; i++)
+            traces.add(slots[i]);
+        traces.sort(Comparator.comparingDouble(Trace::getDurationMillis).reversed());
+        return traces;
+    }
+}
@@ -0,0 +1,102 @@
+package models;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.ExpiringCache;
+import util.LatencyHistogram;
+import util.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the in-memory lookups and counters on the request path: catalog lookups, cache
+ * hits and latency recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    @Param({"10000"})
+    public int movies;
+
+    private int[] movieIDs;
+    private long[] latencies;
+    private CatalogSnapshot snapshot;
+    private ExpiringCache<Integer, Movie> movieCache;
+    private LatencyHistogram histogram;
+    private Metrics metrics;
+    private Path snapshotPath;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticDataset dataset = new SyntheticDataset(42, movies, 10);
+        snapshotPath = Files.createTempFile("catalog", ".snapshot");
+        dataset.writeSnapshot(snapshotPath);
+        snapshot = CatalogSnapshot.map(snapshotPath);
+
+        Random random = new Random(7);
+        movieIDs = new int[4096];
+        latencies = new long[4096];
+        for(int i = 0; i < movieIDs.length; i++) {
+            movieIDs[i] = dataset.movieID(random.nextInt(movies));
+            latencies[i] = (long) (Math.exp(random.nextGaussian() * 1.5) * 2_000_000);
+        }
+
+        movieCache = new ExpiringCache<>(Duration.ofHours(1), movies * 2);
+        for(int i = 0; i < movies; i++)
+            movieCache.put(dataset.movieID(i), snapshot.movie(dataset.movieID(i), 3.0));
+
+        histogram = new LatencyHistogram();
+        metrics = new Metrics();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshotPath);
+    }
+
+    @Benchmark
+    public Movie catalogLookup() {
+        return snapshot.movie(movieIDs[next++ & (movieIDs.length - 1)], 3.0);
+    }
+
+    @Benchmark
+    public String catalogTitle() {
+        return snapshot.title(snapshot.ordinal(movieIDs[next++ & (movieIDs.length - 1)]));
+    }
+
+    @Benchmark
+    public Movie movieCacheHit() {
+        return movieCache.get(movieIDs[next++ & (movieIDs.length - 1)]);
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        histogram.record(latencies[next++ & (latencies.length - 1)]);
+    }
+
+    @Benchmark
+    public void metricsRecordQuery() {
+        int i = next++ & (latencies.length - 1);
+        metrics.recordQuery("MovieManager.getMovies", latencies[i] / 10, latencies[i], 10, false);
+    }
+}
@@ -0,0 +1,120 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValueFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Metrics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of manager calls from many threads against a database with a fixed round trip
+ * time and a limited number of connections, with caching effectively off so every call
+ * reaches the data source. Shows how much batching and single-flight save as the pool
+ * shrinks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+public class ConcurrencyBenchmark {
+    @Param({"1000"})
+    public int movies;
+
+    @Param({"2", "8"})
+    public int poolSize;
+
+    @Param({"2"})
+    public int latencyMillis;
+
+    private SyntheticDataset dataset;
+    private String[] queries;
+    private LatencyInjectingDataSource dataSource;
+    private MovieManager movieManager;
+    private Path snapshotPath;
+
+    @Setup
+    public void setup() throws Exception {
+        dataset = new SyntheticDataset(42, movies, 10);
+        queries = dataset.queries(8);
+        dataSource = LatencyInjectingDataSource.builder()
+                .poolSize(poolSize)
+                .latency(Duration.ofMillis(latencyMillis))
+                .jitter(Duration.ofMillis(latencyMillis / 2))
+                .build();
+
+        dataSource.setup(conn -> {
+            PreparedStatement statement = conn.prepareStatement("INSERT INTO Movies (MovieID, Title, Length, ReleaseDate, MPAA) VALUES (?, ?, ?, ?, ?)");
+            ResultSet rows = dataset.movieRows();
+            while(rows.next()) {
+                statement.setInt(1, rows.getInt("MovieID"));
+                statement.setString(2, rows.getString("Title"));
+                statement.setInt(3, rows.getInt("Length"));
+                statement.setDate(4, rows.getDate("ReleaseDate"));
+                statement.setString(5, rows.getString("MPAA"));
+                statement.addBatch();
+            }
+            return statement.executeBatch();
+        });
+
+        snapshotPath = Files.createTempFile("catalog", ".snapshot");
+        dataset.writeSnapshot(snapshotPath);
+
+        Config config = SyntheticDataset.config(snapshotPath)
+                .withValue("cache.movies.ttl", ConfigValueFactory.fromAnyRef("1 ms"))
+                .withValue("cache.search.ttl", ConfigValueFactory.fromAnyRef("1 ms"));
+        MovieCatalog catalog = new MovieCatalog(dataSource, config);
+        movieManager = new MovieManager(dataSource, catalog, new MovieSearchIndex(catalog, config), config, new Metrics(), new RetryQueue(dataSource, config),
+                                       new WatchLog(config, dataSource, new Metrics()), new InvalidationBus(config, dataSource, new Metrics()),
+                                       new MovieStats(config, dataSource, new Metrics()));
+        catalog.current();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dataSource.close();
+        Files.deleteIfExists(snapshotPath);
+    }
+
+    @Benchmark
+    public Movie getMovie() throws Exception {
+        return movieManager.getMovie(dataset.movieID(ThreadLocalRandom.current().nextInt(movies))).toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public List<Movie> getMovies() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Integer> movieIDs = List.of(dataset.movieID(random.nextInt(movies)), dataset.movieID(random.nextInt(movies)),
+                                         dataset.movieID(random.nextInt(movies)));
+        return movieManager.getMovies(movieIDs).toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public LinkedHashSet<Movie> searchMovies() throws Exception {
+        String query = queries[ThreadLocalRandom.current().nextInt(queries.length)];
+        return movieManager.searchMovies(query, 0, 0, true).toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,87 @@
+package models;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping result set rows into Movie, User and MovieCollection objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+    @Param({"1000"})
+    public int rows;
+
+    private ResultSet movieRows;
+    private ResultSet userRows;
+    private ResultSet collectionRows;
+    private CatalogSnapshot snapshot;
+    private Path snapshotPath;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticDataset dataset = new SyntheticDataset(42, rows, rows);
+        movieRows = dataset.movieRows();
+        userRows = dataset.userRows();
+        collectionRows = dataset.collectionRows();
+
+        snapshotPath = Files.createTempFile("catalog", ".snapshot");
+        dataset.writeSnapshot(snapshotPath);
+        snapshot = CatalogSnapshot.map(snapshotPath);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshotPath);
+    }
+
+    @Benchmark
+    public void movies(Blackhole blackhole) throws SQLException {
+        movieRows.beforeFirst();
+        while(movieRows.next())
+            blackhole.consume(MovieManager.readMovie(movieRows, null));
+    }
+
+    @Benchmark
+    public void moviesFromCatalog(Blackhole blackhole) throws SQLException {
+        movieRows.beforeFirst();
+        while(movieRows.next())
+            blackhole.consume(MovieManager.readMovie(movieRows, snapshot));
+    }
+
+    @Benchmark
+    public void users(Blackhole blackhole) throws SQLException {
+        userRows.beforeFirst();
+        while(userRows.next())
+            blackhole.consume(AccountManager.readUser(userRows));
+    }
+
+    @Benchmark
+    public void collections(Blackhole blackhole) throws SQLException {
+        collectionRows.beforeFirst();
+        while(collectionRows.next())
+            blackhole.consume(CollectionManager.readCollection(collectionRows));
+    }
+}
@@ -0,0 +1,77 @@
+package models;
+
+import com.typesafe.config.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the column sorted search query and of ranking a relevance search with
+ * the in-memory index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"10000"})
+    public int movies;
+
+    private String[] queries;
+    private MovieManager movieManager;
+    private MovieSearchIndex searchIndex;
+    private Path snapshotPath;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        SyntheticDataset dataset = new SyntheticDataset(42, movies, 10);
+        queries = dataset.queries(1024);
+
+        snapshotPath = Files.createTempFile("catalog", ".snapshot");
+        dataset.writeSnapshot(snapshotPath);
+
+        Config config = SyntheticDataset.config(snapshotPath);
+        DataSource dataSource = new UnavailableDataSource();
+        MovieCatalog catalog = new MovieCatalog(dataSource, config);
+        searchIndex = new MovieSearchIndex(catalog, config);
+        movieManager = new MovieManager(dataSource, catalog, searchIndex, config, new Metrics(), new RetryQueue(dataSource, config),
+                                       new WatchLog(config, dataSource, new Metrics()), new InvalidationBus(config, dataSource, new Metrics()),
+                                       new MovieStats(config, dataSource, new Metrics()));
+
+        searchIndex.search(queries[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshotPath);
+    }
+
+    @Benchmark
+    public String searchSql() {
+        int i = next++ & (queries.length - 1);
+        return movieManager.searchSql(queries[i], i % 6, i % 7, (i & 1) == 0);
+    }
+
+    @Benchmark
+    public int[] relevanceSearch() {
+        return searchIndex.search(queries[next++ & (queries.length - 1)]);
+    }
+}
@@ -0,0 +1,43 @@
+package models;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import play.libs.Json;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding the signed in user from the session, which most controllers do on every request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionBenchmark {
+    private String[] sessions;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SyntheticDataset dataset = new SyntheticDataset(42, 10, 256);
+        sessions = new String[256];
+        for(int i = 0; i < sessions.length; i++)
+            sessions[i] = dataset.userJson(i);
+    }
+
+    @Benchmark
+    public User decodeUser() {
+        String userJson = sessions[next++ & (sessions.length - 1)];
+        return Json.fromJson(Json.parse(userJson), User.class);
+    }
+}
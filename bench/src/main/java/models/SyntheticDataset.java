@@ -0,0 +1,241 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigValueFactory;
+import play.libs.Json;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic movie catalog, users and collections for benchmarks. The same seed and sizes
+ * always produce the same data, so results are comparable between runs and versions.
+ */
+public final class SyntheticDataset {
+    private static final String[] WORDS = {
+            "night", "city", "return", "last", "dark", "star", "river", "king", "summer", "ghost",
+            "love", "war", "secret", "road", "shadow", "fire", "island", "dream", "storm", "garden",
+            "matrix", "empire", "silent", "golden", "lost", "wild", "blue", "iron", "house", "winter"
+    };
+    private static final String[] FIRST_NAMES = {
+            "Keanu", "Carrie", "Laurence", "Hugo", "Emma", "Tom", "Meryl", "Denzel", "Viola", "Greta",
+            "Sofia", "Akira", "Bong", "Agnes", "Spike", "Ridley", "Kathryn", "Wong", "Chloe", "Jordan"
+    };
+    private static final String[] LAST_NAMES = {
+            "Reeves", "Moss", "Fishburne", "Weaving", "Stone", "Hanks", "Streep", "Washington", "Davis", "Gerwig",
+            "Coppola", "Kurosawa", "Joon-ho", "Varda", "Lee", "Scott", "Bigelow", "Kar-wai", "Zhao", "Peele"
+    };
+    private static final String[] STUDIOS = {
+            "Warner Bros.", "Paramount", "Universal", "Columbia", "A24", "Lionsgate", "Pixar", "Toho", "Gaumont", "Neon"
+    };
+    private static final String[] GENRES = {
+            "Action", "Comedy", "Drama", "Horror", "Romance", "Science Fiction", "Thriller", "Animation", "Documentary", "Fantasy"
+    };
+    private static final String[] MPAA = {"G", "PG", "PG-13", "R", "NC-17"};
+
+    private final int[] movieIDs;
+    private final String[] titles;
+    private final int[] lengths;
+    private final LocalDate[] releaseDates;
+    private final String[] mpaa;
+    private final String[][] directors;
+    private final String[][] castMembers;
+    private final String[][] studios;
+    private final String[][] genres;
+    private final double[] ratings;
+    private final User[] users;
+    private final List<Object[]> collections = new ArrayList<>();
+
+    /**
+     * Generate a dataset
+     * @param seed Seed of the generator
+     * @param movieCount Number of movies
+     * @param userCount Number of users, each owning up to five collections
+     */
+    public SyntheticDataset(long seed, int movieCount, int userCount) {
+        Random random = new Random(seed);
+
+        movieIDs = new int[movieCount];
+        titles = new String[movieCount];
+        lengths = new int[movieCount];
+        releaseDates = new LocalDate[movieCount];
+        mpaa = new String[movieCount];
+        directors = new String[movieCount][];
+        castMembers = new String[movieCount][];
+        studios = new String[movieCount][];
+        genres = new String[movieCount][];
+        ratings = new double[movieCount];
+
+        for(int i = 0; i < movieCount; i++) {
+            movieIDs[i] = 1000 + i * 3;
+            titles[i] = title(random);
+            lengths[i] = 70 + random.nextInt(110);
+            releaseDates[i] = random.nextInt(20) == 0 ? null : LocalDate.ofEpochDay(-15000 + random.nextInt(34000));
+            mpaa[i] = MPAA[random.nextInt(MPAA.length)];
+            directors[i] = pick(random, 1 + random.nextInt(2), null);
+            castMembers[i] = pick(random, 2 + random.nextInt(6), null);
+            studios[i] = pick(random, 1 + random.nextInt(2), STUDIOS);
+            genres[i] = pick(random, 1 + random.nextInt(3), GENRES);
+            ratings[i] = Math.round((1 + random.nextDouble() * 4) * 10) / 10.0;
+        }
+
+        users = new User[userCount];
+        for(int i = 0; i < userCount; i++) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            String username = (first+last).toLowerCase()+i;
+            Timestamp created = new Timestamp(1500000000000L + random.nextInt(1000000) * 100000L);
+            users[i] = new User(i + 1, username, username+"@example.com", first, last, created,
+                                new Timestamp(created.getTime() + random.nextInt(1000000) * 1000L));
+
+            int owned = random.nextInt(6);
+            for(int c = 0; c < owned; c++) {
+                collections.add(new Object[]{i + 1, collections.size() + 1, WORDS[random.nextInt(WORDS.length)]+" picks",
+                                             random.nextInt(40), random.nextInt(6000)});
+            }
+        }
+    }
+
+    private static String title(Random random) {
+        int words = 1 + random.nextInt(3);
+        StringBuilder title = new StringBuilder();
+        for(int w = 0; w < words; w++) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if(w > 0)
+                title.append(' ');
+            title.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+        }
+        return title.toString();
+    }
+
+    private static String[] pick(Random random, int count, String[] from) {
+        String[] picked = new String[count];
+        for(int i = 0; i < count; i++) {
+            picked[i] = from != null ? from[random.nextInt(from.length)]
+                    : FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]+" "+LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        }
+        return picked;
+    }
+
+    /**
+     * Number of movies
+     */
+    public int movieCount() {
+        return movieIDs.length;
+    }
+
+    /**
+     * MovieID of the i-th movie. IDs are not contiguous.
+     */
+    public int movieID(int i) {
+        return movieIDs[i];
+    }
+
+    /**
+     * Write the catalog as a snapshot file
+     * @param path Where to write it
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        CatalogSnapshot.Writer writer = new CatalogSnapshot.Writer();
+
+        for(int i = 0; i < movieIDs.length; i++) {
+            writer.movie(movieIDs[i], titles[i], lengths[i], releaseDates[i], mpaa[i]);
+            for(String name : directors[i])
+                writer.director(movieIDs[i], name);
+            for(String name : castMembers[i])
+                writer.castMember(movieIDs[i], name);
+            for(String name : studios[i])
+                writer.studio(movieIDs[i], name);
+            for(String name : genres[i])
+                writer.genre(movieIDs[i], name);
+        }
+
+        writer.write(path);
+    }
+
+    /**
+     * Rows shaped like the result of MovieManager.loadMovies
+     */
+    public ResultSet movieRows() {
+        List<Object[]> rows = new ArrayList<>(movieIDs.length);
+        for(int i = 0; i < movieIDs.length; i++) {
+            rows.add(new Object[]{movieIDs[i], titles[i], lengths[i],
+                                  releaseDates[i] == null ? null : Date.valueOf(releaseDates[i]), mpaa[i], ratings[i]});
+        }
+        return SyntheticResultSet.of(new String[]{"MovieID", "Title", "Length", "ReleaseDate", "MPAA", "Rating"}, rows);
+    }
+
+    /**
+     * Rows shaped like SELECT * FROM Users
+     */
+    public ResultSet userRows() {
+        List<Object[]> rows = new ArrayList<>(users.length);
+        for(User user : users) {
+            rows.add(new Object[]{user.getUserID(), user.getUsername(), "password", user.getEmail(), user.getFirstName(),
+                                  user.getLastName(), user.getCreationDate(), user.getLastAccess()});
+        }
+        return SyntheticResultSet.of(new String[]{"UserID", "Username", "Password", "Email", "FirstName", "LastName",
+                                                  "CreationDate", "LastAccess"}, rows);
+    }
+
+    /**
+     * Rows shaped like the result of CollectionManager.loadCollections
+     */
+    public ResultSet collectionRows() {
+        return SyntheticResultSet.of(new String[]{"UserID", "CollectionID", "Name", "Total", "Length"}, collections);
+    }
+
+    /**
+     * Session cookie value of a signed in user, as written by SignInController
+     */
+    public String userJson(int i) {
+        return Json.toJson(users[i % users.length]).toString();
+    }
+
+    /**
+     * Search queries mixing title words, people and genres
+     * @param count Number of queries
+     */
+    public String[] queries(int count) {
+        Random random = new Random(movieIDs.length * 31L + count);
+        String[] queries = new String[count];
+
+        for(int i = 0; i < count; i++) {
+            switch (i % 3) {
+                case 0:
+                    queries[i] = WORDS[random.nextInt(WORDS.length)];
+                    break;
+                case 1:
+                    queries[i] = WORDS[random.nextInt(WORDS.length)]+" "+LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+                    break;
+                default:
+                    queries[i] = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]+" "+GENRES[random.nextInt(GENRES.length)];
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * The application configuration, with the catalog snapshot pointed at a benchmark file.
+     * The database settings are left unresolved since benchmarks never connect.
+     * @param snapshotPath Path of the snapshot written by writeSnapshot
+     */
+    public static Config config(Path snapshotPath) {
+        return ConfigFactory.parseResources("application.conf")
+                .withValue("catalog.snapshot.path", ConfigValueFactory.fromAnyRef(snapshotPath.toString()))
+                .withValue("catalog.snapshot.maxAge", ConfigValueFactory.fromAnyRef("3650 days"))
+                .withValue("watchLog.path", ConfigValueFactory.fromAnyRef(snapshotPath.resolveSibling("watch-log").toString()))
+                .resolve(ConfigResolveOptions.defaults().setAllowUnresolved(true));
+    }
+}
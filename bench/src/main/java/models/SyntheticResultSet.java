@@ -0,0 +1,90 @@
+package models;
+
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Read-only, scrollable-to-start result set over rows held in memory, so row mapping can be
+ * measured without a database. Column labels are case-insensitive like PostgreSQL's.
+ */
+final class SyntheticResultSet {
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<Object[]> rows;
+    private int row = -1;
+    private boolean wasNull;
+
+    private SyntheticResultSet(String[] labels, List<Object[]> rows) {
+        for(int i = 0; i < labels.length; i++)
+            columns.put(labels[i].toLowerCase(Locale.ROOT), i);
+        this.rows = rows;
+    }
+
+    /**
+     * Create a result set positioned before its first row. beforeFirst() rewinds it.
+     * @param labels Column labels
+     * @param rows Row values in column order
+     */
+    static ResultSet of(String[] labels, List<Object[]> rows) {
+        SyntheticResultSet results = new SyntheticResultSet(labels, rows);
+        return (ResultSet) Proxy.newProxyInstance(SyntheticResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> results.invoke(method.getName(), args));
+    }
+
+    private Object invoke(String method, Object[] args) throws SQLException {
+        switch (method) {
+            case "next":
+                return ++row < rows.size();
+            case "beforeFirst":
+                row = -1;
+                return null;
+            case "close":
+                return null;
+            case "wasNull":
+                return wasNull;
+            case "getInt":
+                Object intValue = value(args[0]);
+                return intValue == null ? 0 : ((Number) intValue).intValue();
+            case "getLong":
+                Object longValue = value(args[0]);
+                return longValue == null ? 0L : ((Number) longValue).longValue();
+            case "getDouble":
+                Object doubleValue = value(args[0]);
+                return doubleValue == null ? 0.0 : ((Number) doubleValue).doubleValue();
+            case "getString":
+                Object stringValue = value(args[0]);
+                return stringValue == null ? null : stringValue.toString();
+            case "getDate":
+                return (Date) value(args[0]);
+            case "getTimestamp":
+                return (Timestamp) value(args[0]);
+            case "getObject":
+                return value(args[0]);
+            default:
+                throw new SQLException("Unsupported by SyntheticResultSet: "+method);
+        }
+    }
+
+    private Object value(Object column) throws SQLException {
+        int index;
+        if(column instanceof Integer) {
+            index = (Integer) column - 1;
+        }
+        else {
+            Integer found = columns.get(((String) column).toLowerCase(Locale.ROOT));
+            if(found == null)
+                throw new SQLException("No column "+column);
+            index = found;
+        }
+
+        Object value = rows.get(row)[index];
+        wasNull = value == null;
+        return value;
+    }
+}
@@ -0,0 +1,16 @@
+package models;
+
+/**
+ * Data source for benchmarks that never connects. Every callback is skipped and returns null,
+ * the same as a failed query in PostgreSQLDataSource.
+ */
+final class UnavailableDataSource implements DataSource {
+    @Override
+    public <T> T withConnection(DataSourceCallable<T> callable) {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,98 @@
+# Application tables. IF NOT EXISTS lets the script be applied to a database created by hand.
+
+# --- !Ups
+
+CREATE TABLE IF NOT EXISTS Users (
+    UserID SERIAL PRIMARY KEY,
+    Username VARCHAR(64) NOT NULL UNIQUE,
+    Password VARCHAR(64) NOT NULL,
+    Email VARCHAR(128) NOT NULL UNIQUE,
+    FirstName VARCHAR(64),
+    LastName VARCHAR(64),
+    CreationDate TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    LastAccess TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS Follows (
+    FollowerUserID INT NOT NULL REFERENCES Users(UserID) ON DELETE CASCADE,
+    FollowedUserID INT NOT NULL REFERENCES Users(UserID) ON DELETE CASCADE,
+    PRIMARY KEY (FollowerUserID, FollowedUserID)
+);
+
+CREATE TABLE IF NOT EXISTS Movies (
+    MovieID SERIAL PRIMARY KEY,
+    Title VARCHAR(256) NOT NULL,
+    Length INT NOT NULL,
+    ReleaseDate DATE,
+    MPAA VARCHAR(8)
+);
+
+CREATE TABLE IF NOT EXISTS People (
+    PersonID SERIAL PRIMARY KEY,
+    Name VARCHAR(128) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS Directors (
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    PersonID INT NOT NULL REFERENCES People(PersonID) ON DELETE CASCADE,
+    PRIMARY KEY (MovieID, PersonID)
+);
+
+CREATE TABLE IF NOT EXISTS CastMembers (
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    PersonID INT NOT NULL REFERENCES People(PersonID) ON DELETE CASCADE,
+    PRIMARY KEY (MovieID, PersonID)
+);
+
+CREATE TABLE IF NOT EXISTS Studios (
+    StudioID SERIAL PRIMARY KEY,
+    Name VARCHAR(128) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS StudioMovies (
+    StudioID INT NOT NULL REFERENCES Studios(StudioID) ON DELETE CASCADE,
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    PRIMARY KEY (StudioID, MovieID)
+);
+
+CREATE TABLE IF NOT EXISTS Genre (
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    Genre VARCHAR(64) NOT NULL,
+    PRIMARY KEY (MovieID, Genre)
+);
+
+CREATE TABLE IF NOT EXISTS Watches (
+    UserID INT NOT NULL REFERENCES Users(UserID) ON DELETE CASCADE,
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    TimesPlayed INT NOT NULL DEFAULT 1,
+    LastWatched TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    Rating INT CHECK (Rating BETWEEN 1 AND 5),
+    PRIMARY KEY (UserID, MovieID)
+);
+
+CREATE TABLE IF NOT EXISTS Collections (
+    CollectionID SERIAL PRIMARY KEY,
+    UserID INT NOT NULL REFERENCES Users(UserID) ON DELETE CASCADE,
+    Name VARCHAR(128) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS CollectionMovies (
+    CollectionID INT NOT NULL REFERENCES Collections(CollectionID) ON DELETE CASCADE,
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    PRIMARY KEY (CollectionID, MovieID)
+);
+
+# --- !Downs
+
+DROP TABLE IF EXISTS CollectionMovies;
+DROP TABLE IF EXISTS Collections;
+DROP TABLE IF EXISTS Watches;
+DROP TABLE IF EXISTS Genre;
+DROP TABLE IF EXISTS StudioMovies;
+DROP TABLE IF EXISTS Studios;
+DROP TABLE IF EXISTS CastMembers;
+DROP TABLE IF EXISTS Directors;
+DROP TABLE IF EXISTS People;
+DROP TABLE IF EXISTS Movies;
+DROP TABLE IF EXISTS Follows;
+DROP TABLE IF EXISTS Users;
@@ -0,0 +1,31 @@
+# Tables kept by the application: watch log progress and per movie watch totals, filled
+# from the watches already recorded.
+
+# --- !Ups
+
+-- How far each local watch log has been applied, updated in the same transaction as its events
+CREATE TABLE IF NOT EXISTS WatchLogCheckpoint (
+    LogID VARCHAR(36) PRIMARY KEY,
+    AppliedOffset BIGINT NOT NULL
+);
+
+-- Watch totals of each movie, changed with every write to Watches and reconciled against it
+CREATE TABLE IF NOT EXISTS MovieStats (
+    MovieID INT PRIMARY KEY REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    Watchers INT NOT NULL DEFAULT 0,
+    Plays BIGINT NOT NULL DEFAULT 0,
+    RatingSum BIGINT NOT NULL DEFAULT 0,
+    Ratings INT NOT NULL DEFAULT 0,
+    LastWatched TIMESTAMP
+);
+
+INSERT INTO MovieStats (MovieID, Watchers, Plays, RatingSum, Ratings, LastWatched)
+SELECT M.MovieID, COUNT(W.UserID), COALESCE(SUM(W.TimesPlayed), 0), COALESCE(SUM(W.Rating), 0), COUNT(W.Rating), MAX(W.LastWatched)
+FROM Movies AS M LEFT JOIN Watches AS W ON W.MovieID = M.MovieID
+GROUP BY M.MovieID
+ON CONFLICT DO NOTHING;
+
+# --- !Downs
+
+DROP TABLE IF EXISTS MovieStats;
+DROP TABLE IF EXISTS WatchLogCheckpoint;
@@ -0,0 +1,12 @@
+# Trigram matching, for the indexes of the LIKE '%term%' searches. Creating an extension
+# needs the CREATE privilege on the database (superuser before PostgreSQL 13). Where the
+# application's role does not have it, a database owner runs this statement once beforehand,
+# after which it does nothing.
+
+# --- !Ups
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+# --- !Downs
+
+DROP EXTENSION IF EXISTS pg_trgm;
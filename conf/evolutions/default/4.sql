@@ -0,0 +1,39 @@
+# Indexes of the hot queries. Watches(UserID, MovieID) is its primary key. The trigram
+# indexes serve the LIKE '%term%' searches and are built on the exact expressions the
+# searches filter on. They are built CONCURRENTLY, so writes go on while they build, which
+# is why this script runs outside a transaction, one statement at a time.
+
+# --- !Ups
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Watches_MovieID_LastWatched ON Watches (MovieID, LastWatched);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Follows_FollowedUserID ON Follows (FollowedUserID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Collections_UserID ON Collections (UserID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS StudioMovies_MovieID ON StudioMovies (MovieID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS CastMembers_PersonID ON CastMembers (PersonID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Directors_PersonID ON Directors (PersonID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Genre_Genre ON Genre (Genre);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Movies_ReleaseDate ON Movies (ReleaseDate);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS MovieStats_LastWatched ON MovieStats (LastWatched);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Users_Email_Trigram ON Users USING gin (LOWER(Email) gin_trgm_ops);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Movies_Title_Trigram ON Movies USING gin (LOWER(Title::VARCHAR) gin_trgm_ops);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS People_Name_Trigram ON People USING gin (LOWER(Name::VARCHAR) gin_trgm_ops);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Studios_Name_Trigram ON Studios USING gin (LOWER(Name::VARCHAR) gin_trgm_ops);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS Genre_Genre_Trigram ON Genre USING gin (LOWER(Genre::VARCHAR) gin_trgm_ops);
+
+# --- !Downs
+
+DROP INDEX CONCURRENTLY IF EXISTS Genre_Genre_Trigram;
+DROP INDEX CONCURRENTLY IF EXISTS Studios_Name_Trigram;
+DROP INDEX CONCURRENTLY IF EXISTS People_Name_Trigram;
+DROP INDEX CONCURRENTLY IF EXISTS Movies_Title_Trigram;
+DROP INDEX CONCURRENTLY IF EXISTS Users_Email_Trigram;
+DROP INDEX CONCURRENTLY IF EXISTS MovieStats_LastWatched;
+DROP INDEX CONCURRENTLY IF EXISTS Movies_ReleaseDate;
+DROP INDEX CONCURRENTLY IF EXISTS Genre_Genre;
+DROP INDEX CONCURRENTLY IF EXISTS Directors_PersonID;
+DROP INDEX CONCURRENTLY IF EXISTS CastMembers_PersonID;
+DROP INDEX CONCURRENTLY IF EXISTS StudioMovies_MovieID;
+DROP INDEX CONCURRENTLY IF EXISTS Collections_UserID;
+DROP INDEX CONCURRENTLY IF EXISTS Follows_FollowedUserID;
+DROP INDEX CONCURRENTLY IF EXISTS Watches_MovieID_LastWatched;
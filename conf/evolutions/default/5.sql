@@ -0,0 +1,27 @@
+# Per day watch totals of each movie, for lists over a recent window, filled from the watches
+# already recorded.
+
+# --- !Ups
+
+-- Totals of the watches of each movie last played on each day, moved to the day of a watch's
+-- latest play with every write to Watches and reconciled against it
+CREATE TABLE IF NOT EXISTS MovieStatsDaily (
+    MovieID INT NOT NULL REFERENCES Movies(MovieID) ON DELETE CASCADE,
+    LastWatchedOn DATE NOT NULL,
+    Watchers INT NOT NULL DEFAULT 0,
+    Plays BIGINT NOT NULL DEFAULT 0,
+    RatingSum BIGINT NOT NULL DEFAULT 0,
+    Ratings INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (MovieID, LastWatchedOn)
+);
+
+CREATE INDEX IF NOT EXISTS MovieStatsDaily_LastWatchedOn ON MovieStatsDaily (LastWatchedOn);
+
+INSERT INTO MovieStatsDaily (MovieID, LastWatchedOn, Watchers, Plays, RatingSum, Ratings)
+SELECT MovieID, CAST(LastWatched AS DATE), COUNT(*), SUM(TimesPlayed), COALESCE(SUM(Rating), 0), COUNT(Rating)
+FROM Watches
+GROUP BY MovieID, CAST(LastWatched AS DATE);
+
+# --- !Downs
+
+DROP TABLE IF EXISTS MovieStatsDaily;
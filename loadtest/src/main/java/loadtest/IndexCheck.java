@@ -0,0 +1,183 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import models.SlowQueryLog;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that the statements the application ran use the indexes. Every statement logged by
+ * the slow query log, with its threshold at zero while traffic was driven, is explained on the
+ * seeded database with sequential scans disabled, so a plan still holding one has no index to
+ * use. A scan reading a whole index to filter out most of its table fails the check too, as
+ * the planner falls back to one when no index serves the filter; whole reads that keep most
+ * rows, like listing every user, are by design. Tables under a thousand rows are cheaper to
+ * read whole than through any index, so their scans are not checked; run with a scale large
+ * enough for the tables that matter.
+ */
+public class IndexCheck {
+    private static final int MIN_ROWS = 1000;
+
+    /**
+     * Queries reading whole tables by design, or session temporary tables, which cannot be
+     * explained on another connection
+     */
+    private static final Set<String> EXCLUDED = Set.of("MovieCatalog.rebuild", "CollectionManager.importCollections");
+
+    /**
+     * Filters no index can serve: a date's text depends on DateStyle, so it cannot be indexed
+     */
+    private static final List<String> UNINDEXABLE = List.of("LOWER(ReleaseDate::VARCHAR) LIKE");
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Double> tableRows = new HashMap<>();
+    private final Connection conn;
+
+    /**
+     * Constructor for IndexCheck
+     * @param conn Connection to the seeded database
+     */
+    public IndexCheck(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * Explain each distinct statement once and print those whose plans do not use an index
+     * @param entries The logged queries
+     * @param out Where to print the failures
+     * @return the number of statements failing the check
+     * @throws SQLException if sequential scans cannot be disabled
+     */
+    public int check(List<SlowQueryLog.Entry> entries, PrintStream out) throws SQLException {
+        try(Statement statement = conn.createStatement()) {
+            statement.execute("SET enable_seqscan = off;");
+        }
+
+        Map<String, SlowQueryLog.ExecutedStatement> statements = new LinkedHashMap<>();
+        Map<String, String> names = new LinkedHashMap<>();
+        for(SlowQueryLog.Entry entry : entries) {
+            if(EXCLUDED.contains(entry.getName()))
+                continue;
+            for(SlowQueryLog.ExecutedStatement statement : entry.getStatements()) {
+                String sql = statement.getSql();
+                if(explainable(sql) && UNINDEXABLE.stream().noneMatch(sql::contains) && !statements.containsKey(sql)) {
+                    statements.put(sql, statement);
+                    names.put(sql, entry.getName());
+                }
+            }
+        }
+
+        int failures = 0;
+        for(SlowQueryLog.ExecutedStatement statement : statements.values()) {
+            Set<String> problems = new LinkedHashSet<>();
+            try {
+                problems(plan(statement).get(0).get("Plan"), problems);
+            } catch (SQLException e) {
+                problems.add("could not be explained: "+e.getMessage());
+            }
+
+            if(!problems.isEmpty()) {
+                failures++;
+                out.println(names.get(statement.getSql())+": "+String.join(", ", problems));
+                out.println("    "+statement);
+            }
+        }
+
+        out.println(statements.size()+" statements explained, "+failures+" not using an index");
+        return failures;
+    }
+
+    /**
+     * Whether a statement can be explained, rather than being e.g. a SET or a NOTIFY
+     */
+    private static boolean explainable(String sql) {
+        String start = sql.stripLeading().toUpperCase();
+        return start.startsWith("SELECT") || start.startsWith("WITH") || start.startsWith("INSERT")
+                || start.startsWith("UPDATE") || start.startsWith("DELETE");
+    }
+
+    /**
+     * Plan a statement with the parameters it was executed with, without running it
+     */
+    private JsonNode plan(SlowQueryLog.ExecutedStatement statement) throws SQLException {
+        try(PreparedStatement explain = conn.prepareStatement("EXPLAIN (FORMAT JSON) "+statement.getSql())) {
+            int index = 1;
+            for(Object param : statement.getParams()) {
+                if(param instanceof Object[])
+                    explain.setArray(index++, conn.createArrayOf(arrayType((Object[]) param), (Object[]) param));
+                else
+                    explain.setObject(index++, param);
+            }
+
+            try(ResultSet results = explain.executeQuery()) {
+                results.next();
+                return mapper.readTree(results.getString(1));
+            } catch (Exception e) {
+                throw e instanceof SQLException ? (SQLException) e : new SQLException("Unreadable plan", e);
+            }
+        }
+    }
+
+    private static String arrayType(Object[] values) {
+        Class<?> type = values.getClass().getComponentType();
+        if(type == String.class)
+            return "text";
+        if(type == Long.class)
+            return "bigint";
+        if(type == Timestamp.class)
+            return "timestamp";
+        if(type == Boolean.class)
+            return "boolean";
+        return "integer";
+    }
+
+    /**
+     * Collect the scans of a plan node and its children that do not use an index
+     */
+    private void problems(JsonNode node, Set<String> problems) throws SQLException {
+        String type = node.path("Node Type").asText();
+        String relation = node.path("Relation Name").asText();
+
+        if(type.equals("Seq Scan") && tableRows(relation) >= MIN_ROWS)
+            problems.add("sequential scan of "+relation);
+        else if((type.equals("Index Scan") || type.equals("Index Only Scan")) && !node.has("Index Cond") && node.has("Filter")) {
+            double rows = tableRows(relation);
+            if(rows >= MIN_ROWS && node.path("Plan Rows").asDouble() * 2 < rows)
+                problems.add(String.format("whole index %s scanned to keep %d of %.0f rows", node.path("Index Name").asText(),
+                        node.path("Plan Rows").asLong(), rows));
+        }
+
+        for(JsonNode child : node.path("Plans"))
+            problems(child, problems);
+    }
+
+    /**
+     * Estimated number of rows in a table
+     */
+    private double tableRows(String table) throws SQLException {
+        Double rows = tableRows.get(table);
+        if(rows == null) {
+            try(PreparedStatement statement = conn.prepareStatement("SELECT reltuples FROM pg_class WHERE relname = ?;")) {
+                statement.setString(1, table);
+                try(ResultSet results = statement.executeQuery()) {
+                    rows = results.next() ? results.getDouble(1) : 0;
+                }
+            }
+            tableRows.put(table, rows);
+        }
+        return rows;
+    }
+}
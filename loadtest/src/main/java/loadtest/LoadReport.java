@@ -0,0 +1,195 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import play.libs.Json;
+import util.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-route latency and errors of a load test run. A request is an error if it failed or
+ * the application answered with a 5xx status.
+ */
+public class LoadReport {
+    private final Map<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private volatile long startedAt = System.nanoTime();
+    private volatile long finishedAt;
+
+    /**
+     * Latency and errors of one route
+     */
+    public static final class RouteStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public double getErrorRate() {
+            long count = latency.getCount();
+            return count == 0 ? 0 : (double) errors.get() / count;
+        }
+    }
+
+    /**
+     * Record a completed request
+     * @param route The route, as "VERB pattern" or the captured controller method
+     * @param nanos Time from when the request was scheduled to when the response arrived
+     * @param status HTTP status, or -1 if the request failed
+     */
+    public void record(String route, long nanos, int status) {
+        RouteStats stats = routes.computeIfAbsent(route, r -> new RouteStats());
+        stats.latency.record(nanos);
+        if(status < 0 || status >= 500)
+            stats.errors.incrementAndGet();
+    }
+
+    /**
+     * Start measuring, discarding anything recorded before
+     */
+    public void start() {
+        routes.clear();
+        startedAt = System.nanoTime();
+        finishedAt = 0;
+    }
+
+    /**
+     * Stop measuring
+     */
+    public void finish() {
+        finishedAt = System.nanoTime();
+    }
+
+    private double seconds() {
+        return ((finishedAt == 0 ? System.nanoTime() : finishedAt) - startedAt) / 1e9;
+    }
+
+    /**
+     * Statistics per route, sorted by route
+     */
+    public Map<String, RouteStats> getRoutes() {
+        return new TreeMap<>(routes);
+    }
+
+    /**
+     * The report as a table
+     */
+    public String toTable() {
+        double seconds = seconds();
+        StringBuilder table = new StringBuilder(String.format("%-40s %8s %9s %9s %9s %9s %7s%n",
+                "route", "count", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "err %"));
+
+        long count = 0;
+        long errors = 0;
+        for(Map.Entry<String, RouteStats> entry : getRoutes().entrySet()) {
+            RouteStats stats = entry.getValue();
+            table.append(row(entry.getKey(), stats.latency, stats.getErrorRate(), seconds));
+            count += stats.latency.getCount();
+            errors += stats.getErrors();
+        }
+
+        table.append(String.format("%-40s %8d %9.1f%n", "total", count, count / seconds));
+        table.append(String.format("%d errors (%.2f%%) in %.1f s%n", errors, count == 0 ? 0 : 100.0 * errors / count, seconds));
+        return table.toString();
+    }
+
+    private static String row(String route, LatencyHistogram latency, double errorRate, double seconds) {
+        return String.format("%-40s %8d %9.1f %9.1f %9.1f %9.1f %7.2f%n", route, latency.getCount(), latency.getCount() / seconds,
+                latency.percentileNanos(0.5) / 1e6, latency.percentileNanos(0.99) / 1e6,
+                latency.percentileNanos(0.999) / 1e6, errorRate * 100);
+    }
+
+    /**
+     * Write the report as JSON, for comparing runs
+     * @param path Where to write it
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(Path path) throws IOException {
+        double seconds = seconds();
+        ObjectNode report = Json.newObject();
+        report.put("seconds", seconds);
+
+        ArrayNode routesNode = report.putArray("routes");
+        for(Map.Entry<String, RouteStats> entry : getRoutes().entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            routesNode.addObject()
+                    .put("route", entry.getKey())
+                    .put("count", latency.getCount())
+                    .put("throughput", latency.getCount() / seconds)
+                    .put("p50Millis", latency.percentileNanos(0.5) / 1e6)
+                    .put("p99Millis", latency.percentileNanos(0.99) / 1e6)
+                    .put("p999Millis", latency.percentileNanos(0.999) / 1e6)
+                    .put("errors", entry.getValue().getErrors())
+                    .put("errorRate", entry.getValue().getErrorRate());
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        if(parent != null)
+            Files.createDirectories(parent);
+        Files.writeString(path, Json.prettyPrint(report));
+    }
+
+    /**
+     * Compare the latency and errors of every route between two reports written by writeJson.
+     * A route regressed if its p50 or p99 grew by more than the tolerance or its error rate
+     * grew by more than a percentage point.
+     * @param baseline Report of the build known to be good
+     * @param candidate Report of the build being checked
+     * @param tolerance Fraction a route's p50 or p99 may grow by. The histogram buckets are up
+     *                  to 25% wide, so smaller tolerances flag noise.
+     * @param out Where to print the comparison
+     * @return the number of routes that regressed
+     * @throws IOException if a report cannot be read
+     */
+    public static int compare(Path baseline, Path candidate, double tolerance, PrintStream out) throws IOException {
+        Map<String, JsonNode> before = routes(baseline);
+        Map<String, JsonNode> after = routes(candidate);
+        int regressions = 0;
+
+        out.printf("%-40s %10s %10s %10s %10s %8s%n", "route", "p50 before", "p50 after", "p99 before", "p99 after", "");
+        for(Map.Entry<String, JsonNode> entry : after.entrySet()) {
+            JsonNode old = before.get(entry.getKey());
+            if(old == null) {
+                out.printf("%-40s %10s %10.1f %10s %10.1f%n", entry.getKey(), "-", entry.getValue().get("p50Millis").asDouble(),
+                        "-", entry.getValue().get("p99Millis").asDouble());
+                continue;
+            }
+
+            double p50Before = old.get("p50Millis").asDouble();
+            double p50After = entry.getValue().get("p50Millis").asDouble();
+            double p99Before = old.get("p99Millis").asDouble();
+            double p99After = entry.getValue().get("p99Millis").asDouble();
+            boolean regressed = p50After > p50Before * (1 + tolerance) || p99After > p99Before * (1 + tolerance)
+                    || entry.getValue().get("errorRate").asDouble() > old.get("errorRate").asDouble() + 0.01;
+            if(regressed)
+                regressions++;
+
+            out.printf("%-40s %10.1f %10.1f %10.1f %10.1f %8s%n", entry.getKey(), p50Before, p50After, p99Before, p99After,
+                    regressed ? "SLOWER" : "");
+        }
+
+        out.printf("%d of %d routes regressed%n", regressions, after.size());
+        return regressions;
+    }
+
+    private static Map<String, JsonNode> routes(Path report) throws IOException {
+        Map<String, JsonNode> routes = new TreeMap<>();
+        for(JsonNode route : Json.parse(Files.readString(report)).get("routes"))
+            routes.put(route.get("route").asText(), route);
+        return routes;
+    }
+}
@@ -0,0 +1,250 @@
+package loadtest;
+
+import com.typesafe.config.ConfigFactory;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import models.SlowQueryLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.Application;
+import play.Mode;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.test.Helpers;
+import play.test.TestServer;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * End-to-end load test. Starts a local PostgreSQL, seeds it, starts the application against
+ * it and drives a realistic mix of requests at a fixed rate, then prints per-route latency
+ * percentiles, throughput and error rates.
+ *
+ * Run with `sbt "loadtest/run --scale=1 --rate=50 --duration=60"`. Options:
+ * --scale (dataset size), --rate (requests per second), --duration and --warmup (seconds),
+ * --users (signed in users), --seed, --port, --report (path of a JSON report) and
+ * --capture (path to capture the generated traffic to).
+ *
+ * --replay=traffic.jsonl replays captured traffic instead of the generated mix, --speed
+ * times faster than it was captured. --compare=baseline.json,candidate.json compares two
+ * reports and fails if a route's p50 or p99 latency grew by more than --tolerance (a
+ * fraction, 0.3 by default) or its error rate grew.
+ *
+ * --transfer=1000000 measures collection export and import of that many rows instead.
+ *
+ * --check=indexes drives the mix for --duration seconds with every query logged as slow,
+ * then fails if a statement the application ran does not use an index (see IndexCheck).
+ */
+public class LoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        if(options.containsKey("compare")) {
+            String[] reports = options.get("compare").split(",");
+            double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.3"));
+            int regressions = LoadReport.compare(Path.of(reports[0]), Path.of(reports[1]), tolerance, System.out);
+            System.exit(regressions == 0 ? 0 : 1);
+        }
+
+        int scale = Integer.parseInt(options.getOrDefault("scale", "1"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "50"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "60")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "10")));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        int port = Integer.parseInt(options.getOrDefault("port", "19001"));
+
+        int indexFailures = 0;
+        try(EmbeddedPostgres postgres = EmbeddedPostgres.builder().start()) {
+            Seeder.Dataset dataset;
+            try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+                dataset = new Seeder(seed, scale).seed(conn);
+            }
+
+            boolean checkIndexes = "indexes".equals(options.get("check"));
+            if(checkIndexes) {
+                System.setProperty("slowQueries.threshold", "0 ms");
+                System.setProperty("slowQueries.keep", "1000000");
+                System.setProperty("slowQueries.explainRate", "0");
+                System.setProperty("slowQueries.redact", "false");
+                System.setProperty("movieStats.reconcileInterval", "1 second");
+            }
+
+            Application app = startApplication(postgres.getPort(), options.get("capture"));
+            TestServer server = Helpers.testServer(port, app);
+            server.start();
+
+            try {
+                String baseUrl = "http://localhost:"+port;
+                HttpClient client = TrafficDriver.newClient();
+                LoadReport report = new LoadReport();
+
+                if(options.containsKey("transfer")) {
+                    int userID = dataset.users;
+                    try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+                        long rows = TransferBenchmark.seed(conn, dataset, userID, Long.parseLong(options.get("transfer")));
+                        logger.info("Gave "+Seeder.username(userID)+" collections with "+rows+" movies");
+                    }
+
+                    new TransferBenchmark(client, baseUrl).run(signIn(client, baseUrl, userID));
+                    return;
+                }
+
+                if(options.containsKey("replay")) {
+                    List<TrafficReplayer.Captured> captured = TrafficReplayer.read(Path.of(options.get("replay")));
+                    double speed = Double.parseDouble(options.getOrDefault("speed", "1"));
+                    logger.info(String.format("Replaying %d requests at %.1fx speed", captured.size(), speed));
+
+                    report.start();
+                    new TrafficReplayer(client, baseUrl).replay(captured, speed, report);
+                    report.finish();
+                    finish(report, options);
+                    return;
+                }
+
+                TrafficMix mix = new TrafficMix(baseUrl, dataset);
+                checkCoverage(mix);
+
+                if(checkIndexes) {
+                    List<TrafficMix.VirtualUser> users = new ArrayList<>();
+                    for(int userID = 1; userID <= Math.min(dataset.users, 10); userID++)
+                        users.add(signIn(client, baseUrl, userID));
+
+                    logger.info(String.format("Sending %.0f requests/s for %d s to check the indexes", rate, duration.toSeconds()));
+                    new TrafficDriver(client, mix, users, seed).run(rate, duration, report);
+
+                    List<SlowQueryLog.Entry> entries = app.injector().instanceOf(SlowQueryLog.class).getEntries();
+                    try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+                        indexFailures = new IndexCheck(conn).check(entries, System.out);
+                    }
+                    return;
+                }
+
+                int userCount = Math.min(dataset.users, Integer.parseInt(options.getOrDefault("users", "50")));
+                List<TrafficMix.VirtualUser> users = new ArrayList<>();
+                for(int userID = 1; userID <= userCount; userID++)
+                    users.add(signIn(client, baseUrl, userID));
+
+                TrafficDriver driver = new TrafficDriver(client, mix, users, seed);
+
+                logger.info("Warming up for "+warmup.toSeconds()+" s");
+                driver.run(rate, warmup, report);
+
+                logger.info(String.format("Sending %.0f requests/s for %d s", rate, duration.toSeconds()));
+                report.start();
+                driver.run(rate, duration, report);
+                report.finish();
+                finish(report, options);
+            }
+            finally {
+                server.stop();
+            }
+        }
+        finally {
+            if(indexFailures > 0)
+                System.exit(1);
+        }
+    }
+
+    /**
+     * Print the report, and write it as JSON if asked to
+     */
+    private static void finish(LoadReport report, Map<String, String> options) throws Exception {
+        System.out.print(report.toTable());
+        if(options.containsKey("report")) {
+            report.writeJson(Path.of(options.get("report")));
+            logger.info("Report written to "+options.get("report"));
+        }
+    }
+
+    /**
+     * Start the application connected directly to the local database, with a fresh catalog snapshot
+     * @param dbPort Port of the local database
+     * @param capture Where to capture traffic to, or null to not capture it
+     */
+    private static Application startApplication(int dbPort, String capture) throws Exception {
+        Path snapshot = Files.createTempDirectory("loadtest").resolve("catalog.snapshot");
+
+        System.setProperty("CS_USERNAME", "postgres");
+        System.setProperty("CS_PASSWORD", "");
+        System.setProperty("db_config.tunnel", "false");
+        System.setProperty("db_config.host", "localhost");
+        System.setProperty("db_config.rport", String.valueOf(dbPort));
+        System.setProperty("db_config.database", "postgres");
+        System.setProperty("catalog.snapshot.path", snapshot.toString());
+        if(capture != null) {
+            System.setProperty("traffic.capture.enabled", "true");
+            System.setProperty("traffic.capture.path", capture);
+        }
+        ConfigFactory.invalidateCaches();
+
+        return new GuiceApplicationBuilder()
+                .in(Mode.PROD)
+                .configure("play.http.secret.key", "loadtest-secret-key-that-is-long-enough-for-play")
+                .build();
+    }
+
+    /**
+     * Sign in as a seeded user
+     * @return the user with its session cookie
+     */
+    static TrafficMix.VirtualUser signIn(HttpClient client, String baseUrl, int userID) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl+"/signin"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username="+Seeder.username(userID)+"&password="+Seeder.PASSWORD))
+                .build();
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+
+        for(String cookie : response.headers().allValues("Set-Cookie")) {
+            if(cookie.startsWith("PLAY_SESSION="))
+                return new TrafficMix.VirtualUser(userID, cookie.substring(0, cookie.indexOf(';') < 0 ? cookie.length() : cookie.indexOf(';')));
+        }
+
+        throw new IllegalStateException("Could not sign in as "+Seeder.username(userID)+", status "+response.statusCode());
+    }
+
+    /**
+     * Warn about routes in conf/routes that the mix never requests
+     */
+    private static void checkCoverage(TrafficMix mix) throws Exception {
+        Set<String> routes = new LinkedHashSet<>();
+        try(InputStream in = LoadTest.class.getResourceAsStream("/routes");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if(parts.length >= 3 && !parts[0].startsWith("#"))
+                    routes.add(parts[0]+" "+parts[1]);
+            }
+        }
+
+        routes.removeAll(mix.routes());
+        for(String route : routes)
+            logger.warn("Route not covered by the load test: "+route);
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args) {
+            if(!arg.startsWith("--") || !arg.contains("="))
+                throw new IllegalArgumentException("Expected --name=value, got "+arg);
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,333 @@
+package loadtest;
+
+import models.SchemaEvolutions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Evolves the schema and fills it with a deterministic synthetic dataset whose size grows
+ * linearly with a scale factor. Scale 1 is about 1,000 movies and 100 users.
+ */
+public class Seeder {
+    static final String PASSWORD = "password";
+
+    private static final String[] WORDS = {
+            "night", "city", "return", "last", "dark", "star", "river", "king", "summer", "ghost",
+            "love", "war", "secret", "road", "shadow", "fire", "island", "dream", "storm", "garden",
+            "matrix", "empire", "silent", "golden", "lost", "wild", "blue", "iron", "house", "winter"
+    };
+    private static final String[] FIRST_NAMES = {
+            "Keanu", "Carrie", "Laurence", "Hugo", "Emma", "Tom", "Meryl", "Denzel", "Viola", "Greta",
+            "Sofia", "Akira", "Bong", "Agnes", "Spike", "Ridley", "Kathryn", "Wong", "Chloe", "Jordan"
+    };
+    private static final String[] LAST_NAMES = {
+            "Reeves", "Moss", "Fishburne", "Weaving", "Stone", "Hanks", "Streep", "Washington", "Davis", "Gerwig",
+            "Coppola", "Kurosawa", "Joon-ho", "Varda", "Lee", "Scott", "Bigelow", "Kar-wai", "Zhao", "Peele"
+    };
+    private static final String[] GENRES = {
+            "Action", "Comedy", "Drama", "Horror", "Romance", "Science Fiction", "Thriller", "Animation",
+            "Documentary", "Fantasy", "Mystery", "Western"
+    };
+    private static final String[] MPAA = {"G", "PG", "PG-13", "R", "NC-17"};
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final Random random;
+    private final int scale;
+    private long rows;
+
+    /**
+     * What was seeded, for generating requests against it
+     */
+    public static final class Dataset {
+        final int movies;
+        final int users;
+        final List<List<Integer>> userCollections;
+        final int firstScratchCollection;
+        final int scratchCollections;
+
+        Dataset(int movies, int users, List<List<Integer>> userCollections, int firstScratchCollection, int scratchCollections) {
+            this.movies = movies;
+            this.users = users;
+            this.userCollections = userCollections;
+            this.firstScratchCollection = firstScratchCollection;
+            this.scratchCollections = scratchCollections;
+        }
+    }
+
+    /**
+     * Constructor for Seeder
+     * @param seed Seed of the generator, the same seed and scale always produce the same data
+     * @param scale Size of the dataset
+     */
+    public Seeder(long seed, int scale) {
+        this.random = new Random(seed);
+        this.scale = scale;
+    }
+
+    /**
+     * Apply the schema evolutions to an empty database and seed it
+     * @param conn Connection to the empty database
+     * @return a description of the seeded data
+     * @throws SQLException if seeding fails
+     */
+    public Dataset seed(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        conn.setAutoCommit(false);
+
+        if(!Boolean.TRUE.equals(new SchemaEvolutions("evolutions/default", true).apply(conn)))
+            throw new SQLException("The schema evolutions could not be applied");
+
+        int movies = 1000 * scale;
+        int people = 400 * scale;
+        int users = 100 * scale;
+
+        seedPeopleAndStudios(conn, people);
+        seedMovies(conn, movies, people);
+        seedUsers(conn, users);
+        seedFollows(conn, users);
+        seedWatches(conn, users, movies);
+        seedMovieStats(conn);
+        List<List<Integer>> userCollections = seedCollections(conn, users, movies);
+        int firstScratch = userCollections.stream().mapToInt(List::size).sum() + 1;
+        int scratch = seedScratchCollections(conn, users, 1000 * scale);
+
+        try(Statement statement = conn.createStatement()) {
+            statement.execute("ANALYZE;");
+        }
+        conn.commit();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info(String.format("Seeded %d rows in %.1f s (%.0f rows/s)", rows, seconds, rows / seconds));
+
+        return new Dataset(movies, users, userCollections, firstScratch, scratch);
+    }
+
+    private void seedPeopleAndStudios(Connection conn, int people) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("INSERT INTO People (Name) VALUES (?)")) {
+            for(int i = 0; i < people; i++) {
+                statement.setString(1, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]+" "+LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+                add(statement);
+            }
+            statement.executeBatch();
+        }
+
+        try(PreparedStatement statement = conn.prepareStatement("INSERT INTO Studios (Name) VALUES (?)")) {
+            for(int i = 0; i < 50; i++) {
+                statement.setString(1, capitalize(WORDS[i % WORDS.length])+" Pictures "+(i / WORDS.length + 1));
+                add(statement);
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void seedMovies(Connection conn, int movies, int people) throws SQLException {
+        LocalDate today = LocalDate.now();
+
+        try(PreparedStatement movie = conn.prepareStatement("INSERT INTO Movies (Title, Length, ReleaseDate, MPAA) VALUES (?, ?, ?, ?)");
+            PreparedStatement director = conn.prepareStatement("INSERT INTO Directors VALUES (?, ?) ON CONFLICT DO NOTHING");
+            PreparedStatement cast = conn.prepareStatement("INSERT INTO CastMembers VALUES (?, ?) ON CONFLICT DO NOTHING");
+            PreparedStatement studio = conn.prepareStatement("INSERT INTO StudioMovies VALUES (?, ?) ON CONFLICT DO NOTHING");
+            PreparedStatement genre = conn.prepareStatement("INSERT INTO Genre VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+
+            for(int movieID = 1; movieID <= movies; movieID++) {
+                int words = 1 + random.nextInt(3);
+                StringBuilder title = new StringBuilder();
+                for(int w = 0; w < words; w++)
+                    title.append(w == 0 ? "" : " ").append(capitalize(WORDS[random.nextInt(WORDS.length)]));
+
+                // A few movies are recent so the monthly recommendations have something to rank
+                LocalDate released = random.nextInt(50) == 0 ? today.minusDays(random.nextInt(30))
+                                                              : today.minusDays(30 + random.nextInt(365 * 50));
+
+                movie.setString(1, title.toString());
+                movie.setInt(2, 70 + random.nextInt(110));
+                movie.setDate(3, Date.valueOf(released));
+                movie.setString(4, MPAA[random.nextInt(MPAA.length)]);
+                add(movie);
+            }
+            movie.executeBatch();
+
+            for(int movieID = 1; movieID <= movies; movieID++) {
+                for(int i = 1 + random.nextInt(2); i > 0; i--)
+                    add(pair(director, movieID, 1 + random.nextInt(people)));
+                for(int i = 3 + random.nextInt(6); i > 0; i--)
+                    add(pair(cast, movieID, 1 + random.nextInt(people)));
+                for(int i = 1 + random.nextInt(2); i > 0; i--)
+                    add(pair(studio, 1 + random.nextInt(50), movieID));
+                for(int i = 1 + random.nextInt(3); i > 0; i--) {
+                    genre.setInt(1, movieID);
+                    genre.setString(2, GENRES[random.nextInt(GENRES.length)]);
+                    add(genre);
+                }
+            }
+
+            director.executeBatch();
+            cast.executeBatch();
+            studio.executeBatch();
+            genre.executeBatch();
+        }
+    }
+
+    private void seedUsers(Connection conn, int users) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement(
+                "INSERT INTO Users (Username, Password, Email, FirstName, LastName, CreationDate, LastAccess) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            long now = System.currentTimeMillis();
+
+            for(int userID = 1; userID <= users; userID++) {
+                Timestamp created = new Timestamp(now - (long) random.nextInt(1000) * 86_400_000L);
+                statement.setString(1, username(userID));
+                statement.setString(2, PASSWORD);
+                statement.setString(3, username(userID)+"@example.com");
+                statement.setString(4, FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]);
+                statement.setString(5, LAST_NAMES[random.nextInt(LAST_NAMES.length)]);
+                statement.setTimestamp(6, created);
+                statement.setTimestamp(7, new Timestamp(created.getTime() + random.nextInt(86_400_000)));
+                add(statement);
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void seedFollows(Connection conn, int users) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("INSERT INTO Follows VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+            for(int userID = 1; userID <= users; userID++) {
+                for(int i = 5 + random.nextInt(10); i > 0; i--) {
+                    int followed = 1 + random.nextInt(users);
+                    if(followed != userID)
+                        add(pair(statement, userID, followed));
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void seedWatches(Connection conn, int users, int movies) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement(
+                "INSERT INTO Watches (UserID, MovieID, TimesPlayed, LastWatched, Rating) VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING")) {
+            long now = System.currentTimeMillis();
+
+            for(int userID = 1; userID <= users; userID++) {
+                for(int i = 10 + random.nextInt(50); i > 0; i--) {
+                    statement.setInt(1, userID);
+                    statement.setInt(2, popularMovie(movies));
+                    statement.setInt(3, 1 + random.nextInt(5));
+                    statement.setTimestamp(4, new Timestamp(now - (long) random.nextInt(180) * 86_400_000L));
+                    if(random.nextInt(10) < 7)
+                        statement.setInt(5, 1 + random.nextInt(5));
+                    else
+                        statement.setNull(5, java.sql.Types.INTEGER);
+                    add(statement);
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void seedMovieStats(Connection conn) throws SQLException {
+        try(Statement statement = conn.createStatement()) {
+            statement.executeUpdate(
+                    "INSERT INTO MovieStats (MovieID, Watchers, Plays, RatingSum, Ratings, LastWatched) "+
+                    "SELECT M.MovieID, COUNT(W.UserID), COALESCE(SUM(W.TimesPlayed), 0), COALESCE(SUM(W.Rating), 0), COUNT(W.Rating), MAX(W.LastWatched) "+
+                    "FROM Movies AS M LEFT JOIN Watches AS W ON W.MovieID = M.MovieID GROUP BY M.MovieID");
+            statement.executeUpdate(
+                    "INSERT INTO MovieStatsDaily (MovieID, LastWatchedOn, Watchers, Plays, RatingSum, Ratings) "+
+                    "SELECT MovieID, CAST(LastWatched AS DATE), COUNT(*), SUM(TimesPlayed), COALESCE(SUM(Rating), 0), COUNT(Rating) "+
+                    "FROM Watches GROUP BY MovieID, CAST(LastWatched AS DATE)");
+        }
+    }
+
+    private List<List<Integer>> seedCollections(Connection conn, int users, int movies) throws SQLException {
+        List<List<Integer>> userCollections = new ArrayList<>();
+        List<Set<Integer>> contents = new ArrayList<>();
+        int collectionID = 0;
+
+        try(PreparedStatement collection = conn.prepareStatement("INSERT INTO Collections (UserID, Name) VALUES (?, ?)");
+            PreparedStatement collectionMovie = conn.prepareStatement("INSERT INTO CollectionMovies VALUES (?, ?) ON CONFLICT DO NOTHING")) {
+
+            for(int userID = 1; userID <= users; userID++) {
+                List<Integer> owned = new ArrayList<>();
+
+                for(int i = random.nextInt(5); i > 0; i--) {
+                    collectionID++;
+                    owned.add(collectionID);
+                    collection.setInt(1, userID);
+                    collection.setString(2, capitalize(WORDS[random.nextInt(WORDS.length)])+" picks");
+                    add(collection);
+
+                    Set<Integer> added = new HashSet<>();
+                    for(int m = 5 + random.nextInt(15); m > 0; m--)
+                        added.add(popularMovie(movies));
+                    contents.add(added);
+                }
+
+                userCollections.add(owned);
+            }
+            collection.executeBatch();
+
+            for(int i = 0; i < contents.size(); i++) {
+                for(int movieID : contents.get(i))
+                    add(pair(collectionMovie, i + 1, movieID));
+            }
+            collectionMovie.executeBatch();
+        }
+
+        return userCollections;
+    }
+
+    /**
+     * Collections that requests are allowed to delete, each deleted at most once
+     */
+    private int seedScratchCollections(Connection conn, int users, int count) throws SQLException {
+        try(PreparedStatement statement = conn.prepareStatement("INSERT INTO Collections (UserID, Name) VALUES (?, ?)")) {
+            for(int i = 0; i < count; i++) {
+                statement.setInt(1, 1 + random.nextInt(users));
+                statement.setString(2, "scratch "+i);
+                add(statement);
+            }
+            statement.executeBatch();
+        }
+        return count;
+    }
+
+    /**
+     * Pick a movie with a skewed distribution, so a few movies get most of the watches
+     */
+    private int popularMovie(int movies) {
+        double r = random.nextDouble();
+        return 1 + (int) (movies * r * r * r);
+    }
+
+    private PreparedStatement pair(PreparedStatement statement, int first, int second) throws SQLException {
+        statement.setInt(1, first);
+        statement.setInt(2, second);
+        return statement;
+    }
+
+    private void add(PreparedStatement statement) throws SQLException {
+        statement.addBatch();
+        rows++;
+        if(rows % 5000 == 0)
+            statement.executeBatch();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    static String username(int userID) {
+        return "user"+userID;
+    }
+}
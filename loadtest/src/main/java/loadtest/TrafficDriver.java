@@ -0,0 +1,91 @@
+package loadtest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a fixed rate regardless of how fast the application answers (an open
+ * loop), so a slow response delays nothing else. Latency is measured from when a request
+ * was due, not from when it was sent, so time spent queued behind a stall is counted.
+ */
+public class TrafficDriver {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final HttpClient client;
+    private final TrafficMix mix;
+    private final List<TrafficMix.VirtualUser> users;
+    private final Random random;
+
+    /**
+     * Constructor for TrafficDriver
+     * @param client Client to send requests with, it should not follow redirects
+     * @param mix The requests to send
+     * @param users Signed in users to send them as
+     * @param seed Seed for choosing requests
+     */
+    public TrafficDriver(HttpClient client, TrafficMix mix, List<TrafficMix.VirtualUser> users, long seed) {
+        this.client = client;
+        this.mix = mix;
+        this.users = users;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Create a client suitable for the driver
+     */
+    public static HttpClient newClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newCachedThreadPool())
+                .build();
+    }
+
+    /**
+     * Send requests for a while and wait for the responses
+     * @param rate Requests per second
+     * @param duration How long to send for
+     * @param report Where to record the responses
+     */
+    public void run(double rate, Duration duration, LoadReport report) {
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        Phaser inFlight = new Phaser(1);
+        long lagging = 0;
+
+        for(long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+            else if(-wait > interval)
+                lagging++;
+
+            TrafficMix.Planned planned = mix.next(random, users.get(random.nextInt(users.size())));
+            long scheduledAt = due;
+
+            inFlight.register();
+            client.sendAsync(planned.request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> {
+                        report.record(planned.route, System.nanoTime() - scheduledAt, e == null ? response.statusCode() : -1);
+                        if(e != null)
+                            logger.debug("Request to "+planned.request.uri()+" failed", e);
+                        inFlight.arriveAndDeregister();
+                    });
+        }
+
+        inFlight.arriveAndAwaitAdvance();
+
+        if(lagging > 0)
+            logger.warn(lagging+" requests were sent late, the driver could not keep up with the target rate");
+    }
+}
@@ -0,0 +1,221 @@
+package loadtest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Weighted mix of requests over every route of the application, roughly shaped like users
+ * browsing: mostly movie pages, searches and collections, with a smaller share of writes.
+ */
+public class TrafficMix {
+    private static final String[] SEARCH_TERMS = {
+            "night", "city", "star", "king", "ghost", "love", "shadow", "dream", "Reeves", "Hanks",
+            "Gerwig", "Kurosawa", "Comedy", "Horror", "Drama", "Science Fiction", "Keanu", "Emma"
+    };
+
+    private final String baseUrl;
+    private final Seeder.Dataset dataset;
+    private final List<Kind> kinds = new ArrayList<>();
+    private final double totalWeight;
+    private final AtomicInteger registered = new AtomicInteger();
+    private final AtomicInteger deleted = new AtomicInteger();
+
+    /**
+     * A signed in user sending requests, with its session cookie
+     */
+    public static final class VirtualUser {
+        final int userID;
+        final String cookie;
+
+        VirtualUser(int userID, String cookie) {
+            this.userID = userID;
+            this.cookie = cookie;
+        }
+    }
+
+    /**
+     * A planned request
+     */
+    public static final class Planned {
+        final String route;
+        final HttpRequest request;
+
+        Planned(String route, HttpRequest request) {
+            this.route = route;
+            this.request = request;
+        }
+    }
+
+    private interface Builder {
+        HttpRequest.Builder build(Random random, VirtualUser user);
+    }
+
+    private static final class Kind {
+        final String route;
+        final double weight;
+        final Builder builder;
+
+        Kind(String route, double weight, Builder builder) {
+            this.route = route;
+            this.weight = weight;
+            this.builder = builder;
+        }
+    }
+
+    /**
+     * Constructor for TrafficMix
+     * @param baseUrl URL of the running application, e.g. http://localhost:19001
+     * @param dataset The seeded data to build requests against
+     */
+    public TrafficMix(String baseUrl, Seeder.Dataset dataset) {
+        this.baseUrl = baseUrl;
+        this.dataset = dataset;
+
+        add("GET /movie/:movieID", 25, (r, u) -> get("/movie/"+movie(r)));
+        add("GET /search", 12, (r, u) -> get("/search?q="+encode(pick(r, SEARCH_TERMS))+"&c="+r.nextInt(5)+"&s="+r.nextInt(5)+"&a="+r.nextBoolean()));
+        add("GET /", 5, (r, u) -> get("/"));
+        add("GET /collections", 8, (r, u) -> get("/collections"));
+        add("GET /collections/:collectionid", 6, (r, u) -> get("/collections/"+collection(r, u)));
+        add("GET /collections/:cid/play/:pg", 4, (r, u) -> get("/collections/"+collection(r, u)+"/play/"+r.nextInt(3)));
+        add("POST /collections/:cid/play", 0.5, (r, u) -> post("/collections/"+collection(r, u)+"/play", ""));
+        add("GET /collections/create", 1, (r, u) -> get("/collections/create?name="+encode("load "+r.nextInt(1000))));
+        add("GET /collections/modify", 1, (r, u) -> get("/collections/modify?collectionid="+collection(r, u)+"&name="+encode("renamed "+r.nextInt(1000))));
+        add("GET /collections/export", 0.2, (r, u) -> get("/collections/export?format="+(r.nextBoolean() ? "csv" : "ndjson")));
+        add("POST /collections/import", 0.1, (r, u) -> HttpRequest.newBuilder(URI.create(baseUrl+"/collections/import?format=csv"))
+                .header("Content-Type", "text/csv")
+                .POST(HttpRequest.BodyPublishers.ofString("collection_id,name,movie_id\n1,imported,"+movie(r)+"\n1,imported,"+movie(r)+"\n")));
+        add("GET /collections/delete", 0.5, (r, u) -> get("/collections/delete?collectionid="+scratchCollection()));
+        add("GET /collections/movie/add", 2, (r, u) -> get("/collections/movie/add?collectionid="+collection(r, u)+"&movieid="+movie(r)));
+        add("GET /collections/movie/remove", 2, (r, u) -> get("/collections/movie/remove?collectionid="+collection(r, u)+"&movieid="+movie(r)));
+        add("POST /collections/:collectionid/movies/add", 0.5, (r, u) -> post("/collections/"+collection(r, u)+"/movies/add", movies(r)));
+        add("POST /collections/:collectionid/movies/remove", 0.5, (r, u) -> post("/collections/"+collection(r, u)+"/movies/remove", movies(r)));
+        add("GET /users", 3, (r, u) -> get("/users?q="+encode(r.nextBoolean() ? "" : "user"+(1 + r.nextInt(dataset.users)))));
+        add("GET /users/follow", 1, (r, u) -> get("/users/follow?followedid="+(1 + r.nextInt(dataset.users))));
+        add("GET /users/unfollow", 1, (r, u) -> get("/users/unfollow?followedid="+(1 + r.nextInt(dataset.users))));
+        add("GET /profile", 4, (r, u) -> get("/profile"));
+        add("POST /movie/:movieID/play", 4, (r, u) -> post("/movie/"+movie(r)+"/play", "location="+encode("/movie/1")));
+        add("POST /movie/:movieID/rate", 3, (r, u) -> post("/movie/"+movie(r)+"/rate", "rating="+(1 + r.nextInt(5))+"&location="+encode("/movie/1")));
+        add("GET /recommendations/rolling", 3, (r, u) -> get("/recommendations/rolling"));
+        add("GET /recommendations/friends", 3, (r, u) -> get("/recommendations/friends"));
+        add("GET /recommendations/monthly", 3, (r, u) -> get("/recommendations/monthly"));
+        add("GET /recommendations/foryou", 3, (r, u) -> get("/recommendations/foryou"));
+        add("GET /signin", 1, (r, u) -> get("/signin"));
+        add("POST /signin", 1, (r, u) -> post("/signin", "username="+Seeder.username(u.userID)+"&password="+Seeder.PASSWORD));
+        add("GET /register", 0.5, (r, u) -> get("/register"));
+        add("POST /register", 0.3, (r, u) -> {
+            String username = "load"+registered.incrementAndGet()+"x"+r.nextInt(1_000_000);
+            return post("/register", "username="+username+"&password="+Seeder.PASSWORD+"&email="+username+"%40example.com"
+                    +"&firstname=Load&lastname=Test");
+        });
+        add("GET /logout", 0.5, (r, u) -> get("/logout"));
+        add("GET /metrics", 0.2, (r, u) -> get("/metrics"));
+        add("GET /admin/traces", 0.1, (r, u) -> get("/admin/traces"));
+        add("GET /admin/slowqueries", 0.1, (r, u) -> get("/admin/slowqueries"));
+        add("GET /assets/*file", 2, (r, u) -> get("/assets/"+(r.nextBoolean() ? "stylesheets/main.css" : "images/movieicon.png")));
+
+        double total = 0;
+        for(Kind kind : kinds)
+            total += kind.weight;
+        this.totalWeight = total;
+    }
+
+    private void add(String route, double weight, Builder builder) {
+        kinds.add(new Kind(route, weight, builder));
+    }
+
+    /**
+     * Plan the next request
+     * @param random Source of randomness, the caller's so a run is reproducible
+     * @param user The user sending it
+     */
+    public Planned next(Random random, VirtualUser user) {
+        double target = random.nextDouble() * totalWeight;
+        Kind kind = kinds.get(kinds.size() - 1);
+        for(Kind candidate : kinds) {
+            target -= candidate.weight;
+            if(target < 0) {
+                kind = candidate;
+                break;
+            }
+        }
+
+        HttpRequest request = kind.builder.build(random, user)
+                .header("Cookie", user.cookie)
+                .build();
+        return new Planned(kind.route, request);
+    }
+
+    /**
+     * Routes of the mix, as "VERB pattern" matching conf/routes
+     */
+    public Set<String> routes() {
+        Set<String> routes = new LinkedHashSet<>();
+        for(Kind kind : kinds)
+            routes.add(kind.route);
+        return Collections.unmodifiableSet(routes);
+    }
+
+    private HttpRequest.Builder get(String path) {
+        return HttpRequest.newBuilder(URI.create(baseUrl+path)).GET();
+    }
+
+    private HttpRequest.Builder post(String path, String form) {
+        return HttpRequest.newBuilder(URI.create(baseUrl+path))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form));
+    }
+
+    /**
+     * A movie, skewed towards the popular ones like the seeded watches
+     */
+    private int movie(Random random) {
+        double r = random.nextDouble();
+        return 1 + (int) (dataset.movies * r * r * r);
+    }
+
+    /**
+     * Form fields of a bulk collection update, with up to 20 movies
+     */
+    private String movies(Random random) {
+        StringBuilder form = new StringBuilder();
+        int count = 1 + random.nextInt(20);
+        for(int i = 0; i < count; i++)
+            form.append(i == 0 ? "" : "&").append("movieid=").append(movie(random));
+        return form.toString();
+    }
+
+    /**
+     * One of the user's own collections, or any collection if the user has none
+     */
+    private int collection(Random random, VirtualUser user) {
+        List<Integer> owned = dataset.userCollections.get(user.userID - 1);
+        if(owned.isEmpty())
+            return 1 + random.nextInt(dataset.firstScratchCollection - 1);
+        return owned.get(random.nextInt(owned.size()));
+    }
+
+    /**
+     * A scratch collection not deleted yet. Once all are gone, deletes target a missing collection.
+     */
+    private int scratchCollection() {
+        int next = deleted.getAndIncrement();
+        return next < dataset.scratchCollections ? dataset.firstScratchCollection + next : Integer.MAX_VALUE;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
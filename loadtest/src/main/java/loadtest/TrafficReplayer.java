@@ -0,0 +1,134 @@
+package loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import filters.TrafficCaptureFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import play.libs.Json;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-issues traffic captured by TrafficCaptureFilter against a test instance, keeping the
+ * original spacing between requests or compressing it by a speed factor. Requests are sent
+ * as the captured user, signed in as the seeded account with the same ID, and redacted
+ * passwords are replaced with the seeded password.
+ */
+public class TrafficReplayer {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final HttpClient client;
+    private final String baseUrl;
+    private final Map<Integer, String> cookies = new HashMap<>();
+
+    /**
+     * A captured request
+     */
+    static final class Captured {
+        final long at;
+        final String method;
+        final String uri;
+        final String route;
+        final String form;
+        final Integer userID;
+
+        Captured(JsonNode line) {
+            this.at = line.get("at").asLong();
+            this.method = line.get("method").asText();
+            String query = line.path("query").asText("");
+            this.uri = line.get("path").asText()+(query.isEmpty() ? "" : "?"+query);
+            this.route = line.path("route").asText("unmatched");
+            this.form = line.path("form").asText("").replace("password="+TrafficCaptureFilter.REDACTED, "password="+Seeder.PASSWORD);
+            this.userID = line.path("userID").isInt() ? line.get("userID").asInt() : null;
+        }
+    }
+
+    /**
+     * Constructor for TrafficReplayer
+     * @param client Client to send requests with, it should not follow redirects
+     * @param baseUrl URL of the instance to replay against
+     */
+    public TrafficReplayer(HttpClient client, String baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Read a traffic log, in the order requests arrived
+     * @param path The log written by TrafficCaptureFilter
+     * @throws IOException if the log cannot be read
+     */
+    static List<Captured> read(Path path) throws IOException {
+        List<Captured> captured = new ArrayList<>();
+        for(String line : Files.readAllLines(path)) {
+            if(!line.isBlank())
+                captured.add(new Captured(Json.parse(line)));
+        }
+        captured.sort((a, b) -> Long.compare(a.at, b.at));
+        return captured;
+    }
+
+    /**
+     * Replay captured requests and wait for the responses
+     * @param captured Requests in arrival order
+     * @param speed How many times faster than captured to send them, 1 keeps the original timing
+     * @param report Where to record the responses, under the captured route names
+     * @throws Exception if a captured user cannot be signed in
+     */
+    public void replay(List<Captured> captured, double speed, LoadReport report) throws Exception {
+        if(captured.isEmpty())
+            return;
+
+        for(Captured request : captured) {
+            if(request.userID != null && !cookies.containsKey(request.userID))
+                cookies.put(request.userID, LoadTest.signIn(client, baseUrl, request.userID).cookie);
+        }
+
+        long firstAt = captured.get(0).at;
+        long start = System.nanoTime();
+        Phaser inFlight = new Phaser(1);
+
+        for(Captured request : captured) {
+            long due = start + (long) ((request.at - firstAt) * 1e6 / speed);
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+                LockSupport.parkNanos(wait);
+
+            inFlight.register();
+            client.sendAsync(build(request), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> {
+                        report.record(request.route, System.nanoTime() - due, e == null ? response.statusCode() : -1);
+                        if(e != null)
+                            logger.debug("Replaying "+request.uri+" failed", e);
+                        inFlight.arriveAndDeregister();
+                    });
+        }
+
+        inFlight.arriveAndAwaitAdvance();
+    }
+
+    private HttpRequest build(Captured request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl+request.uri));
+        if(request.userID != null)
+            builder.header("Cookie", cookies.get(request.userID));
+
+        if(request.method.equals("GET"))
+            return builder.GET().build();
+
+        return builder
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .method(request.method, HttpRequest.BodyPublishers.ofString(request.form))
+                .build();
+    }
+}
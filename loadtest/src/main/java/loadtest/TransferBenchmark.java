@@ -0,0 +1,109 @@
+package loadtest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+
+/**
+ * Throughput of collection export and import. Gives a user collections holding the
+ * requested number of movies in total, downloads them in each format, then uploads the
+ * download again, and prints rows per second for every transfer.
+ */
+public class TransferBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(TransferBenchmark.class);
+
+    private final HttpClient client;
+    private final String baseUrl;
+
+    /**
+     * Constructor for TransferBenchmark
+     * @param client Client to send requests with
+     * @param baseUrl URL of the running application
+     */
+    public TransferBenchmark(HttpClient client, String baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Give a user collections with about the given number of movies in total, each holding
+     * at most every seeded movie once
+     * @param conn Connection to the seeded database
+     * @return the number of rows created
+     */
+    public static long seed(Connection conn, Seeder.Dataset dataset, int userID, long rows) throws Exception {
+        int perCollection = (int) Math.min(rows, dataset.movies);
+        long collections = (rows + perCollection - 1) / perCollection;
+
+        try(Statement statement = conn.createStatement()) {
+            statement.executeUpdate(String.format(
+                    "INSERT INTO Collections (UserID, Name) SELECT %d, 'transfer ' || g FROM generate_series(1, %d) AS g;", userID, collections));
+            int inserted = statement.executeUpdate(String.format(
+                    "INSERT INTO CollectionMovies (CollectionID, MovieID) SELECT C.CollectionID, M.MovieID FROM Collections AS C "+
+                    "CROSS JOIN (SELECT MovieID FROM Movies ORDER BY MovieID LIMIT %d) AS M "+
+                    "WHERE C.UserID=%d AND C.Name LIKE 'transfer %%';", perCollection, userID));
+            if(!conn.getAutoCommit())
+                conn.commit();
+            statement.execute("ANALYZE Collections; ANALYZE CollectionMovies;");
+            return inserted;
+        }
+    }
+
+    /**
+     * Export and import the user's collections in every format
+     * @param user The signed in owner of the collections
+     */
+    public void run(TrafficMix.VirtualUser user) throws Exception {
+        for(String format : new String[] {"csv", "ndjson"}) {
+            Path file = Files.createTempFile("collections", "."+format);
+            try {
+                long start = System.nanoTime();
+                HttpResponse<InputStream> response = client.send(
+                        HttpRequest.newBuilder(URI.create(baseUrl+"/collections/export?format="+format)).header("Cookie", user.cookie).GET().build(),
+                        HttpResponse.BodyHandlers.ofInputStream());
+                long rows = 0;
+                try(InputStream in = response.body(); OutputStream out = Files.newOutputStream(file)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while((read = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, read);
+                        for(int i = 0; i < read; i++)
+                            if(buffer[i] == '\n')
+                                rows++;
+                    }
+                }
+                if(format.equals("csv"))
+                    rows--;
+                report("export "+format, response.statusCode(), rows, Files.size(file), System.nanoTime() - start);
+
+                start = System.nanoTime();
+                HttpResponse<String> imported = client.send(
+                        HttpRequest.newBuilder(URI.create(baseUrl+"/collections/import?format="+format)).header("Cookie", user.cookie)
+                                .header("Content-Type", "application/octet-stream")
+                                .POST(HttpRequest.BodyPublishers.ofFile(file)).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                report("import "+format, imported.statusCode(), rows, Files.size(file), System.nanoTime() - start);
+                logger.info("Imported "+imported.body());
+            }
+            finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void report(String transfer, int status, long rows, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-14s status %d  %,d rows  %,.1f MB  %.2f s  %,.0f rows/s%n",
+                transfer, status, rows, bytes / 1e6, seconds, rows / seconds);
+    }
+}
@@ -0,0 +1,97 @@
+package models;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class CatalogSnapshotTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("catalog");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try(var files = Files.walk(directory)) {
+            for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRowsSurviveWriteAndMap() throws Exception {
+        CatalogSnapshot.Writer writer = new CatalogSnapshot.Writer();
+        // Enough ratings for codes past 127, which a signed byte would read as negative
+        for(int movieID = 200; movieID >= 1; movieID--)
+            writer.movie(movieID, "Movie "+movieID, 90 + movieID, LocalDate.of(2000, 1, 1).plusDays(movieID), "Rating "+movieID);
+        writer.movie(300, "\u00dcnrated", 100, null, null);
+        writer.director(1, "Director");
+        writer.castMember(1, "Actor");
+        writer.castMember(1, "Director");
+        writer.studio(1, "Studio");
+        writer.genre(1, "Drama");
+        writer.genre(1, "Comedy");
+        writer.genre(2, "Drama");
+        writer.director(999, "Nobody");
+
+        Path path = directory.resolve("catalog.snapshot");
+        writer.write(path);
+        CatalogSnapshot snapshot = CatalogSnapshot.map(path);
+
+        assertEquals(201, snapshot.size());
+        assertEquals(-1, snapshot.ordinal(999));
+        for(int movieID = 1; movieID <= 200; movieID++) {
+            int ordinal = snapshot.ordinal(movieID);
+            assertEquals(movieID, snapshot.movieID(ordinal));
+            assertEquals("Movie "+movieID, snapshot.title(ordinal));
+            assertEquals(90 + movieID, snapshot.length(ordinal));
+            assertEquals(Date.valueOf(LocalDate.of(2000, 1, 1).plusDays(movieID)), snapshot.releaseDate(ordinal));
+            assertEquals("Rating "+movieID, snapshot.mpaa(ordinal));
+        }
+
+        int unrated = snapshot.ordinal(300);
+        assertEquals("\u00dcnrated", snapshot.title(unrated));
+        assertNull(snapshot.releaseDate(unrated));
+        assertEquals(CatalogSnapshot.NO_DATE, snapshot.releaseDay(unrated));
+        assertNull(snapshot.mpaa(unrated));
+        assertEquals("", snapshot.directors(unrated));
+
+        int first = snapshot.ordinal(1);
+        assertEquals("Director", snapshot.directors(first));
+        assertEquals("Actor, Director", snapshot.castMembers(first));
+        assertEquals(List.of("Director", "Actor", "Director"), snapshot.peopleNames(first));
+        assertEquals(List.of("Studio"), snapshot.studioNames(first));
+        assertEquals(List.of("Drama", "Comedy"), snapshot.genreNames(first));
+        assertEquals(List.of("Drama"), snapshot.genreNames(snapshot.ordinal(2)));
+    }
+
+    @Test
+    public void testTooManyRatingsAreRefused() throws Exception {
+        CatalogSnapshot.Writer writer = new CatalogSnapshot.Writer();
+        for(int movieID = 1; movieID <= CatalogSnapshot.NO_MPAA + 1; movieID++)
+            writer.movie(movieID, "Movie "+movieID, 100, null, "Rating "+movieID);
+
+        Path path = directory.resolve("catalog.snapshot");
+        try {
+            writer.write(path);
+            fail("Wrote "+(CatalogSnapshot.NO_MPAA + 1)+" ratings");
+        } catch (IOException e) {
+            assertFalse(Files.exists(path));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package models;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CollectionCacheTest {
+    private CollectionCache loadedCache() {
+        CollectionCache cache = new CollectionCache(Duration.ofMinutes(1), 100, Duration.ofMinutes(1), 100);
+        cache.put(1, List.of(new MovieCollection(10, "Favorites", 2, 200), new MovieCollection(11, "Horror", 0, 0)), cache.version());
+        return cache;
+    }
+
+    @Test
+    public void testWritesUpdateSummaries() {
+        CollectionCache cache = loadedCache();
+
+        cache.movieAdded(11, 95);
+        cache.movieRemoved(10, 120);
+        cache.renamed(10, "Watch later");
+        cache.created(1, 12, "Comedy");
+
+        List<MovieCollection> collections = cache.get(1);
+        assertEquals(3, collections.size());
+        assertEquals("Comedy", collections.get(0).getName());
+        assertEquals(1, collections.get(1).getTotal());
+        assertEquals(95, collections.get(1).getLength());
+        assertEquals("Watch later", collections.get(2).getName());
+        assertEquals(1, collections.get(2).getTotal());
+        assertEquals(80, collections.get(2).getLength());
+
+        cache.deleted(11);
+        assertEquals(2, cache.get(1).size());
+    }
+
+    @Test
+    public void testLoadOverlappingWriteIsNotCached() {
+        CollectionCache cache = new CollectionCache(Duration.ofMinutes(1), 100, Duration.ofMinutes(1), 100);
+        long version = cache.version();
+
+        cache.created(1, 12, "Comedy");
+        cache.put(1, List.of(new MovieCollection(10, "Favorites", 2, 200)), version);
+
+        assertNull(cache.get(1));
+    }
+}
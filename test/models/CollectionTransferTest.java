@@ -0,0 +1,42 @@
+package models;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CollectionTransferTest {
+    private void assertRoundTrip(CollectionTransfer.Format format) throws Exception {
+        StringWriter out = new StringWriter();
+        format.writeHeader(out);
+        format.write(out, 3, "Friday, \"late\"\nnight", 42);
+        format.write(out, 4, "Empty", null);
+
+        BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        CollectionTransfer.Row row = format.read(in);
+        assertEquals(3, row.collectionID);
+        assertEquals("Friday, \"late\"\nnight", row.name);
+        assertEquals(Integer.valueOf(42), row.movieID);
+
+        row = format.read(in);
+        assertEquals(4, row.collectionID);
+        assertEquals("Empty", row.name);
+        assertNull(row.movieID);
+
+        assertNull(format.read(in));
+    }
+
+    @Test
+    public void testCsvRoundTrip() throws Exception {
+        assertRoundTrip(CollectionTransfer.Format.CSV);
+    }
+
+    @Test
+    public void testNdjsonRoundTrip() throws Exception {
+        assertRoundTrip(CollectionTransfer.Format.NDJSON);
+    }
+}
@@ -0,0 +1,66 @@
+package models;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private ConnectionPool pool(int maxSize, Duration idleTimeout) {
+        return new ConnectionPool(() -> {
+            opened.incrementAndGet();
+            return DriverManager.getConnection("jdbc:h2:mem:");
+        }, maxSize, idleTimeout);
+    }
+
+    @Test
+    public void testConnectionsAreReusedAndBounded() throws Exception {
+        ConnectionPool pool = pool(2, Duration.ofMinutes(1));
+        Connection first = pool.take(Duration.ZERO);
+        Connection second = pool.take(Duration.ZERO);
+        assertFalse(pool.hasFree());
+
+        try {
+            pool.take(Duration.ofMillis(10));
+            fail("A third connection was lent");
+        } catch (SQLException e) {
+            assertEquals(ConnectionPool.EXHAUSTED, e.getSQLState());
+        }
+
+        pool.release(first, true);
+        assertSame(first, pool.take(Duration.ZERO));
+        assertEquals(2, opened.get());
+
+        pool.release(second, false);
+        assertTrue(second.isClosed());
+        assertTrue(pool.hasFree());
+        pool.close();
+    }
+
+    @Test
+    public void testIdleConnectionsAreClosed() throws Exception {
+        ConnectionPool pool = pool(2, Duration.ZERO);
+        Connection first = pool.take(Duration.ZERO);
+        pool.release(first, true);
+        Thread.sleep(1);
+
+        Connection second = pool.take(Duration.ZERO);
+        assertTrue(first.isClosed());
+        assertEquals(2, opened.get());
+
+        pool.close();
+        pool.release(second, true);
+        assertTrue(second.isClosed());
+    }
+}
@@ -0,0 +1,62 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import org.junit.Test;
+import util.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class InvalidationBusTest {
+    private final List<Integer> movies = new ArrayList<>();
+    private final AtomicInteger refreshes = new AtomicInteger();
+    private final DataSource dataSource = new DataSource() {
+        @Override
+        public <T> T withConnection(DataSourceCallable<T> callable) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private InvalidationBus bus() {
+        Config config = ConfigFactory.parseResources("application.conf")
+                .resolve(ConfigResolveOptions.defaults().setAllowUnresolved(true));
+        InvalidationBus bus = new InvalidationBus(config, dataSource, new Metrics());
+        bus.subscribe("movie", movies::add);
+        bus.onRefresh(refreshes::incrementAndGet);
+        return bus;
+    }
+
+    @Test
+    public void testEventsAreAppliedOnce() {
+        InvalidationBus bus = bus();
+
+        bus.receive("node-a 1 movie:5 movie:6 forYou:3");
+        bus.receive("node-a 1 movie:5 movie:6 forYou:3");
+        bus.receive("node-b 7 movie:8");
+        bus.receive("node-a 2 movie:9");
+
+        assertEquals(List.of(5, 6, 8, 9), movies);
+        assertEquals(0, refreshes.get());
+    }
+
+    @Test
+    public void testGapDropsEverything() {
+        InvalidationBus bus = bus();
+
+        bus.receive("node-a 1 movie:5");
+        bus.receive("node-a 3 movie:6");
+        bus.receive("node-a 4 movie:7");
+
+        assertEquals(List.of(5, 7), movies);
+        assertEquals(1, refreshes.get());
+    }
+}
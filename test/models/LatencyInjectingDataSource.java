@@ -0,0 +1,217 @@
+package models;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data source for tests and benchmarks backed by an in-memory H2 database in PostgreSQL
+ * mode, holding the tables of the schema evolutions. Each call waits for one of a fixed number of
+ * connections, then for an injected latency with optional jitter, and fails at a configured
+ * rate, so the concurrency behaviour of the managers can be measured without a network or
+ * a real database. A failed call logs and returns null like PostgreSQLDataSource.
+ *
+ * H2 does not understand PostgreSQL interval literals such as '90d'::INTERVAL, so the
+ * rolling and monthly recommendation queries fail against it.
+ */
+public class LatencyInjectingDataSource implements DataSource {
+    private static final AtomicInteger databases = new AtomicInteger();
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private final String url;
+    private final Connection keepAlive;
+    private final Semaphore pool;
+    private final Duration latency;
+    private final Duration jitter;
+    private final Map<String, Duration> queryLatency;
+    private final double failureRate;
+    private final Random random;
+    private final Map<String, AtomicLong> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+
+    /**
+     * Settings of a LatencyInjectingDataSource
+     */
+    public static final class Builder {
+        private int poolSize = 10;
+        private Duration latency = Duration.ZERO;
+        private Duration jitter = Duration.ZERO;
+        private final Map<String, Duration> queryLatency = new HashMap<>();
+        private double failureRate;
+        private long seed = 42;
+
+        /**
+         * Number of calls that can hold a connection at once, the rest wait
+         */
+        public Builder poolSize(int poolSize) {
+            this.poolSize = poolSize;
+            return this;
+        }
+
+        /**
+         * Latency added to every call
+         */
+        public Builder latency(Duration latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Latency added to calls with a query name, replacing the default latency
+         */
+        public Builder latency(String name, Duration latency) {
+            queryLatency.put(name, latency);
+            return this;
+        }
+
+        /**
+         * Upper bound of a uniformly distributed extra latency
+         */
+        public Builder jitter(Duration jitter) {
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * Fraction of calls that fail without running their callback
+         */
+        public Builder failureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * Seed of the jitter and failures, so runs are reproducible
+         */
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Create the database and its schema
+         * @throws SQLException if the database cannot be created
+         */
+        public LatencyInjectingDataSource build() throws SQLException {
+            return new LatencyInjectingDataSource(this);
+        }
+    }
+
+    private LatencyInjectingDataSource(Builder builder) throws SQLException {
+        this.url = "jdbc:h2:mem:perf"+databases.incrementAndGet()+";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DEFAULT_NULL_ORDERING=HIGH";
+        this.pool = new Semaphore(builder.poolSize, true);
+        this.latency = builder.latency;
+        this.jitter = builder.jitter;
+        this.queryLatency = new HashMap<>(builder.queryLatency);
+        this.failureRate = builder.failureRate;
+        this.random = new Random(builder.seed);
+
+        // The in-memory database lives as long as a connection to it is open
+        this.keepAlive = DriverManager.getConnection(url);
+        // Indexes only change plans, and H2 has neither pg_trgm nor expression indexes
+        try(Statement statement = keepAlive.createStatement()) {
+            for(String sql : new SchemaEvolutions("evolutions/default", true).statements()) {
+                if(!sql.startsWith("CREATE EXTENSION") && !sql.startsWith("CREATE INDEX"))
+                    statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Settings for a new data source
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public <T> T withConnection(DataSourceCallable<T> callable) {
+        return withConnection("unnamed", callable);
+    }
+
+    @Override
+    public <T> T withConnection(String name, DataSourceCallable<T> callable) {
+        calls.computeIfAbsent(name, n -> new AtomicLong()).incrementAndGet();
+        long delay;
+        boolean fail;
+        synchronized (random) {
+            delay = queryLatency.getOrDefault(name, latency).toNanos()
+                    + (jitter.isZero() ? 0 : (long) (random.nextDouble() * jitter.toNanos()));
+            fail = random.nextDouble() < failureRate;
+        }
+
+        try {
+            pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try(Connection conn = DriverManager.getConnection(url)) {
+            if(delay > 0)
+                Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+            if(fail)
+                throw new SQLException("Injected failure of "+name);
+
+            conn.setAutoCommit(false);
+            T result = callable.call(conn);
+            conn.commit();
+            return result;
+        } catch (Exception e) {
+            logger.error(e.toString());
+            return null;
+        } finally {
+            active.decrementAndGet();
+            pool.release();
+        }
+    }
+
+    /**
+     * Run statements directly, without latency or failures, e.g. to insert test data
+     * @param callable Callback given a connection in auto-commit mode
+     * @throws Exception if the callback fails
+     */
+    public <T> T setup(DataSourceCallable<T> callable) throws Exception {
+        try(Connection conn = DriverManager.getConnection(url)) {
+            return callable.call(conn);
+        }
+    }
+
+    /**
+     * Number of calls made under a query name
+     */
+    public long getCalls(String name) {
+        AtomicLong count = calls.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Most calls that held a connection at the same time
+     */
+    public int getMaxActive() {
+        return maxActive.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            keepAlive.close();
+        } catch (SQLException e) {
+            logger.error(e.toString());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigValueFactory;
+import org.junit.After;
+import org.junit.Test;
+import util.Metrics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MovieManagerTest {
+    private LatencyInjectingDataSource dataSource;
+    private Path snapshotDirectory;
+
+    private MovieManager movieManager(LatencyInjectingDataSource.Builder settings) throws Exception {
+        dataSource = settings.build();
+        dataSource.setup(conn -> {
+            Statement statement = conn.createStatement();
+            for(int movieID = 1; movieID <= 8; movieID++)
+                statement.executeUpdate("INSERT INTO Movies (Title, Length, ReleaseDate, MPAA) VALUES ('Movie "+movieID+"', 100, '2001-01-01', 'PG');");
+            return null;
+        });
+
+        snapshotDirectory = Files.createTempDirectory("catalog");
+        Config config = ConfigFactory.parseResources("application.conf")
+                .withValue("catalog.snapshot.path", ConfigValueFactory.fromAnyRef(snapshotDirectory.resolve("catalog.snapshot").toString()))
+                .withValue("resilience.retry.path", ConfigValueFactory.fromAnyRef(snapshotDirectory.resolve("retry-queue.jsonl").toString()))
+                .withValue("watchLog.path", ConfigValueFactory.fromAnyRef(snapshotDirectory.resolve("watch-log").toString()))
+                // Wide enough for concurrent lookups to share a batch while the first one loads classes
+                .withValue("batching.window", ConfigValueFactory.fromAnyRef("20 ms"))
+                .resolve(ConfigResolveOptions.defaults().setAllowUnresolved(true));
+
+        MovieCatalog catalog = new MovieCatalog(dataSource, config);
+        catalog.current();
+        return new MovieManager(dataSource, catalog, new MovieSearchIndex(catalog, config), config, new Metrics(), new RetryQueue(dataSource, config),
+                                new WatchLog(config, dataSource, new Metrics()), new InvalidationBus(config, dataSource, new Metrics()),
+                                new MovieStats(config, dataSource, new Metrics()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.close();
+        try(var files = Files.walk(snapshotDirectory)) {
+            for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareQueries() throws Exception {
+        MovieManager movieManager = movieManager(LatencyInjectingDataSource.builder().latency(Duration.ofMillis(20)).poolSize(2));
+
+        List<CompletableFuture<Movie>> lookups = new ArrayList<>();
+        for(int i = 0; i < 32; i++)
+            lookups.add(movieManager.getMovie(1 + i % 8).toCompletableFuture());
+
+        for(int i = 0; i < lookups.size(); i++)
+            assertEquals(1 + i % 8, lookups.get(i).get().getMovieID());
+        assertTrue(dataSource.getCalls("MovieManager.loadMovieBatch") <= 2);
+        assertTrue(dataSource.getMaxActive() <= 2);
+    }
+
+    @Test
+    public void testFailedQueryReturnsNothing() throws Exception {
+        MovieManager movieManager = movieManager(LatencyInjectingDataSource.builder().failureRate(1));
+
+        assertNull(movieManager.getMovie(1).toCompletableFuture().get());
+        assertEquals(1, dataSource.getCalls("MovieManager.loadMovieBatch"));
+    }
+
+    @Test
+    public void testRatingNeedsAWatch() throws Exception {
+        MovieManager movieManager = movieManager(LatencyInjectingDataSource.builder());
+
+        assertEquals("You can't rate a movie you haven't watched!", movieManager.rateMovie(4, 1, 2).toCompletableFuture().get().getText());
+
+        // H2 cannot apply the play, so it stays in the watch log
+        movieManager.playMovie(1, 2).toCompletableFuture().get();
+        assertEquals("Movie rated successfully!", movieManager.rateMovie(4, 1, 2).toCompletableFuture().get().getText());
+    }
+}
@@ -0,0 +1,51 @@
+package models;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MovieSearchIndexTest {
+    private static final float[] BOOSTS = {3.0f, 1.5f, 1.0f, 0.5f};
+
+    private MovieSearchIndex.Index buildIndex() {
+        MovieSearchIndex.Builder builder = new MovieSearchIndex.Builder();
+        builder.add(1, MovieSearchIndex.TITLE, "The Matrix");
+        builder.add(1, MovieSearchIndex.PEOPLE, "Keanu Reeves");
+        builder.add(1, MovieSearchIndex.GENRE, "Action");
+        builder.add(2, MovieSearchIndex.TITLE, "John Wick");
+        builder.add(2, MovieSearchIndex.PEOPLE, "Keanu Reeves");
+        builder.add(2, MovieSearchIndex.STUDIO, "Lionsgate");
+        builder.add(3, MovieSearchIndex.TITLE, "Speed");
+        builder.add(3, MovieSearchIndex.PEOPLE, "Keanu Reeves");
+        builder.add(3, MovieSearchIndex.PEOPLE, "Sandra Bullock");
+        builder.add(4, MovieSearchIndex.TITLE, "Reeves and the Matrix of Doom");
+        return builder.build(BOOSTS, 1.2f, 0.75f);
+    }
+
+    @Test
+    public void testTitleMatchOutranksCastMatch() {
+        int[] results = buildIndex().search("reeves", 10);
+
+        assertEquals(4, results.length);
+        assertEquals(4, results[0]);
+    }
+
+    @Test
+    public void testMultipleTermsAccumulate() {
+        int[] results = buildIndex().search("matrix keanu", 10);
+
+        assertEquals(1, results[0]);
+    }
+
+    @Test
+    public void testLimitKeepsBestMatches() {
+        assertArrayEquals(new int[]{1, 4}, buildIndex().search("Matrix reeves", 2));
+    }
+
+    @Test
+    public void testUnknownTermsReturnNothing() {
+        assertEquals(0, buildIndex().search("zzz", 10).length);
+        assertEquals(0, buildIndex().search("", 10).length);
+    }
+}
@@ -0,0 +1,105 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RetryQueueTest {
+    private Path directory;
+    private Config config;
+    private boolean available;
+
+    private final DataSource dataSource = new DataSource() {
+        @Override
+        public <T> T withConnection(DataSourceCallable<T> callable) {
+            return null;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return available;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("retry");
+        config = ConfigFactory.parseMap(Map.of(
+                "resilience.retry.path", directory.resolve("queue.jsonl").toString(),
+                "resilience.retry.interval", "1 hour",
+                "resilience.retry.maxAttempts", 2));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(directory.resolve("queue.jsonl"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testQueuedWritesSurviveRestartAndApplyInOrder() throws Exception {
+        RetryQueue queue = new RetryQueue(dataSource, config);
+        assertEquals("queued", queue.write("play", () -> "played", "queued", 1, 2).toCompletableFuture().get());
+        queue.write("rename", () -> "renamed", "queued", 3, "Watch later").toCompletableFuture().get();
+
+        List<String> applied = new ArrayList<>();
+        RetryQueue restarted = new RetryQueue(dataSource, config);
+        restarted.register("play", args -> applied.add("play " + args.get(0).asInt() + " " + args.get(1).asInt()));
+        restarted.register("rename", args -> applied.add("rename " + args.get(0).asInt() + " " + args.get(1).asText()));
+        assertEquals(2, restarted.size());
+
+        restarted.drain();
+        assertEquals(0, applied.size());
+
+        available = true;
+        restarted.drain();
+        assertEquals(List.of("play 1 2", "rename 3 Watch later"), applied);
+        assertEquals(0, restarted.size());
+        assertEquals(0, new RetryQueue(dataSource, config).size());
+    }
+
+    @Test
+    public void testFailingWriteIsDroppedAfterMaxAttempts() throws Exception {
+        RetryQueue queue = new RetryQueue(dataSource, config);
+        queue.register("play", args -> null);
+        queue.write("play", () -> null, "queued", 1, 2).toCompletableFuture().get();
+
+        available = true;
+        queue.drain();
+        assertEquals(1, queue.size());
+        queue.drain();
+        assertEquals(0, queue.size());
+        assertNull(queue.write("play", () -> null, "queued", 1, 2).toCompletableFuture().get());
+    }
+
+    @Test
+    public void testWritesAfterRecoveryWaitForQueuedOnes() throws Exception {
+        List<String> applied = new ArrayList<>();
+        RetryQueue queue = new RetryQueue(dataSource, config);
+        queue.register("follow", args -> applied.add("follow " + args.get(0).asInt()));
+        queue.register("unfollow", args -> applied.add("unfollow " + args.get(0).asInt()));
+        queue.write("follow", () -> applied.add("follow 2"), Boolean.FALSE, 2).toCompletableFuture().get();
+
+        available = true;
+        assertEquals(Boolean.FALSE, queue.write("unfollow", () -> applied.add("unfollow 2"), Boolean.FALSE, 2).toCompletableFuture().get());
+
+        queue.drain();
+        assertEquals(List.of("follow 2", "unfollow 2"), applied);
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,215 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import com.typesafe.config.ConfigValueFactory;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import util.Metrics;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ShardedDataSourceTest {
+    private static final int USERS = 8;
+    private static final int MOVIES = 7;
+
+    private static EmbeddedPostgres home;
+    private static EmbeddedPostgres shard;
+    private static EmbeddedPostgres single;
+    private static Path directory;
+    private static Config config;
+    private static ShardedDataSource sharded;
+    private static ShardedDataSource unsharded;
+
+    @BeforeClass
+    public static void startPostgres() throws Exception {
+        home = EmbeddedPostgres.builder().start();
+        shard = EmbeddedPostgres.builder().start();
+        single = EmbeddedPostgres.builder().start();
+        directory = Files.createTempDirectory("sharding");
+
+        config = config("sharded", List.of(Map.of("rport", shard.getPort())));
+        sharded = new ShardedDataSource(config, new Metrics(), new SlowQueryLog(config), new SchemaEvolutions("evolutions/default", true));
+        Config singleConfig = config("single", List.of()).withValue("db_config.rport", ConfigValueFactory.fromAnyRef(single.getPort()));
+        unsharded = new ShardedDataSource(singleConfig, new Metrics(), new SlowQueryLog(singleConfig), new SchemaEvolutions("evolutions/default", true));
+
+        for(EmbeddedPostgres postgres : List.of(home, shard, single)) {
+            try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+                Statement statement = conn.createStatement();
+                for(int movieID = 1; movieID <= MOVIES; movieID++)
+                    statement.executeUpdate("INSERT INTO Movies (Title, Length, ReleaseDate) VALUES ('Movie "+movieID+"', 100, CURRENT_DATE - 3);");
+            }
+        }
+
+        // Users are created on the first shard and copied to the others in the background
+        AccountManager accounts = new AccountManager(sharded, null, new RetryQueue(sharded, config));
+        for(int userID = 1; userID <= USERS; userID++) {
+            assertTrue(accounts.createUser("user"+userID, "password", "user"+userID+"@example.com", "First", "Last")
+                    .toCompletableFuture().get().succeeded());
+            query(single, "INSERT INTO Users (Username, Password, Email) VALUES ('user"+userID+"', 'password', 'user"+userID+"@example.com');");
+        }
+        await(USERS, () -> query(shard, "SELECT COUNT(*) FROM Users;"));
+    }
+
+    @AfterClass
+    public static void stopPostgres() throws Exception {
+        sharded.close();
+        unsharded.close();
+        home.close();
+        shard.close();
+        single.close();
+        try(var files = Files.walk(directory)) {
+            for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * Configuration connecting directly to the first embedded database, with its own local files
+     * @param name Directory the retry queue, watch log and catalog snapshot are kept in
+     * @param shards The shards.databases overrides
+     */
+    private static Config config(String name, List<Map<String, Object>> shards) {
+        Path files = directory.resolve(name);
+        return ConfigFactory.parseResources("application.conf")
+                .withValue("db_config.host", ConfigValueFactory.fromAnyRef("localhost"))
+                .withValue("db_config.rport", ConfigValueFactory.fromAnyRef(home.getPort()))
+                .withValue("db_config.database", ConfigValueFactory.fromAnyRef("postgres"))
+                .withValue("db_config.username", ConfigValueFactory.fromAnyRef("postgres"))
+                .withValue("db_config.password", ConfigValueFactory.fromAnyRef(""))
+                .withValue("db_config.tunnel", ConfigValueFactory.fromAnyRef(false))
+                .withValue("shards.databases", ConfigValueFactory.fromIterable(shards))
+                .withValue("catalog.snapshot.path", ConfigValueFactory.fromAnyRef(files.resolve("catalog.snapshot").toString()))
+                .withValue("resilience.retry.path", ConfigValueFactory.fromAnyRef(files.resolve("retry-queue.jsonl").toString()))
+                .withValue("watchLog.path", ConfigValueFactory.fromAnyRef(files.resolve("watch-log").toString()))
+                .resolve(ConfigResolveOptions.defaults().setAllowUnresolved(true));
+    }
+
+    private static long query(EmbeddedPostgres postgres, String sql) throws Exception {
+        try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+            Statement statement = conn.createStatement();
+            if(!statement.execute(sql))
+                return statement.getUpdateCount();
+            ResultSet results = statement.getResultSet();
+            results.next();
+            return results.getLong(1);
+        }
+    }
+
+    private static void await(long expected, Callable<Long> actual) throws Exception {
+        for(int i = 0; i < 500 && actual.call() != expected; i++)
+            Thread.sleep(10);
+        assertEquals(expected, (long) actual.call());
+    }
+
+    private static MovieManager movieManager(DataSource dataSource, Config config, WatchLog watchLog) {
+        MovieCatalog catalog = new MovieCatalog(dataSource, config);
+        return new MovieManager(dataSource, catalog, new MovieSearchIndex(catalog, config), config, new Metrics(), new RetryQueue(dataSource, config),
+                                watchLog, new InvalidationBus(config, dataSource, new Metrics()), new MovieStats(config, dataSource, new Metrics()));
+    }
+
+    private static List<Integer> movieIDs(List<Movie> movies) {
+        List<Integer> movieIDs = new ArrayList<>();
+        for(Movie movie : movies)
+            movieIDs.add(movie.getMovieID());
+        return movieIDs;
+    }
+
+    @Test
+    public void testUsersAndCollectionsStayOnTheirShard() throws Exception {
+        List<EmbeddedPostgres> databases = List.of(home, shard);
+        for(int userID = 1; userID <= USERS; userID++) {
+            int index = ShardedDataSource.shardOf(userID, 2);
+            assertSame(sharded.getShards().get(index), sharded.forUser(userID));
+            assertEquals(1, query(databases.get(index), "SELECT COUNT(*) FROM Users WHERE UserID = "+userID+";"));
+        }
+
+        CollectionManager collections = new CollectionManager(sharded, null, config, new RetryQueue(sharded, config),
+                                                               new InvalidationBus(config, sharded, new Metrics()));
+        for(int userID = 1; userID <= USERS; userID++)
+            collections.createCollection(userID, "Collection of user "+userID).toCompletableFuture().get();
+
+        int created = 0;
+        for(int index = 0; index < databases.size(); index++) {
+            try(Connection conn = databases.get(index).getPostgresDatabase().getConnection()) {
+                ResultSet results = conn.createStatement().executeQuery("SELECT CollectionID, UserID FROM Collections;");
+                int onShard = 0;
+                while(results.next()) {
+                    int collectionID = results.getInt("CollectionID");
+                    assertEquals(index, ShardedDataSource.shardOf(results.getInt("UserID"), 2));
+                    assertEquals(index, (collectionID - 1) % 2);
+                    assertSame(sharded.getShards().get(index), sharded.forCollection(collectionID));
+                    onShard++;
+                }
+                assertTrue("No collections on shard "+index, onShard > 0);
+                created += onShard;
+            }
+        }
+        assertEquals(USERS, created);
+    }
+
+    @Test
+    public void testMergedListsMatchOneDatabase() throws Exception {
+        Config singleConfig = config("single", List.of()).withValue("db_config.rport", ConfigValueFactory.fromAnyRef(single.getPort()));
+        WatchLog shardedLog = new WatchLog(config, sharded, new Metrics());
+        WatchLog singleLog = new WatchLog(singleConfig, unsharded, new Metrics());
+        MovieManager shardedMovies = movieManager(sharded, config, shardedLog);
+        MovieManager singleMovies = movieManager(unsharded, singleConfig, singleLog);
+
+        // Movie m is watched by users 1 to m, each rating it the same everywhere, so every average and score differs
+        for(MovieManager movieManager : List.of(shardedMovies, singleMovies)) {
+            for(int movieID = 1; movieID <= MOVIES; movieID++) {
+                for(int userID = 1; userID <= movieID; userID++) {
+                    movieManager.playMovie(userID, movieID).toCompletableFuture().get();
+                    movieManager.rateMovie(1 + (userID - 1) % 5, userID, movieID).toCompletableFuture().get();
+                }
+            }
+        }
+        await(0, shardedLog::getPending);
+        await(0, singleLog::getPending);
+        assertTrue(query(shard, "SELECT COUNT(*) FROM Watches;") > 0);
+
+        List<Integer> trending = movieIDs(singleMovies.get90DayRolling().toCompletableFuture().get());
+        assertEquals(MOVIES, trending.size());
+        assertEquals(trending, movieIDs(shardedMovies.get90DayRolling().toCompletableFuture().get()));
+
+        List<Integer> top5 = movieIDs(singleMovies.getTop5LastMonth().toCompletableFuture().get());
+        assertEquals(5, top5.size());
+        assertEquals(top5, movieIDs(shardedMovies.getTop5LastMonth().toCompletableFuture().get()));
+    }
+
+    @Test
+    public void testMisplacedRowsStopStartup() throws Exception {
+        int userID = 1;
+        while(ShardedDataSource.shardOf(userID, 2) != 0)
+            userID++;
+
+        query(shard, "INSERT INTO Follows VALUES ("+userID+", "+(userID + 1)+");");
+        try {
+            new ShardedDataSource(config, new Metrics(), new SlowQueryLog(config), new SchemaEvolutions("evolutions/default", true));
+            fail("Started with the follows of user "+userID+" on the wrong shard");
+        } catch (ConfigException.BadValue e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1 users"));
+        } finally {
+            query(shard, "DELETE FROM Follows;");
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package models;
+
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigResolveOptions;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlowQueryLogTest {
+    private final SlowQueryLog log = new SlowQueryLog(ConfigFactory.parseResources("application.conf")
+            .resolve(ConfigResolveOptions.defaults().setAllowUnresolved(true)));
+
+    @Test
+    public void testLiteralsAndParametersAreRedacted() {
+        SlowQueryLog.ExecutedStatement signUp = new SlowQueryLog.ExecutedStatement(
+                "INSERT INTO Users (Username, Password, Email) VALUES ('ann', 'it''s secret', 'ann@x.com');", List.of(), 1);
+        SlowQueryLog.ExecutedStatement lookup = new SlowQueryLog.ExecutedStatement(
+                "SELECT P1.MovieID FROM CastMembers AS P1 WHERE P1.PersonID = 42 AND MovieID = ANY(?);", Collections.singletonList(new Object[]{1, 2}), 1);
+
+        SlowQueryLog.Entry entry = log.record("AccountManager.createUser", 300_000_000L, 1, List.of(signUp, lookup));
+
+        assertEquals("INSERT INTO Users (Username, Password, Email) VALUES (?, ?, ?);", entry.getStatements().get(0).getSql());
+        assertEquals("SELECT P1.MovieID FROM CastMembers AS P1 WHERE P1.PersonID = ? AND MovieID = ANY(?);", entry.getStatements().get(1).getSql());
+        assertEquals("[?]", entry.getStatements().get(1).getParamsText());
+        assertEquals(log.getEntries().get(0).getStatements(), entry.getStatements());
+    }
+
+    @Test
+    public void testPlansLoseStringLiterals() {
+        SlowQueryLog.Entry entry = log.record("AccountManager.getUser", 300_000_000L, 1, List.of());
+        log.finishExplain(entry, "Index Scan on users  (cost=0.28..8.29 rows=1)\n  Filter: ((password)::text = 'hunter2'::text)");
+
+        assertEquals("Index Scan on users  (cost=0.28..8.29 rows=1)\n  Filter: ((password)::text = ?::text)", entry.getPlan());
+    }
+}
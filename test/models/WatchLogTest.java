@@ -0,0 +1,234 @@
+package models;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import util.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WatchLogTest {
+    private static EmbeddedPostgres postgres;
+
+    private Path directory;
+    private Config config;
+
+    private final DataSource unavailable = new DataSource() {
+        @Override
+        public <T> T withConnection(DataSourceCallable<T> callable) {
+            return null;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @BeforeClass
+    public static void startPostgres() throws Exception {
+        postgres = EmbeddedPostgres.builder().start();
+        try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+            conn.setAutoCommit(false);
+            new SchemaEvolutions("evolutions/default", true).apply(conn);
+            Statement statement = conn.createStatement();
+            statement.executeUpdate("INSERT INTO Users (Username, Password, Email) VALUES ('user1', 'password', 'user1@example.com');");
+            for(int movieID = 1; movieID <= 6; movieID++)
+                statement.executeUpdate("INSERT INTO Movies (Title, Length) VALUES ('Movie "+movieID+"', 100);");
+            conn.commit();
+        }
+    }
+
+    @AfterClass
+    public static void stopPostgres() throws Exception {
+        postgres.close();
+    }
+
+    /**
+     * Data source on the local database that, while crashing is set, commits each call and
+     * then fails it, like a node that dies before it saves its local checkpoint
+     */
+    private static DataSource postgres(AtomicBoolean crashing) {
+        return new DataSource() {
+            @Override
+            public <T> T withConnection(DataSourceCallable<T> callable) {
+                try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+                    conn.setAutoCommit(false);
+                    T value = callable.call(conn);
+                    conn.commit();
+                    return crashing.get() ? null : value;
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static long query(String sql) throws Exception {
+        try(Connection conn = postgres.getPostgresDatabase().getConnection();
+            ResultSet results = conn.createStatement().executeQuery(sql)) {
+            return results.next() ? results.getLong(1) : 0;
+        }
+    }
+
+    private static void await(long expected, Callable<Long> actual) throws Exception {
+        for(int i = 0; i < 500 && actual.call() != expected; i++)
+            Thread.sleep(10);
+        assertEquals(expected, (long) actual.call());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("watch-log");
+        config = ConfigFactory.parseMap(Map.of(
+                "watchLog.path", directory.toString(),
+                "watchLog.segmentSize", WatchLog.RECORD_SIZE * 2,
+                "watchLog.commitWindow", "1 ms",
+                "watchLog.replayBatch", 100,
+                "watchLog.retryInterval", "1 hour"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try(var files = Files.walk(directory)) {
+            for(Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testAcknowledgedEventsSurviveRestart() throws Exception {
+        WatchLog log = new WatchLog(config, unavailable, new Metrics());
+        assertTrue(log.play(1, 10).toCompletableFuture().get());
+        assertTrue(log.rate(1, 10, 4).toCompletableFuture().get());
+        assertTrue(log.play(2, 10).toCompletableFuture().get());
+        assertEquals(3, log.getPending());
+
+        assertEquals(3, new WatchLog(config, unavailable, new Metrics()).getPending());
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        WatchLog log = new WatchLog(config, unavailable, new Metrics());
+        log.play(1, 10).toCompletableFuture().get();
+        log.play(1, 11).toCompletableFuture().get();
+
+        // Half of the second record reached the disk
+        try(FileChannel segment = FileChannel.open(directory.resolve(String.format("%020d.log", 0)), StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.allocate(WatchLog.RECORD_SIZE / 2), WatchLog.RECORD_SIZE + WatchLog.RECORD_SIZE / 2);
+        }
+
+        WatchLog recovered = new WatchLog(config, unavailable, new Metrics());
+        assertEquals(1, recovered.getPending());
+        recovered.play(1, 12).toCompletableFuture().get();
+        assertEquals(2, new WatchLog(config, unavailable, new Metrics()).getPending());
+    }
+
+    @Test
+    public void testPendingPlaysSurviveRestart() throws Exception {
+        WatchLog log = new WatchLog(config, unavailable, new Metrics());
+        assertFalse(log.hasPendingPlay(1, 10));
+        log.play(1, 10).toCompletableFuture().get();
+        log.rate(1, 11, 3).toCompletableFuture().get();
+        assertTrue(log.hasPendingPlay(1, 10));
+        assertFalse(log.hasPendingPlay(1, 11));
+
+        assertTrue(new WatchLog(config, unavailable, new Metrics()).hasPendingPlay(1, 10));
+    }
+
+    @Test
+    public void testBatchIsAppliedOnceAfterCrash() throws Exception {
+        AtomicBoolean crashing = new AtomicBoolean(true);
+        WatchLog log = new WatchLog(config, postgres(crashing), new Metrics());
+        log.play(1, 1).toCompletableFuture().get();
+        log.play(1, 1).toCompletableFuture().get();
+
+        // Committed, but the log never heard and still holds both plays
+        await(2, () -> query("SELECT TimesPlayed FROM Watches WHERE UserID = 1 AND MovieID = 1;"));
+        assertEquals(2, log.getPending());
+
+        WatchLog restarted = new WatchLog(config, postgres(new AtomicBoolean()), new Metrics());
+        await(0, restarted::getPending);
+        assertEquals(2, query("SELECT TimesPlayed FROM Watches WHERE UserID = 1 AND MovieID = 1;"));
+        assertEquals(2, query("SELECT Plays FROM MovieStats WHERE MovieID = 1;"));
+        assertFalse(restarted.hasPendingPlay(1, 1));
+    }
+
+    @Test
+    public void testRatingOfUnwatchedMovieIsDropped() throws Exception {
+        WatchLog log = new WatchLog(config, postgres(new AtomicBoolean()), new Metrics());
+        log.rate(1, 2, 5).toCompletableFuture().get();
+        log.play(1, 3).toCompletableFuture().get();
+        log.rate(1, 3, 4).toCompletableFuture().get();
+        await(0, log::getPending);
+
+        assertEquals(0, query("SELECT COUNT(*) FROM Watches WHERE UserID = 1 AND MovieID = 2;"));
+        assertEquals(0, query("SELECT Ratings FROM MovieStats WHERE MovieID = 2;"));
+        assertEquals(4, query("SELECT Rating FROM Watches WHERE UserID = 1 AND MovieID = 3;"));
+        assertEquals(4, query("SELECT RatingSum FROM MovieStats WHERE MovieID = 3;"));
+    }
+
+    @Test
+    public void testPlaysOfSeveralMoviesAreAppliedTogether() throws Exception {
+        WatchLog log = new WatchLog(config, postgres(new AtomicBoolean()), new Metrics());
+        List<List<WatchLog.Event>> batches = new CopyOnWriteArrayList<>();
+        log.onApplied(batches::add);
+        assertTrue(log.playAll(1, List.of(4, 5)).toCompletableFuture().get());
+
+        await(1, () -> (long) batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(2, query("SELECT COUNT(*) FROM Watches WHERE UserID = 1 AND MovieID IN (4, 5);"));
+        assertEquals(1, query("SELECT Watchers FROM MovieStats WHERE MovieID = 5;"));
+        assertFalse(log.hasPendingPlay(1, 4));
+    }
+
+    @Test
+    public void testPlayMovesWatchToTheDayItWasPlayed() throws Exception {
+        try(Connection conn = postgres.getPostgresDatabase().getConnection()) {
+            Statement statement = conn.createStatement();
+            statement.executeUpdate("INSERT INTO Watches (UserID, MovieID, TimesPlayed, LastWatched, Rating) "+
+                                    "VALUES (1, 6, 2, CURRENT_DATE - 200, 4);");
+            statement.executeUpdate("INSERT INTO MovieStatsDaily (MovieID, LastWatchedOn, Watchers, Plays, RatingSum, Ratings) "+
+                                    "VALUES (6, CURRENT_DATE - 200, 1, 2, 4, 1);");
+        }
+
+        WatchLog log = new WatchLog(config, postgres(new AtomicBoolean()), new Metrics());
+        log.play(1, 6).toCompletableFuture().get();
+        await(0, log::getPending);
+
+        assertEquals(0, query("SELECT Watchers + Plays + RatingSum + Ratings FROM MovieStatsDaily WHERE MovieID = 6 AND LastWatchedOn = CURRENT_DATE - 200;"));
+        assertEquals(1, query("SELECT Watchers FROM MovieStatsDaily WHERE MovieID = 6 AND LastWatchedOn = CURRENT_DATE;"));
+        assertEquals(3, query("SELECT Plays FROM MovieStatsDaily WHERE MovieID = 6 AND LastWatchedOn = CURRENT_DATE;"));
+        assertEquals(4, query("SELECT RatingSum FROM MovieStatsDaily WHERE MovieID = 6 AND LastWatchedOn = CURRENT_DATE;"));
+    }
+}